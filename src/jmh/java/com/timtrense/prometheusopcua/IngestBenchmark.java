@@ -0,0 +1,136 @@
+package com.timtrense.prometheusopcua;
+
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * throughput of the ingest path, from milo handing over a data value to the sample being stored in the buffer,
+ * either directly or handed off to an ingest lane.
+ * each benchmark thread plays one subscription delivering notifications for its own monitors;
+ * run e.g. with "-t 4" for 4 concurrent subscription threads or with "-p arrayLength=64" for array values.
+ *
+ * @author Tim Trense
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class IngestBenchmark {
+
+    @State( Scope.Benchmark )
+    public static class SharedBuffer {
+
+        @Param( {"100"} )
+        int bufferSize;
+
+        /**
+         * "heap" or "mapped" for a {@link MappedSampleStorage} in a temporary directory
+         */
+        @Param( {"heap", "mapped"} )
+        String storage;
+
+        MappedSampleStorage mappedStorage;
+
+        final AtomicInteger subscriptions = new AtomicInteger();
+        Buffer buffer;
+        ClientHandleIndex clientHandles;
+        ExporterMetrics metrics;
+        UaMonitoredItem.ValueConsumer consumer;
+
+        @Setup
+        public void setup() throws IOException {
+            if ( storage.equals( "mapped" ) ) {
+                mappedStorage = MappedSampleStorage.open( Files.createTempDirectory( "ingest-benchmark" ) );
+            }
+            buffer = new Buffer( bufferSize, mappedStorage != null ? mappedStorage : SampleStorage.HEAP );
+            clientHandles = new ClientHandleIndex();
+            metrics = new ExporterMetrics();
+            consumer = Main.createValueConsumer( clientHandles, metrics );
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            if ( mappedStorage != null ) {
+                mappedStorage.close();
+                Path directory = mappedStorage.getDirectory();
+                Files.delete( directory.resolve( MappedSampleStorage.DATA_FILE ) );
+                Files.delete( directory.resolve( MappedSampleStorage.INDEX_FILE ) );
+                Files.delete( directory );
+            }
+        }
+    }
+
+    @State( Scope.Thread )
+    public static class Subscription {
+
+        @Param( {"1000"} )
+        int monitorsPerSubscription;
+
+        /**
+         * 0 for scalar values, otherwise the number of elements of array values, each expanded into its own series
+         */
+        @Param( {"0"} )
+        int arrayLength;
+
+        UaMonitoredItem.ValueConsumer consumer;
+        IngestLane lane;
+        UaMonitoredItem.ValueConsumer handOff;
+        UaMonitoredItem[] items;
+        DataValue[] values;
+        int next;
+
+        @Setup
+        public void setup( SharedBuffer shared ) {
+            int subscription = shared.subscriptions.getAndIncrement();
+            Configuration configuration = Synthetic.configuration( 1, monitorsPerSubscription );
+            // distinct node ids per benchmark thread, so that every ring has a single writer
+            List<MonitorConfiguration> monitors = configuration.getSubscriptions().get( 0 ).getMonitors();
+            for ( int m = 0; m < monitors.size(); m++ ) {
+                monitors.get( m ).setIdentifier( Synthetic.identifier( subscription, m ) );
+            }
+            shared.clientHandles.registerAll( monitors, shared.buffer );
+            consumer = shared.consumer;
+            lane = new IngestLane( String.valueOf( subscription ), 10_000, consumer );
+            handOff = lane.getValueConsumer();
+
+            items = new UaMonitoredItem[monitorsPerSubscription];
+            values = new DataValue[monitorsPerSubscription];
+            long now = System.currentTimeMillis();
+            for ( int m = 0; m < monitorsPerSubscription; m++ ) {
+                items[m] = Synthetic.item( monitors.get( m ).getIdentifier(), shared.clientHandles.getHandle( monitors.get( m ) ) );
+                values[m] = arrayLength == 0 ? Synthetic.value( m * 0.5, now + m ) : Synthetic.arrayValue( m * 0.5, arrayLength, now + m );
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            lane.close();
+        }
+    }
+
+    @Benchmark
+    public void ingest( Subscription subscription ) {
+        int index = subscription.next;
+        subscription.next = index + 1 == subscription.items.length ? 0 : index + 1;
+        subscription.consumer.onValueArrived( subscription.items[index], subscription.values[index] );
+    }
+
+    /**
+     * hands the value off to an {@link IngestLane} as milos delivery thread does, blocking while the lane falls behind
+     */
+    @Benchmark
+    public void handOff( Subscription subscription ) {
+        int index = subscription.next;
+        subscription.next = index + 1 == subscription.items.length ? 0 : index + 1;
+        subscription.handOff.onValueArrived( subscription.items[index], subscription.values[index] );
+    }
+}
@@ -0,0 +1,48 @@
+package com.timtrense.prometheusopcua;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cost of rendering the prometheus series identity of a monitor including its labels
+ *
+ * @author Tim Trense
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class MetricNameBenchmark {
+
+    MonitorConfiguration defaultLabels;
+    MonitorConfiguration customLabels;
+
+    @Setup
+    public void setup() {
+        defaultLabels = new MonitorConfiguration();
+        defaultLabels.setIdentifier( Synthetic.identifier( 0, 42 ) );
+
+        customLabels = new MonitorConfiguration();
+        customLabels.setIdentifier( Synthetic.identifier( 0, 42 ) );
+        customLabels.setName( "frequency" );
+        customLabels.setUnit( "hertz" );
+        customLabels.getLabel().put( "plant", "plant0" );
+        customLabels.getLabel().put( "machine", "machine0" );
+        customLabels.getLabel().put( "io", "input" );
+        customLabels.getLabel().put( "tag", "tag42" );
+        customLabels.getLabel().put( "line", "north \"A\"" );
+    }
+
+    @Benchmark
+    public String defaultLabels() {
+        return defaultLabels.getMetricName();
+    }
+
+    @Benchmark
+    public String customLabels() {
+        return customLabels.getMetricName();
+    }
+}
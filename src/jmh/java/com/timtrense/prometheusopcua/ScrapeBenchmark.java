@@ -0,0 +1,60 @@
+package com.timtrense.prometheusopcua;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * latency of rendering a full /metrics exposition of the buffer in each format, without http.
+ * run with "-prof gc" to see the allocation rate.
+ *
+ * @author Tim Trense
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = {"-Xmx4g"} )
+@State( Scope.Benchmark )
+public class ScrapeBenchmark {
+
+    /**
+     * discards everything, as a fast network would
+     */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write( int b ) {}
+
+        @Override
+        public void write( byte[] b, int off, int len ) {}
+    };
+
+    @Param( {"1000", "10000", "100000"} )
+    int series;
+
+    @Param( {"1", "10", "100"} )
+    int bufferSize;
+
+    @Param( {"Text", "OpenMetrics", "Protobuf"} )
+    ExpositionFormat format;
+
+    PrometheusMetricsServlet servlet;
+    ExpositionWriter writer;
+
+    @Setup
+    public void setup() {
+        servlet = new PrometheusMetricsServlet( Synthetic.filledBuffer( series, bufferSize ), new ExporterMetrics() );
+        writer = new ExpositionWriter();
+    }
+
+    @Benchmark
+    public void render() throws IOException {
+        writer.reset( NULL_OUTPUT );
+        ExpositionEncoder encoder = format.createEncoder( writer );
+        servlet.writeAll( encoder );
+        encoder.finish();
+        writer.flush();
+    }
+}
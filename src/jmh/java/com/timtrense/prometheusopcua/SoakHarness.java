@@ -0,0 +1,521 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * a soak test of the whole exporter process under a production-like load:
+ * a local {@link StandInServer} provides the synthetic nodes, {@link Main} monitors them from a generated configuration file,
+ * publisher threads change the values of one subscription each per publishing cycle on the server,
+ * and scraper threads fetch /metrics?mode=new over http from the exporter.
+ * the opc ua server runs in the same process, so heap and gc figures include its share.
+ * <p>
+ * reported are the latency from source timestamp to exposition, samples dropped (notified by the server but never scraped),
+ * heap and gc activity, and the scrape duration percentiles, as key=value lines to diff between runs.
+ * all values and change times derive from the seed, so runs of the same options are comparable,
+ * and options like --max-scrape-p99 let a run fail when a change made things worse.
+ * run e.g. with:
+ * <pre>
+ * gradle soak -PsoakArgs="--nodes 20000 --rate 2 --array-length 4 --scrapers 2 --duration 120"
+ * </pre>
+ * with --config the generated configuration is kept at the given path instead of a temporary file.
+ *
+ * @author Tim Trense
+ */
+public final class SoakHarness {
+
+    /**
+     * the longest latency in milliseconds told apart, anything slower counts as that
+     */
+    private static final int MAX_LATENCY = 600_000;
+
+    private final @NonNull Map<String, String> options;
+    private final int nodes;
+    private final int subscriptions;
+    private final double rate;
+    private final int arrayLength;
+    private final @NonNull String valueType;
+    private final long publishingInterval;
+    private final int scrapers;
+    private final long scrapeInterval;
+    private final long warmup;
+    private final long duration;
+    private final long seed;
+    private final int bufferSize;
+    private final long startupTimeout;
+
+    private final LongAdder generated = new LongAdder();
+    private final AtomicLong lateCycles = new AtomicLong();
+    private final CountDownLatch primed;
+    private volatile boolean measuring;
+    private volatile boolean publishing = true;
+    private volatile boolean scraping = true;
+
+    /**
+     * per millisecond of latency from source timestamp to exposition the number of samples, while measuring
+     */
+    private final AtomicLongArray latencies = new AtomicLongArray( MAX_LATENCY + 1 );
+
+    /**
+     * per scraper the number of samples received in total
+     */
+    private final long[] received;
+
+    /**
+     * the durations of all scrapes while measuring, in microseconds
+     */
+    private final List<Long> scrapeDurations = new ArrayList<>();
+    private final LongAdder scrapeErrors = new LongAdder();
+
+    private SoakHarness( @NonNull Map<String, String> options ) {
+        this.options = options;
+        this.nodes = intOption( "nodes", 10_000 );
+        this.subscriptions = intOption( "subscriptions", 4 );
+        this.rate = Double.parseDouble( options.getOrDefault( "rate", "1" ) );
+        this.arrayLength = intOption( "array-length", 0 );
+        this.valueType = options.getOrDefault( "type", "double" );
+        this.publishingInterval = intOption( "publishing-interval", 100 );
+        this.scrapers = intOption( "scrapers", 1 );
+        this.scrapeInterval = intOption( "scrape-interval", 1000 );
+        this.warmup = intOption( "warmup", 10 ) * 1000L;
+        this.duration = intOption( "duration", 60 ) * 1000L;
+        this.seed = Long.parseLong( options.getOrDefault( "seed", "42" ) );
+        this.bufferSize = intOption( "buffer-size", 100 );
+        this.startupTimeout = intOption( "startup-timeout", 300 ) * 1000L;
+        this.received = new long[scrapers];
+        this.primed = new CountDownLatch( scrapers );
+        if ( !List.of( "double", "int", "boolean" ).contains( valueType ) ) {
+            throw new IllegalArgumentException( "unknown --type " + valueType + ", expected double, int or boolean" );
+        }
+    }
+
+    /**
+     * @param args options like "--nodes 10000 --rate 2", see the constructor for all of them and their defaults
+     */
+    public static void main( String[] args ) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for ( int i = 0; i < args.length; i++ ) {
+            if ( !args[i].startsWith( "--" ) || i + 1 == args.length ) {
+                throw new IllegalArgumentException( "expected options like --nodes 10000, but got " + args[i] );
+            }
+            options.put( args[i].substring( 2 ), args[++i] );
+        }
+        System.exit( new SoakHarness( options ).run() ? 0 : 1 );
+    }
+
+    private int intOption( @NonNull String name, int defaultValue ) {
+        return Integer.parseInt( options.getOrDefault( name, String.valueOf( defaultValue ) ) );
+    }
+
+    /**
+     * @return whether all gates passed
+     */
+    private boolean run() throws Exception {
+        Random random = new Random( seed );
+        Variant[] values = new Variant[nodes];
+        StandInServer standIn = new StandInServer( nodes );
+        for ( int i = 0; i < nodes; i++ ) {
+            values[i] = value( random );
+            standIn.setValue( i, values[i] );
+        }
+        standIn.start();
+
+        int monitorsPerSubscription = ( nodes + subscriptions - 1 ) / subscriptions;
+        Configuration configuration = new Configuration();
+        configuration.setUrl( standIn.getUrl() );
+        configuration.setHttpPort( StandInServer.freePort() );
+        configuration.setBufferSize( bufferSize );
+        configuration.setReloadConfiguration( false );
+        for ( int s = 0; s < subscriptions; s++ ) {
+            SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+            subscription.setRequestedPublishingInterval( publishingInterval );
+            for ( int node = s * monitorsPerSubscription; node < Math.min( nodes, ( s + 1 ) * monitorsPerSubscription ); node++ ) {
+                MonitorConfiguration monitor = new MonitorConfiguration();
+                monitor.setIdentifier( standIn.identifier( node ) );
+                monitor.setName( "soak" );
+                monitor.getLabel().put( "node", String.valueOf( node ) );
+                // sampled often enough that the server sees each change, which comes at most once per publishing cycle
+                monitor.setSamplingInterval( publishingInterval / 4.0 );
+                subscription.getMonitors().add( monitor );
+            }
+            configuration.getSubscriptions().add( subscription );
+        }
+        Path file;
+        if ( options.containsKey( "config" ) ) {
+            file = Paths.get( options.get( "config" ) );
+        }
+        else {
+            file = Files.createTempFile( "soak", ".yaml" );
+            file.toFile().deleteOnExit();
+        }
+        writeConfiguration( configuration, file );
+        thread( "exporter", () -> Main.main( new String[]{file.toString()} ) );
+
+        int samplesPerValue = Math.max( 1, arrayLength );
+        URI exporterUri = URI.create( "http://localhost:" + configuration.getHttpPort() );
+        HttpClient client = HttpClient.newHttpClient();
+        long startup = System.nanoTime();
+        awaitSeries( client, exporterUri.resolve( "/metrics?mode=latest" ), (long)nodes * samplesPerValue );
+        System.out.printf( Locale.ROOT, "exporter monitors all nodes after %dms%n", TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startup ) );
+
+        List<Thread> threads = new ArrayList<>();
+        for ( int i = 0; i < scrapers; i++ ) {
+            int scraper = i;
+            URI uri = exporterUri.resolve( "/metrics?mode=new&consumer=soak-" + i );
+            threads.add( thread( "scraper-" + i, () -> scrape( client, uri, scraper ) ) );
+        }
+        primed.await();
+        URI internalUri = exporterUri.resolve( "/internal/metrics" );
+        long notificationsBefore = sum( client, internalUri, "opcua_exporter_notifications_total" );
+        for ( int s = 0; s < subscriptions; s++ ) {
+            int from = s * monitorsPerSubscription;
+            int to = Math.min( nodes, from + monitorsPerSubscription );
+            Random publisherRandom = new Random( seed + 1 + s );
+            threads.add( thread( "publisher-" + s, () -> publish( standIn, values, from, to, publisherRandom ) ) );
+        }
+
+        System.out.printf( Locale.ROOT, "soak test: %d nodes in %d subscriptions, %s changes/s each, %s values%s, %d scrapers every %dms%n",
+                nodes, subscriptions, rate, valueType, arrayLength > 0 ? " of " + arrayLength + " elements" : "", scrapers, scrapeInterval );
+        Thread.sleep( warmup );
+        long[] gcBefore = gc();
+        measuring = true;
+        long measureStart = System.nanoTime();
+        long maxHeap = 0;
+        while ( System.nanoTime() - measureStart < TimeUnit.MILLISECONDS.toNanos( duration ) ) {
+            Thread.sleep( 100 );
+            maxHeap = Math.max( maxHeap, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() );
+        }
+        measuring = false;
+        long[] gcAfter = gc();
+
+        // let everything generated be published, ingested and scraped once more, so that only what is lost counts as dropped
+        publishing = false;
+        Thread.sleep( 4 * publishingInterval + 2 * scrapeInterval + 1000 );
+        scraping = false;
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        long notified = ( sum( client, internalUri, "opcua_exporter_notifications_total" ) - notificationsBefore ) * samplesPerValue;
+        long overwrites = sum( client, internalUri, "opcua_exporter_buffer_overwrites_total" );
+        standIn.stop();
+
+        long scraped = Arrays.stream( received ).min().orElse( 0 );
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put( "samples_generated", generated.sum() );
+        // changes of a node between two samplings of the server are reported only once, which is not up to the exporter
+        report.put( "samples_coalesced_by_server", generated.sum() - notified );
+        report.put( "samples_notified", notified );
+        report.put( "samples_scraped_min", scraped );
+        report.put( "samples_dropped", notified - scraped );
+        report.put( "buffer_overwrites", overwrites );
+        report.put( "publisher_late_cycles", lateCycles.get() );
+        report.put( "latency_p50_ms", percentile( 0.5 ) );
+        report.put( "latency_p99_ms", percentile( 0.99 ) );
+        report.put( "latency_max_ms", percentile( 1 ) );
+        synchronized( scrapeDurations ) {
+            long[] sorted = scrapeDurations.stream().mapToLong( Long::longValue ).sorted().toArray();
+            report.put( "scrapes", sorted.length );
+            report.put( "scrape_errors", scrapeErrors.sum() );
+            report.put( "scrape_p50_ms", sorted.length == 0 ? 0 : sorted[(int)( ( sorted.length - 1 ) * 0.5 )] / 1000.0 );
+            report.put( "scrape_p99_ms", sorted.length == 0 ? 0 : sorted[(int)( ( sorted.length - 1 ) * 0.99 )] / 1000.0 );
+        }
+        report.put( "gc_count", gcAfter[0] - gcBefore[0] );
+        report.put( "gc_time_ms", gcAfter[1] - gcBefore[1] );
+        report.put( "heap_max_mb", maxHeap >> 20 );
+        report.put( "heap_live_mb", liveHeap() >> 20 );
+        report.forEach( ( key, value ) -> System.out.println( key + "=" + value ) );
+
+        boolean passed = gate( "max-dropped", ( (Number)report.get( "samples_dropped" ) ).doubleValue() )
+                & gate( "max-latency-p99", ( (Number)report.get( "latency_p99_ms" ) ).doubleValue() )
+                & gate( "max-scrape-p99", ( (Number)report.get( "scrape_p99_ms" ) ).doubleValue() )
+                & gate( "max-gc-time", ( (Number)report.get( "gc_time_ms" ) ).doubleValue() );
+        System.out.println( passed ? "passed" : "failed" );
+        return passed;
+    }
+
+    /**
+     * changes the nodes of one subscription on the server: per publishing cycle each node changed with the probability
+     * given by the rate, at most once per cycle. a new value equal to the current one is no change the server would report
+     */
+    private void publish( @NonNull StandInServer standIn, Variant @NonNull [] values, int from, int to, @NonNull Random random ) {
+        double probability = Math.min( 1, rate * publishingInterval / 1000.0 );
+        int samplesPerValue = Math.max( 1, arrayLength );
+        long next = System.currentTimeMillis();
+        while ( publishing ) {
+            int changes = 0;
+            for ( int node = from; node < to; node++ ) {
+                if ( random.nextDouble() < probability ) {
+                    Variant value = value( random );
+                    if ( !Objects.deepEquals( value.getValue(), values[node].getValue() ) ) {
+                        values[node] = value;
+                        standIn.setValue( node, value );
+                        changes++;
+                    }
+                }
+            }
+            generated.add( (long)changes * samplesPerValue );
+            next += publishingInterval;
+            long wait = next - System.currentTimeMillis();
+            if ( wait > 0 ) {
+                sleep( wait );
+            }
+            else {
+                lateCycles.incrementAndGet();
+            }
+        }
+    }
+
+    private @NonNull Variant value( @NonNull Random random ) {
+        if ( arrayLength == 0 ) {
+            return new Variant( element( random ) );
+        }
+        Object[] array = valueType.equals( "double" ) ? new Double[arrayLength]
+                : valueType.equals( "int" ) ? new Integer[arrayLength] : new Boolean[arrayLength];
+        for ( int i = 0; i < arrayLength; i++ ) {
+            array[i] = element( random );
+        }
+        return new Variant( array );
+    }
+
+    private @NonNull Object element( @NonNull Random random ) {
+        switch ( valueType ) {
+            case "int":
+                return random.nextInt( 1000 );
+            case "boolean":
+                return random.nextBoolean();
+            default:
+                return 20 + random.nextGaussian();
+        }
+    }
+
+    /**
+     * waits until the exporter exposes the expected number of series, having connected and created all monitors
+     */
+    private void awaitSeries( @NonNull HttpClient client, @NonNull URI uri, long expected ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + startupTimeout;
+        long series = 0;
+        while ( System.currentTimeMillis() < deadline ) {
+            try {
+                HttpResponse<InputStream> response = client.send( HttpRequest.newBuilder( uri ).build(), HttpResponse.BodyHandlers.ofInputStream() );
+                try ( BufferedReader reader = new BufferedReader( new InputStreamReader( response.body(), StandardCharsets.UTF_8 ) ) ) {
+                    series = reader.lines().filter( line -> !line.isEmpty() && line.charAt( 0 ) != '#' ).count();
+                }
+                if ( series >= expected ) {
+                    return;
+                }
+            }
+            catch ( IOException e ) {
+                // not listening yet
+            }
+            Thread.sleep( 500 );
+        }
+        throw new IllegalStateException( "the exporter exposes " + series + " of " + expected + " series after " + startupTimeout + "ms" );
+    }
+
+    /**
+     * @return the values of a metric of the exporter, summed over all its series
+     */
+    private static long sum( @NonNull HttpClient client, @NonNull URI uri, @NonNull String prefix ) throws IOException, InterruptedException {
+        return client.send( HttpRequest.newBuilder( uri ).build(), HttpResponse.BodyHandlers.ofLines() ).body()
+                .filter( line -> line.startsWith( prefix ) )
+                .mapToLong( line -> Long.parseLong( line.substring( line.lastIndexOf( ' ' ) + 1 ) ) )
+                .sum();
+    }
+
+    /**
+     * plays prometheus, scraping new samples periodically and recording how old they are on arrival.
+     * the first scrape only consumes what was buffered before publishing starts
+     */
+    private void scrape( @NonNull HttpClient client, @NonNull URI uri, int scraper ) {
+        // spread the scrapers across the interval like independent prometheus instances
+        sleep( scrapeInterval * scraper / scrapers );
+        long next = System.currentTimeMillis();
+        boolean priming = true;
+        while ( scraping ) {
+            long start = System.nanoTime();
+            try {
+                HttpResponse<InputStream> response = client.send( HttpRequest.newBuilder( uri ).build(), HttpResponse.BodyHandlers.ofInputStream() );
+                try ( BufferedReader reader = new BufferedReader( new InputStreamReader( response.body(), StandardCharsets.UTF_8 ) ) ) {
+                    if ( response.statusCode() != 200 ) {
+                        scrapeErrors.increment();
+                    }
+                    else if ( priming ) {
+                        reader.lines().forEach( line -> {} );
+                    }
+                    else {
+                        received[scraper] += read( reader );
+                    }
+                }
+                if ( priming && response.statusCode() == 200 ) {
+                    priming = false;
+                    primed.countDown();
+                }
+                if ( measuring ) {
+                    synchronized( scrapeDurations ) {
+                        scrapeDurations.add( TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - start ) );
+                    }
+                }
+            }
+            catch ( IOException e ) {
+                scrapeErrors.increment();
+            }
+            catch ( InterruptedException e ) {
+                return;
+            }
+            next += scrapeInterval;
+            sleep( next - System.currentTimeMillis() );
+        }
+    }
+
+    /**
+     * @return the number of samples read from the text exposition
+     */
+    private long read( @NonNull BufferedReader reader ) throws IOException {
+        long samples = 0;
+        for ( String line = reader.readLine(); line != null; line = reader.readLine() ) {
+            if ( line.isEmpty() || line.charAt( 0 ) == '#' ) {
+                continue;
+            }
+            samples++;
+            if ( measuring ) {
+                long timestamp = Long.parseLong( line.substring( line.lastIndexOf( ' ' ) + 1 ) );
+                long latency = Math.max( 0, Math.min( MAX_LATENCY, System.currentTimeMillis() - timestamp ) );
+                latencies.incrementAndGet( (int)latency );
+            }
+        }
+        return samples;
+    }
+
+    private long percentile( double quantile ) {
+        long total = 0;
+        for ( int i = 0; i <= MAX_LATENCY; i++ ) {
+            total += latencies.get( i );
+        }
+        long rank = (long)Math.ceil( total * quantile );
+        long count = 0;
+        for ( int i = 0; i <= MAX_LATENCY; i++ ) {
+            count += latencies.get( i );
+            if ( count >= rank && count > 0 ) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether the value is within the gate of the given option, if there is one
+     */
+    private boolean gate( @NonNull String option, double value ) {
+        if ( !options.containsKey( option ) || value <= Double.parseDouble( options.get( option ) ) ) {
+            return true;
+        }
+        System.out.println( "gate " + option + "=" + options.get( option ) + " exceeded by " + value );
+        return false;
+    }
+
+    /**
+     * @return the number of collections and the milliseconds spent collecting, summed over all collectors
+     */
+    private static long @NonNull [] gc() {
+        long[] result = new long[2];
+        for ( GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            result[0] += Math.max( 0, collector.getCollectionCount() );
+            result[1] += Math.max( 0, collector.getCollectionTime() );
+        }
+        return result;
+    }
+
+    /**
+     * @return the bytes of heap in use after the latest collection, which approximates the live set
+     */
+    private static long liveHeap() {
+        System.gc();
+        long used = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null ) {
+                used += pool.getCollectionUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * writes the configuration file the exporter is started with
+     */
+    private static void writeConfiguration( @NonNull Configuration configuration, @NonNull Path file ) throws IOException {
+        try ( PrintWriter writer = new PrintWriter( Files.newBufferedWriter( file, StandardCharsets.UTF_8 ) ) ) {
+            writer.println( "# generated by the soak test harness" );
+            writer.println( "url: " + configuration.getUrl() );
+            writer.println( "httpPort: " + configuration.getHttpPort() );
+            writer.println( "bufferSize: " + configuration.getBufferSize() );
+            writer.println( "reloadConfiguration: " + configuration.isReloadConfiguration() );
+            writer.println( "subscriptions:" );
+            for ( SubscriptionConfiguration subscription : configuration.getSubscriptions() ) {
+                writer.println( "    -   requestedPublishingInterval: " + subscription.getRequestedPublishingInterval() );
+                writer.println( "        monitors:" );
+                for ( MonitorConfiguration monitor : subscription.getMonitors() ) {
+                    writer.println( "            -   identifier: \"" + monitor.getIdentifier() + "\"" );
+                    writer.println( "                name: " + monitor.getName() );
+                    writer.println( "                samplingInterval: " + monitor.getSamplingInterval() );
+                    if ( !monitor.getLabel().isEmpty() ) {
+                        writer.println( "                label: {" + monitor.getLabel().entrySet().stream()
+                                .map( label -> label.getKey() + ": \"" + label.getValue() + "\"" )
+                                .collect( Collectors.joining( ", " ) ) + "}" );
+                    }
+                }
+            }
+        }
+    }
+
+    private static @NonNull Thread thread( @NonNull String name, @NonNull Runnable runnable ) {
+        Thread thread = new Thread( runnable, name );
+        thread.setDaemon( true );
+        thread.start();
+        return thread;
+    }
+
+    private static void sleep( long milliseconds ) {
+        if ( milliseconds <= 0 ) {
+            return;
+        }
+        try {
+            Thread.sleep( milliseconds );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
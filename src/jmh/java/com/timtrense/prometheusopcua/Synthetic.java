@@ -0,0 +1,106 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.*;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * synthetic configurations, monitored items and data values, so that benchmarks need no opc ua server
+ *
+ * @author Tim Trense
+ */
+final class Synthetic {
+
+    private Synthetic() {}
+
+    /**
+     * @param subscriptions           how many subscriptions to configure
+     * @param monitorsPerSubscription how many monitors to configure per subscription
+     * @return a configuration with node ids shaped like those of a real plant
+     */
+    static @NonNull Configuration configuration( int subscriptions, int monitorsPerSubscription ) {
+        Configuration configuration = new Configuration();
+        configuration.setUrl( "opc.tcp://localhost:4840" );
+        for ( int s = 0; s < subscriptions; s++ ) {
+            SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+            for ( int m = 0; m < monitorsPerSubscription; m++ ) {
+                MonitorConfiguration monitor = new MonitorConfiguration();
+                monitor.setIdentifier( identifier( s, m ) );
+                subscription.getMonitors().add( monitor );
+            }
+            configuration.getSubscriptions().add( subscription );
+        }
+        return configuration;
+    }
+
+    /**
+     * @return a node id string as long as typical real ones
+     */
+    static @NonNull String identifier( int subscription, int monitor ) {
+        return "ns=1;s=AGENT.OBJECTS.plant" + subscription + ".machine" + ( monitor / 100 ) + ".input.tag" + monitor;
+    }
+
+    /**
+     * @return a monitored item that only knows its node and client handle
+     */
+    static @NonNull UaMonitoredItem item( @NonNull String identifier, int clientHandle ) {
+        ReadValueId readValueId = new ReadValueId( NodeId.parse( identifier ), AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE );
+        UInteger handle = UInteger.valueOf( clientHandle );
+        Map<String, Object> properties = Map.of( "getReadValueId", readValueId, "getClientHandle", handle, "getStatusCode", StatusCode.GOOD );
+        return (UaMonitoredItem)Proxy.newProxyInstance( Synthetic.class.getClassLoader(), new Class<?>[]{UaMonitoredItem.class},
+                ( proxy, method, args ) -> {
+                    if ( method.getName().equals( "hashCode" ) ) {
+                        return System.identityHashCode( proxy );
+                    }
+                    if ( method.getName().equals( "equals" ) ) {
+                        return proxy == args[0];
+                    }
+                    return properties.get( method.getName() );
+                } );
+    }
+
+    /**
+     * @return a good data value with source and server time set
+     */
+    static @NonNull DataValue value( double value, long javaTime ) {
+        DateTime time = new DateTime( Instant.ofEpochMilli( javaTime ) );
+        return new DataValue( new Variant( value ), StatusCode.GOOD, time, time );
+    }
+
+    /**
+     * @return a good data value of an array of doubles counting up from the given value, with source and server time set
+     */
+    static @NonNull DataValue arrayValue( double value, int length, long javaTime ) {
+        Double[] array = new Double[length];
+        for ( int i = 0; i < length; i++ ) {
+            array[i] = value + i;
+        }
+        DateTime time = new DateTime( Instant.ofEpochMilli( javaTime ) );
+        return new DataValue( new Variant( array ), StatusCode.GOOD, time, time );
+    }
+
+    /**
+     * fills a buffer with one series per monitor, each series holding bufferSize samples
+     *
+     * @return the filled buffer
+     */
+    static @NonNull Buffer filledBuffer( int series, int bufferSize ) {
+        Buffer buffer = new Buffer( bufferSize );
+        Configuration configuration = configuration( 1, series );
+        long start = System.currentTimeMillis();
+        for ( MonitorConfiguration monitor : configuration.getSubscriptions().get( 0 ).getMonitors() ) {
+            SampleRing ring = buffer.getNodeBuffer( monitor );
+            for ( int i = 0; i < bufferSize; i++ ) {
+                ring.write( start + 100L * i, 20 + ( i % 17 ) * 0.25, 0 );
+            }
+        }
+        return buffer;
+    }
+}
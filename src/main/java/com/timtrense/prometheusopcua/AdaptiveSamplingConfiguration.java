@@ -0,0 +1,55 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+
+/**
+ * adapting the sampling interval of each monitored item to how often its value changes
+ * and the buffer size of each series to how often it is scraped, see {@link SamplingController}
+ *
+ * @author Tim Trense
+ */
+@Data
+public class AdaptiveSamplingConfiguration {
+
+    /**
+     * milliseconds between observing the change rates and adapting, also the window the rates are observed over
+     */
+    private long period = 60_000;
+
+    /**
+     * milliseconds to narrow the sampling interval of a monitored item to at least
+     */
+    private double minSamplingInterval = 100;
+
+    /**
+     * milliseconds to widen the sampling interval of a monitored item to at most
+     */
+    private double maxSamplingInterval = 60_000;
+
+    /**
+     * the share of samplings that reported a changed value below which the sampling interval is doubled
+     */
+    private double lowChangeRatio = 0.1;
+
+    /**
+     * the share of samplings that reported a changed value above which the sampling interval is halved
+     */
+    private double highChangeRatio = 0.9;
+
+    /**
+     * whether to also size the buffer of each series to hold the samples arriving between two scrapes (twice that many).
+     * a series shrunk this way keeps less history for /api/series.
+     * ignored if {@link Configuration#getBufferDirectory()} is set, because a mapped buffer cannot be resized
+     */
+    private boolean adaptBufferSize = true;
+
+    /**
+     * how many samples to keep per series at least when sizing its buffer
+     */
+    private int minBufferSize = 10;
+
+    /**
+     * how many samples to keep per series at most when sizing its buffer
+     */
+    private int maxBufferSize = 10_000;
+}
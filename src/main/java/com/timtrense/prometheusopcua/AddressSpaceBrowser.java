@@ -0,0 +1,258 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseDirection;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseResultMask;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowseDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowseResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReferenceDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.ViewDescription;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * finds the nodes to monitor by browsing the address space of the opc ua server.
+ * <p>
+ * the hierarchy below the root is browsed level by level. the nodes of a level are split into chunks of at most
+ * {@link #maxNodesPerBrowse} nodes, which are browsed over {@link #parallelism} concurrent request lanes,
+ * following continuation points until each node has all its references returned.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+@Data
+public class AddressSpaceBrowser {
+
+    private static final ViewDescription DEFAULT_VIEW = new ViewDescription( NodeId.NULL_VALUE, DateTime.MIN_VALUE, UInteger.valueOf( 0 ) );
+    private static final int DESCEND_NODE_CLASSES = NodeClass.Object.getValue() | NodeClass.Variable.getValue();
+
+    /**
+     * the connected client to browse with
+     */
+    private final @NonNull OpcUaClient client;
+
+    /**
+     * how many nodes to browse or read per request at most
+     */
+    private final int maxNodesPerBrowse;
+
+    /**
+     * how many browse requests to have in flight at once
+     */
+    private final int parallelism;
+
+    /**
+     * reads the MaxNodesPerBrowse operation limit of the server
+     *
+     * @param client       the connected client
+     * @param defaultLimit the limit to use if the server has none or does not tell
+     * @return the lesser of the server limit and the given default
+     */
+    public static int readMaxNodesPerBrowse( @NonNull OpcUaClient client, int defaultLimit ) {
+        return SubscriptionCreator.readOperationLimit( client, Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerBrowse, defaultLimit );
+    }
+
+    /**
+     * browses the address space as configured
+     *
+     * @param configuration where to browse and which nodes to return
+     * @return the nodes matching the configuration
+     */
+    @SneakyThrows
+    public @NonNull List<@NonNull BrowsedNode> browse( @NonNull BrowseConfiguration configuration ) {
+        long start = System.nanoTime();
+        List<Pattern> include = configuration.getInclude().stream().map( Pattern::compile ).collect( Collectors.toList() );
+        List<Pattern> exclude = configuration.getExclude().stream().map( Pattern::compile ).collect( Collectors.toList() );
+        Set<NodeClass> nodeClasses = new HashSet<>( configuration.getNodeClasses() );
+        int nodeClassMask = nodeClasses.stream().mapToInt( NodeClass::getValue ).reduce( DESCEND_NODE_CLASSES, ( a, b ) -> a | b );
+
+        NodeId root = NodeId.parse( configuration.getRoot() );
+        Set<NodeId> visited = new HashSet<>();
+        visited.add( root );
+        List<BrowsedNode> level = List.of( new BrowsedNode( root, "", NodeClass.Object ) );
+        List<BrowsedNode> matches = new ArrayList<>();
+        int browsed = 0;
+        for ( int depth = 0; depth < configuration.getMaxDepth() && !level.isEmpty(); depth++ ) {
+            List<BrowsedNode> next = new ArrayList<>();
+            for ( BrowsedNode child : browseLevel( level, UInteger.valueOf( nodeClassMask ) ) ) {
+                if ( !visited.add( child.getNodeId() ) ) {
+                    continue; // reachable via more than one path, take the first
+                }
+                if ( ( child.getNodeClass().getValue() & DESCEND_NODE_CLASSES ) != 0 ) {
+                    next.add( child );
+                }
+                if ( nodeClasses.contains( child.getNodeClass() ) && matches( child.getPath(), include, exclude ) ) {
+                    matches.add( child );
+                }
+            }
+            browsed += level.size();
+            level = next;
+        }
+
+        if ( !configuration.getDataTypes().isEmpty() ) {
+            matches = filterDataTypes( matches, configuration.getDataTypes().stream().map( NodeId::parse ).collect( Collectors.toSet() ) );
+        }
+        log.info( "browsed {} nodes below {} in {}ms, {} match", browsed, configuration.getRoot(),
+                SubscriptionCreator.elapsedMillis( start ), matches.size() );
+        return matches;
+    }
+
+    private static boolean matches( @NonNull String path, @NonNull List<Pattern> include, @NonNull List<Pattern> exclude ) {
+        return include.stream().anyMatch( p -> p.matcher( path ).matches() )
+                && exclude.stream().noneMatch( p -> p.matcher( path ).matches() );
+    }
+
+    /**
+     * @param level         the nodes to browse
+     * @param nodeClassMask the node classes of the children to return
+     * @return all children of the given nodes, ordered by path
+     */
+    @SneakyThrows
+    private List<BrowsedNode> browseLevel( @NonNull List<BrowsedNode> level, @NonNull UInteger nodeClassMask ) {
+        Queue<BrowsedNode> children = new ConcurrentLinkedQueue<>();
+        inChunks( level, chunk -> {
+            List<BrowseDescription> requests = chunk.stream()
+                    .map( node -> new BrowseDescription( node.getNodeId(), BrowseDirection.Forward,
+                            Identifiers.HierarchicalReferences, true, nodeClassMask,
+                            UInteger.valueOf( BrowseResultMask.All.getValue() ) ) )
+                    .collect( Collectors.toList() );
+            return client.browse( DEFAULT_VIEW, UInteger.valueOf( 0 ), requests )
+                    .thenCompose( response -> collect( chunk, List.of( response.getResults() ), children ) );
+        } ).get();
+        List<BrowsedNode> sorted = new ArrayList<>( children );
+        sorted.sort( Comparator.comparing( BrowsedNode::getPath ) ); // so that the same path wins on every run
+        return sorted;
+    }
+
+    /**
+     * adds the references of the given results to the children and browses the next references of all
+     * results that have a continuation point
+     */
+    private CompletableFuture<Void> collect( @NonNull List<BrowsedNode> parents, @NonNull List<BrowseResult> results,
+            @NonNull Queue<BrowsedNode> children ) {
+        List<BrowsedNode> continuedParents = new ArrayList<>();
+        List<ByteString> continuationPoints = new ArrayList<>();
+        for ( int i = 0; i < results.size(); i++ ) {
+            BrowseResult result = results.get( i );
+            BrowsedNode parent = parents.get( i );
+            if ( !result.getStatusCode().isGood() ) {
+                log.warn( "could not browse {}: {}", parent.getPath(), result.getStatusCode() );
+                continue;
+            }
+            if ( result.getReferences() != null ) {
+                for ( ReferenceDescription reference : result.getReferences() ) {
+                    reference.getNodeId().toNodeId( client.getNamespaceTable() ).ifPresent( nodeId -> children.add(
+                            new BrowsedNode( nodeId, child( parent.getPath(), reference.getBrowseName() ), reference.getNodeClass() ) ) );
+                }
+            }
+            if ( result.getContinuationPoint() != null && result.getContinuationPoint().isNotNull() ) {
+                continuedParents.add( parent );
+                continuationPoints.add( result.getContinuationPoint() );
+            }
+        }
+        if ( continuationPoints.isEmpty() ) {
+            return CompletableFuture.completedFuture( null );
+        }
+        return client.browseNext( false, continuationPoints )
+                .thenCompose( response -> collect( continuedParents, List.of( response.getResults() ), children ) );
+    }
+
+    private static String child( @NonNull String parentPath, QualifiedName browseName ) {
+        String name = browseName == null || browseName.getName() == null ? "" : browseName.getName();
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    /**
+     * @return those of the given nodes that are variables of one of the given data types
+     */
+    @SneakyThrows
+    private List<BrowsedNode> filterDataTypes( @NonNull List<BrowsedNode> nodes, @NonNull Set<NodeId> dataTypes ) {
+        Set<BrowsedNode> matching = ConcurrentHashMap.newKeySet();
+        inChunks( nodes, chunk -> {
+            List<ReadValueId> requests = chunk.stream()
+                    .map( node -> new ReadValueId( node.getNodeId(), AttributeId.DataType.uid(), null, QualifiedName.NULL_VALUE ) )
+                    .collect( Collectors.toList() );
+            return client.read( 0, TimestampsToReturn.Neither, requests ).thenAccept( response -> {
+                DataValue[] results = response.getResults();
+                for ( int i = 0; i < results.length; i++ ) {
+                    Object dataType = results[i].getValue().getValue();
+                    if ( dataType instanceof NodeId && dataTypes.contains( dataType ) ) {
+                        matching.add( chunk.get( i ) );
+                    }
+                }
+            } );
+        } ).get();
+        return nodes.stream().filter( matching::contains ).collect( Collectors.toList() );
+    }
+
+    /**
+     * sends one request per chunk of the given nodes, each lane sends its share of the chunks one after another
+     * and all lanes run concurrently
+     */
+    private CompletableFuture<Void> inChunks( @NonNull List<BrowsedNode> nodes,
+            @NonNull Function<List<BrowsedNode>, CompletableFuture<Void>> request ) {
+        List<List<BrowsedNode>> chunks = new ArrayList<>();
+        for ( int i = 0; i < nodes.size(); i += maxNodesPerBrowse ) {
+            chunks.add( nodes.subList( i, Math.min( nodes.size(), i + maxNodesPerBrowse ) ) );
+        }
+        int lanes = Math.max( 1, Math.min( parallelism, chunks.size() ) );
+        List<CompletableFuture<?>> laneFutures = new ArrayList<>( lanes );
+        for ( int lane = 0; lane < lanes; lane++ ) {
+            CompletableFuture<Void> laneFuture = CompletableFuture.completedFuture( null );
+            for ( int c = lane; c < chunks.size(); c += lanes ) {
+                List<BrowsedNode> chunk = chunks.get( c );
+                laneFuture = laneFuture.thenCompose( previous -> request.apply( chunk ) );
+            }
+            laneFutures.add( laneFuture );
+        }
+        return CompletableFuture.allOf( laneFutures.toArray( new CompletableFuture<?>[0] ) );
+    }
+
+    /**
+     * a node found by browsing
+     */
+    @Data
+    public static class BrowsedNode {
+
+        /**
+         * the id of the node
+         */
+        private final @NonNull NodeId nodeId;
+
+        /**
+         * the browse names from the root to the node, separated by "/"
+         */
+        private final @NonNull String path;
+
+        /**
+         * the class of the node
+         */
+        private final @NonNull NodeClass nodeClass;
+    }
+}
@@ -0,0 +1,55 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * reusable objects, like the buffers for rendering a response, shared by whichever threads currently need one.
+ * taking never blocks but creates a new object if none is idle, and an object released while the pool is full is dropped.
+ * so the pool holds at most its capacity of objects, regardless of how many threads of the http server or a query pool
+ * ever used one, unlike a {@link ThreadLocal}
+ *
+ * @param <T> the type of the objects
+ * @author Tim Trense
+ */
+public class BoundedPool<T> {
+
+    /**
+     * the capacity for objects used while handling a request, as many as requests are usually handled at once
+     */
+    public static final int DEFAULT_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * the objects currently not in use
+     */
+    private final @NonNull BlockingQueue<T> idle;
+    private final @NonNull Supplier<T> factory;
+
+    /**
+     * @param capacity how many idle objects to keep at most
+     * @param factory  how to create an object if none is idle
+     */
+    public BoundedPool( int capacity, @NonNull Supplier<T> factory ) {
+        this.idle = new ArrayBlockingQueue<>( capacity );
+        this.factory = factory;
+    }
+
+    /**
+     * @return an idle object or else a new one, to be {@link #release(Object) released} once it is not used anymore
+     */
+    public @NonNull T take() {
+        T object = idle.poll();
+        return object != null ? object : factory.get();
+    }
+
+    /**
+     * @param object an object taken from this pool and not used anymore, already reset to be taken again
+     * @return whether the object is kept, otherwise it is to be dropped, freeing any resources it holds
+     */
+    public boolean release( @NonNull T object ) {
+        return idle.offer( object );
+    }
+}
@@ -0,0 +1,83 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * declares monitors for all nodes found by browsing the address space of the opc ua server
+ *
+ * @author Tim Trense
+ */
+@Data
+public class BrowseConfiguration {
+
+    /**
+     * the opc ua node id to start browsing at, default = the Objects folder
+     */
+    private @NonNull String root = "i=85";
+
+    /**
+     * regular expressions of which browse paths to monitor. a browse path is relative to the root
+     * and made of the browse names separated by "/", e.g. "myMaschine/input/frequency". default = all
+     */
+    private @NonNull List<@NonNull String> include = new LinkedList<>( List.of( ".*" ) );
+
+    /**
+     * regular expressions of which browse paths not to monitor, even if included
+     */
+    private @NonNull List<@NonNull String> exclude = new LinkedList<>();
+
+    /**
+     * the node classes to monitor
+     */
+    private @NonNull List<@NonNull NodeClass> nodeClasses = new LinkedList<>( List.of( NodeClass.Variable ) );
+
+    /**
+     * the opc ua node ids of the data types of variables to monitor, compared exactly. default = any
+     */
+    private @NonNull List<@NonNull String> dataTypes = new LinkedList<>();
+
+    /**
+     * how many references deep to browse below the root at most
+     */
+    private int maxDepth = 10;
+
+    /**
+     * the template for the monitors of all nodes found. the identifier is set to the node found,
+     * the labels get "id" and "path" added and client handles are always auto assigned
+     */
+    private @NonNull MonitorConfiguration monitor = new MonitorConfiguration();
+
+    /**
+     * @return everything that determines which nodes are found, but not how they are monitored
+     */
+    public @NonNull String getCacheKey() {
+        return String.join( "|", root, include.toString(), exclude.toString(), nodeClasses.toString(),
+                dataTypes.toString(), String.valueOf( maxDepth ) );
+    }
+
+    /**
+     * @param identifier the opc ua node id of a node found
+     * @param path       the browse path of that node
+     * @return the monitor for that node
+     */
+    public @NonNull MonitorConfiguration createMonitor( @NonNull String identifier, @NonNull String path ) {
+        MonitorConfiguration result = monitor.copy();
+        result.setIdentifier( identifier );
+        result.setClientHandle( null ); // would be taken by each node found
+        Map<String, String> labels = new LinkedHashMap<>( monitor.getLabel() );
+        labels.put( "id", identifier );
+        if ( monitor.getLabel().isEmpty() ) {
+            labels.put( "attribute", monitor.getAttribute().name() );
+        }
+        labels.put( "path", path );
+        result.setLabel( labels );
+        return result;
+    }
+}
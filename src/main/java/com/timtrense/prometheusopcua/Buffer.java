@@ -4,20 +4,24 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NonNull;
 import lombok.ToString;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * a circular fifo queue buffer for storing opc ua data changes on nodes to their respective prometheus metric names
+ * a lock-free ring buffer per prometheus metric name for storing opc ua data changes on nodes,
+ * kept in a {@link SampleStorage} either on the heap or off-heap
  *
  * @author Tim Trense
  */
 @Data
-@ToString( exclude = {"nodeValueBuffers"} )
-@EqualsAndHashCode( exclude = {"nodeValueBuffers"} )
+@ToString( exclude = {"storage", "nodeValueBuffers", "families", "cursors", "cadences"} )
+@EqualsAndHashCode( exclude = {"storage", "nodeValueBuffers", "families", "cursors", "cadences", "slotCount", "changes"} )
 public class Buffer {
 
     /**
@@ -27,28 +31,177 @@ public class Buffer {
     private int bufferSize;
 
     /**
-     * prometheus metric names (incl. all labels) to temporary circular fifo buffers for new values on that metric
+     * milliseconds after which an unused entry in {@link #cursors} or {@link #cadences} is discarded
      */
-    private final Map<@NonNull String, @NonNull CircularFifoQueue<DataValue>> nodeValueBuffers = new HashMap<>();
+    private long cursorTimeout = 600_000;
 
-    public Buffer( int bufferSize ) {this.bufferSize = bufferSize;}
+    /**
+     * where to allocate the samples of newly registered rings
+     */
+    private final @NonNull SampleStorage storage;
+
+    /**
+     * prometheus metric names (incl. all labels) to sample ring buffers for new values on that metric.
+     * iterates all series of the same metric family adjacently.
+     */
+    private final Map<@NonNull String, @NonNull SampleRing> nodeValueBuffers = new ConcurrentSkipListMap<>( MetricFamily.SERIES_ORDER );
+
+    /**
+     * metric family names to the metadata of that family, as given by the first series registered for it
+     */
+    private final Map<@NonNull String, @NonNull MetricFamily> families = new ConcurrentHashMap<>();
+
+    /**
+     * consumers of the /metrics endpoint to what has already been delivered to them
+     */
+    private final Map<@NonNull String, @NonNull ScrapeCursor> cursors = new ConcurrentHashMap<>();
+
+    /**
+     * consumers of the /metrics endpoint and the server they restrict their scrapes to, if any, to how often they scrape
+     */
+    private final Map<@NonNull List<String>, @NonNull ScrapeCadence> cadences = new ConcurrentHashMap<>();
 
     /**
-     * either gets or creates and registers a circular buffer for the given prometheus metric name and labels
+     * the number of slots assigned to rings in {@link #nodeValueBuffers} so far
+     */
+    private final AtomicInteger slotCount = new AtomicInteger();
+
+    /**
+     * counts every sample written to any ring in {@link #nodeValueBuffers}
+     */
+    private final LongAdder changes = new LongAdder();
+
+    public Buffer( int bufferSize ) {this( bufferSize, SampleStorage.HEAP );}
+
+    public Buffer( int bufferSize, @NonNull SampleStorage storage ) {
+        this.bufferSize = bufferSize;
+        this.storage = storage;
+    }
+
+    /**
+     * either gets or creates and registers a ring buffer for the prometheus metric of the given monitor
      *
-     * @param metric the full string for the prometheus metric with its labels
-     * @return a circular buffer queue for temporary storing new value for that metric
+     * @param monitor the configuration of an opc ua monitor
+     * @return a ring buffer for temporary storing new values for that metric
      */
-    public @NonNull CircularFifoQueue<DataValue> getNodeBuffer( @NonNull String metric ) {
-        CircularFifoQueue<DataValue> result;
+    public @NonNull SampleRing getNodeBuffer( @NonNull MonitorConfiguration monitor ) {
+        return getNodeBuffer( monitor.getMetricFamily(), monitor.getMetricLabels() );
+    }
+
+    /**
+     * either gets or creates and registers a ring buffer for the given prometheus metric and labels
+     *
+     * @param family the metric family, whose metadata is ignored if the family is already registered
+     * @param labels the labels of the series within that family
+     * @return a ring buffer for temporary storing new values for that metric
+     */
+    public @NonNull SampleRing getNodeBuffer( @NonNull MetricFamily family, @NonNull Map<@NonNull String, @NonNull String> labels ) {
+        String metric = family.formatSeries( labels );
+        SampleRing result = nodeValueBuffers.get( metric );
+        if ( result != null ) {
+            return result;
+        }
+        // registering is rare, yet must not hand out two rings or slots for the same series
         synchronized( nodeValueBuffers ) {
-            result = nodeValueBuffers.get( metric );
-            if ( result == null ) {
-                result = new CircularFifoQueue<>( bufferSize );
-                nodeValueBuffers.put( metric, result );
-            }
+            MetricFamily registeredFamily = families.computeIfAbsent( family.getName(), n -> family );
+            return nodeValueBuffers.computeIfAbsent( metric, m ->
+                    new SampleRing( registeredFamily, labels, slotCount.getAndIncrement(), storage.allocate( m, bufferSize ), changes ) );
+        }
+    }
+
+    /**
+     * @return whether the rings of this buffer can be resized, which is not the case with a mapped storage
+     * @see SampleStorage#isResizable()
+     */
+    public boolean isResizable() {
+        return storage.isResizable();
+    }
+
+    /**
+     * allocates slots of another capacity for a registered ring, which moves its samples there on its next write.
+     *
+     * @param ring     a ring of this buffer
+     * @param capacity the number of samples to keep in that ring from now on
+     * @throws IllegalStateException if the rings of this buffer are not {@link #isResizable() resizable}
+     */
+    public void resize( @NonNull SampleRing ring, int capacity ) {
+        if ( !storage.isResizable() ) {
+            throw new IllegalStateException( "the rings of a buffer with a mapped storage cannot be resized" );
+        }
+        if ( capacity != ring.getTargetCapacity() ) {
+            ring.resize( storage.allocate( ring.getMetric(), capacity ) );
+        }
+    }
+
+    /**
+     * @return a counter that changes whenever any sample has been written to any ring.
+     * a rendering of all rings started after reading a value stays up to date as long as the value remains the same.
+     */
+    public long getChangeCount() {
+        return changes.sum();
+    }
+
+    /**
+     * @return the number of slots assigned to rings so far, which is an exclusive upper bound of {@link SampleRing#getSlot()}
+     */
+    public int getSlotCount() {
+        return slotCount.get();
+    }
+
+    /**
+     * either gets or creates the cursor for the given consumer. discards all other cursors that timed out.
+     *
+     * @param consumer the key identifying the consumer
+     * @return the cursor remembering what has already been delivered to that consumer
+     */
+    public @NonNull ScrapeCursor getCursor( @NonNull String consumer ) {
+        long now = System.currentTimeMillis();
+        cursors.values().removeIf( c -> now - c.getLastAccess() > cursorTimeout );
+        ScrapeCursor cursor = cursors.computeIfAbsent( consumer, ScrapeCursor::new );
+        cursor.setLastAccess( now );
+        return cursor;
+    }
+
+    /**
+     * records a scrape of the given consumer. discards all other consumers that stopped scraping.
+     *
+     * @param consumer the key identifying the consumer
+     * @param target   the name of the server the scrape is restricted to, null for all
+     */
+    public void markScraped( @NonNull String consumer, String target ) {
+        long now = System.currentTimeMillis();
+        cadences.values().removeIf( c -> now - c.scrapedAt > cursorTimeout );
+        cadences.compute( Arrays.asList( consumer, target ), ( key, previous ) ->
+                new ScrapeCadence( target, now, previous != null ? now - previous.scrapedAt : 0 ) );
+    }
+
+    /**
+     * @param server the name of the server a ring belongs to, null if it has no such label
+     * @return the longest milliseconds between the latest two scrapes of any consumer of the rings of that server,
+     * 0 if none has scraped twice yet
+     */
+    public long getScrapeInterval( String server ) {
+        long now = System.currentTimeMillis();
+        return cadences.values().stream()
+                .filter( c -> now - c.scrapedAt <= cursorTimeout && ( c.target == null || c.target.equals( server ) ) )
+                .mapToLong( c -> c.interval )
+                .max().orElse( 0 );
+    }
+
+    /**
+     * the cadence of one consumer, as of its latest scrape
+     */
+    private static class ScrapeCadence {
+
+        private final String target;
+        private final long scrapedAt;
+        private final long interval;
+
+        private ScrapeCadence( String target, long scrapedAt, long interval ) {
+            this.target = target;
+            this.scrapedAt = scrapedAt;
+            this.interval = interval;
         }
-        return result;
     }
 
 }
@@ -0,0 +1,251 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.stack.core.serialization.SerializationContext;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * assigns each monitor a client handle unique across all subscriptions of a server and routes the client handle
+ * of an incoming value to the {@link SampleSink} of its monitor, without hashing node ids or allocating.
+ * <p>
+ * handles below {@link #DENSE_LIMIT}, which includes all auto assigned ones, are looked up in a dense array,
+ * all other configured handles in a primitive open addressing map.
+ * lookups are lock-free. registrations are synchronized and must happen before the monitored item is created on the server.
+ * auto assigned handles are never reused after unregistering, so late values of a deleted monitored item cannot reach another monitor.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class ClientHandleIndex {
+
+    /**
+     * the exclusive upper bound of handles kept in the dense array
+     */
+    private static final int DENSE_LIMIT = 1 << 20;
+
+    /**
+     * sinks by client handle, for handles below {@link #DENSE_LIMIT}
+     */
+    private volatile SampleSink[] dense = new SampleSink[1024];
+
+    /**
+     * sinks by client handle, for all other handles
+     */
+    private volatile SparseTable sparse = new SparseTable( 16 );
+
+    /**
+     * the handle assigned to each registered monitor
+     */
+    private final Map<@NonNull MonitorConfiguration, @NonNull Integer> handles = new IdentityHashMap<>();
+
+    /**
+     * the next candidate for an auto assigned handle
+     */
+    private int nextHandle = 1;
+
+    /**
+     * registers the given monitors, first those with a configured client handle, then all others with auto assigned ones
+     *
+     * @param monitors the monitors of all subscriptions
+     * @param buffer   the buffer to route the monitors values to, reduced as configured per monitor
+     * @throws IllegalArgumentException if two monitors are configured with the same client handle
+     */
+    public void registerAll( @NonNull Iterable<@NonNull MonitorConfiguration> monitors, @NonNull Buffer buffer ) {
+        registerAll( monitors, buffer, null );
+    }
+
+    /**
+     * registers the given monitors, first those with a configured client handle, then all others with auto assigned ones
+     *
+     * @param monitors the monitors of all subscriptions
+     * @param buffer   the buffer to route the monitors values to, expanded into a series per array element or structure field
+     *                 and reduced as configured per monitor
+     * @param context  how to decode structures or null to not decode them
+     * @throws IllegalArgumentException if two monitors are configured with the same client handle
+     */
+    public synchronized void registerAll( @NonNull Iterable<@NonNull MonitorConfiguration> monitors, @NonNull Buffer buffer,
+            SerializationContext context ) {
+        for ( MonitorConfiguration monitor : monitors ) {
+            if ( monitor.getClientHandle() != null ) {
+                register( monitor, new ValueExpander( buffer, monitor, buffer.getNodeBuffer( monitor ), context ) );
+            }
+        }
+        for ( MonitorConfiguration monitor : monitors ) {
+            if ( monitor.getClientHandle() == null ) {
+                register( monitor, new ValueExpander( buffer, monitor, buffer.getNodeBuffer( monitor ), context ) );
+            }
+        }
+    }
+
+    /**
+     * registers a monitor with its configured client handle or else the next free one
+     *
+     * @param monitor the monitor
+     * @param sink    where to route the monitors values to
+     * @return the client handle to create the monitored item with
+     * @throws IllegalArgumentException if the configured client handle is already taken by another monitor
+     */
+    public synchronized int register( @NonNull MonitorConfiguration monitor, @NonNull SampleSink sink ) {
+        Integer existing = handles.get( monitor );
+        if ( existing != null ) {
+            return existing;
+        }
+        int handle;
+        if ( monitor.getClientHandle() != null ) {
+            handle = monitor.getClientHandle();
+            if ( get( handle ) != null ) {
+                throw new IllegalArgumentException( "client handle " + handle + " of " + monitor.getIdentifier() + " is already taken" );
+            }
+        }
+        else {
+            while ( get( nextHandle ) != null ) {
+                nextHandle++;
+            }
+            handle = nextHandle++;
+        }
+        put( handle, sink );
+        handles.put( monitor, handle );
+        log.trace( "client handle {} routes to {}", handle, sink );
+        return handle;
+    }
+
+    /**
+     * removes a monitor, so that values for its client handle are not routed anymore
+     *
+     * @param monitor the monitor, whose monitored item has been deleted on the server
+     */
+    public synchronized void unregister( @NonNull MonitorConfiguration monitor ) {
+        Integer handle = handles.remove( monitor );
+        if ( handle == null ) {
+            return;
+        }
+        if ( handle >= 0 && handle < DENSE_LIMIT ) {
+            SampleSink[] sinks = dense;
+            if ( handle < sinks.length ) {
+                sinks[handle] = null;
+                dense = sinks; // publishes the removal
+            }
+            return;
+        }
+        sparse = sparse.without( handle ); // probing chains must not break, so rebuild
+    }
+
+    /**
+     * @param monitor a monitor
+     * @return the sink registered for that monitor or null if it is not registered (anymore)
+     */
+    public synchronized SampleSink getSink( @NonNull MonitorConfiguration monitor ) {
+        Integer handle = handles.get( monitor );
+        return handle != null ? get( handle ) : null;
+    }
+
+    /**
+     * @param monitor a monitor
+     * @return the client handle registered for that monitor
+     * @throws IllegalStateException if the monitor is not registered
+     */
+    public synchronized int getHandle( @NonNull MonitorConfiguration monitor ) {
+        Integer handle = handles.get( monitor );
+        if ( handle == null ) {
+            throw new IllegalStateException( "monitor " + monitor.getIdentifier() + " has no client handle registered" );
+        }
+        return handle;
+    }
+
+    /**
+     * @param handle the client handle of a monitored item
+     * @return the sink to write the values of that monitored item to or null if none is registered
+     */
+    public SampleSink get( int handle ) {
+        if ( handle >= 0 && handle < DENSE_LIMIT ) {
+            SampleSink[] sinks = dense;
+            return handle < sinks.length ? sinks[handle] : null;
+        }
+        return sparse.get( handle );
+    }
+
+    private void put( int handle, @NonNull SampleSink sink ) {
+        if ( handle >= 0 && handle < DENSE_LIMIT ) {
+            SampleSink[] sinks = dense;
+            if ( handle >= sinks.length ) {
+                sinks = Arrays.copyOf( sinks, Math.min( DENSE_LIMIT, Math.max( sinks.length * 2, handle + 1 ) ) );
+            }
+            sinks[handle] = sink;
+            dense = sinks; // publishes the new entry
+            return;
+        }
+        SparseTable table = sparse;
+        if ( ( table.size + 1 ) * 2 > table.keys.length ) {
+            table = table.grow();
+        }
+        table.put( handle, sink );
+        sparse = table; // publishes the new entry
+    }
+
+    /**
+     * an open addressing hash table with linear probing from int keys to sinks, kept at most half full
+     */
+    private static class SparseTable {
+
+        private final int[] keys;
+        private final SampleSink[] values;
+        private int size;
+
+        private SparseTable( int capacity ) {
+            keys = new int[capacity];
+            values = new SampleSink[capacity];
+        }
+
+        private static int index( int key, int mask ) {
+            int hash = key * 0x9E3779B9;
+            return ( hash ^ ( hash >>> 16 ) ) & mask;
+        }
+
+        private SampleSink get( int key ) {
+            int mask = keys.length - 1;
+            for ( int i = index( key, mask ); ; i = ( i + 1 ) & mask ) {
+                SampleSink value = values[i];
+                if ( value == null || keys[i] == key ) {
+                    return value;
+                }
+            }
+        }
+
+        private void put( int key, @NonNull SampleSink value ) {
+            int mask = keys.length - 1;
+            int i = index( key, mask );
+            while ( values[i] != null && keys[i] != key ) {
+                i = ( i + 1 ) & mask;
+            }
+            if ( values[i] == null ) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private SparseTable without( int key ) {
+            SparseTable result = new SparseTable( keys.length );
+            for ( int i = 0; i < keys.length; i++ ) {
+                if ( values[i] != null && keys[i] != key ) {
+                    result.put( keys[i], values[i] );
+                }
+            }
+            return result;
+        }
+
+        private SparseTable grow() {
+            SparseTable grown = new SparseTable( keys.length * 2 );
+            for ( int i = 0; i < keys.length; i++ ) {
+                if ( values[i] != null ) {
+                    grown.put( keys[i], values[i] );
+                }
+            }
+            return grown;
+        }
+    }
+}
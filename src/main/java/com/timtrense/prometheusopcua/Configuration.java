@@ -14,9 +14,11 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * root configuration
@@ -32,9 +34,98 @@ public class Configuration {
      */
     private int httpPort = 8080;
     /**
-     * How many samples to keep in a circular buffer queue at most before discarding the oldest
+     * Whether to render the responses of the http server on virtual threads, so that slow scrapers do not hold a platform thread each.
+     * Requires Java 21+, ignored otherwise
+     */
+    private boolean httpVirtualThreads = false;
+    /**
+     * How many threads to query the series matched by one request to /api/series with in parallel (0 = one per cpu)
+     */
+    private int queryParallelism = 0;
+    /**
+     * How many samples to keep in a ring buffer per metric at most before overwriting the oldest
      */
     private int bufferSize = 100;
+    /**
+     * Milliseconds after which a consumer of /metrics?mode=new that stopped scraping is forgotten
+     */
+    private long cursorTimeout = 600_000;
+    /**
+     * Directory to keep the buffer in memory-mapped files, so that buffered samples survive a restart (default = on the heap only)
+     */
+    private String bufferDirectory;
+    /**
+     * Milliseconds after starting to keep the samples in the bufferDirectory of metrics not registered again, before reusing their space
+     */
+    private long bufferRetention = 600_000;
+    /**
+     * How many monitors to create per request at most. Lowered to the MaxMonitoredItemsPerCall of the server if that is less
+     */
+    private int maxMonitoredItemsPerCall = 1000;
+    /**
+     * How many requests for creating monitors to send concurrently per subscription
+     */
+    private int createMonitorParallelism = 4;
+    /**
+     * Auto-sharding: how many monitors to put into one opc ua subscription at most (0 = no sharding).
+     * Each subscription is split into shards of at most that many monitors of the same sampling interval
+     */
+    private int monitorsPerSubscription = 0;
+    /**
+     * How many opc ua sessions to open and spread the subscriptions across, unless {@link #servers} are configured
+     */
+    private int sessions = 1;
+    /**
+     * How many values per opc ua subscription to queue for ingestion at most before delaying the delivery of further values.
+     * Each opc ua subscription is ingested by its own thread
+     */
+    private int ingestQueueSize = 10_000;
+    /**
+     * Auto-discovery: how many nodes to browse per request at most. Lowered to the MaxNodesPerBrowse of the server if that is less
+     */
+    private int maxNodesPerBrowse = 1000;
+    /**
+     * Auto-discovery: how many browse requests to send concurrently
+     */
+    private int browseParallelism = 4;
+    /**
+     * Auto-discovery: file to cache the nodes found by browsing in, so that a restart does not browse again (default = no cache)
+     */
+    private String browseCacheFile;
+    /**
+     * Auto-discovery: opc ua node id whose value changes whenever the address space of the server changes.
+     * The cache is only used as long as that value can be read and is the same as when browsing. Default = the start time of the server
+     */
+    private @NonNull String modelVersionNode = "i=2257";
+
+    /**
+     * Horizontal scale-out: how many replicas of the exporter load this configuration, each monitoring only its share of the monitors.
+     * Overridden by the environment variable PROMETHEUS_OPCUA_REPLICAS
+     */
+    private int replicas = 1;
+    /**
+     * Horizontal scale-out: the index of this replica, starting at 0. Overridden by the environment variable PROMETHEUS_OPCUA_REPLICA.
+     * If neither is given, taken from the trailing number of the HOSTNAME (like exporter-2 in a kubernetes statefulset)
+     */
+    private Integer replica;
+    /**
+     * Horizontal scale-out: whether each replica listens on {@link #httpPort} + its index, for running several replicas on one host
+     */
+    private boolean replicaPortOffset = false;
+
+    /**
+     * Whether to watch the configuration file and apply changes to the subscriptions without a restart
+     */
+    private boolean reloadConfiguration = true;
+
+    /**
+     * Milliseconds to wait at least before retrying to connect or to create a lost subscription again, doubled on each failure
+     */
+    private long minReconnectBackoff = 500;
+    /**
+     * Milliseconds to wait at most before retrying to connect or to create a lost subscription again
+     */
+    private long maxReconnectBackoff = 30_000;
 
     /**
      * Name of this app for the opc ua server
@@ -63,11 +154,27 @@ public class Configuration {
      */
     private @NonNull MessageSecurityMode messageSecurityMode = MessageSecurityMode.None;
 
+    /**
+     * Optionally pushing all samples to a prometheus remote-write receiver in addition to exposing them via /metrics
+     */
+    private RemoteWriteConfiguration remoteWrite;
+
+    /**
+     * Optionally adapting the sampling intervals to how often values change and the buffer sizes to how often they are scraped
+     */
+    private AdaptiveSamplingConfiguration adaptiveSampling;
+
     /**
      * the subscriptions to open on that opc ua server
      */
     private @NonNull List<@NonNull SubscriptionConfiguration> subscriptions = new LinkedList<>();
 
+    /**
+     * several opc ua servers to connect to, each with its own subscriptions.
+     * if given, the url, security mode, sessions and subscriptions above are ignored
+     */
+    private @NonNull List<@NonNull ServerConfiguration> servers = new LinkedList<>();
+
     public void setDiscoveryUrl( @NonNull String discoveryUrl ) {
         this.discoveryUrl = discoveryUrl;
     }
@@ -88,6 +195,30 @@ public class Configuration {
         return Objects.requireNonNullElse( endpointUrl, url );
     }
 
+    /**
+     * @return the configured {@link #servers} or else the single server configured by the url, security mode, sessions and subscriptions
+     * @throws IllegalArgumentException if several servers are configured without unique names
+     */
+    public @NonNull List<@NonNull ServerConfiguration> getServerConfigurations() {
+        if ( servers.isEmpty() ) {
+            ServerConfiguration server = new ServerConfiguration();
+            server.setDiscoveryUrl( discoveryUrl );
+            server.setEndpointUrl( endpointUrl );
+            server.setUrl( url );
+            server.setMessageSecurityMode( messageSecurityMode );
+            server.setSessions( sessions );
+            server.setSubscriptions( subscriptions );
+            return List.of( server );
+        }
+        Set<String> names = new HashSet<>();
+        for ( ServerConfiguration server : servers ) {
+            if ( server.getName() == null || !names.add( server.getName() ) ) {
+                throw new IllegalArgumentException( "each of several servers needs a unique name, but found: " + server.getName() );
+            }
+        }
+        return servers;
+    }
+
     /**
      * loads the configuration from the given YAML file
      *
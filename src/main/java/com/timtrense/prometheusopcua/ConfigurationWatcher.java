@@ -0,0 +1,96 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * watches the configuration file and hands each changed configuration to a listener.
+ * <p>
+ * the whole directory of the file is watched, because editors and kubernetes config maps replace files by renaming
+ * or swapping symlinks rather than writing to them. events are collected until the directory has been quiet for
+ * {@link #QUIET_MILLIS} and the configuration is only reloaded if the content of the file actually changed.
+ * a configuration that cannot be read is logged and otherwise ignored, keeping the running one.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class ConfigurationWatcher implements AutoCloseable {
+
+    private static final long QUIET_MILLIS = 500;
+
+    private final @NonNull Path configFile;
+    private final @NonNull Consumer<@NonNull Configuration> listener;
+    private final @NonNull WatchService watchService;
+    private final @NonNull Thread thread;
+
+    /**
+     * the content of the configuration file when last loaded
+     */
+    private byte[] content;
+
+    /**
+     * @param configFile the configuration file, already loaded
+     * @param listener   what to do with each changed configuration, called on the watchers thread
+     */
+    public ConfigurationWatcher( @NonNull Path configFile, @NonNull Consumer<@NonNull Configuration> listener ) throws IOException {
+        this.configFile = configFile.toAbsolutePath();
+        this.listener = listener;
+        this.content = Files.readAllBytes( this.configFile );
+        this.watchService = this.configFile.getFileSystem().newWatchService();
+        this.configFile.getParent().register( watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+        this.thread = new Thread( this::run, "configuration-watcher" );
+        this.thread.setDaemon( true );
+        this.thread.start();
+        log.info( "watching {} for changes", this.configFile );
+    }
+
+    private void run() {
+        try {
+            while ( true ) {
+                WatchKey key = watchService.take();
+                do {
+                    key.pollEvents();
+                    key.reset();
+                    key = watchService.poll( QUIET_MILLIS, TimeUnit.MILLISECONDS );
+                }
+                while ( key != null );
+                reload();
+            }
+        }
+        catch ( InterruptedException | ClosedWatchServiceException e ) {
+            log.debug( "stopped watching {}", configFile );
+        }
+    }
+
+    private void reload() {
+        try {
+            byte[] changed = Files.readAllBytes( configFile );
+            if ( Arrays.equals( changed, content ) ) {
+                return;
+            }
+            content = changed;
+            listener.accept( Configuration.read( configFile.toString() ) );
+        }
+        catch ( Exception e ) {
+            log.error( "could not apply the changed configuration {}, keeping the running one", configFile, e );
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
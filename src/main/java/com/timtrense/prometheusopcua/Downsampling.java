@@ -0,0 +1,148 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+/**
+ * how a query reduces the samples of one series to fewer points.
+ * all reductions work in a single pass in place on timestamp ordered arrays, so they need no memory of their own.
+ *
+ * @author Tim Trense
+ */
+public enum Downsampling {
+
+    /**
+     * keeps every sample
+     */
+    None,
+
+    /**
+     * the least value per step, timestamped like the start of the step
+     */
+    Min,
+
+    /**
+     * the greatest value per step, timestamped like the start of the step
+     */
+    Max,
+
+    /**
+     * the arithmetic mean of the values per step, timestamped like the start of the step
+     */
+    Avg,
+
+    /**
+     * the given number of points that keep the visual shape of the series (largest triangle three buckets)
+     */
+    Lttb;
+
+    /**
+     * reduces the samples in place
+     *
+     * @param timestamps the timestamps of the samples in ascending order, replaced by those of the points
+     * @param values     the values of the samples, replaced by those of the points
+     * @param size       the number of samples
+     * @param step       milliseconds per step of {@link #Min}, {@link #Max} and {@link #Avg}, aligned to the epoch
+     * @param points     the number of points to keep at most for {@link #Lttb}
+     * @return the number of points
+     */
+    public int reduce( long @NonNull [] timestamps, double @NonNull [] values, int size, long step, int points ) {
+        switch ( this ) {
+            case None:
+                return size;
+            case Lttb:
+                return lttb( timestamps, values, size, points );
+            default:
+                if ( step < 1 ) {
+                    throw new IllegalArgumentException( "the step must be positive but was " + step );
+                }
+                return aggregate( timestamps, values, size, step );
+        }
+    }
+
+    private int aggregate( long @NonNull [] timestamps, double @NonNull [] values, int size, long step ) {
+        int count = 0;
+        long current = 0;
+        int samples = 0;
+        double result = 0;
+        for ( int i = 0; i < size; i++ ) {
+            long bucket = Math.floorDiv( timestamps[i], step );
+            double value = values[i];
+            if ( samples > 0 && bucket != current ) {
+                timestamps[count] = current * step;
+                values[count++] = this == Avg ? result / samples : result;
+                samples = 0;
+            }
+            if ( samples == 0 ) {
+                current = bucket;
+                result = value;
+            }
+            else if ( this == Min ) {
+                result = Math.min( result, value );
+            }
+            else if ( this == Max ) {
+                result = Math.max( result, value );
+            }
+            else {
+                result += value;
+            }
+            samples++;
+        }
+        if ( samples > 0 ) {
+            timestamps[count] = current * step;
+            values[count++] = this == Avg ? result / samples : result;
+        }
+        return count;
+    }
+
+    private static int lttb( long @NonNull [] timestamps, double @NonNull [] values, int size, int points ) {
+        if ( points >= size || points < 3 ) {
+            if ( points >= size || points < 1 ) {
+                return size;
+            }
+            // too few points for buckets, keep the first and the last
+            timestamps[1] = timestamps[size - 1];
+            values[1] = values[size - 1];
+            return points;
+        }
+        // the first and the last sample are kept, all others are split into points - 2 buckets.
+        // points are written at most up to the start of the bucket being read, so reducing in place is safe
+        double every = (double)( size - 2 ) / ( points - 2 );
+        long previousTimestamp = timestamps[0];
+        double previousValue = values[0];
+        int count = 1;
+        for ( int bucket = 0; bucket < points - 2; bucket++ ) {
+            // the average of the next bucket, the last sample for the last bucket
+            int nextStart = (int)( ( bucket + 1 ) * every ) + 1;
+            int nextEnd = Math.min( (int)( ( bucket + 2 ) * every ) + 1, size );
+            double averageTimestamp = 0;
+            double averageValue = 0;
+            for ( int i = nextStart; i < nextEnd; i++ ) {
+                averageTimestamp += timestamps[i];
+                averageValue += values[i];
+            }
+            averageTimestamp /= nextEnd - nextStart;
+            averageValue /= nextEnd - nextStart;
+
+            // the sample of this bucket forming the largest triangle with the previous point and that average
+            int start = (int)( bucket * every ) + 1;
+            int end = nextStart;
+            int selected = start;
+            double largestArea = -1;
+            for ( int i = start; i < end; i++ ) {
+                double area = Math.abs( ( previousTimestamp - averageTimestamp ) * ( values[i] - previousValue )
+                        - ( previousTimestamp - timestamps[i] ) * ( averageValue - previousValue ) );
+                if ( area > largestArea ) {
+                    largestArea = area;
+                    selected = i;
+                }
+            }
+            previousTimestamp = timestamps[selected];
+            previousValue = values[selected];
+            timestamps[count] = previousTimestamp;
+            values[count++] = previousValue;
+        }
+        timestamps[count] = timestamps[size - 1];
+        values[count++] = values[size - 1];
+        return count;
+    }
+}
@@ -0,0 +1,217 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * the metrics of the exporter about itself: ingest, buffering and exposition.
+ * everything is made of striped adders, so that instrumenting the ingest path costs next to nothing.
+ *
+ * @author Tim Trense
+ */
+@Data
+public class ExporterMetrics {
+
+    /**
+     * per subscription (by its index in the configuration, followed by the shard index if sharded) the number of value notifications received
+     */
+    private final Map<@NonNull String, @NonNull LongAdder> notifications = new ConcurrentHashMap<>();
+
+    /**
+     * per opc ua subscription, named like in {@link #notifications}, the lane ingesting its values
+     */
+    private final Map<@NonNull String, @NonNull IngestLane> ingestLanes = new ConcurrentHashMap<>();
+
+    /**
+     * the number of times an opc ua session was lost
+     */
+    private final LongAdder sessionLosses = new LongAdder();
+
+    /**
+     * the duration from losing an opc ua session to it being active again
+     */
+    private final Histogram sessionRecoveryDurations = new Histogram( Histogram.LATENCY_BUCKETS );
+
+    /**
+     * the number of opc ua subscriptions created again because the server lost them
+     */
+    private final LongAdder subscriptionRecreations = new LongAdder();
+
+    /**
+     * the number of monitored items whose sampling interval has been adapted
+     */
+    private final LongAdder samplingIntervalChanges = new LongAdder();
+
+    /**
+     * the number of series whose buffer has been resized
+     */
+    private final LongAdder bufferResizes = new LongAdder();
+
+    /**
+     * delay between a value changing at its source and the opc ua server timestamping it
+     */
+    private final Histogram sourceToServerLag = new Histogram( Histogram.LATENCY_BUCKETS );
+
+    /**
+     * delay between the opc ua server timestamping a value and it being written to the buffer here
+     */
+    private final Histogram serverToIngestLag = new Histogram( Histogram.LATENCY_BUCKETS );
+
+    /**
+     * per /metrics mode the duration of handling a scrape
+     */
+    private final Map<@NonNull String, @NonNull Histogram> scrapeDurations = new ConcurrentHashMap<>();
+
+    /**
+     * the number of response body bytes written by /metrics
+     */
+    private final LongAdder scrapeBytes = new LongAdder();
+
+    /**
+     * per remote write shard the queue of batches waiting to be sent
+     */
+    private final Map<@NonNull String, @NonNull Queue<?>> remoteWriteQueues = new ConcurrentHashMap<>();
+
+    /**
+     * the number of samples successfully pushed via remote write
+     */
+    private final LongAdder remoteWriteSamples = new LongAdder();
+
+    /**
+     * the number of samples dropped because the remote write receiver rejected them
+     */
+    private final LongAdder remoteWriteFailedSamples = new LongAdder();
+
+    /**
+     * the number of retries of remote write requests
+     */
+    private final LongAdder remoteWriteRetries = new LongAdder();
+
+    /**
+     * the duration of remote write requests
+     */
+    private final Histogram remoteWriteDurations = new Histogram( Histogram.LATENCY_BUCKETS );
+
+    /**
+     * the number of buffered samples not exposed by /metrics because their status code is not good
+     */
+    private final LongAdder badStatusSamples = new LongAdder();
+
+    /**
+     * @param subscription the index of the subscription in the configuration
+     * @return the counter of value notifications for that subscription
+     */
+    public @NonNull LongAdder getNotifications( @NonNull String subscription ) {
+        return notifications.computeIfAbsent( subscription, s -> new LongAdder() );
+    }
+
+    /**
+     * records the lag of a sample being ingested
+     *
+     * @param sourceTime the source timestamp of the sample in milliseconds since epoch
+     * @param serverTime the server timestamp of the sample in milliseconds since epoch
+     * @param ingestTime the current time in milliseconds since epoch
+     */
+    public void observeIngest( long sourceTime, long serverTime, long ingestTime ) {
+        sourceToServerLag.observe( ( serverTime - sourceTime ) / 1000.0 );
+        serverToIngestLag.observe( ( ingestTime - serverTime ) / 1000.0 );
+    }
+
+    /**
+     * records a scrape of /metrics
+     *
+     * @param mode        the mode of the scrape
+     * @param nanoseconds how long handling the scrape took
+     * @param bytes       how many response body bytes were written
+     */
+    public void observeScrape( @NonNull String mode, long nanoseconds, long bytes ) {
+        scrapeDurations.computeIfAbsent( mode, m -> new Histogram( Histogram.LATENCY_BUCKETS ) ).observe( nanoseconds / 1e9 );
+        scrapeBytes.add( bytes );
+    }
+
+    /**
+     * writes all metrics in the prometheus text format
+     *
+     * @param writer the target
+     * @param buffer the buffer to additionally report about
+     */
+    public void write( @NonNull PrintWriter writer, @NonNull Buffer buffer ) {
+        writer.print( "# TYPE opcua_exporter_notifications_total counter\n" );
+        notifications.forEach( ( subscription, count ) ->
+                writer.print( "opcua_exporter_notifications_total{subscription=\"" + subscription + "\"} " + count.sum() + "\n" ) );
+
+        if ( !ingestLanes.isEmpty() ) {
+            writer.print( "# HELP opcua_exporter_ingest_queue_length values received but not yet written to the buffer\n" );
+            writer.print( "# TYPE opcua_exporter_ingest_queue_length gauge\n" );
+            ingestLanes.forEach( ( subscription, lane ) ->
+                    writer.print( "opcua_exporter_ingest_queue_length{subscription=\"" + subscription + "\"} " + lane.getQueueLength() + "\n" ) );
+        }
+
+        writer.print( "# TYPE opcua_exporter_session_losses_total counter\n" );
+        writer.print( "opcua_exporter_session_losses_total " + sessionLosses.sum() + "\n" );
+        writer.print( "# TYPE opcua_exporter_session_recovery_duration_seconds histogram\n" );
+        sessionRecoveryDurations.write( writer, "opcua_exporter_session_recovery_duration_seconds", "" );
+        writer.print( "# HELP opcua_exporter_subscription_recreations_total subscriptions created again because the server lost them\n" );
+        writer.print( "# TYPE opcua_exporter_subscription_recreations_total counter\n" );
+        writer.print( "opcua_exporter_subscription_recreations_total " + subscriptionRecreations.sum() + "\n" );
+        long stale = buffer.getNodeValueBuffers().values().stream().filter( ring -> ring.getStaleSince() != 0 ).count();
+        writer.print( "# HELP opcua_exporter_stale_series series not exposed because their session is lost\n" );
+        writer.print( "# TYPE opcua_exporter_stale_series gauge\n" );
+        writer.print( "opcua_exporter_stale_series " + stale + "\n" );
+
+        writer.print( "# TYPE opcua_exporter_samples_total counter\n" );
+        writer.print( "opcua_exporter_samples_total " + buffer.getChangeCount() + "\n" );
+
+        writer.print( "# HELP opcua_exporter_buffer_overwrites_total samples overwritten in the buffer before being scraped\n" );
+        writer.print( "# TYPE opcua_exporter_buffer_overwrites_total counter\n" );
+        for ( SampleRing ring : buffer.getNodeValueBuffers().values() ) {
+            StringBuilder series = new StringBuilder();
+            MetricFamily.escape( ring.getMetric(), true, series );
+            writer.print( "opcua_exporter_buffer_overwrites_total{series=\"" + series + "\"} " + ring.getOverwrites() + "\n" );
+        }
+
+        writer.print( "# HELP opcua_exporter_sampling_interval_changes_total monitored items whose sampling interval has been adapted\n" );
+        writer.print( "# TYPE opcua_exporter_sampling_interval_changes_total counter\n" );
+        writer.print( "opcua_exporter_sampling_interval_changes_total " + samplingIntervalChanges.sum() + "\n" );
+        writer.print( "# HELP opcua_exporter_buffer_resizes_total series whose buffer has been resized\n" );
+        writer.print( "# TYPE opcua_exporter_buffer_resizes_total counter\n" );
+        writer.print( "opcua_exporter_buffer_resizes_total " + bufferResizes.sum() + "\n" );
+
+        writer.print( "# TYPE opcua_exporter_source_to_server_lag_seconds histogram\n" );
+        sourceToServerLag.write( writer, "opcua_exporter_source_to_server_lag_seconds", "" );
+        writer.print( "# TYPE opcua_exporter_server_to_ingest_lag_seconds histogram\n" );
+        serverToIngestLag.write( writer, "opcua_exporter_server_to_ingest_lag_seconds", "" );
+
+        writer.print( "# TYPE opcua_exporter_scrape_duration_seconds histogram\n" );
+        scrapeDurations.forEach( ( mode, histogram ) ->
+                histogram.write( writer, "opcua_exporter_scrape_duration_seconds", "mode=\"" + mode + "\"" ) );
+        writer.print( "# TYPE opcua_exporter_scrape_bytes_total counter\n" );
+        writer.print( "opcua_exporter_scrape_bytes_total " + scrapeBytes.sum() + "\n" );
+
+        if ( !remoteWriteQueues.isEmpty() ) {
+            writer.print( "# TYPE opcua_exporter_remote_write_samples_total counter\n" );
+            writer.print( "opcua_exporter_remote_write_samples_total " + remoteWriteSamples.sum() + "\n" );
+            writer.print( "# HELP opcua_exporter_remote_write_failed_samples_total samples dropped because the receiver rejected them\n" );
+            writer.print( "# TYPE opcua_exporter_remote_write_failed_samples_total counter\n" );
+            writer.print( "opcua_exporter_remote_write_failed_samples_total " + remoteWriteFailedSamples.sum() + "\n" );
+            writer.print( "# TYPE opcua_exporter_remote_write_retries_total counter\n" );
+            writer.print( "opcua_exporter_remote_write_retries_total " + remoteWriteRetries.sum() + "\n" );
+            writer.print( "# TYPE opcua_exporter_remote_write_duration_seconds histogram\n" );
+            remoteWriteDurations.write( writer, "opcua_exporter_remote_write_duration_seconds", "" );
+            writer.print( "# HELP opcua_exporter_remote_write_queue_length batches waiting to be sent\n" );
+            writer.print( "# TYPE opcua_exporter_remote_write_queue_length gauge\n" );
+            remoteWriteQueues.forEach( ( shard, queue ) ->
+                    writer.print( "opcua_exporter_remote_write_queue_length{shard=\"" + shard + "\"} " + queue.size() + "\n" ) );
+        }
+
+        writer.print( "# HELP opcua_exporter_bad_status_samples_total buffered samples not exposed because of a non-good status code\n" );
+        writer.print( "# TYPE opcua_exporter_bad_status_samples_total counter\n" );
+        writer.print( "opcua_exporter_bad_status_samples_total " + badStatusSamples.sum() + "\n" );
+    }
+}
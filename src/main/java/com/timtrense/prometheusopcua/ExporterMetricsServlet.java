@@ -0,0 +1,31 @@
+package com.timtrense.prometheusopcua;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+
+import java.io.IOException;
+
+/**
+ * the HTTP GET /internal/metrics endpoint for exposing the {@link ExporterMetrics} of this exporter itself
+ *
+ * @author Tim Trense
+ */
+@Data
+@ToString( exclude = {"buffer", "metrics"} )
+@EqualsAndHashCode( callSuper = false, exclude = {"buffer", "metrics"} )
+public class ExporterMetricsServlet extends HttpServlet {
+
+    private final @NonNull Buffer buffer;
+    private final @NonNull ExporterMetrics metrics;
+
+    @Override
+    protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws IOException {
+        resp.setContentType( ExpositionFormat.Text.getContentType() );
+        metrics.write( resp.getWriter(), buffer );
+    }
+}
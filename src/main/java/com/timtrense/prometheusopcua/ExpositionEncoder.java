@@ -0,0 +1,74 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+
+/**
+ * renders the samples of one exposition in one {@link ExpositionFormat}.
+ * the samples must be given grouped by their {@link MetricFamily}, as {@link Buffer} iterates its rings.
+ *
+ * @author Tim Trense
+ */
+public abstract class ExpositionEncoder {
+
+    protected final @NonNull ExpositionWriter writer;
+
+    private final @Getter @NonNull ExpositionFormat format;
+
+    /**
+     * the family of the previous sample
+     */
+    private MetricFamily family;
+
+    protected ExpositionEncoder( @NonNull ExpositionWriter writer, @NonNull ExpositionFormat format ) {
+        this.writer = writer;
+        this.format = format;
+    }
+
+    /**
+     * renders one sample, preceded by the metadata of its family if it is the first sample of that family
+     *
+     * @param ring      the ring the sample was read from
+     * @param value     the sample value
+     * @param timestamp the sample timestamp in milliseconds since epoch
+     */
+    public void writeSample( @NonNull SampleRing ring, double value, long timestamp ) throws IOException {
+        if ( ring.getFamily() != family ) {
+            if ( family != null ) {
+                endFamily( family );
+            }
+            family = ring.getFamily();
+            beginFamily( family );
+        }
+        byte[] series = ring.getEncodedSeries( format );
+        if ( series == null ) {
+            series = encodeSeries( ring );
+            ring.setEncodedSeries( format, series );
+        }
+        writeSample( series, value, timestamp );
+    }
+
+    /**
+     * completes the exposition. the encoder must not be used afterwards.
+     */
+    public void finish() throws IOException {
+        if ( family != null ) {
+            endFamily( family );
+            family = null;
+        }
+    }
+
+    /**
+     * @param ring a ring of samples
+     * @return the identity of the rings series in this format, to be reused for all of its samples
+     */
+    protected abstract byte @NonNull [] encodeSeries( @NonNull SampleRing ring );
+
+    protected abstract void beginFamily( @NonNull MetricFamily family ) throws IOException;
+
+    protected abstract void writeSample( byte @NonNull [] series, double value, long timestamp ) throws IOException;
+
+    protected abstract void endFamily( @NonNull MetricFamily family ) throws IOException;
+}
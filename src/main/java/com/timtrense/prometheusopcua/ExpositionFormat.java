@@ -0,0 +1,105 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Locale;
+
+/**
+ * the formats in which the /metrics endpoint can expose samples
+ *
+ * @author Tim Trense
+ */
+@Getter
+@RequiredArgsConstructor
+public enum ExpositionFormat {
+
+    /**
+     * the classic prometheus text format
+     */
+    Text( "text/plain; version=0.0.4; charset=utf-8" ),
+
+    /**
+     * the openmetrics 1.0 text format
+     */
+    OpenMetrics( "application/openmetrics-text; version=1.0.0; charset=utf-8" ),
+
+    /**
+     * the length-delimited io.prometheus.client.MetricFamily protobuf format
+     */
+    Protobuf( "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited" );
+
+    /**
+     * the value of the Content-Type response header
+     */
+    private final @NonNull String contentType;
+
+    /**
+     * @param writer where to write the exposition to
+     * @return a new encoder for rendering one exposition in this format
+     */
+    public @NonNull ExpositionEncoder createEncoder( @NonNull ExpositionWriter writer ) {
+        switch ( this ) {
+            case OpenMetrics:
+                return new OpenMetricsExpositionEncoder( writer );
+            case Protobuf:
+                return new ProtobufExpositionEncoder( writer );
+            default:
+                return new TextExpositionEncoder( writer );
+        }
+    }
+
+    /**
+     * chooses the format most preferred by the client
+     *
+     * @param accept the value of the Accept request header
+     * @return the format with the highest quality value among those the client accepts, {@link #Text} by default
+     */
+    public static @NonNull ExpositionFormat negotiate( String accept ) {
+        if ( accept == null ) {
+            return Text;
+        }
+        ExpositionFormat best = Text;
+        double bestQuality = 0;
+        for ( String mediaRange : accept.split( "," ) ) {
+            String[] parameters = mediaRange.split( ";" );
+            String type = parameters[0].trim().toLowerCase( Locale.ROOT );
+            double quality = 1;
+            boolean metricFamily = false;
+            boolean delimited = false;
+            for ( int i = 1; i < parameters.length; i++ ) {
+                String parameter = parameters[i].trim();
+                if ( parameter.startsWith( "q=" ) ) {
+                    try {
+                        quality = Double.parseDouble( parameter.substring( 2 ) );
+                    }
+                    catch ( NumberFormatException e ) {
+                        quality = 0;
+                    }
+                }
+                metricFamily |= parameter.equals( "proto=io.prometheus.client.MetricFamily" );
+                delimited |= parameter.equals( "encoding=delimited" );
+            }
+
+            ExpositionFormat format;
+            if ( type.equals( "application/openmetrics-text" ) ) {
+                format = OpenMetrics;
+            }
+            else if ( type.equals( "application/vnd.google.protobuf" ) && metricFamily && delimited ) {
+                format = Protobuf;
+            }
+            else if ( type.equals( "text/plain" ) || type.equals( "text/*" ) || type.equals( "*/*" ) ) {
+                format = Text;
+            }
+            else {
+                continue;
+            }
+            if ( quality > bestQuality ) {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,237 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * a reusable byte buffer for rendering metric expositions that formats numbers without allocating.
+ * it either flushes to an {@link OutputStream} whenever it is full or, without one, grows in memory.
+ *
+ * @author Tim Trense
+ */
+public class ExpositionWriter {
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    /**
+     * powers of ten that are exactly representable both as double and as long
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    /**
+     * 2^53, the bound below which every long can be converted to a double exactly
+     */
+    private static final double EXACT_LONG_BOUND = 9007199254740992.0;
+
+    private static final byte[] NAN = "NaN".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] POSITIVE_INFINITY = "+Inf".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] NEGATIVE_INFINITY = "-Inf".getBytes( StandardCharsets.US_ASCII );
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int position;
+    private OutputStream target;
+
+    /**
+     * discards everything written so far and sets where to flush to
+     *
+     * @param target the stream to flush to or null for keeping everything in memory
+     */
+    public void reset( OutputStream target ) {
+        this.target = target;
+        this.position = 0;
+    }
+
+    /**
+     * @return the number of bytes currently held in memory
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * @return a copy of the bytes currently held in memory
+     */
+    public byte @NonNull [] toByteArray() {
+        return Arrays.copyOf( bytes, position );
+    }
+
+    /**
+     * writes everything held in memory to the target stream, if there is one
+     */
+    public void flush() throws IOException {
+        if ( target != null && position > 0 ) {
+            target.write( bytes, 0, position );
+            position = 0;
+        }
+    }
+
+    private void ensure( int length ) throws IOException {
+        if ( position + length <= bytes.length ) {
+            return;
+        }
+        flush();
+        if ( position + length > bytes.length ) {
+            bytes = Arrays.copyOf( bytes, Math.max( bytes.length * 2, position + length ) );
+        }
+    }
+
+    public void write( byte @NonNull [] value ) throws IOException {
+        ensure( value.length );
+        System.arraycopy( value, 0, bytes, position, value.length );
+        position += value.length;
+    }
+
+    public void write( byte value ) throws IOException {
+        ensure( 1 );
+        bytes[position++] = value;
+    }
+
+    /**
+     * appends everything the other writer currently holds in memory
+     *
+     * @param other another writer without target stream
+     */
+    public void write( @NonNull ExpositionWriter other ) throws IOException {
+        ensure( other.position );
+        System.arraycopy( other.bytes, 0, bytes, position, other.position );
+        position += other.position;
+    }
+
+    /**
+     * writes an unsigned protobuf base 128 varint
+     *
+     * @param value the value, interpreted as unsigned
+     */
+    public void writeVarint( long value ) throws IOException {
+        ensure( 10 );
+        while ( ( value & ~0x7FL ) != 0 ) {
+            bytes[position++] = (byte)( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        bytes[position++] = (byte)value;
+    }
+
+    /**
+     * writes a protobuf field key
+     *
+     * @param field    the field number
+     * @param wireType the protobuf wire type (0 = varint, 1 = 64 bit, 2 = length delimited)
+     */
+    public void writeTag( int field, int wireType ) throws IOException {
+        writeVarint( ( (long)field << 3 ) | wireType );
+    }
+
+    /**
+     * writes a double as protobuf 64 bit little endian value
+     *
+     * @param value any number
+     */
+    public void writeFixedDouble( double value ) throws IOException {
+        ensure( 8 );
+        long bits = Double.doubleToRawLongBits( value );
+        for ( int i = 0; i < 8; i++ ) {
+            bytes[position++] = (byte)( bits >>> ( 8 * i ) );
+        }
+    }
+
+    /**
+     * @param value the value, interpreted as unsigned
+     * @return how many bytes {@link #writeVarint(long)} writes for the given value
+     */
+    public static int varintSize( long value ) {
+        int size = 1;
+        while ( ( value & ~0x7FL ) != 0 ) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * writes the decimal representation of the given number
+     *
+     * @param value any number
+     */
+    public void writeLong( long value ) throws IOException {
+        ensure( 20 );
+        if ( value == Long.MIN_VALUE ) {
+            write( Long.toString( value ).getBytes( StandardCharsets.US_ASCII ) );
+            return;
+        }
+        if ( value < 0 ) {
+            bytes[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for ( long v = value; v >= 10; v /= 10 ) {
+            digits++;
+        }
+        for ( int i = position + digits - 1; i >= position; i-- ) {
+            bytes[i] = (byte)( '0' + value % 10 );
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * writes the shortest decimal representation of the given number that parses back to exactly the same double,
+     * as prometheus expects sample values.
+     * only numbers that require scientific notation or 17 significant digits are formatted by {@link Double#toString(double)}.
+     *
+     * @param value any number
+     */
+    public void writeDouble( double value ) throws IOException {
+        if ( Double.isNaN( value ) ) {
+            write( NAN );
+            return;
+        }
+        if ( Double.isInfinite( value ) ) {
+            write( value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY );
+            return;
+        }
+        double abs = Math.abs( value );
+        if ( abs < EXACT_LONG_BOUND && value == (long)value ) {
+            writeLong( (long)value );
+            return;
+        }
+        if ( abs >= 1e-4 && abs < 1e15 ) {
+            // find the least number of fraction digits such that mantissa / 10^digits is that exact double again.
+            // the division of two exactly representable doubles rounds correctly, so equality proves a round-trip
+            for ( int digits = 1; digits < POWERS_OF_TEN.length; digits++ ) {
+                double scaled = abs * POWERS_OF_TEN[digits];
+                if ( scaled >= EXACT_LONG_BOUND ) {
+                    break;
+                }
+                long mantissa = Math.round( scaled );
+                if ( mantissa / POWERS_OF_TEN[digits] == abs ) {
+                    writeFixed( value < 0, mantissa, digits );
+                    return;
+                }
+            }
+        }
+        write( Double.toString( value ).getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private void writeFixed( boolean negative, long mantissa, int fractionDigits ) throws IOException {
+        ensure( 48 );
+        if ( negative ) {
+            bytes[position++] = '-';
+        }
+        long divisor = (long)POWERS_OF_TEN[fractionDigits];
+        writeLong( mantissa / divisor );
+        bytes[position++] = '.';
+        long fraction = mantissa % divisor;
+        for ( int i = position + fractionDigits - 1; i >= position; i-- ) {
+            bytes[i] = (byte)( '0' + fraction % 10 );
+            fraction /= 10;
+        }
+        position += fractionDigits;
+    }
+}
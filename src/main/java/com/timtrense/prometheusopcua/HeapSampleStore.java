@@ -0,0 +1,52 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+
+/**
+ * keeps samples in primitive arrays on the heap, lost on restart
+ *
+ * @author Tim Trense
+ */
+public class HeapSampleStore implements SampleStore {
+
+    private final @Getter int capacity;
+    private final long[] timestamps;
+    private final double[] values;
+    private final int[] statusCodes;
+
+    public HeapSampleStore( int capacity ) {
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+        this.statusCodes = new int[capacity];
+    }
+
+    @Override
+    public void write( int index, long timestamp, double value, int statusCode ) {
+        timestamps[index] = timestamp;
+        values[index] = value;
+        statusCodes[index] = statusCode;
+    }
+
+    @Override
+    public void read( int index, long[] timestamps, double[] values, int[] statusCodes, int offset, int length ) {
+        System.arraycopy( this.timestamps, index, timestamps, offset, length );
+        System.arraycopy( this.values, index, values, offset, length );
+        System.arraycopy( this.statusCodes, index, statusCodes, offset, length );
+    }
+
+    @Override
+    public long getTimestamp( int index ) {
+        return timestamps[index];
+    }
+
+    @Override
+    public long getPublished() {
+        return 0;
+    }
+
+    @Override
+    public void setPublished( long published ) {
+        // the ring itself keeps track, nothing survives a restart anyway
+    }
+}
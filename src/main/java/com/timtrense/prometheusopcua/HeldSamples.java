@@ -0,0 +1,52 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the reductions holding back a sample, per writing thread.
+ * <p>
+ * a reduction only writes a sample once a later one shows that it is complete, so the newest sample of a value
+ * that stopped changing would never be written. reductions register here when they start holding a sample back,
+ * and the writing thread {@link #flush(long) flushes} them periodically, since only that thread may write to them.
+ *
+ * @author Tim Trense
+ */
+public class HeldSamples {
+
+    private static final ThreadLocal<HeldSamples> CURRENT = ThreadLocal.withInitial( HeldSamples::new );
+
+    /**
+     * the sinks that held back a sample when registering, each at most once
+     */
+    private final @NonNull List<@NonNull SampleSink> sinks = new ArrayList<>();
+
+    /**
+     * @return the reductions holding back a sample that are written by the current thread
+     */
+    public static @NonNull HeldSamples current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * registers a sink that started holding back a sample, which must not be registered already
+     *
+     * @param sink a sink written by the current thread
+     */
+    public void hold( @NonNull SampleSink sink ) {
+        sinks.add( sink );
+    }
+
+    /**
+     * writes the samples held back that are older than the given time
+     *
+     * @param before milliseconds since epoch
+     * @return the number of sinks still holding back a sample
+     */
+    public int flush( long before ) {
+        sinks.removeIf( sink -> !sink.flush( before ) );
+        return sinks.size();
+    }
+}
@@ -0,0 +1,70 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * a prometheus histogram with fixed buckets, made of striped adders so that observing is cheap even under contention
+ *
+ * @author Tim Trense
+ */
+public class Histogram {
+
+    /**
+     * bucket bounds in seconds suitable for latencies between a millisecond and a minute
+     */
+    public static final double[] LATENCY_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * the inclusive upper bounds of all buckets except the implicit +Inf one, ascending
+     */
+    private final @Getter double @NonNull [] bounds;
+
+    /**
+     * per bucket the number of observations falling into it but not into any lower one
+     */
+    private final LongAdder[] buckets;
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    public Histogram( double @NonNull [] bounds ) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for ( int i = 0; i < buckets.length; i++ ) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe( double value ) {
+        int bucket = 0;
+        while ( bucket < bounds.length && value > bounds[bucket] ) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add( value );
+    }
+
+    /**
+     * writes the samples of this histogram in the prometheus text format
+     *
+     * @param writer the target
+     * @param name   the name of the metric family
+     * @param labels additional labels like key="value", joined by commas, or an empty string
+     */
+    public void write( @NonNull PrintWriter writer, @NonNull String name, @NonNull String labels ) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for ( int i = 0; i < buckets.length; i++ ) {
+            cumulative += buckets[i].sum();
+            String bound = i < bounds.length ? String.valueOf( bounds[i] ) : "+Inf";
+            writer.print( name + "_bucket{" + labels + separator + "le=\"" + bound + "\"} " + cumulative + "\n" );
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        writer.print( name + "_sum" + braces + " " + sum.sum() + "\n" );
+        writer.print( name + "_count" + braces + " " + cumulative + "\n" );
+    }
+}
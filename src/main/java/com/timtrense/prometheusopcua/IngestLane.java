@@ -0,0 +1,130 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a dedicated thread writing the values of one subscription (shard) to the buffer.
+ * <p>
+ * milo delivers the notifications of all subscriptions of a session one after another on a single queue.
+ * handing them off to a lane per subscription keeps decoding, buffering and logging off milos delivery thread,
+ * so that acknowledgements and publish requests are not delayed by them, and lets the subscriptions be ingested in parallel,
+ * while each metric still has exactly one writing thread, as {@link SampleRing} requires.
+ * the hand-off is a {@link NotificationQueue} drained in batches. if a lane falls behind, handing off blocks,
+ * which slows down the delivery of that session instead of dropping values. values handed off after closing a lane are dropped.
+ * <p>
+ * once per {@value #FLUSH_INTERVAL}ms, the lane writes the samples held back by the reductions it writes to
+ * for longer than that, see {@link HeldSamples}.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class IngestLane implements AutoCloseable {
+
+    private static final int DRAIN_BATCH = 256;
+
+    /**
+     * milliseconds between flushing the held samples, which are flushed once older than that
+     */
+    static final long FLUSH_INTERVAL = 1000;
+
+    /**
+     * the name of this lane, equal to the name of the shard it ingests
+     */
+    private final @Getter @NonNull String name;
+
+    /**
+     * what to do with each value on the lanes thread
+     */
+    private final @NonNull UaMonitoredItem.ValueConsumer target;
+
+    /**
+     * ingests one value, catching failures so that the lane keeps running
+     */
+    private final UaMonitoredItem.@NonNull ValueConsumer ingest;
+
+    private final @NonNull NotificationQueue queue;
+    private final @NonNull Thread thread;
+    private volatile boolean running = true;
+
+    public IngestLane( @NonNull String name, int capacity, @NonNull UaMonitoredItem.ValueConsumer target ) {
+        this.name = name;
+        this.target = target;
+        this.ingest = this::ingest;
+        this.queue = new NotificationQueue( capacity );
+        this.thread = new Thread( this::run, "ingest-" + name );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+
+    /**
+     * @return a consumer handing each value off to this lane
+     */
+    public @NonNull UaMonitoredItem.ValueConsumer getValueConsumer() {
+        return ( item, value ) -> {
+            try {
+                // once closed, nothing drains the queue anymore, so waiting for room would block the delivery for good
+                if ( !running || !queue.put( item, value, this::isRunning ) ) {
+                    log.debug( "dropped a value of {}, because lane {} is closed", item.getReadValueId(), name );
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    /**
+     * @return the number of values handed off but not yet ingested
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    private void run() {
+        HeldSamples held = HeldSamples.current();
+        long flushInterval = TimeUnit.MILLISECONDS.toNanos( FLUSH_INTERVAL );
+        long nextFlush = System.nanoTime() + flushInterval;
+        while ( running ) {
+            try {
+                if ( queue.drain( ingest, DRAIN_BATCH ) == 0 ) {
+                    queue.await( nextFlush - System.nanoTime() );
+                }
+                if ( System.nanoTime() - nextFlush >= 0 ) {
+                    held.flush( System.currentTimeMillis() - FLUSH_INTERVAL );
+                    nextFlush = System.nanoTime() + flushInterval;
+                }
+            }
+            catch ( InterruptedException e ) {
+                break;
+            }
+            catch ( RuntimeException e ) {
+                log.error( "failed to flush the held samples of lane {}", name, e );
+            }
+        }
+    }
+
+    private void ingest( @NonNull UaMonitoredItem item, @NonNull DataValue value ) {
+        try {
+            target.onValueArrived( item, value );
+        }
+        catch ( RuntimeException e ) {
+            log.error( "failed to ingest value of {}", item.getReadValueId(), e );
+        }
+    }
+
+    private boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+}
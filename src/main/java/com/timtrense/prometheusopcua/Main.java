@@ -4,32 +4,22 @@ import lombok.Data;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
-import org.eclipse.milo.opcua.sdk.client.api.UaClient;
-import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfig;
-import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfigBuilder;
 import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
-import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
-import org.eclipse.milo.opcua.stack.client.DiscoveryClient;
+import org.eclipse.milo.opcua.stack.core.Stack;
 import org.eclipse.milo.opcua.stack.core.types.builtin.*;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
-import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
-import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
 
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
  * Core logic of the application:
- * (1) opening opc ua server connection
- * (2) registering opc ua nodes for monitoring
- * (3) writing the received values to a circular buffer
+ * (1) opening opc ua server connections, to any number of servers
+ * (2) registering opc ua nodes for monitoring and keeping them in line with the configuration file
+ * (3) writing the received values to a ring buffer
  * (4) exposing the buffer via http get /metrics
+ * (5) optionally pushing the buffer via prometheus remote write
  *
  * @author Tim Trense
  */
@@ -44,144 +34,133 @@ public class Main {
         // 0. read configuration
         String configFile = ( args.length > 0 ? args[0] : "/etc/prometheus-opcua.conf.yaml" );
         Configuration configuration = Configuration.read( configFile );
+        ReplicaPartition partition = ReplicaPartition.of( configuration, System.getenv() );
+        if ( partition.isPartitioned() ) {
+            log.info( "running as replica {} of {}", partition.getIndex(), partition.getCount() );
+        }
 
         // 1. prepare the internal buffer
         log.info( "initializing internal buffer with size={}", configuration::getBufferSize );
-        Buffer buffer = new Buffer( configuration.getBufferSize() );
+        // replicas sharing a configuration must not share the files of their buffers
+        MappedSampleStorage storage = configuration.getBufferDirectory() == null ? null
+                : MappedSampleStorage.open( partition.isPartitioned()
+                ? Paths.get( configuration.getBufferDirectory(), "replica-" + partition.getIndex() )
+                : Paths.get( configuration.getBufferDirectory() ) );
+        Buffer buffer = new Buffer( configuration.getBufferSize(), storage != null ? storage : SampleStorage.HEAP );
+        buffer.setCursorTimeout( configuration.getCursorTimeout() );
+        if ( storage != null ) {
+            // metrics removed from the configuration meanwhile are not registered again and would keep their regions for good
+            Thread release = new Thread( () -> {
+                try {
+                    Thread.sleep( configuration.getBufferRetention() );
+                    storage.freeUnallocated();
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                catch ( Exception e ) {
+                    log.warn( "could not free the unused regions of the sample storage", e );
+                }
+            }, "free-sample-storage" );
+            release.setDaemon( true );
+            release.start();
+        }
+        ExporterMetrics metrics = new ExporterMetrics();
 
-        // 2. connect opc ua
-        // 2.1 open connection
-        EndpointDescription endpointDescription = discoverTargetedEndpoint( configuration );
-        UaClient client = connect( configuration, endpointDescription );
-        // 2.2 write each new incoming value to the internal buffer
-        UaMonitoredItem.ValueConsumer valueConsumer = createValueConsumer( configuration, buffer );
-        // 2.3 register subscriptions and monitors to receive incoming values
-        configuration.getSubscriptions().forEach( s -> createSubscription( client, s, valueConsumer ) );
+        // 2. connect to each opc ua server in the background, so that an unreachable one delays no other
+        List<ServerConnection> servers = configuration.getServerConfigurations().stream()
+                .map( server -> new ServerConnection( configuration, server, buffer, metrics, partition ) )
+                .collect( Collectors.toList() );
+        for ( ServerConnection server : servers ) {
+            Thread thread = new Thread( () -> {
+                try {
+                    server.start();
+                }
+                catch ( Exception e ) {
+                    log.error( "could not start monitoring {}", server.getName(), e );
+                }
+            }, "start-" + server.getName() );
+            thread.setDaemon( true );
+            thread.start();
+        }
+        // 2.1 apply changes of the configured subscriptions while running
+        ConfigurationWatcher configurationWatcher = null;
+        if ( configuration.isReloadConfiguration() ) {
+            configurationWatcher = new ConfigurationWatcher( Paths.get( configFile ), changed -> {
+                log.info( "configuration changed, applying the subscriptions" );
+                List<ServerConfiguration> changedServers = changed.getServerConfigurations();
+                for ( int i = 0; i < Math.min( servers.size(), changedServers.size() ); i++ ) {
+                    if ( Objects.equals( servers.get( i ).getServer().getName(), changedServers.get( i ).getName() ) ) {
+                        servers.get( i ).apply( changedServers.get( i ) );
+                    }
+                }
+                // everything else must be unchanged
+                changed.setSubscriptions( configuration.getSubscriptions() );
+                for ( int i = 0; i < Math.min( servers.size(), changedServers.size() ); i++ ) {
+                    changedServers.get( i ).setSubscriptions( servers.get( i ).getServer().getSubscriptions() );
+                }
+                if ( !changed.equals( configuration ) ) {
+                    log.warn( "configuration changes besides the subscriptions of the servers require a restart" );
+                }
+            } );
+        }
 
-        // 2. expose buffer via prometheus /metrics http endpoint
-        PrometheusMetricsServer jettyServer = new PrometheusMetricsServer( configuration, buffer );
+        // 3. expose buffer via prometheus /metrics http endpoint
+        long phaseStart = System.nanoTime();
+        PrometheusMetricsServer jettyServer = new PrometheusMetricsServer( configuration, partition, buffer, metrics );
         jettyServer.start();
+        log.info( "starting the http server took {}ms", SubscriptionCreator.elapsedMillis( phaseStart ) );
+        RemoteWriter remoteWriter = null;
+        if ( configuration.getRemoteWrite() != null ) {
+            remoteWriter = new RemoteWriter( configuration.getRemoteWrite(), buffer, metrics );
+            remoteWriter.start();
+        }
 
-        // 3. run indefinitely
+        // 4. run indefinitely
         log.info( "up" );
         jettyServer.join();
 
         log.info( "interrupted" );
+        if ( configurationWatcher != null ) {
+            configurationWatcher.close();
+        }
         jettyServer.stop();
-        client.disconnect().get();
-    }
-
-    @SneakyThrows
-    private static EndpointDescription discoverTargetedEndpoint( @NonNull Configuration configuration ) {
-        log.info( "discovering endpoints on {}", configuration::getDiscoveryUrl );
-        CompletableFuture<List<EndpointDescription>> endpointListFuture = DiscoveryClient.getEndpoints( configuration.getDiscoveryUrl() );
-        List<EndpointDescription> endpointList = endpointListFuture.get();
-        if ( endpointList == null ) {
-            throw new NullPointerException( "could not get endpoint list from discovery server" );
+        if ( remoteWriter != null ) {
+            remoteWriter.close();
         }
-        endpointList.forEach( e -> log.debug( "endpoint found: {}", e::toString ) );
-        Optional<EndpointDescription> endpointDescriptionOptional = endpointList.stream()
-                .filter( e -> e.getEndpointUrl().equals( configuration.getEndpointUrl() ) )
-                .filter( e -> e.getSecurityMode() == configuration.getMessageSecurityMode() )
-                .findAny();
-        if ( endpointDescriptionOptional.isEmpty() ) {
-            throw new NullPointerException( "could not find any endpoint matching the configuration" );
+        for ( ServerConnection server : servers ) {
+            server.close();
         }
-        return endpointDescriptionOptional.get();
-    }
-
-    @SneakyThrows
-    private static UaClient connect( @NonNull Configuration configuration, @NonNull EndpointDescription endpointDescription ) {
-        log.info( "building opc ua client for endpoint: {}", endpointDescription );
-        OpcUaClientConfigBuilder opcUaClientConfigBuilder = new OpcUaClientConfigBuilder();
-        opcUaClientConfigBuilder.setApplicationName( LocalizedText.english( configuration.getApplicationName() ) );
-        opcUaClientConfigBuilder.setApplicationUri( configuration.getApplicationUri() );
-        opcUaClientConfigBuilder.setEndpoint( endpointDescription );
-        OpcUaClientConfig opcUaClientConfig = opcUaClientConfigBuilder.build();
-        OpcUaClient client = OpcUaClient.create( opcUaClientConfig );
-        UaClient opcua = client.connect().get();
-        if ( opcua == null ) {
-            throw new NullPointerException( "could not connect to endpoint" );
+        Stack.releaseSharedResources();
+        if ( storage != null ) {
+            storage.close();
         }
-        return opcua;
     }
 
-    private static UaMonitoredItem.ValueConsumer createValueConsumer( @NonNull Configuration configuration, @NonNull Buffer buffer ) {
+    static UaMonitoredItem.ValueConsumer createValueConsumer( @NonNull ClientHandleIndex clientHandles,
+            @NonNull ExporterMetrics metrics ) {
         log.info( "creating the opc ua monitor value consumer for writing to the internal buffer" );
 
-        // mapping node ids to metric names
-        Map<NodeId, CircularFifoQueue<DataValue>> targetQueues = new HashMap<>();
-        configuration.getSubscriptions().forEach( s ->
-                s.getMonitors().forEach( m -> {
-                    NodeId nodeId = NodeId.parse( m.getIdentifier() );
-                    String metricName = m.getMetricName();
-                    CircularFifoQueue<DataValue> targetQueue = buffer.getNodeBuffer( metricName );
-                    targetQueues.put( nodeId, targetQueue );
-                } ) );
-
-        // on each new incoming value, lookup the metrics circular buffer and push that value to it
+        // on each new incoming value, lookup the monitors sink by the client handle and push that value to it, expanding arrays and structures
         return ( item, value ) -> {
-            NodeId nodeId = item.getReadValueId().getNodeId();
+            UInteger clientHandle = item.getClientHandle();
             Object valueRaw = value.getValue().getValue();
             StatusCode statusCode = value.getStatusCode();
-            log.trace( "{} {} {} ", nodeId, statusCode, valueRaw );
-            targetQueues.get( nodeId ).offer( value );
-        };
-    }
-
-    @SneakyThrows
-    private static void createSubscription( UaClient client,
-            @NonNull SubscriptionConfiguration configuration,
-            @NonNull UaMonitoredItem.ValueConsumer valueConsumer ) {
-        log.info( "creating opc ua subscription" );
-        CompletableFuture<UaSubscription> subscriptionFuture = client.getSubscriptionManager().createSubscription( configuration.getRequestedPublishingInterval() );
-        UaSubscription subscription = subscriptionFuture.get();
-        if ( subscription == null ) {
-            throw new NullPointerException( "could not create subscription" );
-        }
-
-        log.debug( "opc ua subscription {} created, creating monitors", subscription::getSubscriptionId );
-        List<MonitoredItemCreateRequest> createMonitoredItemsRequests = configuration.getMonitors().stream()
-                .map( m -> getCreateMonitorRequest( m, subscription.nextClientHandle() ) )
-                .collect( Collectors.toList() );
-
-        UaMonitoredItem.EventConsumer eventConsumer = ( item, event ) ->
-                log.warn( "monitor event occurred on node={} event={}", item::getReadValueId, event::toString );
-
-        UaSubscription.ItemCreationCallback itemCreationCallback = ( item, index ) -> {
-            if ( item.getStatusCode().isGood() ) {
-                log.debug( "monitor created: clientHandle={} node={}", item::getClientHandle, item.getReadValueId()::getNodeId );
-                item.setValueConsumer( valueConsumer ); // what to do with received value changes
-                item.setEventConsumer( eventConsumer ); // just log any other event
+            DateTime sourceTime = value.getSourceTime();
+            log.trace( "{} {} {} ", clientHandle, statusCode, valueRaw );
+            if ( statusCode == null || sourceTime == null ) {
+                return; // not exposable to prometheus anyway
+            }
+            SampleSink targetSink = clientHandles.get( clientHandle.intValue() );
+            if ( targetSink == null ) {
+                log.warn( "received a value for the unknown client handle {} of node {}", clientHandle, item.getReadValueId() );
+                return;
             }
-            else {
-                log.error( "monitor failed to be created: node={} because={}", item.getReadValueId().getNodeId(), item.getStatusCode() );
+            DateTime serverTime = value.getServerTime();
+            if ( serverTime != null ) {
+                metrics.observeIngest( sourceTime.getJavaTime(), serverTime.getJavaTime(), System.currentTimeMillis() );
             }
+            targetSink.writeValue( sourceTime.getJavaTime(), valueRaw, (int)statusCode.getValue() );
         };
-
-        // now registering those monitors on the server
-        CompletableFuture<List<UaMonitoredItem>> monitoredItemListFuture = subscription.createMonitoredItems( TimestampsToReturn.Both, createMonitoredItemsRequests, itemCreationCallback );
-        List<UaMonitoredItem> monitoredItemList = monitoredItemListFuture.get();
-        if ( monitoredItemList == null ) {
-            throw new NullPointerException( "could not create monitored items" );
-        }
-
-        log.debug( "monitors created" );
-    }
-
-    @SneakyThrows
-    private static MonitoredItemCreateRequest getCreateMonitorRequest(
-            @NonNull MonitorConfiguration configuration,
-            @NonNull UInteger defaultClientHandle ) {
-        log.debug( "creating monitor on nodeId={}", configuration.getIdentifier() );
-        NodeId nodeId = NodeId.parse( configuration.getIdentifier() );
-        UInteger attributeId = configuration.getAttribute().uid();
-        ReadValueId readValueId = new ReadValueId( nodeId, attributeId, configuration.getIndexRange(), QualifiedName.NULL_VALUE );
-
-        UInteger clientHandle = UInteger.valueOf( Objects.requireNonNullElseGet( configuration.getClientHandle(), defaultClientHandle::intValue ) );
-        UInteger queueSize = UInteger.valueOf( configuration.getQueueSize() );
-        MonitoringParameters monitoringParameters = new MonitoringParameters( clientHandle, configuration.getSamplingInterval(), null, queueSize, configuration.isDiscardOldest() );
-
-        return new MonitoredItemCreateRequest( readValueId, configuration.getMonitoringMode(), monitoringParameters );
     }
 }
@@ -0,0 +1,462 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * keeps the samples of all rings off-heap in a memory-mapped file, so that they survive a restart of the exporter.
+ * <p>
+ * the directory holds two files:
+ * <ul>
+ *     <li>{@value #DATA_FILE}: a file header followed by one fixed-size region per series,
+ *     each holding the number of samples published followed by the columns of timestamps, values and status codes</li>
+ *     <li>{@value #INDEX_FILE}: one line "offset, capacity, series" per region, appended whenever a region is allocated.
+ *     the last line of a series wins, the index is rewritten with only those on opening</li>
+ * </ul>
+ * the data file is mapped in segments of {@value #SEGMENT_SIZE} bytes, none of which any region straddles.
+ * samples are written into the mapping without allocating and the published counter is updated only after the sample,
+ * so the operating system holds a consistent state even if the exporter process crashes at any point.
+ * a crash between writing a sample and updating the counter may leave the oldest slot holding parts of a newer sample,
+ * which is why {@link SampleRing} drops the oldest slot of a full store it restores.
+ * <p>
+ * on restart, a series gets its region back if it is registered with the same capacity again.
+ * if it is registered with another capacity, its newest samples are moved to a new region and the old one is freed.
+ * the space between the regions in use is reused for new regions before the file is grown.
+ * the regions of series not registered again are kept until {@link #freeUnallocated()} hands their space over for reuse.
+ * <p>
+ * the data file is locked while the storage is open, so that no two exporters write to the same directory.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class MappedSampleStorage implements SampleStorage, Closeable {
+
+    static final String DATA_FILE = "samples.dat";
+    static final String INDEX_FILE = "series.idx";
+
+    private static final long MAGIC = 0x4f5043554152494eL;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * the directory holding the files
+     */
+    private final @Getter @NonNull Path directory;
+
+    private final @NonNull FileChannel data;
+    private final @NonNull FileLock lock;
+    private @NonNull FileChannel index;
+    private final @NonNull List<@NonNull MappedByteBuffer> segments = new ArrayList<>();
+
+    /**
+     * series to the region restored for it from the index file or allocated since
+     */
+    private final @NonNull Map<@NonNull String, @NonNull Region> regions = new HashMap<>();
+
+    /**
+     * the series whose region has been handed out since opening, which must not be freed anymore
+     */
+    private final @NonNull Set<@NonNull String> allocated = new HashSet<>();
+
+    /**
+     * offset to size of the unused space below {@link #nextOffset}, neither overlapping nor straddling segments
+     */
+    private final @NonNull TreeMap<@NonNull Long, @NonNull Long> free = new TreeMap<>();
+
+    /**
+     * the offset in the data file for the next region to allocate at the end
+     */
+    private long nextOffset = HEADER_SIZE;
+
+    private MappedSampleStorage( @NonNull Path directory, @NonNull FileChannel data, @NonNull FileLock lock, @NonNull FileChannel index ) {
+        this.directory = directory;
+        this.data = data;
+        this.lock = lock;
+        this.index = index;
+    }
+
+    /**
+     * opens the storage in the given directory, restoring the regions of a previous run.
+     * files of an incompatible format are discarded.
+     *
+     * @param directory the directory to keep the files in, created if missing
+     * @return the opened storage
+     * @throws IllegalStateException if another storage has the directory open, in this or another process
+     */
+    public static @NonNull MappedSampleStorage open( @NonNull Path directory ) throws IOException {
+        Files.createDirectories( directory );
+        Path dataFile = directory.resolve( DATA_FILE );
+        Path indexFile = directory.resolve( INDEX_FILE );
+        FileChannel data = FileChannel.open( dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        // the index file is replaced when rewritten, so the data file is the one that stays the same to lock
+        FileLock lock;
+        try {
+            lock = data.tryLock();
+        }
+        catch ( OverlappingFileLockException e ) {
+            lock = null;
+        }
+        if ( lock == null ) {
+            data.close();
+            throw new IllegalStateException( "the sample storage " + directory + " is in use by another exporter" );
+        }
+        MappedByteBuffer header = data.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+        header.order( ByteOrder.LITTLE_ENDIAN );
+
+        boolean compatible = data.size() > HEADER_SIZE && header.getLong( 0 ) == MAGIC && header.getInt( 8 ) == VERSION;
+        if ( !compatible ) {
+            if ( data.size() > HEADER_SIZE ) {
+                log.warn( "discarding the samples in {} because of an unknown format", dataFile );
+            }
+            data.truncate( HEADER_SIZE );
+            Files.deleteIfExists( indexFile );
+            header.putLong( 0, MAGIC );
+            header.putInt( 8, VERSION );
+        }
+        Map<String, long[]> live = new LinkedHashMap<>();
+        for ( String line : Files.exists( indexFile ) ? readLines( indexFile ) : List.<String>of() ) {
+            parse( line, live );
+        }
+        FileChannel index = rewriteIndex( directory, live );
+
+        MappedSampleStorage storage = new MappedSampleStorage( directory, data, lock, index );
+        storage.restore( live );
+        log.info( "opened sample storage {} with {} series restored and {} bytes free", directory, storage.regions.size(),
+                storage.free.values().stream().mapToLong( Long::longValue ).sum() );
+        return storage;
+    }
+
+    /**
+     * replaces the index with only the given lines at once, so that a crash keeps either
+     *
+     * @param live per series its offset and capacity
+     * @return the new index file, opened for appending
+     */
+    private static @NonNull FileChannel rewriteIndex( @NonNull Path directory, @NonNull Map<String, long[]> live ) throws IOException {
+        Path rewritten = directory.resolve( INDEX_FILE + ".tmp" );
+        StringBuilder lines = new StringBuilder();
+        live.forEach( ( series, region ) -> lines.append( line( region[0], (int)region[1], series ) ) );
+        Files.write( rewritten, lines.toString().getBytes( StandardCharsets.UTF_8 ) );
+        Path indexFile = directory.resolve( INDEX_FILE );
+        Files.move( rewritten, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        return FileChannel.open( indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+    }
+
+    private static List<String> readLines( @NonNull Path file ) throws IOException {
+        String content = new String( Files.readAllBytes( file ), StandardCharsets.UTF_8 );
+        List<String> lines = new ArrayList<>( List.of( content.split( "\n", -1 ) ) );
+        lines.remove( lines.size() - 1 ); // either empty or a line not completely written before a crash
+        return lines;
+    }
+
+    /**
+     * @param line a line of the index file
+     * @param live per series its offset and capacity, to put the region of the line into
+     */
+    private static void parse( @NonNull String line, @NonNull Map<String, long[]> live ) {
+        String[] fields = line.split( "\t", 3 );
+        try {
+            long offset = Long.parseLong( fields[0] );
+            int capacity = Integer.parseInt( fields[1] );
+            if ( offset < HEADER_SIZE || capacity < 1 || regionSize( capacity ) > SEGMENT_SIZE ) {
+                throw new IllegalArgumentException( "region out of bounds" );
+            }
+            live.remove( fields[2] ); // keeps the order of the lines when rewriting
+            live.put( fields[2], new long[]{ offset, capacity } );
+        }
+        catch ( RuntimeException e ) {
+            log.warn( "ignoring malformed line in sample storage index: {}", line );
+        }
+    }
+
+    private static @NonNull String line( long offset, int capacity, @NonNull String series ) {
+        return offset + "\t" + capacity + "\t" + series + "\n";
+    }
+
+    /**
+     * maps the regions in use and frees the space between them
+     *
+     * @param live per series its offset and capacity
+     */
+    private void restore( @NonNull Map<String, long[]> live ) throws IOException {
+        List<Map.Entry<String, long[]>> byOffset = new ArrayList<>( live.entrySet() );
+        byOffset.sort( Comparator.comparingLong( entry -> entry.getValue()[0] ) );
+        for ( Map.Entry<String, long[]> entry : byOffset ) {
+            long offset = entry.getValue()[0];
+            int capacity = (int)entry.getValue()[1];
+            if ( offset < nextOffset ) {
+                log.warn( "ignoring the region of {} in sample storage index overlapping another one", entry.getKey() );
+                continue;
+            }
+            free( nextOffset, offset - nextOffset );
+            regions.put( entry.getKey(), map( offset, capacity ) );
+            nextOffset = offset + regionSize( capacity );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * a region restored with another capacity has its newest samples moved to the new one and is freed afterwards.
+     */
+    @Override
+    public synchronized @NonNull SampleStore allocate( @NonNull String series, int capacity ) {
+        Region previous = regions.get( series );
+        if ( previous != null && previous.capacity == capacity ) {
+            log.debug( "restored {} samples of {}", previous.getPublished(), series );
+            allocated.add( series );
+            return previous;
+        }
+        long size = regionSize( capacity );
+        if ( size > SEGMENT_SIZE ) {
+            throw new IllegalArgumentException( "a capacity of " + capacity + " samples exceeds the maximum region size" );
+        }
+        long offset = take( size );
+        Region region;
+        try {
+            region = map( offset, capacity );
+            region.setPublished( 0 ); // the region may hold leftovers of a region whose index line got lost
+            boolean moved = previous != null && !allocated.contains( series );
+            if ( moved ) {
+                moveSamples( previous, region );
+            }
+            // the samples are in place before the index points to the new region, the old one is freed only after it does
+            index.write( ByteBuffer.wrap( line( offset, capacity, series ).getBytes( StandardCharsets.UTF_8 ) ) );
+            if ( moved ) {
+                log.info( "moved the samples of {} to a region of {} instead of {} samples", series, capacity, previous.capacity );
+                free( previous.offset, regionSize( previous.capacity ) );
+            }
+        }
+        catch ( IOException e ) {
+            free( offset, size );
+            throw new IllegalStateException( "could not allocate a region for " + series + " in " + directory, e );
+        }
+        regions.put( series, region );
+        allocated.add( series );
+        return region;
+    }
+
+    /**
+     * @param size the size of the region
+     * @return the offset of the region, taken from the free space if any fits or else appended to the data file
+     */
+    private long take( long size ) {
+        for ( Iterator<Map.Entry<Long, Long>> it = free.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Long> extent = it.next();
+            if ( extent.getValue() >= size ) {
+                it.remove();
+                if ( extent.getValue() > size ) {
+                    free.put( extent.getKey() + size, extent.getValue() - size );
+                }
+                return extent.getKey();
+            }
+        }
+        long segmentStart = ( nextOffset - HEADER_SIZE ) / SEGMENT_SIZE * SEGMENT_SIZE + HEADER_SIZE;
+        if ( nextOffset + size > segmentStart + SEGMENT_SIZE ) {
+            free( nextOffset, segmentStart + SEGMENT_SIZE - nextOffset );
+            nextOffset = segmentStart + SEGMENT_SIZE;
+        }
+        long offset = nextOffset;
+        nextOffset += size;
+        return offset;
+    }
+
+    /**
+     * marks space as unused, split at the segment boundaries and merged with adjacent free space within the same segment
+     */
+    private void free( long offset, long size ) {
+        while ( size > 0 ) {
+            long segmentEnd = ( offset - HEADER_SIZE ) / SEGMENT_SIZE * SEGMENT_SIZE + HEADER_SIZE + SEGMENT_SIZE;
+            long start = offset;
+            long end = Math.min( offset + size, segmentEnd );
+            size -= end - offset;
+            offset = end;
+
+            Map.Entry<Long, Long> before = free.floorEntry( start );
+            if ( before != null && before.getKey() + before.getValue() == start
+                    && ( before.getKey() - HEADER_SIZE ) / SEGMENT_SIZE == ( start - HEADER_SIZE ) / SEGMENT_SIZE ) {
+                free.remove( before.getKey() );
+                start = before.getKey();
+            }
+            Long after = free.containsKey( end ) && end < segmentEnd ? free.remove( end ) : null;
+            if ( after != null ) {
+                end += after;
+            }
+            free.put( start, end - start );
+        }
+    }
+
+    /**
+     * copies the newest samples that fit from one region to another, leaving out the oldest slot of a full region,
+     * which may be torn by a crash.
+     * they are renumbered from 0 on, since a ring would otherwise take the slots before them for samples as well.
+     */
+    private static void moveSamples( @NonNull Region source, @NonNull Region target ) {
+        long end = source.getPublished();
+        long oldest = end >= source.capacity ? end - source.capacity + 1 : 0;
+        int count = (int)Math.min( end - oldest, target.capacity );
+        long[] timestamps = new long[1];
+        double[] values = new double[1];
+        int[] statusCodes = new int[1];
+        for ( int i = 0; i < count; i++ ) {
+            source.read( (int)( ( end - count + i ) % source.capacity ), timestamps, values, statusCodes, 0, 1 );
+            target.write( i, timestamps[0], values[0], statusCodes[0] );
+        }
+        target.setPublished( count );
+    }
+
+    /**
+     * frees the regions restored for series that have not been allocated again since opening,
+     * which would otherwise keep their space for good once their metric is no longer configured
+     *
+     * @return the number of series whose samples were discarded
+     */
+    public synchronized int freeUnallocated() throws IOException {
+        if ( !data.isOpen() ) {
+            return 0;
+        }
+        Map<String, long[]> live = new LinkedHashMap<>();
+        List<Region> unused = new ArrayList<>();
+        regions.forEach( ( series, region ) -> {
+            if ( allocated.contains( series ) ) {
+                live.put( series, new long[]{ region.offset, region.capacity } );
+            }
+            else {
+                unused.add( region );
+            }
+        } );
+        if ( unused.isEmpty() ) {
+            return 0;
+        }
+        // the index no longer points to the regions before their space may be handed out again
+        index.close();
+        index = rewriteIndex( directory, live );
+        regions.keySet().retainAll( allocated );
+        for ( Region region : unused ) {
+            free( region.offset, regionSize( region.capacity ) );
+        }
+        log.info( "freed the regions of {} series not registered again in sample storage {}", unused.size(), directory );
+        return unused.size();
+    }
+
+    /**
+     * @return false, because the region handed out to a series cannot be freed while it may still be read
+     */
+    @Override
+    public boolean isResizable() {
+        return false;
+    }
+
+    private Region map( long offset, int capacity ) throws IOException {
+        int segment = (int)( ( offset - HEADER_SIZE ) / SEGMENT_SIZE );
+        while ( segments.size() <= segment ) {
+            long position = HEADER_SIZE + (long)segments.size() * SEGMENT_SIZE;
+            MappedByteBuffer mapped = data.map( FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE );
+            mapped.order( ByteOrder.LITTLE_ENDIAN );
+            segments.add( mapped );
+        }
+        int base = (int)( offset - HEADER_SIZE - (long)segment * SEGMENT_SIZE );
+        return new Region( segments.get( segment ), offset, base, capacity );
+    }
+
+    private static long regionSize( int capacity ) {
+        return ( 8 + 20L * capacity + 7 ) / 8 * 8;
+    }
+
+    /**
+     * writes all samples to disk and closes the files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        segments.forEach( MappedByteBuffer::force );
+        lock.release();
+        data.close();
+        index.close();
+    }
+
+    /**
+     * the region of one series within a mapped segment
+     */
+    private static class Region implements SampleStore {
+
+        private final ByteBuffer segment;
+
+        /**
+         * where the region starts in the data file
+         */
+        private final long offset;
+
+        private final int published;
+        private final int timestamps;
+        private final int values;
+        private final int statusCodes;
+        private final @Getter int capacity;
+
+        private Region( @NonNull ByteBuffer segment, long offset, int base, int capacity ) {
+            this.segment = segment;
+            this.offset = offset;
+            this.capacity = capacity;
+            this.published = base;
+            this.timestamps = base + 8;
+            this.values = timestamps + 8 * capacity;
+            this.statusCodes = values + 8 * capacity;
+        }
+
+        @Override
+        public void write( int index, long timestamp, double value, int statusCode ) {
+            segment.putLong( timestamps + 8 * index, timestamp );
+            segment.putDouble( values + 8 * index, value );
+            segment.putInt( statusCodes + 4 * index, statusCode );
+        }
+
+        @Override
+        public void read( int index, long[] timestamps, double[] values, int[] statusCodes, int offset, int length ) {
+            for ( int i = 0; i < length; i++ ) {
+                timestamps[offset + i] = segment.getLong( this.timestamps + 8 * ( index + i ) );
+                values[offset + i] = segment.getDouble( this.values + 8 * ( index + i ) );
+                statusCodes[offset + i] = segment.getInt( this.statusCodes + 4 * ( index + i ) );
+            }
+        }
+
+        @Override
+        public long getTimestamp( int index ) {
+            return segment.getLong( timestamps + 8 * index );
+        }
+
+        @Override
+        public long getPublished() {
+            return segment.getLong( published );
+        }
+
+        @Override
+        public void setPublished( long published ) {
+            segment.putLong( this.published, published );
+        }
+    }
+}
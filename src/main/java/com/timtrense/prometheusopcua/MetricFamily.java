@@ -0,0 +1,102 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * the metadata shared by all series of one prometheus metric
+ *
+ * @author Tim Trense
+ */
+@Data
+public class MetricFamily {
+
+    /**
+     * orders series strings by their metric family name first, so that all series of a family are adjacent
+     */
+    public static final Comparator<String> SERIES_ORDER = MetricFamily::compareSeries;
+
+    /**
+     * the full name of the metric, without labels
+     */
+    private final @NonNull String name;
+
+    private final @NonNull MetricType type;
+
+    /**
+     * optional description of the metric
+     */
+    private final String help;
+
+    /**
+     * optional unit of the metric, which must be the suffix of {@link #name} then
+     */
+    private final String unit;
+
+    /**
+     * renders the identity of one series of this family as in the prometheus text format
+     *
+     * @param labels the labels of the series in the order to render them
+     * @return the name and the labels like name{key="value",...}
+     */
+    public @NonNull String formatSeries( @NonNull Map<@NonNull String, @NonNull String> labels ) {
+        StringBuilder builder = new StringBuilder( name );
+        if ( !labels.isEmpty() ) {
+            builder.append( '{' );
+            boolean first = true;
+            for ( Map.Entry<String, String> label : labels.entrySet() ) {
+                if ( !first ) {
+                    builder.append( ',' );
+                }
+                first = false;
+                builder.append( label.getKey() ).append( "=\"" );
+                escape( label.getValue(), true, builder );
+                builder.append( '"' );
+            }
+            builder.append( '}' );
+        }
+        return builder.toString();
+    }
+
+    /**
+     * escapes backslashes, line feeds and optionally double-quotes as required by the prometheus text formats
+     *
+     * @param text   the text to escape
+     * @param quotes whether to escape double-quotes as well, which is necessary in label values
+     * @param target where to append the escaped text to
+     */
+    public static void escape( @NonNull String text, boolean quotes, @NonNull StringBuilder target ) {
+        for ( int i = 0; i < text.length(); i++ ) {
+            char c = text.charAt( i );
+            if ( c == '\\' ) {
+                target.append( "\\\\" );
+            }
+            else if ( c == '\n' ) {
+                target.append( "\\n" );
+            }
+            else if ( c == '"' && quotes ) {
+                target.append( "\\\"" );
+            }
+            else {
+                target.append( c );
+            }
+        }
+    }
+
+    private static int compareSeries( @NonNull String a, @NonNull String b ) {
+        int nameLengthA = a.indexOf( '{' ) < 0 ? a.length() : a.indexOf( '{' );
+        int nameLengthB = b.indexOf( '{' ) < 0 ? b.length() : b.indexOf( '{' );
+        for ( int i = 0; i < nameLengthA && i < nameLengthB; i++ ) {
+            if ( a.charAt( i ) != b.charAt( i ) ) {
+                return a.charAt( i ) - b.charAt( i );
+            }
+        }
+        if ( nameLengthA != nameLengthB ) {
+            return nameLengthA - nameLengthB;
+        }
+        return a.compareTo( b );
+    }
+}
@@ -0,0 +1,34 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * the prometheus metric types supported for opc ua nodes
+ *
+ * @author Tim Trense
+ */
+@Getter
+@RequiredArgsConstructor
+public enum MetricType {
+
+    Untyped( "untyped", "unknown", 3 ),
+    Gauge( "gauge", "gauge", 1 ),
+    Counter( "counter", "counter", 0 );
+
+    /**
+     * the name in the prometheus text format
+     */
+    private final @NonNull String textName;
+
+    /**
+     * the name in the openmetrics text format
+     */
+    private final @NonNull String openMetricsName;
+
+    /**
+     * the value of the enum io.prometheus.client.MetricType in the prometheus protobuf format
+     */
+    private final int protobufNumber;
+}
@@ -4,12 +4,16 @@ import lombok.Data;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
 import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DataChangeTrigger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.structured.DataChangeFilter;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Objects;
-import java.util.stream.Collectors;
 
 @Data
 @Log4j2
@@ -35,6 +39,38 @@ public class MonitorConfiguration {
      */
     private double samplingInterval = 100;
 
+    /**
+     * which changes make the opc ua server report a new sample. either "Status", "StatusValue" or "StatusValueTimestamp"
+     */
+    private @NonNull DataChangeTrigger trigger = DataChangeTrigger.StatusValue;
+
+    /**
+     * how the opc ua server shall filter out insignificant value changes. either "None",
+     * "Absolute" (changes less than deadbandValue) or "Percent" (changes less than deadbandValue percent of the nodes EURange)
+     */
+    private @NonNull DeadbandType deadbandType = DeadbandType.None;
+
+    /**
+     * the threshold for the deadbandType
+     */
+    private double deadbandValue = 0;
+
+    /**
+     * how to reduce the samples here before buffering them. either "None", "Min", "Max", "Avg" or "Last" per reductionWindow
+     * or "SwingingDoor" for dropping samples that deviate at most reductionDeviation from the line between their neighbours
+     */
+    private @NonNull SampleReduction reduction = SampleReduction.None;
+
+    /**
+     * milliseconds per window of the reductions "Min", "Max", "Avg" and "Last"
+     */
+    private long reductionWindow = 1000;
+
+    /**
+     * the maximum deviation of the value for the reduction "SwingingDoor"
+     */
+    private double reductionDeviation = 0;
+
     /**
      * the client handle to assign to this monitor, default = auto assigned
      */
@@ -65,30 +101,87 @@ public class MonitorConfiguration {
      */
     private @NonNull Map<@NonNull String, @NonNull String> label = new HashMap<>();
 
+    /**
+     * the prometheus metric type. either "Untyped", "Gauge" or "Counter"
+     */
+    private @NonNull MetricType type = MetricType.Untyped;
+
+    /**
+     * the optional prometheus metric description
+     */
+    private String help = null;
+
+    /**
+     * the optional unit of the prometheus metric, which gets appended to its name
+     */
+    private String unit = null;
+
     public void setIdentifier( @NonNull String identifier ) {
         this.identifier = identifier;
     }
 
+    /**
+     * @return a copy of this monitor, sharing nothing mutable with it
+     */
+    public @NonNull MonitorConfiguration copy() {
+        MonitorConfiguration copy = new MonitorConfiguration();
+        copy.monitoringMode = monitoringMode;
+        copy.discardOldest = discardOldest;
+        copy.queueSize = queueSize;
+        copy.samplingInterval = samplingInterval;
+        copy.trigger = trigger;
+        copy.deadbandType = deadbandType;
+        copy.deadbandValue = deadbandValue;
+        copy.reduction = reduction;
+        copy.reductionWindow = reductionWindow;
+        copy.reductionDeviation = reductionDeviation;
+        copy.clientHandle = clientHandle;
+        copy.attribute = attribute;
+        copy.indexRange = indexRange;
+        copy.identifier = identifier;
+        copy.name = name;
+        copy.label = new HashMap<>( label );
+        copy.type = type;
+        copy.help = help;
+        copy.unit = unit;
+        return copy;
+    }
+
+    /**
+     * @return the filter for the opc ua server to apply to data changes or null if the server shall use its default
+     */
+    public DataChangeFilter getDataChangeFilter() {
+        if ( trigger == DataChangeTrigger.StatusValue && deadbandType == DeadbandType.None ) {
+            return null;
+        }
+        return new DataChangeFilter( trigger, uint( deadbandType.getValue() ), deadbandValue );
+    }
+
     /**
      * @return the full prometheus metric name for this monitor including all labels
      */
     public String getMetricName() {
-        StringBuilder builder = new StringBuilder();
-        builder.append( "opcua_" );
-        builder.append( name );
+        return getMetricFamily().formatSeries( getMetricLabels() );
+    }
 
+    /**
+     * @return the prometheus metric family for this monitor
+     */
+    public @NonNull MetricFamily getMetricFamily() {
+        String familyName = "opcua_" + name + ( unit != null ? "_" + unit : "" );
+        return new MetricFamily( familyName, type, help, unit );
+    }
+
+    /**
+     * @return the prometheus labels for this monitor, which defaults to the node id and attribute
+     */
+    public @NonNull Map<@NonNull String, @NonNull String> getMetricLabels() {
         if ( !label.isEmpty() ) {
-            builder.append(
-                    label.entrySet().stream()
-                            .map( e -> e.getKey() + "=\"" + e.getValue() + "\"" )
-                            .collect( Collectors.joining( ",", "{", "}" ) )
-            );
+            return label;
         }
-        else {
-            builder.append( "{id=\"" ).append( identifier ).append( "\"" )
-                    .append( ",attribute=\"" ).append( attribute.name() ).append( "\"}" );
-        }
-
-        return builder.toString();
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put( "id", identifier );
+        labels.put( "attribute", attribute.name() );
+        return labels;
     }
 }
@@ -0,0 +1,166 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * adds the monitors declared by {@link SubscriptionConfiguration#getBrowse()} to the subscriptions.
+ * <p>
+ * the nodes found are cached in {@link Configuration#getBrowseCacheFile()} along with the value of
+ * {@link Configuration#getModelVersionNode()} at the time of browsing. a browse configuration is browsed again only
+ * if it changed or that value moved since, so that restarting against a large address space does not browse it each time.
+ * if that value cannot be read, the cache is not used.
+ * the cache file has one line "key, model version, node id, path" per node found, the key being the SHA-256 digest of
+ * {@link BrowseConfiguration#getCacheKey()}.
+ * if several servers are configured, each server has its own cache file, named like the configured one suffixed by "." and its name.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class MonitorDiscovery {
+
+    private final @NonNull Configuration configuration;
+    private final @NonNull ServerConfiguration server;
+    private final @NonNull OpcUaClient client;
+    private final @NonNull AddressSpaceBrowser browser;
+
+    /**
+     * @param configuration the configuration of browsing and caching
+     * @param server        the server whose subscriptions to add the monitors to
+     * @param client        a connected session to that server
+     */
+    public MonitorDiscovery( @NonNull Configuration configuration, @NonNull ServerConfiguration server, @NonNull OpcUaClient client ) {
+        this.configuration = configuration;
+        this.server = server;
+        this.client = client;
+        this.browser = new AddressSpaceBrowser( client,
+                AddressSpaceBrowser.readMaxNodesPerBrowse( client, configuration.getMaxNodesPerBrowse() ),
+                configuration.getBrowseParallelism() );
+    }
+
+    /**
+     * browses or loads from the cache the nodes of each browse configuration and adds a monitor per node
+     * to the monitors of its subscription
+     */
+    public void discover() {
+        if ( server.getSubscriptions().stream().allMatch( s -> s.getBrowse().isEmpty() ) ) {
+            return;
+        }
+        Path cacheFile = configuration.getBrowseCacheFile() == null ? null
+                : Paths.get( configuration.getBrowseCacheFile() + ( server.getName() == null ? "" : "." + server.getName() ) );
+        Map<String, List<String[]>> cached = cacheFile == null ? Map.of() : readCache( cacheFile );
+        String modelVersion = readModelVersion();
+
+        Map<String, List<String[]>> found = new LinkedHashMap<>();
+        for ( SubscriptionConfiguration subscription : server.getSubscriptions() ) {
+            for ( BrowseConfiguration browse : subscription.getBrowse() ) {
+                String key = digest( browse.getCacheKey() );
+                List<String[]> nodes = found.get( key );
+                if ( nodes == null ) {
+                    nodes = cached.get( key );
+                    // an unreadable model version cannot tell whether the address space changed, so browse again
+                    if ( nodes != null && !nodes.isEmpty() && !modelVersion.isEmpty() && nodes.get( 0 )[0].equals( modelVersion ) ) {
+                        log.info( "using {} cached nodes below {}", nodes.size(), browse.getRoot() );
+                    }
+                    else {
+                        nodes = new ArrayList<>();
+                        for ( AddressSpaceBrowser.BrowsedNode node : browser.browse( browse ) ) {
+                            nodes.add( new String[]{ modelVersion, node.getNodeId().toParseableString(), node.getPath() } );
+                        }
+                    }
+                    found.put( key, nodes );
+                }
+                for ( String[] node : nodes ) {
+                    subscription.getMonitors().add( browse.createMonitor( node[1], node[2] ) );
+                }
+            }
+        }
+        if ( cacheFile != null ) {
+            writeCache( cacheFile, found );
+        }
+    }
+
+    /**
+     * @return the current value of the model version node as text or the empty string if it cannot be read
+     */
+    @SneakyThrows
+    private String readModelVersion() {
+        DataValue value = client.readValue( 0, TimestampsToReturn.Neither, NodeId.parse( configuration.getModelVersionNode() ) )
+                .exceptionally( e -> {
+                    log.warn( "could not read the model version node {}", configuration.getModelVersionNode(), e );
+                    return null;
+                } )
+                .get();
+        if ( value == null || value.getValue().getValue() == null ) {
+            return "";
+        }
+        return value.getValue().getValue().toString().replace( '\t', ' ' ).replace( '\n', ' ' );
+    }
+
+    /**
+     * @return the SHA-256 digest of the given text in hexadecimal, to key the cache by without colliding
+     */
+    @SneakyThrows
+    static @NonNull String digest( @NonNull String text ) {
+        StringBuilder hex = new StringBuilder( 64 );
+        for ( byte b : MessageDigest.getInstance( "SHA-256" ).digest( text.getBytes( StandardCharsets.UTF_8 ) ) ) {
+            hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return hex.toString();
+    }
+
+    private static Map<String, List<String[]>> readCache( @NonNull Path cacheFile ) {
+        Map<String, List<String[]>> cached = new HashMap<>();
+        if ( !Files.exists( cacheFile ) ) {
+            return cached;
+        }
+        try {
+            for ( String line : Files.readAllLines( cacheFile, StandardCharsets.UTF_8 ) ) {
+                String[] fields = line.split( "\t", 4 );
+                if ( fields.length != 4 ) {
+                    log.warn( "ignoring malformed line in browse cache: {}", line );
+                    continue;
+                }
+                cached.computeIfAbsent( fields[0], k -> new ArrayList<>() ).add( new String[]{ fields[1], fields[2], fields[3] } );
+            }
+        }
+        catch ( IOException e ) {
+            log.warn( "could not read the browse cache {}, browsing again", cacheFile, e );
+            return new HashMap<>();
+        }
+        return cached;
+    }
+
+    private static void writeCache( @NonNull Path cacheFile, @NonNull Map<String, List<String[]>> found ) {
+        StringBuilder content = new StringBuilder();
+        found.forEach( ( key, nodes ) -> nodes.forEach( node -> content.append( key ).append( '\t' ).append( node[0] )
+                .append( '\t' ).append( node[1] ).append( '\t' ).append( node[2] ).append( '\n' ) ) );
+        try {
+            Path absolute = cacheFile.toAbsolutePath();
+            Path temporary = absolute.resolveSibling( absolute.getFileName() + ".tmp" );
+            Files.write( temporary, content.toString().getBytes( StandardCharsets.UTF_8 ) );
+            Files.move( temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e ) {
+            log.warn( "could not write the browse cache {}", cacheFile, e );
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * a bounded lock-free multi-producer single-consumer queue of notifications, kept in preallocated slots,
+ * so that handing off a value neither allocates nor takes a lock.
+ * <p>
+ * each slot carries a sequence number telling whether it is free for the producer of a given position
+ * or published for the consumer (as in the bounded queue of Dmitry Vyukov).
+ * producers claim positions by incrementing the tail. the single consumer owns the head
+ * and parks while the queue is empty, producers only unpark it if it actually parked.
+ *
+ * @author Tim Trense
+ */
+public class NotificationQueue {
+
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle( long[].class );
+
+    /**
+     * how often to spin before parking while waiting
+     */
+    private static final int SPINS = 128;
+
+    /**
+     * the longest time to park at once while waiting, which bounds the delay if a wakeup is missed
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    /**
+     * the number of slots, a power of two
+     */
+    private final @Getter int capacity;
+
+    private final int mask;
+    private final UaMonitoredItem @NonNull [] items;
+    private final DataValue @NonNull [] values;
+
+    /**
+     * per slot: equal to the position a producer may claim it for, or that position + 1 once published
+     */
+    private final long @NonNull [] sequences;
+
+    /**
+     * the next position to claim by producers
+     */
+    private final @NonNull AtomicLong tail = new AtomicLong();
+
+    /**
+     * the next position to take by the consumer
+     */
+    private volatile long head;
+
+    /**
+     * the consumer thread while it is parked, otherwise null
+     */
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity the number of notifications to queue at least, rounded up to the next power of two.
+     *                 at least two slots are kept, as a single one would look free for the next lap as soon as it is published
+     */
+    public NotificationQueue( int capacity ) {
+        if ( capacity < 1 || capacity > 1 << 30 ) {
+            throw new IllegalArgumentException( "capacity must be between 1 and 2^30 but was " + capacity );
+        }
+        this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit( capacity - 1 ) << 1;
+        this.mask = this.capacity - 1;
+        this.items = new UaMonitoredItem[this.capacity];
+        this.values = new DataValue[this.capacity];
+        this.sequences = new long[this.capacity];
+        for ( int i = 0; i < this.capacity; i++ ) {
+            sequences[i] = i;
+        }
+    }
+
+    /**
+     * appends a notification if there is a free slot
+     *
+     * @return whether it has been appended, false if the queue is full
+     */
+    public boolean offer( @NonNull UaMonitoredItem item, @NonNull DataValue value ) {
+        long position;
+        while ( true ) {
+            position = tail.get();
+            long sequence = (long)SEQUENCES.getAcquire( sequences, (int)position & mask );
+            if ( sequence == position ) {
+                if ( tail.compareAndSet( position, position + 1 ) ) {
+                    break;
+                }
+            }
+            else if ( sequence < position ) {
+                return false; // the slot still holds the notification of one lap ago
+            }
+            // else another producer claimed this position meanwhile
+        }
+        int slot = (int)position & mask;
+        items[slot] = item;
+        values[slot] = value;
+        // a volatile publish orders it before reading parkedConsumer, so a consumer going to park either sees it or is seen
+        SEQUENCES.setVolatile( sequences, slot, position + 1 );
+        Thread consumer = parkedConsumer;
+        if ( consumer != null ) {
+            LockSupport.unpark( consumer );
+        }
+        return true;
+    }
+
+    /**
+     * appends a notification, waiting while the queue is full
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put( @NonNull UaMonitoredItem item, @NonNull DataValue value ) throws InterruptedException {
+        put( item, value, () -> true );
+    }
+
+    /**
+     * appends a notification, waiting while the queue is full and the condition holds
+     *
+     * @param open whether to keep waiting, checked before each attempt
+     * @return whether the notification has been appended, false if the condition failed before
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean put( @NonNull UaMonitoredItem item, @NonNull DataValue value, @NonNull BooleanSupplier open ) throws InterruptedException {
+        for ( int attempt = 0; !offer( item, value ); attempt++ ) {
+            if ( !open.getAsBoolean() ) {
+                return false;
+            }
+            if ( attempt < SPINS ) {
+                Thread.onSpinWait();
+            }
+            else {
+                LockSupport.parkNanos( this, PARK_NANOS / 100 );
+            }
+            if ( Thread.interrupted() ) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * takes the published notifications in order and hands each to the consumer. must only be called by the single consumer.
+     *
+     * @param consumer what to do with each notification, called after its slot has been freed
+     * @param max      how many notifications to take at most
+     * @return the number of notifications taken
+     */
+    public int drain( UaMonitoredItem.@NonNull ValueConsumer consumer, int max ) {
+        long position = head;
+        int count = 0;
+        while ( count < max ) {
+            int slot = (int)position & mask;
+            if ( (long)SEQUENCES.getAcquire( sequences, slot ) != position + 1 ) {
+                break;
+            }
+            UaMonitoredItem item = items[slot];
+            DataValue value = values[slot];
+            items[slot] = null;
+            values[slot] = null;
+            SEQUENCES.setRelease( sequences, slot, position + capacity );
+            position++;
+            head = position;
+            count++;
+            consumer.onValueArrived( item, value );
+        }
+        return count;
+    }
+
+    /**
+     * waits until a notification is published. must only be called by the single consumer.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        await( Long.MAX_VALUE );
+    }
+
+    /**
+     * waits until a notification is published or the timeout elapsed. must only be called by the single consumer.
+     *
+     * @param timeout nanoseconds to wait at most
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await( long timeout ) throws InterruptedException {
+        long start = System.nanoTime();
+        for ( int attempt = 0; isEmpty(); attempt++ ) {
+            long remaining = timeout - ( System.nanoTime() - start );
+            if ( remaining <= 0 ) {
+                return;
+            }
+            if ( attempt < SPINS ) {
+                Thread.onSpinWait();
+            }
+            else {
+                parkedConsumer = Thread.currentThread();
+                if ( isEmpty() ) {
+                    LockSupport.parkNanos( this, Math.min( remaining, PARK_NANOS ) );
+                }
+                parkedConsumer = null;
+            }
+            if ( Thread.interrupted() ) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * @return the number of notifications claimed but not yet taken
+     */
+    public int size() {
+        return (int)Math.max( 0, tail.get() - head );
+    }
+
+    private boolean isEmpty() {
+        long position = head;
+        return (long)SEQUENCES.getVolatile( sequences, (int)position & mask ) != position + 1;
+    }
+}
@@ -0,0 +1,69 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * renders the openmetrics text format, see https://github.com/OpenObservability/OpenMetrics/blob/main/specification/OpenMetrics.md
+ *
+ * @author Tim Trense
+ */
+public class OpenMetricsExpositionEncoder extends ExpositionEncoder {
+
+    private static final byte[] EOF = "# EOF\n".getBytes( StandardCharsets.US_ASCII );
+
+    public OpenMetricsExpositionEncoder( @NonNull ExpositionWriter writer ) {
+        super( writer, ExpositionFormat.OpenMetrics );
+    }
+
+    @Override
+    protected byte @NonNull [] encodeSeries( @NonNull SampleRing ring ) {
+        MetricFamily family = ring.getFamily();
+        String labels = ring.getMetric().substring( family.getName().length() );
+        String suffix = family.getType() == MetricType.Counter ? "_total" : "";
+        return ( family.getName() + suffix + labels + " " ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    @Override
+    protected void beginFamily( @NonNull MetricFamily family ) throws IOException {
+        StringBuilder metadata = new StringBuilder();
+        metadata.append( "# TYPE " ).append( family.getName() ).append( ' ' ).append( family.getType().getOpenMetricsName() ).append( '\n' );
+        if ( family.getUnit() != null ) {
+            metadata.append( "# UNIT " ).append( family.getName() ).append( ' ' ).append( family.getUnit() ).append( '\n' );
+        }
+        if ( family.getHelp() != null ) {
+            metadata.append( "# HELP " ).append( family.getName() ).append( ' ' );
+            MetricFamily.escape( family.getHelp(), true, metadata );
+            metadata.append( '\n' );
+        }
+        writer.write( metadata.toString().getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @Override
+    protected void writeSample( byte @NonNull [] series, double value, long timestamp ) throws IOException {
+        writer.write( series );
+        writer.writeDouble( value );
+        writer.write( (byte)' ' );
+        // openmetrics timestamps are seconds
+        writer.writeLong( Math.floorDiv( timestamp, 1000 ) );
+        writer.write( (byte)'.' );
+        long millis = Math.floorMod( timestamp, 1000 );
+        writer.write( (byte)( '0' + millis / 100 ) );
+        writer.write( (byte)( '0' + millis / 10 % 10 ) );
+        writer.write( (byte)( '0' + millis % 10 ) );
+        writer.write( (byte)'\n' );
+    }
+
+    @Override
+    protected void endFamily( @NonNull MetricFamily family ) {
+        // families are delimited by the metadata of the next one
+    }
+
+    @Override
+    public void finish() throws IOException {
+        super.finish();
+        writer.write( EOF );
+    }
+}
@@ -0,0 +1,87 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * a gzip compressing stream like {@link java.util.zip.GZIPOutputStream}, but taking its {@link Deflater}
+ * from a pool and returning it on {@link #close()}, so that compressing a response does not allocate native memory.
+ * the pool keeps as many deflaters as responses are usually compressed at once, further ones are ended when closed
+ *
+ * @author Tim Trense
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] HEADER = {
+            0x1f, (byte)0x8b, // magic number
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time
+            0, // extra flags
+            (byte)0xff // operating system: unknown
+    };
+
+    /**
+     * deflaters currently not in use, reset and ready to be taken
+     */
+    private static final BoundedPool<Deflater> POOL = new BoundedPool<>( BoundedPool.DEFAULT_CAPACITY,
+            () -> new Deflater( Deflater.DEFAULT_COMPRESSION, true ) );
+
+    private final CRC32 crc = new CRC32();
+    private boolean finished;
+    private boolean closed;
+
+    public PooledGzipOutputStream( @NonNull OutputStream out ) throws IOException {
+        super( out, POOL.take(), BUFFER_SIZE );
+        out.write( HEADER );
+    }
+
+    @Override
+    public void write( byte @NonNull [] b, int off, int len ) throws IOException {
+        super.write( b, off, len );
+        crc.update( b, off, len );
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if ( finished ) {
+            return;
+        }
+        super.finish();
+        writeIntLittleEndian( (int)crc.getValue() );
+        writeIntLittleEndian( (int)def.getBytesRead() );
+        finished = true;
+    }
+
+    private void writeIntLittleEndian( int value ) throws IOException {
+        out.write( value & 0xff );
+        out.write( ( value >> 8 ) & 0xff );
+        out.write( ( value >> 16 ) & 0xff );
+        out.write( ( value >> 24 ) & 0xff );
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+            out.close();
+        }
+        finally {
+            def.reset();
+            if ( !POOL.release( def ) ) {
+                def.end(); // frees the native memory right away instead of when garbage collected
+            }
+        }
+    }
+}
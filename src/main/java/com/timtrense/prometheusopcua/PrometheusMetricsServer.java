@@ -1,5 +1,11 @@
 package com.timtrense.prometheusopcua;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
 import org.eclipse.jetty.server.Server;
@@ -9,27 +15,78 @@ import org.eclipse.jetty.servlet.ServletHolder;
 
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 /**
- * The http server for the {@link PrometheusMetricsServlet}
+ * The http server for the {@link PrometheusMetricsServlet}, the {@link ExporterMetricsServlet} and the {@link SeriesQueryServlet},
+ * optionally rendering the responses on virtual threads
  *
  * @author Tim Trense
  */
 @Log4j2
 public class PrometheusMetricsServer extends Server {
 
-    public PrometheusMetricsServer( @NonNull Configuration configuration, @NonNull Buffer buffer ) {
-        super( configuration.getHttpPort() );
+    /**
+     * where to render the responses or null to render them on the threads of jetty
+     */
+    private final ExecutorService virtualThreads;
+
+    /**
+     * where to query many series in parallel
+     */
+    private final @NonNull ForkJoinPool queryPool;
+
+    /**
+     * @param configuration the configuration of the http server
+     * @param partition     the replica this exporter is, see {@link Configuration#isReplicaPortOffset()}
+     * @param buffer        what to expose
+     * @param metrics       where to report about exposing
+     */
+    public PrometheusMetricsServer( @NonNull Configuration configuration, @NonNull ReplicaPartition partition,
+            @NonNull Buffer buffer, @NonNull ExporterMetrics metrics ) {
+        super( configuration.getHttpPort() + ( configuration.isReplicaPortOffset() ? partition.getIndex() : 0 ) );
+        this.virtualThreads = configuration.isHttpVirtualThreads() ? newVirtualThreadPerTaskExecutor() : null;
+        this.queryPool = new ForkJoinPool( configuration.getQueryParallelism() > 0
+                ? configuration.getQueryParallelism() : Runtime.getRuntime().availableProcessors() );
 
-        ServletHolder servletHolder = new ServletHolder();
-        servletHolder.setServlet( new PrometheusMetricsServlet( buffer ) );
         ServletHandler servletHandler = new ServletHandler();
-        servletHandler.addServletWithMapping( servletHolder, "/metrics" );
+        servletHandler.addServletWithMapping( holder( new PrometheusMetricsServlet( buffer, metrics ) ), "/metrics" );
+        servletHandler.addServletWithMapping( holder( new ExporterMetricsServlet( buffer, metrics ) ), "/internal/metrics" );
+        servletHandler.addServletWithMapping( holder( new SeriesQueryServlet( buffer, queryPool ) ), "/api/series" );
 
         setHandler( servletHandler );
     }
 
+    private @NonNull ServletHolder holder( @NonNull HttpServlet servlet ) {
+        ServletHolder servletHolder = new ServletHolder();
+        if ( virtualThreads == null ) {
+            servletHolder.setServlet( servlet );
+        }
+        else {
+            servletHolder.setServlet( new DispatchingServlet( servlet, virtualThreads ) );
+            servletHolder.setAsyncSupported( true );
+        }
+        return servletHolder;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task or null if this java runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // looked up reflectively, because this is compiled for java 11
+            return (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        catch ( ReflectiveOperationException e ) {
+            log.warn( "virtual threads require java 21+, rendering http responses on platform threads instead" );
+            return null;
+        }
+    }
+
     @Override
     protected void doStart() throws Exception {
         log.info(
@@ -45,4 +102,59 @@ public class PrometheusMetricsServer extends Server {
         );
         super.doStart();
     }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        queryPool.shutdown();
+        if ( virtualThreads != null ) {
+            virtualThreads.shutdown();
+        }
+    }
+
+    /**
+     * hands each request over to an executor, so that the thread of jetty is released while the response is rendered
+     */
+    private static class DispatchingServlet extends HttpServlet {
+
+        private final @NonNull HttpServlet servlet;
+        private final @NonNull Executor executor;
+
+        private DispatchingServlet( @NonNull HttpServlet servlet, @NonNull Executor executor ) {
+            this.servlet = servlet;
+            this.executor = executor;
+        }
+
+        @Override
+        public void init( ServletConfig config ) throws ServletException {
+            super.init( config );
+            servlet.init( config );
+        }
+
+        @Override
+        protected void service( HttpServletRequest req, HttpServletResponse resp ) {
+            AsyncContext async = req.startAsync();
+            async.setTimeout( 0 );
+            executor.execute( () -> {
+                try {
+                    servlet.service( async.getRequest(), async.getResponse() );
+                }
+                catch ( Exception e ) {
+                    log.error( "failed to render the response to {}", req.getRequestURI(), e );
+                    if ( !async.getResponse().isCommitted() ) {
+                        ( (HttpServletResponse)async.getResponse() ).setStatus( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+                    }
+                }
+                finally {
+                    async.complete();
+                }
+            } );
+        }
+
+        @Override
+        public void destroy() {
+            servlet.destroy();
+            super.destroy();
+        }
+    }
 }
@@ -1,78 +1,425 @@
 package com.timtrense.prometheusopcua;
 
-import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
-import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Map;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * the HTTP GET /metrics endpoint for exposing prometheus metrics
+ * the HTTP GET /metrics endpoint for exposing prometheus metrics.
+ * <p>
+ * the query parameter "mode" selects which samples are rendered:
+ * <ul>
+ *     <li>"all" (default): every sample currently buffered</li>
+ *     <li>"new": only samples not yet delivered to the same consumer, identified by the query parameter "consumer"
+ *     or else by the remote address</li>
+ *     <li>"latest": only the newest sample per metric, for gauge-style scraping</li>
+ * </ul>
+ * the query parameter "target" restricts the samples to those of the opc ua server of that name, if several are configured.
+ * series marked stale because their session is lost are left out until fresh samples arrive.
+ * the format is negotiated via the Accept header, see {@link ExpositionFormat}.
+ * responses are gzip compressed if the client accepts it. the rendering of all samples is tagged with the change counter of the buffer,
+ * so repeated scrapes without changes get a 304. while the counter stands still, the rendering is also cached up to
+ * {@value #MAX_CACHED_BYTES} bytes, otherwise it is streamed straight to the response.
  *
  * @author Tim Trense
  */
 @Log4j2
 @Data
-@ToString( exclude = {"buffer"} )
-@EqualsAndHashCode( callSuper = false, exclude = {"buffer"} )
+@ToString( exclude = {"buffer", "metrics", "cachedExpositions"} )
+@EqualsAndHashCode( callSuper = false, exclude = {"buffer", "metrics", "cachedExpositions"} )
 public class PrometheusMetricsServlet extends HttpServlet {
 
+    /**
+     * the buffers for rendering a response
+     */
+    private static final BoundedPool<ExpositionWriter> WRITERS = new BoundedPool<>( BoundedPool.DEFAULT_CAPACITY, ExpositionWriter::new );
+
+    /**
+     * the targets for copying the samples of one ring to, one per response
+     */
+    private static final BoundedPool<SampleRing.Snapshot> SNAPSHOTS = new BoundedPool<>( BoundedPool.DEFAULT_CAPACITY,
+            () -> new SampleRing.Snapshot( 0 ) );
+
+    /**
+     * the largest rendering of all samples to keep for further scrapes, larger ones are rendered for each
+     */
+    static final int MAX_CACHED_BYTES = 8 * 1024 * 1024;
+
     private final @NonNull Buffer buffer;
+    private final @NonNull ExporterMetrics metrics;
+
+    /**
+     * distinguishes entity tags of this process from those of earlier ones, whose change counters started at zero as well
+     */
+    private final String etagPrefix = Long.toHexString( System.currentTimeMillis() );
+
+    /**
+     * per {@link ExpositionFormat} and with or without gzip: the latest full rendering of all samples,
+     * reused by further scrapes as long as no sample has changed
+     */
+    private final AtomicReferenceArray<CachedExposition> cachedExpositions = new AtomicReferenceArray<>( 2 * ExpositionFormat.values().length );
 
     @Override
     protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws IOException {
 
         // rendering prometheus metrics format according to https://github.com/prometheus/docs/blob/master/content/docs/instrumenting/exposition_formats.md [2021-06-08]
 
-        PrintWriter writer = resp.getWriter();
-        for ( Map.Entry<String, CircularFifoQueue<DataValue>> e : buffer.getNodeValueBuffers().entrySet() ) {
-            String metricName = e.getKey();
-            e.getValue().stream()
-                    .filter( dv -> dv.getStatusCode() != null
-                            && dv.getSourceTime() != null
-                            && dv.getStatusCode().isGood() )
-                    .forEachOrdered( dv -> {
-                        writer.write( metricName );
-                        writer.write( " " );
-                        writer.write( formatValue( dv.getValue().getValue() ) );
-                        writer.write( " " );
-                        writer.write( String.valueOf( dv.getSourceTime().getJavaTime() ) );
-                        writer.write( "\n" );
-                    } );
+        long start = System.nanoTime();
+        String mode = Objects.requireNonNullElse( req.getParameter( "mode" ), "all" );
+        if ( !"all".equals( mode ) && !"new".equals( mode ) && !"latest".equals( mode ) ) {
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "unknown mode: " + mode );
+            return;
+        }
+
+        ExpositionFormat format = ExpositionFormat.negotiate( req.getHeader( "Accept" ) );
+        resp.setContentType( format.getContentType() );
+        boolean gzip = acceptsGzip( req.getHeader( "Accept-Encoding" ) );
+        resp.setHeader( "Vary", "Accept, Accept-Encoding" );
+        if ( gzip ) {
+            resp.setHeader( "Content-Encoding", "gzip" );
+        }
+
+        String target = req.getParameter( "target" );
+        String consumer = Objects.requireNonNullElseGet( req.getParameter( "consumer" ), req::getRemoteAddr );
+        buffer.markScraped( consumer, target );
+        if ( "all".equals( mode ) && target == null ) {
+            long bytes = writeCached( req, resp, format, gzip );
+            metrics.observeScrape( mode, System.nanoTime() - start, bytes );
+            return;
+        }
+
+        ExpositionWriter writer = WRITERS.take();
+        CountingOutputStream counter = new CountingOutputStream( resp.getOutputStream() );
+        try ( OutputStream out = gzip ? new PooledGzipOutputStream( counter ) : counter ) {
+            writer.reset( out );
+            ExpositionEncoder encoder = format.createEncoder( writer );
+            if ( "new".equals( mode ) ) {
+                writeNew( encoder, writer, out, buffer.getCursor( consumer ), target );
+            }
+            else {
+                if ( "all".equals( mode ) ) {
+                    writeAll( encoder, target );
+                }
+                else {
+                    writeLatest( encoder, target );
+                }
+                encoder.finish();
+                writer.flush();
+            }
+        }
+        finally {
+            writer.reset( null );
+            WRITERS.release( writer );
+            metrics.observeScrape( mode, System.nanoTime() - start, counter.getCount() );
+        }
+    }
+
+    /**
+     * answers with the cached rendering of all samples if no sample changed since, or else renders it straight into the response.
+     * a rendering is captured for the cache only if the buffer did not change since the previous one either, so that
+     * scrapes of a buffer that keeps changing copy nothing.
+     *
+     * @return the number of body bytes written
+     */
+    private long writeCached( HttpServletRequest req, HttpServletResponse resp,
+            @NonNull ExpositionFormat format, boolean gzip ) throws IOException {
+        long changes = buffer.getChangeCount();
+        resp.setHeader( "ETag", etag( changes, format, gzip ) );
+        if ( matchesEtag( req.getHeader( "If-None-Match" ), etag( changes, format, gzip ) ) ) {
+            resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+            return 0;
+        }
+
+        int index = 2 * format.ordinal() + ( gzip ? 1 : 0 );
+        CachedExposition cached = cachedExpositions.get( index );
+        if ( cached != null && cached.getChanges() == changes && cached.getBody() != null ) {
+            resp.setContentLength( cached.getLength() );
+            resp.getOutputStream().write( cached.getBody(), 0, cached.getLength() );
+            return cached.getLength();
+        }
+
+        CapturingOutputStream capture = cached != null && cached.getChanges() == changes
+                ? new CapturingOutputStream( resp.getOutputStream() ) : null;
+        CountingOutputStream counter = new CountingOutputStream( capture != null ? capture : resp.getOutputStream() );
+        ExpositionWriter writer = WRITERS.take();
+        try ( OutputStream out = gzip ? new PooledGzipOutputStream( counter ) : counter ) {
+            writer.reset( out );
+            ExpositionEncoder encoder = format.createEncoder( writer );
+            writeAll( encoder );
+            encoder.finish();
+            writer.flush();
+        }
+        finally {
+            writer.reset( null );
+            WRITERS.release( writer );
+        }
+
+        // everything written before reading the counter is contained in a rendering started afterwards,
+        // but only one during which it did not move is exactly the state the entity tag stands for
+        long changesAfter = buffer.getChangeCount();
+        CachedExposition rendered = new CachedExposition( changesAfter,
+                capture != null && changesAfter == changes ? capture.getBytes() : null, capture != null ? capture.getLength() : 0 );
+        cachedExpositions.accumulateAndGet( index, rendered, ( current, next ) -> current == null
+                || current.getChanges() < next.getChanges() || ( current.getChanges() == next.getChanges() && current.getBody() == null )
+                ? next : current );
+        return counter.getCount();
+    }
+
+    private @NonNull String etag( long changes, @NonNull ExpositionFormat format, boolean gzip ) {
+        return "\"" + etagPrefix + "-" + Long.toHexString( changes ) + "-" + format.ordinal() + ( gzip ? "-gzip" : "" ) + "\"";
+    }
+
+    /**
+     * @param ifNoneMatch the value of the If-None-Match request header
+     * @param etag        the entity tag of the current representation
+     * @return whether the client already holds the current representation
+     */
+    private static boolean matchesEtag( String ifNoneMatch, @NonNull String etag ) {
+        if ( ifNoneMatch == null ) {
+            return false;
+        }
+        for ( String candidate : ifNoneMatch.split( "," ) ) {
+            candidate = candidate.trim();
+            if ( candidate.startsWith( "W/" ) ) {
+                candidate = candidate.substring( 2 );
+            }
+            if ( candidate.equals( "*" ) || candidate.equals( etag ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param acceptEncoding the value of the Accept-Encoding request header
+     * @return whether the client accepts a gzip compressed response
+     */
+    static boolean acceptsGzip( String acceptEncoding ) {
+        if ( acceptEncoding == null ) {
+            return false;
+        }
+        for ( String coding : acceptEncoding.split( "," ) ) {
+            String[] parameters = coding.split( ";" );
+            if ( !parameters[0].trim().equalsIgnoreCase( "gzip" ) ) {
+                continue;
+            }
+            for ( int i = 1; i < parameters.length; i++ ) {
+                String parameter = parameters[i].trim();
+                if ( parameter.startsWith( "q=" ) ) {
+                    try {
+                        return Double.parseDouble( parameter.substring( 2 ) ) > 0;
+                    }
+                    catch ( NumberFormatException e ) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    void writeAll( @NonNull ExpositionEncoder encoder ) throws IOException {
+        writeAll( encoder, null );
+    }
+
+    /**
+     * @param target the name of the server to render the samples of, null for all
+     * @return whether the ring is not to be rendered
+     */
+    private static boolean skip( @NonNull SampleRing ring, String target ) {
+        return ring.getStaleSince() != 0
+                || ( target != null && !target.equals( ring.getLabels().get( ServerConfiguration.SERVER_LABEL ) ) );
+    }
+
+    private void writeAll( @NonNull ExpositionEncoder encoder, String target ) throws IOException {
+        SampleRing.Snapshot snapshot = SNAPSHOTS.take();
+        try {
+            for ( SampleRing ring : buffer.getNodeValueBuffers().values() ) {
+                if ( skip( ring, target ) ) {
+                    continue;
+                }
+                ring.read( snapshot );
+                writeSamples( encoder, ring, snapshot, 0 );
+            }
+        }
+        finally {
+            SNAPSHOTS.release( snapshot );
         }
     }
 
-    private static String formatValue( Object value ) {
-        if ( value instanceof Number ) {
-            double v = ( (Number)value ).doubleValue();
-            if ( Double.isNaN( v ) ) {
-                return "NaN";
+    private void writeNew( @NonNull ExpositionEncoder encoder, @NonNull ExpositionWriter writer,
+            @NonNull OutputStream out, @NonNull ScrapeCursor cursor, String target ) throws IOException {
+        SampleRing.Snapshot snapshot = SNAPSHOTS.take();
+        try {
+            // concurrent scrapes of the same consumer must not both deliver the same samples
+            synchronized( cursor ) {
+                long[] positions = cursor.copyPositions( buffer.getSlotCount() );
+                for ( SampleRing ring : buffer.getNodeValueBuffers().values() ) {
+                    if ( ring.getSlot() >= positions.length ) {
+                        continue; // registered while scraping, will be delivered next time
+                    }
+                    if ( skip( ring, target ) ) {
+                        continue; // a stale series is resumed from the same position once its values are current again
+                    }
+                    ring.read( snapshot, positions[ring.getSlot()] );
+                    writeSamples( encoder, ring, snapshot, 0 );
+                    positions[ring.getSlot()] = snapshot.getEnd();
+                }
+                // only advance the cursor if the samples actually reached the consumer, otherwise writing throws
+                encoder.finish();
+                writer.flush();
+                if ( out instanceof PooledGzipOutputStream ) {
+                    ( (PooledGzipOutputStream)out ).finish(); // closing is left to the caller
+                }
+                out.flush();
+                cursor.setPositions( positions );
             }
-            if ( Double.isInfinite( v ) ) {
-                return ( v > 0 ? "+" : "-" ) + "Inf";
+        }
+        finally {
+            SNAPSHOTS.release( snapshot );
+        }
+    }
+
+    private void writeLatest( @NonNull ExpositionEncoder encoder, String target ) throws IOException {
+        SampleRing.Snapshot snapshot = SNAPSHOTS.take();
+        try {
+            for ( SampleRing ring : buffer.getNodeValueBuffers().values() ) {
+                if ( skip( ring, target ) ) {
+                    continue;
+                }
+                ring.read( snapshot );
+                int latest = snapshot.getSize() - 1;
+                while ( latest >= 0 && !SampleRing.isGood( snapshot.getStatusCode( latest ) ) ) {
+                    latest--;
+                }
+                if ( latest >= 0 ) {
+                    writeSamples( encoder, ring, snapshot, latest );
+                }
             }
-            return String.valueOf( v );
         }
-        if ( value instanceof DateTime ) {
-            return String.valueOf( ( (DateTime)value ).getJavaTime() );
+        finally {
+            SNAPSHOTS.release( snapshot );
         }
-        if ( value instanceof Boolean ) {
-            return ( (Boolean)value ) ? "1" : "0";
+    }
+
+    private void writeSamples( @NonNull ExpositionEncoder encoder, @NonNull SampleRing ring,
+            @NonNull SampleRing.Snapshot snapshot, int from ) throws IOException {
+        int bad = 0;
+        for ( int i = from; i < snapshot.getSize(); i++ ) {
+            if ( !SampleRing.isGood( snapshot.getStatusCode( i ) ) ) {
+                bad++;
+                continue;
+            }
+            encoder.writeSample( ring, snapshot.getValue( i ), snapshot.getTimestamp( i ) );
+        }
+        if ( bad > 0 ) {
+            metrics.getBadStatusSamples().add( bad );
+        }
+        ring.markDelivered( snapshot.getEnd() );
+    }
+
+    /**
+     * counts the bytes passed through to the actual response stream
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private @Getter long count;
+
+        CountingOutputStream( @NonNull OutputStream out ) {
+            super( out );
         }
-        if ( value == null ) {
-            return "NaN";
+
+        @Override
+        public void write( int b ) throws IOException {
+            out.write( b );
+            count++;
+        }
+
+        @Override
+        public void write( byte @NonNull [] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+            count += len;
         }
-        return "0";
+    }
+
+    /**
+     * keeps a copy of the bytes passed through, until they exceed {@link #MAX_CACHED_BYTES}
+     */
+    private static class CapturingOutputStream extends FilterOutputStream {
+
+        /**
+         * the bytes passed through so far, null if there were too many
+         */
+        private @Getter byte[] bytes = new byte[64 * 1024];
+        private @Getter int length;
+
+        CapturingOutputStream( @NonNull OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            out.write( b );
+            if ( capture( 1 ) ) {
+                bytes[length++] = (byte)b;
+            }
+        }
+
+        @Override
+        public void write( byte @NonNull [] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+            if ( capture( len ) ) {
+                System.arraycopy( b, off, bytes, length, len );
+                length += len;
+            }
+        }
+
+        /**
+         * @return whether there is room for the given number of bytes, growing the copy if necessary
+         */
+        private boolean capture( int len ) {
+            if ( bytes == null ) {
+                return false;
+            }
+            if ( length + len > MAX_CACHED_BYTES ) {
+                bytes = null;
+                return false;
+            }
+            if ( length + len > bytes.length ) {
+                bytes = Arrays.copyOf( bytes, Math.min( MAX_CACHED_BYTES, Math.max( 2 * bytes.length, length + len ) ) );
+            }
+            return true;
+        }
+    }
+
+    /**
+     * a rendering of all samples, as it was when the buffers change counter had a certain value
+     */
+    @Getter
+    @RequiredArgsConstructor
+    private static class CachedExposition {
+
+        private final long changes;
+
+        /**
+         * the rendering in its first {@link #length} bytes, null if it is not cached but only rendered at that counter
+         */
+        private final byte[] body;
+        private final int length;
     }
 }
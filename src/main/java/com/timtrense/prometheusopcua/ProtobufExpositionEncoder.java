@@ -0,0 +1,130 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * renders the length-delimited prometheus protobuf format, one io.prometheus.client.MetricFamily message per family,
+ * see https://github.com/prometheus/client_model/blob/master/io/prometheus/client/metrics.proto
+ *
+ * @author Tim Trense
+ */
+public class ProtobufExpositionEncoder extends ExpositionEncoder {
+
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_FIXED64 = 1;
+    static final int WIRE_LENGTH_DELIMITED = 2;
+
+    /**
+     * the buffers for the metrics of one family, whose length must be known before writing it
+     */
+    private static final BoundedPool<ExpositionWriter> FAMILY_WRITERS = new BoundedPool<>( BoundedPool.DEFAULT_CAPACITY, ExpositionWriter::new );
+
+    /**
+     * taken from {@link #FAMILY_WRITERS} until {@link #finish() finished}
+     */
+    private final @NonNull ExpositionWriter familyWriter = FAMILY_WRITERS.take();
+    private boolean finished;
+
+    /**
+     * the field number within the metric message holding the value of the current family
+     */
+    private int valueField;
+
+    public ProtobufExpositionEncoder( @NonNull ExpositionWriter writer ) {
+        super( writer, ExpositionFormat.Protobuf );
+    }
+
+    @Override
+    protected byte @NonNull [] encodeSeries( @NonNull SampleRing ring ) {
+        // the repeated LabelPair fields of the metric message
+        ExpositionWriter labels = new ExpositionWriter();
+        try {
+            for ( Map.Entry<String, String> label : ring.getLabels().entrySet() ) {
+                byte[] name = label.getKey().getBytes( StandardCharsets.UTF_8 );
+                byte[] value = label.getValue().getBytes( StandardCharsets.UTF_8 );
+                labels.writeTag( 1, WIRE_LENGTH_DELIMITED );
+                labels.writeVarint( 2 + ExpositionWriter.varintSize( name.length ) + name.length
+                        + ExpositionWriter.varintSize( value.length ) + value.length );
+                writeBytesField( labels, 1, name );
+                writeBytesField( labels, 2, value );
+            }
+        }
+        catch ( IOException e ) {
+            throw new IllegalStateException( "writing to memory failed", e );
+        }
+        return labels.toByteArray();
+    }
+
+    @Override
+    protected void beginFamily( @NonNull MetricFamily family ) {
+        familyWriter.reset( null );
+        switch ( family.getType() ) {
+            case Counter:
+                valueField = 3;
+                break;
+            case Gauge:
+                valueField = 2;
+                break;
+            default:
+                valueField = 5;
+        }
+    }
+
+    @Override
+    protected void writeSample( byte @NonNull [] series, double value, long timestamp ) throws IOException {
+        int metricLength = series.length + 11 + 1 + ExpositionWriter.varintSize( timestamp );
+        familyWriter.writeTag( 4, WIRE_LENGTH_DELIMITED );
+        familyWriter.writeVarint( metricLength );
+        familyWriter.write( series );
+        // the gauge, counter or untyped message, each only having the double value field
+        familyWriter.writeTag( valueField, WIRE_LENGTH_DELIMITED );
+        familyWriter.writeVarint( 9 );
+        familyWriter.writeTag( 1, WIRE_FIXED64 );
+        familyWriter.writeFixedDouble( value );
+        familyWriter.writeTag( 6, WIRE_VARINT );
+        familyWriter.writeVarint( timestamp );
+    }
+
+    @Override
+    protected void endFamily( @NonNull MetricFamily family ) throws IOException {
+        byte[] name = family.getName().getBytes( StandardCharsets.UTF_8 );
+        byte[] help = family.getHelp() == null ? null : family.getHelp().getBytes( StandardCharsets.UTF_8 );
+        int type = family.getType().getProtobufNumber();
+
+        int length = 1 + ExpositionWriter.varintSize( name.length ) + name.length
+                + ( help == null ? 0 : 1 + ExpositionWriter.varintSize( help.length ) + help.length )
+                + 1 + ExpositionWriter.varintSize( type )
+                + familyWriter.size();
+        writer.writeVarint( length );
+        writeBytesField( writer, 1, name );
+        if ( help != null ) {
+            writeBytesField( writer, 2, help );
+        }
+        writer.writeTag( 3, WIRE_VARINT );
+        writer.writeVarint( type );
+        writer.write( familyWriter );
+        familyWriter.reset( null );
+    }
+
+    /**
+     * also releases the buffer for the metrics of one family. if the exposition fails before, that buffer is left to the garbage collector
+     */
+    @Override
+    public void finish() throws IOException {
+        super.finish();
+        if ( !finished ) {
+            finished = true;
+            FAMILY_WRITERS.release( familyWriter );
+        }
+    }
+
+    static void writeBytesField( @NonNull ExpositionWriter target, int field, byte @NonNull [] value ) throws IOException {
+        target.writeTag( field, WIRE_LENGTH_DELIMITED );
+        target.writeVarint( value.length );
+        target.write( value );
+    }
+}
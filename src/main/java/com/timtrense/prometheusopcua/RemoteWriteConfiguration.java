@@ -0,0 +1,57 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+
+/**
+ * pushing the buffered samples to a prometheus remote-write receiver
+ *
+ * @author Tim Trense
+ */
+@Data
+public class RemoteWriteConfiguration {
+
+    /**
+     * the URL of the remote-write receiver, e.g. http://prometheus:9090/api/v1/write
+     */
+    private String url;
+
+    /**
+     * how many samples to send per request at most
+     */
+    private int batchSize = 2000;
+
+    /**
+     * milliseconds between collecting new samples from the buffer, after which even incomplete batches are sent
+     */
+    private long batchAge = 1000;
+
+    /**
+     * how many batches to queue per shard at most. if full, samples stay in the buffer until the shard catches up
+     */
+    private int queueSize = 10;
+
+    /**
+     * how many senders to send batches in parallel, each for a distinct subset of the metrics
+     */
+    private int shards = 2;
+
+    /**
+     * how often to retry sending a batch that failed recoverably before building it again from the buffer
+     */
+    private int maxRetries = 5;
+
+    /**
+     * milliseconds to wait before the first retry, doubled on each further retry
+     */
+    private long minBackoff = 100;
+
+    /**
+     * milliseconds to wait before a retry at most
+     */
+    private long maxBackoff = 10_000;
+
+    /**
+     * milliseconds to wait for the receiver to respond
+     */
+    private long timeout = 30_000;
+}
@@ -0,0 +1,599 @@
+package com.timtrense.prometheusopcua;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.compression.Snappy;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.timtrense.prometheusopcua.ProtobufExpositionEncoder.*;
+
+/**
+ * pushes every sample written to the {@link Buffer} to a prometheus remote-write receiver,
+ * see https://prometheus.io/docs/concepts/remote_write_spec/
+ * <p>
+ * every {@link RemoteWriteConfiguration#getBatchAge()} a single drain thread collects the samples not yet pushed from all rings
+ * and encodes them into snappy-compressed WriteRequest messages of at most {@link RemoteWriteConfiguration#getBatchSize()} samples.
+ * the metrics are partitioned into shards by their slot, each shard having a bounded queue and its own sender thread,
+ * so the samples of one series are always sent in order. samples are only taken from the buffer once their batch has been queued,
+ * so a shard that cannot keep up leaves them in the buffer instead of growing its queue.
+ * the position of a series only advances once the receiver acknowledged its batch with a 2xx status, or rejected it for good.
+ * if a batch still fails after {@link RemoteWriteConfiguration#getMaxRetries()} retries, the shard discards its queued batches
+ * and rebuilds them from the acknowledged positions, so samples still in the buffer are sent again in order.
+ * a series marked stale because its session is lost gets a prometheus staleness marker at the time it was marked.
+ * a series restored from a previous run starts after its restored samples, which the previous run pushed already or dropped.
+ * <p>
+ * closing collects the samples written since the last drain once more and waits up to {@link RemoteWriteConfiguration#getTimeout()}
+ * for the shards to send what is queued.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class RemoteWriter implements AutoCloseable {
+
+    /**
+     * the NaN value prometheus uses for marking a series stale
+     */
+    private static final double STALE_NAN = Double.longBitsToDouble( 0x7ff0000000000002L );
+
+    private final @NonNull RemoteWriteConfiguration configuration;
+    private final @NonNull Buffer buffer;
+    private final @NonNull ExporterMetrics metrics;
+    private final @NonNull HttpClient client;
+    private final @NonNull URI uri;
+    private final @NonNull Shard[] shards;
+    private final @NonNull ScheduledExecutorService drainer;
+
+    // the state of the drain thread
+
+    /**
+     * per ring slot the sequence number of the next sample not yet queued for sending, -1 for a ring not seen yet
+     */
+    private long[] positions = new long[0];
+
+    /**
+     * per ring slot the sequence number of the next sample not yet acknowledged by the receiver
+     */
+    private long[] acknowledged = new long[0];
+
+    /**
+     * per ring slot the repeated Label fields of its TimeSeries message, including the metric name
+     */
+    private byte[][] encodedLabels = new byte[0][];
+
+    /**
+     * per ring slot the {@link SampleRing#getStaleSince()} a staleness marker has been queued for
+     */
+    private long[] staleMarked = new long[0];
+
+    /**
+     * per ring slot the {@link SampleRing#getStaleSince()} a staleness marker has been acknowledged for
+     */
+    private long[] staleAcknowledged = new long[0];
+
+    private final SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 0 );
+    private final Snappy snappy = new Snappy();
+
+    /**
+     * set when closing, to have the senders stop once their queue is empty
+     */
+    private volatile boolean closing;
+
+    public RemoteWriter( @NonNull RemoteWriteConfiguration configuration, @NonNull Buffer buffer, @NonNull ExporterMetrics metrics ) {
+        if ( configuration.getUrl() == null ) {
+            throw new NullPointerException( "the url of remote write is not configured" );
+        }
+        if ( configuration.getBatchSize() < 1 || configuration.getShards() < 1 || configuration.getQueueSize() < 1 ) {
+            throw new IllegalArgumentException( "batchSize, shards and queueSize of remote write must be positive" );
+        }
+        this.configuration = configuration;
+        this.buffer = buffer;
+        this.metrics = metrics;
+        this.uri = URI.create( configuration.getUrl() );
+        this.client = HttpClient.newBuilder()
+                .connectTimeout( Duration.ofMillis( configuration.getTimeout() ) )
+                .build();
+        this.shards = new Shard[configuration.getShards()];
+        for ( int i = 0; i < shards.length; i++ ) {
+            shards[i] = new Shard( i );
+        }
+        this.drainer = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "remote-write-drain" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * starts collecting and sending samples
+     */
+    public void start() {
+        log.info( "pushing samples to {} with {} shards", uri, shards.length );
+        for ( Shard shard : shards ) {
+            shard.sender.start();
+        }
+        drainer.scheduleWithFixedDelay( () -> {
+            try {
+                drain();
+            }
+            catch ( RuntimeException e ) {
+                log.error( "failed to collect samples for remote write", e );
+            }
+        }, configuration.getBatchAge(), configuration.getBatchAge(), TimeUnit.MILLISECONDS );
+    }
+
+    private void drain() {
+        int slotCount = buffer.getSlotCount();
+        if ( positions.length < slotCount ) {
+            int known = positions.length;
+            positions = Arrays.copyOf( positions, slotCount );
+            acknowledged = Arrays.copyOf( acknowledged, slotCount );
+            Arrays.fill( positions, known, slotCount, -1 );
+            Arrays.fill( acknowledged, known, slotCount, -1 );
+            encodedLabels = Arrays.copyOf( encodedLabels, slotCount );
+            staleMarked = Arrays.copyOf( staleMarked, slotCount );
+            staleAcknowledged = Arrays.copyOf( staleAcknowledged, slotCount );
+        }
+        for ( Shard shard : shards ) {
+            shard.acknowledge();
+            shard.full = false;
+        }
+        for ( SampleRing ring : buffer.getNodeValueBuffers().values() ) {
+            int slot = ring.getSlot();
+            Shard shard = shards[slot % shards.length];
+            if ( slot >= positions.length || shard.full ) {
+                continue;
+            }
+            if ( positions[slot] < 0 ) {
+                positions[slot] = ring.getRestored();
+                acknowledged[slot] = ring.getRestored();
+            }
+            ring.read( snapshot, positions[slot] );
+            if ( snapshot.getSize() > 0 ) {
+                shard.add( ring, snapshot );
+            }
+            long staleSince = ring.getStaleSince();
+            if ( staleSince != 0 && staleMarked[slot] != staleSince && !shard.full ) {
+                shard.addStaleMarker( ring, staleSince );
+            }
+        }
+        for ( Shard shard : shards ) {
+            shard.flush();
+        }
+    }
+
+    private byte @NonNull [] getEncodedLabels( @NonNull SampleRing ring ) {
+        byte[] labels = encodedLabels[ring.getSlot()];
+        if ( labels != null ) {
+            return labels;
+        }
+        // remote write requires the labels sorted by name
+        Map<String, String> sorted = new TreeMap<>( ring.getLabels() );
+        sorted.put( "__name__", ring.getFamily().getName() );
+        ExpositionWriter writer = new ExpositionWriter();
+        try {
+            for ( Map.Entry<String, String> label : sorted.entrySet() ) {
+                byte[] name = label.getKey().getBytes( StandardCharsets.UTF_8 );
+                byte[] value = label.getValue().getBytes( StandardCharsets.UTF_8 );
+                writer.writeTag( 1, WIRE_LENGTH_DELIMITED );
+                writer.writeVarint( 2 + ExpositionWriter.varintSize( name.length ) + name.length
+                        + ExpositionWriter.varintSize( value.length ) + value.length );
+                writeBytesField( writer, 1, name );
+                writeBytesField( writer, 2, value );
+            }
+        }
+        catch ( IOException e ) {
+            throw new IllegalStateException( "writing to memory failed", e );
+        }
+        labels = writer.toByteArray();
+        encodedLabels[ring.getSlot()] = labels;
+        return labels;
+    }
+
+    private static int sampleSize( long timestamp ) {
+        // the length-delimited Sample message holding the fixed64 value and the varint timestamp
+        return 2 + 9 + 1 + ExpositionWriter.varintSize( timestamp );
+    }
+
+    /**
+     * pushes what is buffered but not yet sent, giving up on it after the timeout of the configuration
+     */
+    @Override
+    public void close() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( configuration.getTimeout() );
+        drainer.shutdown();
+        try {
+            if ( drainer.awaitTermination( configuration.getTimeout(), TimeUnit.MILLISECONDS ) ) {
+                drain(); // the samples written since the last drain, safely on this thread as the drain thread is gone
+            }
+            closing = true;
+            for ( Shard shard : shards ) {
+                shard.sender.join( Math.max( 1, TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() ) ) );
+            }
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        int unsent = 0;
+        for ( Shard shard : shards ) {
+            shard.sender.interrupt();
+            unsent += shard.queue.stream().mapToInt( batch -> batch.samples ).sum();
+        }
+        for ( Shard shard : shards ) {
+            try {
+                shard.sender.join();
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if ( unsent > 0 ) {
+            log.warn( "closed remote write with {} samples not sent within {}ms", unsent, configuration.getTimeout() );
+        }
+    }
+
+    /**
+     * a snappy compressed WriteRequest message
+     */
+    private static class Batch {
+
+        private final byte[] body;
+        private final int samples;
+
+        /**
+         * the {@link Shard#generation} this batch has been built in
+         */
+        private final int generation;
+
+        /**
+         * the rings the samples are taken from, up to which sequence number and for which staleness, if any
+         */
+        private final SampleRing[] rings;
+        private final long[] ends;
+        private final long[] stale;
+
+        private Batch( byte[] body, int samples, int generation, SampleRing[] rings, long[] ends, long[] stale ) {
+            this.body = body;
+            this.samples = samples;
+            this.generation = generation;
+            this.rings = rings;
+            this.ends = ends;
+            this.stale = stale;
+        }
+    }
+
+    /**
+     * the subset of metrics whose slot modulo the number of shards equals the index of this shard
+     */
+    private class Shard {
+
+        private final int index;
+
+        private final @NonNull BlockingQueue<Batch> queue = new ArrayBlockingQueue<>( configuration.getQueueSize() );
+        private final @NonNull Thread sender;
+
+        /**
+         * the batches the sender is done with, for the drain thread to advance the acknowledged positions
+         */
+        private final @NonNull Queue<Batch> done = new ConcurrentLinkedQueue<>();
+
+        /**
+         * set by the sender when it gave up on a batch, until the drain thread rebuilt the queue from the acknowledged positions
+         */
+        private volatile boolean rewind;
+
+        // the state of the sender
+
+        /**
+         * the generation whose batches are discarded, because one of them failed
+         */
+        private int discarding = -1;
+
+        // the state of the drain thread
+
+        /**
+         * the WriteRequest message being built, passing its bytes on to {@link #uncompressed}
+         */
+        private final ExpositionWriter request = new ExpositionWriter();
+
+        /**
+         * the WriteRequest message and its snappy compression, both reused for every batch
+         */
+        private final ByteBuf uncompressed = Unpooled.buffer();
+        private final ByteBuf compressed = Unpooled.buffer();
+        private final ByteBufOutputStream uncompressedStream = new ByteBufOutputStream( uncompressed );
+
+        /**
+         * the number of samples in {@link #request}
+         */
+        private int samples;
+
+        /**
+         * the rings taken samples from for {@link #request} and up to which sequence number
+         */
+        private SampleRing[] pendingRings = new SampleRing[16];
+        private long[] pendingEnds = new long[16];
+        private long[] pendingStale = new long[16];
+        private int pending;
+
+        /**
+         * whether the queue was full during the current drain
+         */
+        private boolean full;
+
+        /**
+         * counts the rewinds, so that the sender tells the batches queued before a rewind apart from those after
+         */
+        private int generation;
+
+        private Shard( int index ) {
+            this.index = index;
+            sender = new Thread( this::send, "remote-write-" + index );
+            sender.setDaemon( true );
+            request.reset( uncompressedStream );
+            metrics.getRemoteWriteQueues().put( String.valueOf( index ), queue );
+        }
+
+        /**
+         * advances the acknowledged positions by the batches the sender is done with, and rewinds if it gave up on one
+         */
+        private void acknowledge() {
+            // read before taking the done batches, so that all batches done before giving up are taken
+            boolean rewinding = rewind;
+            for ( Batch batch = done.poll(); batch != null; batch = done.poll() ) {
+                for ( int i = 0; i < batch.rings.length; i++ ) {
+                    int slot = batch.rings[i].getSlot();
+                    acknowledged[slot] = Math.max( acknowledged[slot], batch.ends[i] );
+                    if ( batch.stale[i] != 0 ) {
+                        staleAcknowledged[slot] = batch.stale[i];
+                    }
+                }
+            }
+            if ( !rewinding ) {
+                return;
+            }
+            queue.clear();
+            generation++;
+            for ( int slot = index; slot < positions.length; slot += shards.length ) {
+                positions[slot] = acknowledged[slot];
+                staleMarked[slot] = staleAcknowledged[slot];
+            }
+            rewind = false;
+        }
+
+        private void add( @NonNull SampleRing ring, SampleRing.@NonNull Snapshot snapshot ) {
+            byte[] labels = getEncodedLabels( ring );
+            int index = 0;
+            while ( index < snapshot.getSize() && !full ) {
+                // take as many samples as fit into the current batch, skipping those not exposable anyway
+                int end = index;
+                int count = 0;
+                int length = labels.length;
+                for ( ; end < snapshot.getSize() && samples + count < configuration.getBatchSize(); end++ ) {
+                    if ( SampleRing.isGood( snapshot.getStatusCode( end ) ) ) {
+                        count++;
+                        length += sampleSize( snapshot.getTimestamp( end ) );
+                    }
+                }
+                try {
+                    if ( count > 0 ) {
+                        writeTimeSeries( labels, length, snapshot, index, end );
+                    }
+                }
+                catch ( IOException e ) {
+                    throw new IllegalStateException( "writing to memory failed", e );
+                }
+                samples += count;
+                addPending( ring, snapshot.getSequence() + end );
+                index = end;
+                if ( samples >= configuration.getBatchSize() ) {
+                    flush();
+                }
+            }
+        }
+
+        private void writeTimeSeries( byte @NonNull [] labels, int length, SampleRing.@NonNull Snapshot snapshot, int from, int to )
+                throws IOException {
+            request.writeTag( 1, WIRE_LENGTH_DELIMITED );
+            request.writeVarint( length );
+            request.write( labels );
+            for ( int i = from; i < to; i++ ) {
+                if ( !SampleRing.isGood( snapshot.getStatusCode( i ) ) ) {
+                    continue;
+                }
+                long timestamp = snapshot.getTimestamp( i );
+                request.writeTag( 2, WIRE_LENGTH_DELIMITED );
+                request.writeVarint( sampleSize( timestamp ) - 2 );
+                request.writeTag( 1, WIRE_FIXED64 );
+                request.writeFixedDouble( snapshot.getValue( i ) );
+                request.writeTag( 2, WIRE_VARINT );
+                request.writeVarint( timestamp );
+            }
+        }
+
+        /**
+         * adds a sample with the staleness marker as value to the current batch
+         */
+        private void addStaleMarker( @NonNull SampleRing ring, long staleSince ) {
+            byte[] labels = getEncodedLabels( ring );
+            try {
+                request.writeTag( 1, WIRE_LENGTH_DELIMITED );
+                request.writeVarint( labels.length + sampleSize( staleSince ) );
+                request.write( labels );
+                request.writeTag( 2, WIRE_LENGTH_DELIMITED );
+                request.writeVarint( sampleSize( staleSince ) - 2 );
+                request.writeTag( 1, WIRE_FIXED64 );
+                request.writeFixedDouble( STALE_NAN );
+                request.writeTag( 2, WIRE_VARINT );
+                request.writeVarint( staleSince );
+            }
+            catch ( IOException e ) {
+                throw new IllegalStateException( "writing to memory failed", e );
+            }
+            samples++;
+            boolean samePending = pending > 0 && pendingRings[pending - 1] == ring;
+            addPending( ring, samePending ? pendingEnds[pending - 1] : positions[ring.getSlot()] );
+            pendingStale[pending - 1] = staleSince;
+            if ( samples >= configuration.getBatchSize() ) {
+                flush();
+            }
+        }
+
+        private void addPending( @NonNull SampleRing ring, long end ) {
+            if ( pending > 0 && pendingRings[pending - 1] == ring ) {
+                pendingEnds[pending - 1] = end;
+                return;
+            }
+            if ( pending == pendingRings.length ) {
+                pendingRings = Arrays.copyOf( pendingRings, pending * 2 );
+                pendingEnds = Arrays.copyOf( pendingEnds, pending * 2 );
+                pendingStale = Arrays.copyOf( pendingStale, pending * 2 );
+            }
+            pendingRings[pending] = ring;
+            pendingEnds[pending] = end;
+            pendingStale[pending] = 0;
+            pending++;
+        }
+
+        /**
+         * queues the current batch, if any, and marks its samples as taken if it could be queued
+         */
+        private void flush() {
+            boolean taken = samples == 0 || queue.offer( new Batch( compress(), samples, generation, Arrays.copyOf( pendingRings, pending ),
+                    Arrays.copyOf( pendingEnds, pending ), Arrays.copyOf( pendingStale, pending ) ) );
+            if ( taken ) {
+                for ( int i = 0; i < pending; i++ ) {
+                    positions[pendingRings[i].getSlot()] = pendingEnds[i];
+                    if ( pendingStale[i] != 0 ) {
+                        staleMarked[pendingRings[i].getSlot()] = pendingStale[i];
+                    }
+                }
+            }
+            else {
+                log.debug( "remote write queue {} is full, leaving samples in the buffer", sender::getName );
+                full = true;
+            }
+            Arrays.fill( pendingRings, 0, pending, null );
+            pending = 0;
+            samples = 0;
+            request.reset( uncompressedStream );
+            uncompressed.clear();
+        }
+
+        /**
+         * @return the snappy compressed WriteRequest message, the only copy made of it
+         */
+        private byte @NonNull [] compress() {
+            try {
+                request.flush();
+            }
+            catch ( IOException e ) {
+                throw new IllegalStateException( "writing to memory failed", e );
+            }
+            compressed.clear();
+            snappy.reset();
+            snappy.encode( uncompressed, compressed, uncompressed.readableBytes() );
+            byte[] body = new byte[compressed.readableBytes()];
+            compressed.readBytes( body );
+            return body;
+        }
+
+        private void send() {
+            while ( !Thread.currentThread().isInterrupted() ) {
+                try {
+                    Batch batch = queue.poll( 100, TimeUnit.MILLISECONDS );
+                    if ( batch == null ) {
+                        if ( closing ) {
+                            return; // everything queued has been sent
+                        }
+                        continue;
+                    }
+                    if ( batch.generation == discarding ) {
+                        continue; // built again from the buffer after the rewind
+                    }
+                    if ( send( batch ) ) {
+                        for ( int i = 0; i < batch.rings.length; i++ ) {
+                            batch.rings[i].markDelivered( batch.ends[i] );
+                        }
+                        done.add( batch );
+                    }
+                    else {
+                        discarding = batch.generation;
+                        rewind = true;
+                    }
+                }
+                catch ( InterruptedException e ) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return whether the receiver is done with the batch, having acknowledged or rejected it,
+         * or else gave up after the configured retries
+         */
+        private boolean send( @NonNull Batch batch ) throws InterruptedException {
+            HttpRequest httpRequest = HttpRequest.newBuilder( uri )
+                    .timeout( Duration.ofMillis( configuration.getTimeout() ) )
+                    .header( "Content-Type", "application/x-protobuf" )
+                    .header( "Content-Encoding", "snappy" )
+                    .header( "User-Agent", "prometheus-opcua" )
+                    .header( "X-Prometheus-Remote-Write-Version", "0.1.0" )
+                    .POST( HttpRequest.BodyPublishers.ofByteArray( batch.body ) )
+                    .build();
+            for ( int attempt = 0; ; attempt++ ) {
+                long start = System.nanoTime();
+                String failure;
+                try {
+                    HttpResponse<String> response = client.send( httpRequest, HttpResponse.BodyHandlers.ofString() );
+                    metrics.getRemoteWriteDurations().observe( ( System.nanoTime() - start ) / 1e9 );
+                    int status = response.statusCode();
+                    if ( status / 100 == 2 ) {
+                        metrics.getRemoteWriteSamples().add( batch.samples );
+                        return true;
+                    }
+                    if ( status != 429 && status / 100 != 5 ) {
+                        // sending them again would be rejected again
+                        log.warn( "remote write receiver rejected {} samples with status {}: {}", batch.samples, status, response.body() );
+                        metrics.getRemoteWriteFailedSamples().add( batch.samples );
+                        return true;
+                    }
+                    failure = "status " + status;
+                }
+                catch ( IOException e ) {
+                    failure = e.toString();
+                }
+                if ( attempt >= configuration.getMaxRetries() ) {
+                    log.warn( "sending {} samples again from the buffer after {} failed attempts, the last because of {}",
+                            batch.samples, attempt + 1, failure );
+                    return false;
+                }
+                // exponential backoff with jitter, so that shards do not retry in lockstep
+                long backoff = SessionSupervisor.backoff( configuration.getMinBackoff(), configuration.getMaxBackoff(), attempt );
+                log.debug( "retrying to send {} samples in {}ms because of {}", batch.samples, backoff, failure );
+                metrics.getRemoteWriteRetries().increment();
+                Thread.sleep( backoff );
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * the share of the monitors one replica of the exporter takes, if several replicas load the same configuration.
+ * <p>
+ * each monitor is owned by exactly one replica, chosen by rendezvous (highest random weight) hashing of its key:
+ * every replica gets a pseudo random weight per key and the one with the highest weight owns it.
+ * so the owner only depends on the key and the number of replicas, every replica computes the same without coordination,
+ * and changing the number of replicas only moves the monitors that the added replicas win or the removed ones owned.
+ *
+ * @author Tim Trense
+ */
+@Data
+public class ReplicaPartition {
+
+    /**
+     * the environment variable overriding {@link Configuration#getReplicas()}
+     */
+    public static final String REPLICAS_VARIABLE = "PROMETHEUS_OPCUA_REPLICAS";
+
+    /**
+     * the environment variable overriding {@link Configuration#getReplica()}
+     */
+    public static final String REPLICA_VARIABLE = "PROMETHEUS_OPCUA_REPLICA";
+
+    /**
+     * the environment variable to take the index of this replica from as a last resort, like "exporter-2" in a kubernetes statefulset
+     */
+    public static final String HOSTNAME_VARIABLE = "HOSTNAME";
+
+    /**
+     * the partition of a single replica, which owns everything
+     */
+    public static final ReplicaPartition ALL = new ReplicaPartition( 0, 1 );
+
+    private static final Pattern ORDINAL = Pattern.compile( "-(\\d+)$" );
+
+    /**
+     * the index of this replica, starting at 0
+     */
+    private final int index;
+
+    /**
+     * the number of replicas sharing the monitors
+     */
+    private final int count;
+
+    /**
+     * @throws IllegalArgumentException if the index is not within the count
+     */
+    public ReplicaPartition( int index, int count ) {
+        if ( count < 1 || index < 0 || index >= count ) {
+            throw new IllegalArgumentException( "the replica index must be within 0 and " + ( count - 1 ) + " but was " + index );
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * determines the partition of this replica from the environment or else the configuration.
+     * the index is taken from {@link #REPLICA_VARIABLE}, the configuration or the trailing number of {@link #HOSTNAME_VARIABLE}, in that order.
+     *
+     * @param configuration the configuration shared by all replicas
+     * @param environment   the environment variables of this process
+     * @return the partition of this replica
+     * @throws IllegalArgumentException if there are several replicas, but the index of this one is unknown or invalid
+     */
+    public static @NonNull ReplicaPartition of( @NonNull Configuration configuration, @NonNull Map<@NonNull String, @NonNull String> environment ) {
+        int count = configuration.getReplicas();
+        if ( environment.containsKey( REPLICAS_VARIABLE ) ) {
+            count = parse( REPLICAS_VARIABLE, environment.get( REPLICAS_VARIABLE ) );
+        }
+        if ( count <= 1 ) {
+            return ALL;
+        }
+        Integer index = configuration.getReplica();
+        if ( environment.containsKey( REPLICA_VARIABLE ) ) {
+            index = parse( REPLICA_VARIABLE, environment.get( REPLICA_VARIABLE ) );
+        }
+        else if ( index == null && environment.containsKey( HOSTNAME_VARIABLE ) ) {
+            Matcher ordinal = ORDINAL.matcher( environment.get( HOSTNAME_VARIABLE ) );
+            if ( ordinal.find() ) {
+                index = parse( HOSTNAME_VARIABLE, ordinal.group( 1 ) );
+            }
+        }
+        if ( index == null ) {
+            throw new IllegalArgumentException( "the index of this replica out of " + count + " is neither configured nor set via "
+                    + REPLICA_VARIABLE + " or " + HOSTNAME_VARIABLE );
+        }
+        return new ReplicaPartition( index, count );
+    }
+
+    private static int parse( @NonNull String variable, @NonNull String value ) {
+        try {
+            return Integer.parseInt( value.trim() );
+        }
+        catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException( "invalid " + variable + ": " + value );
+        }
+    }
+
+    /**
+     * @return whether there is more than one replica
+     */
+    public boolean isPartitioned() {
+        return count > 1;
+    }
+
+    /**
+     * @param server  the server of the monitor
+     * @param monitor a monitor
+     * @return whether this replica owns that monitor
+     */
+    public boolean owns( @NonNull ServerConfiguration server, @NonNull MonitorConfiguration monitor ) {
+        return count == 1 || owner( key( server, monitor ), count ) == index;
+    }
+
+    /**
+     * removes the monitors of all other replicas from the subscriptions of the server.
+     * subscriptions left without monitors are kept, so they are still matched by position when reloading the configuration.
+     *
+     * @param server the server, whose monitors have been discovered already
+     * @return the number of monitors kept
+     */
+    public int retainOwned( @NonNull ServerConfiguration server ) {
+        int kept = 0;
+        for ( SubscriptionConfiguration subscription : server.getSubscriptions() ) {
+            if ( count > 1 ) {
+                List<MonitorConfiguration> owned = subscription.getMonitors().stream()
+                        .filter( monitor -> owns( server, monitor ) )
+                        .collect( Collectors.toList() );
+                subscription.setMonitors( owned );
+            }
+            kept += subscription.getMonitors().size();
+        }
+        return kept;
+    }
+
+    /**
+     * @return what the owner of a monitor is chosen by: its identifier, preceded by the name of the server if it has one,
+     * so that the same node on several servers is spread as well
+     */
+    static @NonNull String key( @NonNull ServerConfiguration server, @NonNull MonitorConfiguration monitor ) {
+        return server.getName() == null ? monitor.getIdentifier() : server.getName() + "/" + monitor.getIdentifier();
+    }
+
+    /**
+     * @param key   what to partition by
+     * @param count the number of replicas
+     * @return the index of the replica owning that key
+     */
+    static int owner( @NonNull String key, int count ) {
+        long hash = hash( key );
+        int owner = 0;
+        long highest = Long.MIN_VALUE;
+        for ( int replica = 0; replica < count; replica++ ) {
+            long weight = mix( hash + ( replica + 1 ) * 0x9E3779B97F4A7C15L );
+            if ( weight > highest ) {
+                highest = weight;
+                owner = replica;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * @return the 64 bit FNV-1a hash of the utf-8 bytes of the key, which is the same in every process and version
+     */
+    private static long hash( @NonNull String key ) {
+        long hash = 0xCBF29CE484222325L;
+        for ( byte b : key.getBytes( StandardCharsets.UTF_8 ) ) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the bits of the value scrambled (the finalizer of splitmix64)
+     */
+    private static long mix( long value ) {
+        value = ( value ^ ( value >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+        value = ( value ^ ( value >>> 27 ) ) * 0x94D049BB133111EBL;
+        return value ^ ( value >>> 31 );
+    }
+}
@@ -0,0 +1,57 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+/**
+ * how a monitor reduces its samples on the client side before they are buffered
+ *
+ * @author Tim Trense
+ */
+public enum SampleReduction {
+
+    /**
+     * buffers every sample
+     */
+    None,
+
+    /**
+     * buffers the least value per window
+     */
+    Min,
+
+    /**
+     * buffers the greatest value per window
+     */
+    Max,
+
+    /**
+     * buffers the arithmetic mean of the values per window
+     */
+    Avg,
+
+    /**
+     * buffers the newest value per window
+     */
+    Last,
+
+    /**
+     * buffers only the samples needed to reconstruct all others by linear interpolation within a maximum deviation
+     */
+    SwingingDoor;
+
+    /**
+     * @param ring    the ring to buffer the reduced samples in
+     * @param monitor the configuration of the reduction
+     * @return the sink to write the monitors samples to
+     */
+    public @NonNull SampleSink wrap( @NonNull SampleRing ring, @NonNull MonitorConfiguration monitor ) {
+        switch ( this ) {
+            case None:
+                return ring;
+            case SwingingDoor:
+                return new SwingingDoorReducer( ring, monitor.getReductionDeviation() );
+            default:
+                return new WindowReducer( ring, this, monitor.getReductionWindow() );
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+
+import java.lang.invoke.VarHandle;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * a single-producer multi-reader ring buffer for the samples of exactly one prometheus metric.
+ * <p>
+ * samples are stored as primitive timestamp, value and status code in a preallocated {@link SampleStore},
+ * either on the heap or off-heap, so writing never allocates.
+ * readers never block the writer: they copy the ring optimistically and afterwards discard every slot
+ * that the writer may have overwritten while they were copying (comparable to a seqlock, but without retries).
+ * <p>
+ * there must only ever be one thread writing to a ring at a time. milo delivers the notifications of one
+ * subscription serially, so that holds as long as no two monitors share the same metric name.
+ *
+ * @author Tim Trense
+ */
+@ToString( of = {"metric", "slot", "published"} )
+public class SampleRing implements SampleSink {
+
+    private static final AtomicLongFieldUpdater<SampleRing> DELIVERED = AtomicLongFieldUpdater.newUpdater( SampleRing.class, "delivered" );
+
+    /**
+     * the metric family this ring is one series of
+     */
+    private final @Getter @NonNull MetricFamily family;
+
+    /**
+     * the labels of this series
+     */
+    private final @Getter @NonNull Map<@NonNull String, @NonNull String> labels;
+
+    /**
+     * the full string for the prometheus metric with its labels
+     */
+    private final @Getter @NonNull String metric;
+
+    /**
+     * per {@link ExpositionFormat}: the identity of this series pre-encoded in that format, lazily filled by {@link ExpositionEncoder}.
+     * published with release and read with acquire semantics, so that a concurrent scrape never sees a partly filled array.
+     */
+    private final AtomicReferenceArray<byte[]> encodedSeries = new AtomicReferenceArray<>( ExpositionFormat.values().length );
+
+    /**
+     * the dense index of this ring within its {@link Buffer}
+     */
+    private final @Getter int slot;
+
+    /**
+     * counts every sample written to any ring of the same {@link Buffer}
+     */
+    private final @NonNull LongAdder changes;
+
+    /**
+     * the slots holding the samples. only replaced by the writer, see {@link #resize(SampleStore)}
+     */
+    private volatile @NonNull SampleStore store;
+
+    /**
+     * the slots to move the samples to on the next write, null if no resize is pending
+     */
+    private volatile SampleStore resized;
+
+    /**
+     * the sequence number of the oldest sample kept by the latest resize, as all older ones are gone even if the capacity would fit them.
+     * for a full store restored from a previous run, the sequence number following its oldest slot, which may be torn
+     */
+    private volatile long retained;
+
+    /**
+     * the number of samples the writer has begun to write, including the one it may currently be writing
+     */
+    private volatile long claimed;
+
+    /**
+     * the number of samples restored from the store of a previous run, which consumers of that run may have received already
+     */
+    private final @Getter long restored;
+
+    /**
+     * the number of samples that are completely written and visible to readers
+     */
+    private volatile @Getter long published;
+
+    /**
+     * the sequence number following the newest sample handed out for exposition so far, only ever increased via {@link #DELIVERED}
+     */
+    private volatile long delivered;
+
+    /**
+     * the number of samples overwritten before ever being handed out for exposition. only modified by the writer.
+     */
+    private @Getter long overwrites;
+
+    /**
+     * milliseconds since epoch since when no fresh samples can arrive because the session delivering them is lost,
+     * 0 as long as they can. stale series are excluded from exposition until the next sample arrives.
+     */
+    private volatile @Getter long staleSince;
+
+    /**
+     * @param store the slots to keep the samples in, possibly still holding samples of a previous run
+     */
+    public SampleRing( @NonNull MetricFamily family, @NonNull Map<@NonNull String, @NonNull String> labels,
+            int slot, @NonNull SampleStore store, @NonNull LongAdder changes ) {
+        if ( store.getCapacity() < 1 ) {
+            throw new IllegalArgumentException( "capacity must be positive but was " + store.getCapacity() );
+        }
+        this.family = family;
+        this.labels = Collections.unmodifiableMap( new LinkedHashMap<>( labels ) );
+        this.metric = family.formatSeries( labels );
+        this.slot = slot;
+        this.changes = changes;
+        this.store = store;
+        this.published = store.getPublished();
+        this.restored = this.published;
+        this.claimed = this.published;
+        // a crash of a previous run may have happened after overwriting the oldest slot, but before publishing the sample
+        if ( published >= store.getCapacity() ) {
+            this.retained = published - store.getCapacity() + 1;
+        }
+    }
+
+    /**
+     * @param format an exposition format
+     * @return the identity of this series pre-encoded in that format or null if not yet encoded
+     */
+    public byte[] getEncodedSeries( @NonNull ExpositionFormat format ) {
+        return encodedSeries.getAcquire( format.ordinal() );
+    }
+
+    /**
+     * @param format  an exposition format
+     * @param encoded the identity of this series encoded in that format
+     */
+    public void setEncodedSeries( @NonNull ExpositionFormat format, byte @NonNull [] encoded ) {
+        encodedSeries.setRelease( format.ordinal(), encoded );
+    }
+
+    /**
+     * appends a new sample, overwriting the oldest one if the ring is full. must only be called by the single writer.
+     *
+     * @param timestamp  milliseconds since epoch
+     * @param value      the sample value
+     * @param statusCode the raw opc ua status code of that sample
+     */
+    @Override
+    public void write( long timestamp, double value, int statusCode ) {
+        if ( resized != null ) {
+            moveTo( resized );
+        }
+        SampleStore store = this.store;
+        int capacity = store.getCapacity();
+        long sequence = published; // only the writer itself modifies published
+        if ( sequence - capacity >= Math.max( retained, delivered ) ) {
+            overwrites++;
+        }
+        claimed = sequence + 1;
+        // readers must see the claim before they can see any of the slot being overwritten
+        VarHandle.storeStoreFence();
+        store.write( (int)( sequence % capacity ), timestamp, value, statusCode );
+        published = sequence + 1;
+        store.setPublished( sequence + 1 );
+        if ( staleSince != 0 ) {
+            staleSince = 0;
+        }
+        changes.increment();
+    }
+
+    /**
+     * @return the maximum number of samples kept before overwriting the oldest
+     */
+    public int getCapacity() {
+        return store.getCapacity();
+    }
+
+    /**
+     * @return the capacity of a resize still pending or else {@link #getCapacity()}
+     */
+    public int getTargetCapacity() {
+        SampleStore pending = resized;
+        return pending == null ? getCapacity() : pending.getCapacity();
+    }
+
+    /**
+     * has the samples moved to other slots of a different capacity, on the next write by the writer.
+     * the newest samples that fit are kept, readers never see a torn state.
+     *
+     * @param store the new slots, which are not used by anything else
+     */
+    public void resize( @NonNull SampleStore store ) {
+        if ( store.getCapacity() < 1 ) {
+            throw new IllegalArgumentException( "capacity must be positive but was " + store.getCapacity() );
+        }
+        resized = store;
+    }
+
+    private void moveTo( @NonNull SampleStore target ) {
+        SampleStore source = store;
+        long end = published;
+        long oldest = Math.max( retained, end - source.getCapacity() );
+        int count = (int)Math.min( end - Math.max( 0, oldest ), target.getCapacity() );
+        // the samples not fitting anymore are lost like overwritten ones
+        overwrites += Math.max( 0, end - count - Math.max( oldest, delivered ) );
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        int[] statusCodes = new int[count];
+        for ( int i = 0; i < count; i++ ) {
+            long sequence = end - count + i;
+            source.read( (int)( sequence % source.getCapacity() ), timestamps, values, statusCodes, i, 1 );
+            target.write( (int)( sequence % target.getCapacity() ), timestamps[i], values[i], statusCodes[i] );
+        }
+        target.setPublished( end );
+        retained = end - count;
+        // readers that copied from the old slots see the new ones afterwards and copy again
+        store = target;
+        resized = null;
+    }
+
+    /**
+     * marks this series stale until the next sample is written, if it is not already
+     *
+     * @param timestamp milliseconds since epoch since when no fresh samples can arrive
+     */
+    @Override
+    public void markStale( long timestamp ) {
+        if ( staleSince == 0 ) {
+            staleSince = timestamp;
+            changes.increment(); // invalidates renderings that still contain this series
+        }
+    }
+
+    /**
+     * ends marking this series stale, if it is, as its latest sample is known to be current again
+     */
+    @Override
+    public void markFresh() {
+        if ( staleSince != 0 ) {
+            staleSince = 0;
+            changes.increment(); // invalidates renderings that lack this series
+        }
+    }
+
+    /**
+     * copies a consistent view of all currently buffered samples into the given snapshot. never blocks the writer.
+     *
+     * @param snapshot the target to copy to, its arrays will be grown if necessary
+     */
+    public void read( @NonNull Snapshot snapshot ) {
+        read( snapshot, 0 );
+    }
+
+    /**
+     * copies a consistent view of all currently buffered samples starting at the given sequence number
+     * into the given snapshot. never blocks the writer.
+     *
+     * @param snapshot     the target to copy to, its arrays will be grown if necessary
+     * @param fromSequence the sequence number of the first sample of interest, see {@link Snapshot#getEnd()}
+     */
+    public void read( @NonNull Snapshot snapshot, long fromSequence ) {
+        read( snapshot, fromSequence, Long.MAX_VALUE );
+    }
+
+    /**
+     * copies a consistent view of the currently buffered samples within the given sequence numbers
+     * into the given snapshot. never blocks the writer.
+     *
+     * @param snapshot     the target to copy to, its arrays will be grown if necessary
+     * @param fromSequence the sequence number of the first sample of interest, see {@link Snapshot#getEnd()}
+     * @param toSequence   the sequence number following the last sample of interest
+     */
+    public void read( @NonNull Snapshot snapshot, long fromSequence, long toSequence ) {
+        SampleStore store;
+        do {
+            store = this.store;
+            read( snapshot, fromSequence, toSequence, store );
+        }
+        while ( store != this.store ); // resized while copying
+    }
+
+    private void read( @NonNull Snapshot snapshot, long fromSequence, long toSequence, @NonNull SampleStore store ) {
+        int capacity = store.getCapacity();
+        long end = Math.min( published, toSequence );
+        long start = Math.max( fromSequence, Math.max( retained, end - capacity ) );
+        if ( start >= end ) {
+            snapshot.offset = 0;
+            snapshot.size = 0;
+            snapshot.sequence = end;
+            return;
+        }
+        int count = (int)( end - start );
+        snapshot.ensureCapacity( count );
+
+        int first = (int)( start % capacity );
+        int tail = Math.min( count, capacity - first );
+        store.read( first, snapshot.timestamps, snapshot.values, snapshot.statusCodes, 0, tail );
+        if ( tail < count ) {
+            store.read( 0, snapshot.timestamps, snapshot.values, snapshot.statusCodes, tail, count - tail );
+        }
+
+        // every sample older than that may have been overwritten while copying and therefore is torn
+        VarHandle.acquireFence();
+        long firstValid = claimed - capacity;
+        int torn = (int)Math.max( 0, Math.min( count, firstValid - start ) );
+
+        snapshot.offset = torn;
+        snapshot.size = count - torn;
+        snapshot.sequence = start + torn;
+    }
+
+    /**
+     * finds the oldest buffered sample not older than the given timestamp by binary search, without copying the ring.
+     * the samples must be ordered by timestamp, as the source timestamps of one monitored item are.
+     * never blocks the writer, but may return a sequence number the writer is overwriting, which {@link #read(Snapshot, long, long)} skips.
+     *
+     * @param timestamp milliseconds since epoch
+     * @return the sequence number of that sample or {@link #getPublished()} if all samples are older
+     */
+    public long search( long timestamp ) {
+        SampleStore store = this.store;
+        int capacity = store.getCapacity();
+        long end = published;
+        long low = Math.max( retained, end - capacity );
+        long high = end;
+        while ( low < high ) {
+            long middle = ( low + high ) >>> 1;
+            if ( store.getTimestamp( (int)( middle % capacity ) ) < timestamp ) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * records that all samples before the given sequence number have been handed out for exposition
+     *
+     * @param end the sequence number following the newest sample handed out, see {@link Snapshot#getEnd()}
+     */
+    public void markDelivered( long end ) {
+        // concurrent readers may hand out different ends, of which the newest must win
+        long current = delivered;
+        while ( end > current && !DELIVERED.compareAndSet( this, current, end ) ) {
+            current = delivered;
+        }
+    }
+
+    /**
+     * @param statusCode a raw opc ua status code
+     * @return whether the status code has a severity of good
+     */
+    public static boolean isGood( int statusCode ) {
+        return ( statusCode & 0xC0000000 ) == 0;
+    }
+
+    /**
+     * converts the value of an opc ua data value to the numeric representation of a prometheus sample
+     *
+     * @param value the raw value
+     * @return the numeric value or NaN if there is none
+     */
+    public static double toDouble( Object value ) {
+        if ( value instanceof Number ) {
+            return ( (Number)value ).doubleValue();
+        }
+        if ( value instanceof DateTime ) {
+            return ( (DateTime)value ).getJavaTime();
+        }
+        if ( value instanceof Boolean ) {
+            return ( (Boolean)value ) ? 1 : 0;
+        }
+        if ( value == null ) {
+            return Double.NaN;
+        }
+        return 0;
+    }
+
+    /**
+     * a reusable, reader-owned copy of the samples of a {@link SampleRing}, ordered from oldest to newest
+     */
+    public static class Snapshot {
+
+        private long[] timestamps;
+        private double[] values;
+        private int[] statusCodes;
+        private int offset;
+
+        /**
+         * the number of samples in this snapshot
+         */
+        private @Getter int size;
+
+        /**
+         * the sequence number of the first (oldest) sample in this snapshot
+         */
+        private @Getter long sequence;
+
+        public Snapshot( int capacity ) {
+            timestamps = new long[capacity];
+            values = new double[capacity];
+            statusCodes = new int[capacity];
+        }
+
+        private void ensureCapacity( int capacity ) {
+            if ( timestamps.length < capacity ) {
+                timestamps = new long[capacity];
+                values = new double[capacity];
+                statusCodes = new int[capacity];
+            }
+        }
+
+        /**
+         * @return the sequence number following the last (newest) sample in this snapshot
+         */
+        public long getEnd() {
+            return sequence + size;
+        }
+
+        public long getTimestamp( int index ) {
+            return timestamps[offset + index];
+        }
+
+        public double getValue( int index ) {
+            return values[offset + index];
+        }
+
+        public int getStatusCode( int index ) {
+            return statusCodes[offset + index];
+        }
+    }
+}
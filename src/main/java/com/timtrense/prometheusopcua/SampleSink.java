@@ -0,0 +1,56 @@
+package com.timtrense.prometheusopcua;
+
+/**
+ * where the values of one monitor are written to, either directly its {@link SampleRing} or a reduction in front of it.
+ * there must only ever be one thread writing to a sink at a time.
+ *
+ * @author Tim Trense
+ */
+public interface SampleSink {
+
+    /**
+     * accepts a new sample
+     *
+     * @param timestamp  milliseconds since epoch
+     * @param value      the sample value
+     * @param statusCode the raw opc ua status code of that sample
+     */
+    void write( long timestamp, double value, int statusCode );
+
+    /**
+     * accepts a new sample with the raw value of an opc ua data value
+     *
+     * @param timestamp  milliseconds since epoch
+     * @param value      the raw value
+     * @param statusCode the raw opc ua status code of that sample
+     */
+    default void writeValue( long timestamp, Object value, int statusCode ) {
+        write( timestamp, SampleRing.toDouble( value ), statusCode );
+    }
+
+    /**
+     * marks the series written by this sink stale until their next sample, if the sink knows them
+     *
+     * @param timestamp milliseconds since epoch since when no fresh samples can arrive
+     */
+    default void markStale( long timestamp ) {
+    }
+
+    /**
+     * ends marking the series written by this sink stale, because their latest samples are known to be current again
+     */
+    default void markFresh() {
+    }
+
+    /**
+     * writes a sample held back by a reduction, if it is older than the given time.
+     * must only be called by the thread writing to this sink.
+     *
+     * @param before milliseconds since epoch
+     * @return whether a sample is still held back afterwards
+     * @see HeldSamples
+     */
+    default boolean flush( long before ) {
+        return false;
+    }
+}
@@ -0,0 +1,33 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+/**
+ * where the {@link Buffer} allocates the {@link SampleStore} for each of its rings
+ *
+ * @author Tim Trense
+ */
+public interface SampleStorage {
+
+    /**
+     * keeps all samples on the heap
+     */
+    SampleStorage HEAP = ( series, capacity ) -> new HeapSampleStore( capacity );
+
+    /**
+     * either allocates a new store for the given series or returns the one restored for it from a previous run
+     *
+     * @param series   the full prometheus metric string with labels, identifying the store across restarts
+     * @param capacity the number of sample slots
+     * @return the store for that series
+     */
+    @NonNull SampleStore allocate( @NonNull String series, int capacity );
+
+    /**
+     * @return whether a series may be allocated another store of a different capacity while running,
+     * which is false if stores given up could not be freed
+     */
+    default boolean isResizable() {
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+package com.timtrense.prometheusopcua;
+
+/**
+ * the fixed number of sample slots a {@link SampleRing} keeps its samples in.
+ * only the single writer of the ring calls the modifying methods.
+ *
+ * @author Tim Trense
+ */
+public interface SampleStore {
+
+    /**
+     * @return the number of sample slots
+     */
+    int getCapacity();
+
+    /**
+     * overwrites one slot
+     *
+     * @param index      the slot
+     * @param timestamp  milliseconds since epoch
+     * @param value      the sample value
+     * @param statusCode the raw opc ua status code of that sample
+     */
+    void write( int index, long timestamp, double value, int statusCode );
+
+    /**
+     * copies consecutive slots into the given arrays
+     *
+     * @param index       the first slot to copy
+     * @param timestamps  the target for the timestamps
+     * @param values      the target for the values
+     * @param statusCodes the target for the status codes
+     * @param offset      the first index to write to in the targets
+     * @param length      the number of slots to copy
+     */
+    void read( int index, long[] timestamps, double[] values, int[] statusCodes, int offset, int length );
+
+    /**
+     * @param index the slot
+     * @return the timestamp in that slot
+     */
+    long getTimestamp( int index );
+
+    /**
+     * @return the number of samples ever published into this store, as recorded by {@link #setPublished(long)}.
+     * 0 for a new store, but may be larger for a store restored after a restart.
+     */
+    long getPublished();
+
+    /**
+     * records the number of samples ever published into this store, after the slots have been written
+     *
+     * @param published the sequence number following the newest sample
+     */
+    void setPublished( long published );
+}
@@ -0,0 +1,243 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * adapts the monitored items of one server to how their values actually behave, see {@link AdaptiveSamplingConfiguration}.
+ * <p>
+ * once per period, the number of values that arrived per monitored item is compared to the number of samplings
+ * the server did meanwhile. items whose value rarely changes get their sampling interval doubled, items whose value
+ * changes on (nearly) every sampling get it halved, all within the configured bounds and modified in batches.
+ * the buffer of each series is sized to twice the samples arriving between two scrapes of its slowest consumer, and grown right away
+ * if samples were overwritten before being handed out, unless the buffer is kept in a {@link MappedSampleStorage}.
+ * the cadence of the consumers is taken from {@link Buffer#getScrapeInterval(String)}, so that neither several scrapers
+ * of the same exporter nor remote write, which hands out samples far more often, make the buffers shrink.
+ * <p>
+ * the monitor configurations are never changed, so reloading the configuration still compares against what is configured.
+ * a monitored item created again (after changing its monitor or losing its subscription) starts over at its configured sampling interval.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class SamplingController implements AutoCloseable {
+
+    private final @NonNull String name;
+    private final @NonNull AdaptiveSamplingConfiguration configuration;
+    private final @NonNull ServerSubscriptions subscriptions;
+    private final @NonNull Buffer buffer;
+    private final @NonNull ExporterMetrics metrics;
+    private final @NonNull ScheduledExecutorService scheduler;
+
+    /**
+     * whether to size the buffers of the series, which is only done if the buffer can be resized at all
+     */
+    private final boolean adaptBufferSize;
+
+    /**
+     * per monitor what has been observed at the previous adaption. only accessed by the scheduler.
+     */
+    private Map<@NonNull ValueExpander, @NonNull Observation> observations = new IdentityHashMap<>();
+
+    /**
+     * @param name          the name of the server, for logging
+     * @param configuration the bounds to adapt within
+     * @param subscriptions the running subscriptions of the server
+     * @param buffer        where the series of the monitors are kept
+     * @param metrics       where to count the adaptions
+     */
+    public SamplingController( @NonNull String name, @NonNull AdaptiveSamplingConfiguration configuration,
+            @NonNull ServerSubscriptions subscriptions, @NonNull Buffer buffer, @NonNull ExporterMetrics metrics ) {
+        if ( configuration.getMinSamplingInterval() <= 0 || configuration.getMaxSamplingInterval() < configuration.getMinSamplingInterval() ) {
+            throw new IllegalArgumentException( "the sampling interval bounds must be positive and ordered but were "
+                    + configuration.getMinSamplingInterval() + " and " + configuration.getMaxSamplingInterval() );
+        }
+        if ( configuration.getMinBufferSize() < 1 || configuration.getMaxBufferSize() < configuration.getMinBufferSize() ) {
+            throw new IllegalArgumentException( "the buffer size bounds must be positive and ordered but were "
+                    + configuration.getMinBufferSize() + " and " + configuration.getMaxBufferSize() );
+        }
+        this.name = name;
+        this.configuration = configuration;
+        this.subscriptions = subscriptions;
+        this.buffer = buffer;
+        this.metrics = metrics;
+        this.adaptBufferSize = configuration.isAdaptBufferSize() && buffer.isResizable();
+        if ( configuration.isAdaptBufferSize() && !buffer.isResizable() ) {
+            log.warn( "not adapting the buffer sizes of {}, because the buffer is kept in a bufferDirectory", name );
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "adaptive-sampling-" + name );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * starts adapting once per period
+     */
+    public void start() {
+        log.info( "adapting sampling intervals of {} every {}ms", name, configuration.getPeriod() );
+        scheduler.scheduleWithFixedDelay( () -> {
+            try {
+                adapt();
+            }
+            catch ( RuntimeException e ) {
+                log.error( "failed to adapt sampling intervals of {}", name, e );
+            }
+        }, configuration.getPeriod(), configuration.getPeriod(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * observes all monitored items once and adapts those that changed enough since the previous observation
+     */
+    void adapt() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        Map<SubscriptionCreator, Map<UaSubscription, Map<UaMonitoredItem, Double>>> modifications = new LinkedHashMap<>();
+        Map<ValueExpander, Observation> observed = new IdentityHashMap<>();
+        int[] resized = new int[1];
+        subscriptions.forEachSubscription( ( creator, subscription ) -> {
+            for ( UaMonitoredItem item : subscription.getMonitoredItems() ) {
+                SampleSink sink = subscriptions.getClientHandles().get( item.getClientHandle().intValue() );
+                if ( !( sink instanceof ValueExpander ) ) {
+                    continue;
+                }
+                ValueExpander expander = (ValueExpander)sink;
+                Observation current = new Observation( now, expander.getNotifications() );
+                observed.put( expander, current );
+                Observation previous = observations.get( expander );
+                if ( previous == null || now <= previous.time ) {
+                    continue; // rates are known from the next period on
+                }
+                double rate = (double)( current.notifications - previous.notifications ) / ( now - previous.time );
+
+                Double samplingInterval = adaptSamplingInterval( item, rate );
+                if ( samplingInterval != null ) {
+                    modifications.computeIfAbsent( creator, c -> new LinkedHashMap<>() )
+                            .computeIfAbsent( subscription, s -> new LinkedHashMap<>() )
+                            .put( item, samplingInterval );
+                }
+                if ( adaptBufferSize ) {
+                    expander.forEachRing( ring -> {
+                        if ( adaptBufferSize( ring, rate, previous.overwrites.getOrDefault( ring, ring.getOverwrites() ) ) ) {
+                            resized[0]++;
+                        }
+                    } );
+                }
+            }
+        } );
+        if ( adaptBufferSize ) {
+            // the overwrites are taken after resizing, so that each period only counts its own
+            observed.forEach( ( expander, observation ) ->
+                    expander.forEachRing( ring -> observation.overwrites.put( ring, ring.getOverwrites() ) ) );
+        }
+        observations = observed;
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        modifications.forEach( ( creator, items ) -> items.forEach( ( subscription, samplingIntervals ) ->
+                futures.add( creator.modifySamplingIntervals( subscription, samplingIntervals ) ) ) );
+        int modified = futures.stream().mapToInt( future -> future.exceptionally( e -> {
+            log.warn( "could not modify the sampling intervals on {}", name, e );
+            return 0;
+        } ).join() ).sum();
+        metrics.getSamplingIntervalChanges().add( modified );
+        metrics.getBufferResizes().add( resized[0] );
+        if ( modified > 0 || resized[0] > 0 ) {
+            log.info( "adapted the sampling intervals of {} monitored items and the buffers of {} series of {} in {}ms",
+                    modified, resized[0], name, SubscriptionCreator.elapsedMillis( start ) );
+        }
+    }
+
+    /**
+     * @param item the monitored item
+     * @param rate the values that arrived per millisecond
+     * @return the sampling interval to change to or null to keep it
+     */
+    Double adaptSamplingInterval( @NonNull UaMonitoredItem item, double rate ) {
+        double samplingInterval = item.getRevisedSamplingInterval() > 0 ? item.getRevisedSamplingInterval() : item.getRequestedSamplingInterval();
+        if ( samplingInterval <= 0 ) {
+            return null; // sampled as fast as possible or exception based, nothing to adapt
+        }
+        double changeRatio = rate * samplingInterval;
+        double target = samplingInterval;
+        if ( changeRatio < configuration.getLowChangeRatio() ) {
+            target = Math.min( configuration.getMaxSamplingInterval(), samplingInterval * 2 );
+        }
+        else if ( changeRatio > configuration.getHighChangeRatio() ) {
+            target = Math.max( configuration.getMinSamplingInterval(), samplingInterval / 2 );
+        }
+        // a server revising the interval to what it was already must not be asked again every period
+        if ( target == samplingInterval || target == item.getRequestedSamplingInterval() ) {
+            return null;
+        }
+        return target;
+    }
+
+    /**
+     * @param ring       a series of a monitored item
+     * @param rate       the values that arrived per millisecond
+     * @param overwrites the overwrites of the ring at the previous observation
+     * @return whether the ring has been resized
+     */
+    boolean adaptBufferSize( @NonNull SampleRing ring, double rate, long overwrites ) {
+        long scrapeInterval = buffer.getScrapeInterval( ring.getLabels().get( ServerConfiguration.SERVER_LABEL ) );
+        if ( scrapeInterval <= 0 ) {
+            return false; // not scraped twice yet, so the cadence is unknown
+        }
+        int capacity = ring.getTargetCapacity();
+        int needed = (int)Math.min( configuration.getMaxBufferSize(), Math.ceil( rate * scrapeInterval * 2 ) );
+        int target = capacity;
+        if ( ring.getOverwrites() > overwrites ) {
+            target = Math.max( needed, (int)Math.min( Integer.MAX_VALUE, capacity * 2L ) );
+        }
+        else if ( needed > capacity || needed < capacity / 4 ) {
+            target = needed;
+        }
+        int size = Math.max( configuration.getMinBufferSize(), Math.min( configuration.getMaxBufferSize(), target ) );
+        if ( size == capacity ) {
+            return false;
+        }
+        log.debug( "resizing the buffer of {} from {} to {} samples", ring::getMetric, () -> capacity, () -> size );
+        buffer.resize( ring, size );
+        return true;
+    }
+
+    /**
+     * stops adapting, leaving everything as adapted so far
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * what has been observed about one monitor at one adaption
+     */
+    private static class Observation {
+
+        private final long time;
+        private final long notifications;
+
+        /**
+         * per series of the monitor its overwrites
+         */
+        private final Map<SampleRing, Long> overwrites = new IdentityHashMap<>();
+
+        private Observation( long time, long notifications ) {
+            this.time = time;
+            this.notifications = notifications;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * remembers per {@link SampleRing} which samples have already been delivered to one consumer of the /metrics endpoint
+ *
+ * @author Tim Trense
+ */
+@Data
+public class ScrapeCursor {
+
+    /**
+     * the key identifying the consumer, either given explicitly or the consumers remote address
+     */
+    private final @NonNull String consumer;
+
+    /**
+     * per ring slot the sequence number of the next sample not yet delivered to the consumer
+     */
+    private long @NonNull [] positions = new long[0];
+
+    /**
+     * milliseconds since epoch of the last time this cursor was used
+     */
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * @param slotCount the minimum length of the resulting array
+     * @return a copy of the current positions to be modified and afterwards committed via {@link #setPositions(long[])}
+     */
+    public long @NonNull [] copyPositions( int slotCount ) {
+        return Arrays.copyOf( positions, Math.max( slotCount, positions.length ) );
+    }
+}
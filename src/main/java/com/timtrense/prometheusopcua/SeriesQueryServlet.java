@@ -0,0 +1,337 @@
+package com.timtrense.prometheusopcua;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+/**
+ * the HTTP GET /api/series endpoint for querying the buffered samples of some series within a time window,
+ * optionally downsampled, without going through prometheus.
+ * <p>
+ * query parameters:
+ * <ul>
+ *     <li>"match": a regular expression found in the series, like opcua_node{id="ns=1;s=x",attribute="Value"} (default = all)</li>
+ *     <li>"from", "to": milliseconds since epoch, or before now if negative (default = all buffered samples)</li>
+ *     <li>"reduce": the {@link Downsampling}, either "none" (default), "min", "max", "avg" per "step" milliseconds,
+ *     or "lttb" to at most "points" points</li>
+ *     <li>"format": "json" (default) or "binary"</li>
+ * </ul>
+ * json is rendered like {"series":[{"metric":"opcua_node","labels":{"id":"ns=1;s=x"},"timestamps":[...],"values":[...]}]}
+ * with null for values that are not finite. binary is per series: the series as in the text format (varint length + utf-8),
+ * the number of points (varint), the timestamps (zigzag varint deltas, the first one to 0)
+ * and the values (64 bit little endian), all varints as in protobuf.
+ * <p>
+ * each series is located by binary search in its ring, only the samples within the window are copied and
+ * only good samples are returned. many series are queried in parallel on a fork join pool.
+ * each series is written to the response as soon as it and all series before it are rendered,
+ * so that only the series currently in flight are held in memory.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+@Data
+@ToString( exclude = {"buffer", "pool"} )
+@EqualsAndHashCode( callSuper = false, exclude = {"buffer", "pool"} )
+public class SeriesQueryServlet extends HttpServlet {
+
+    /**
+     * from how many matched series on to query them in parallel
+     */
+    private static final int PARALLEL_THRESHOLD = 16;
+
+    /**
+     * the reusable memory for querying one series, one per series being rendered
+     */
+    private static final BoundedPool<Points> POINTS = new BoundedPool<>( BoundedPool.DEFAULT_CAPACITY, Points::new );
+
+    private final @NonNull Buffer buffer;
+
+    /**
+     * where to query many series in parallel
+     */
+    private final @NonNull ForkJoinPool pool;
+
+    @Override
+    protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws IOException {
+        Query query;
+        try {
+            query = Query.parse( req, System.currentTimeMillis() );
+        }
+        catch ( IllegalArgumentException e ) {
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+            return;
+        }
+
+        List<SampleRing> rings = buffer.getNodeValueBuffers().values().stream()
+                .filter( ring -> query.match == null || query.match.matcher( ring.getMetric() ).find() )
+                .collect( Collectors.toList() );
+        boolean parallel = rings.size() >= PARALLEL_THRESHOLD;
+        // enough series in flight to keep the pool busy while the oldest one is written
+        int window = 2 * pool.getParallelism();
+
+        boolean gzip = PrometheusMetricsServlet.acceptsGzip( req.getHeader( "Accept-Encoding" ) );
+        resp.setContentType( query.binary ? "application/octet-stream" : "application/json" );
+        resp.setHeader( "Vary", "Accept-Encoding" );
+        if ( gzip ) {
+            resp.setHeader( "Content-Encoding", "gzip" );
+        }
+        Deque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>( window );
+        try ( OutputStream out = gzip ? new PooledGzipOutputStream( resp.getOutputStream() ) : resp.getOutputStream() ) {
+            if ( !query.binary ) {
+                out.write( "{\"series\":[".getBytes( StandardCharsets.US_ASCII ) );
+            }
+            int written = 0;
+            for ( SampleRing ring : rings ) {
+                if ( !parallel ) {
+                    written = write( out, render( ring, query ), written, query );
+                    continue;
+                }
+                inFlight.add( pool.submit( () -> render( ring, query ) ) );
+                if ( inFlight.size() >= window ) {
+                    written = write( out, inFlight.poll().get(), written, query );
+                }
+            }
+            while ( !inFlight.isEmpty() ) {
+                written = write( out, inFlight.poll().get(), written, query );
+            }
+            if ( !query.binary ) {
+                out.write( "]}".getBytes( StandardCharsets.US_ASCII ) );
+            }
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "interrupted while querying " + rings.size() + " series", e );
+        }
+        catch ( ExecutionException e ) {
+            throw new IOException( "failed to query " + rings.size() + " series", e.getCause() );
+        }
+        finally {
+            inFlight.forEach( task -> task.cancel( false ) ); // the response failed, nobody waits for them anymore
+        }
+    }
+
+    /**
+     * writes one rendered series to the response
+     *
+     * @param written the number of series written before
+     * @return the number of series written including this one
+     */
+    private static int write( @NonNull OutputStream out, byte @NonNull [] series, int written, @NonNull Query query ) throws IOException {
+        if ( written > 0 && !query.binary ) {
+            out.write( ',' );
+        }
+        out.write( series );
+        return written + 1;
+    }
+
+    /**
+     * queries and renders one series, on the calling thread
+     */
+    private static byte @NonNull [] render( @NonNull SampleRing ring, @NonNull Query query ) {
+        Points points = POINTS.take();
+        int size = points.query( ring, query );
+        ExpositionWriter writer = points.writer;
+        writer.reset( null );
+        try {
+            if ( query.binary ) {
+                byte[] metric = ring.getMetric().getBytes( StandardCharsets.UTF_8 );
+                writer.writeVarint( metric.length );
+                writer.write( metric );
+                writer.writeVarint( size );
+                long previous = 0;
+                for ( int i = 0; i < size; i++ ) {
+                    long delta = points.timestamps[i] - previous;
+                    writer.writeVarint( ( delta << 1 ) ^ ( delta >> 63 ) );
+                    previous = points.timestamps[i];
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    writer.writeFixedDouble( points.values[i] );
+                }
+            }
+            else {
+                writeJson( writer, ring, points, size );
+            }
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( e ); // not thrown without a target stream
+        }
+        byte[] rendered = writer.toByteArray();
+        POINTS.release( points );
+        return rendered;
+    }
+
+    private static void writeJson( @NonNull ExpositionWriter writer, @NonNull SampleRing ring,
+            @NonNull Points points, int size ) throws IOException {
+        writer.write( "{\"metric\":".getBytes( StandardCharsets.US_ASCII ) );
+        writeJsonString( writer, ring.getFamily().getName() );
+        writer.write( ",\"labels\":{".getBytes( StandardCharsets.US_ASCII ) );
+        boolean first = true;
+        for ( Map.Entry<String, String> label : ring.getLabels().entrySet() ) {
+            if ( !first ) {
+                writer.write( (byte)',' );
+            }
+            first = false;
+            writeJsonString( writer, label.getKey() );
+            writer.write( (byte)':' );
+            writeJsonString( writer, label.getValue() );
+        }
+        writer.write( "},\"timestamps\":[".getBytes( StandardCharsets.US_ASCII ) );
+        for ( int i = 0; i < size; i++ ) {
+            if ( i > 0 ) {
+                writer.write( (byte)',' );
+            }
+            writer.writeLong( points.timestamps[i] );
+        }
+        writer.write( "],\"values\":[".getBytes( StandardCharsets.US_ASCII ) );
+        for ( int i = 0; i < size; i++ ) {
+            if ( i > 0 ) {
+                writer.write( (byte)',' );
+            }
+            if ( Double.isFinite( points.values[i] ) ) {
+                writer.writeDouble( points.values[i] );
+            }
+            else {
+                writer.write( "null".getBytes( StandardCharsets.US_ASCII ) );
+            }
+        }
+        writer.write( "]}".getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private static void writeJsonString( @NonNull ExpositionWriter writer, @NonNull String text ) throws IOException {
+        StringBuilder builder = new StringBuilder( text.length() + 2 ).append( '"' );
+        for ( int i = 0; i < text.length(); i++ ) {
+            char c = text.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                builder.append( '\\' ).append( c );
+            }
+            else if ( c < 0x20 ) {
+                builder.append( String.format( "\\u%04x", (int)c ) );
+            }
+            else {
+                builder.append( c );
+            }
+        }
+        writer.write( builder.append( '"' ).toString().getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * the parsed query parameters
+     */
+    private static class Query {
+
+        private Pattern match;
+        private long from;
+        private long to;
+        private Downsampling downsampling;
+        private long step;
+        private int points;
+        private boolean binary;
+
+        /**
+         * @throws IllegalArgumentException if any parameter is invalid
+         */
+        private static @NonNull Query parse( @NonNull HttpServletRequest req, long now ) {
+            Query query = new Query();
+            String match = req.getParameter( "match" );
+            try {
+                query.match = match == null || match.isEmpty() ? null : Pattern.compile( match );
+            }
+            catch ( PatternSyntaxException e ) {
+                throw new IllegalArgumentException( "invalid match: " + e.getDescription() );
+            }
+            query.from = parseTime( req.getParameter( "from" ), now, Long.MIN_VALUE );
+            query.to = parseTime( req.getParameter( "to" ), now, Long.MAX_VALUE );
+            String reduce = req.getParameter( "reduce" );
+            query.downsampling = reduce == null ? Downsampling.None : Arrays.stream( Downsampling.values() )
+                    .filter( d -> d.name().equalsIgnoreCase( reduce ) )
+                    .findAny()
+                    .orElseThrow( () -> new IllegalArgumentException( "unknown reduce: " + reduce ) );
+            query.step = parseLong( req.getParameter( "step" ), "step", 0 );
+            query.points = (int)Math.min( Integer.MAX_VALUE, parseLong( req.getParameter( "points" ), "points", Integer.MAX_VALUE ) );
+            if ( query.step < 1 && ( query.downsampling == Downsampling.Min || query.downsampling == Downsampling.Max
+                    || query.downsampling == Downsampling.Avg ) ) {
+                throw new IllegalArgumentException( "reduce " + reduce + " requires a positive step" );
+            }
+            String format = req.getParameter( "format" );
+            if ( format != null && !"json".equals( format ) && !"binary".equals( format ) ) {
+                throw new IllegalArgumentException( "unknown format: " + format );
+            }
+            query.binary = "binary".equals( format );
+            return query;
+        }
+
+        private static long parseTime( String value, long now, long defaultValue ) {
+            long time = parseLong( value, "time", defaultValue );
+            return value != null && time < 0 ? now + time : time;
+        }
+
+        private static long parseLong( String value, @NonNull String name, long defaultValue ) {
+            if ( value == null || value.isEmpty() ) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong( value );
+            }
+            catch ( NumberFormatException e ) {
+                throw new IllegalArgumentException( "invalid " + name + ": " + value );
+            }
+        }
+    }
+
+    /**
+     * the reusable memory of one query thread for the points of one series
+     */
+    private static class Points {
+
+        private final SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 0 );
+        private final ExpositionWriter writer = new ExpositionWriter();
+        private long[] timestamps = new long[0];
+        private double[] values = new double[0];
+
+        /**
+         * copies the good samples of the ring within the window of the query and downsamples them
+         *
+         * @return the number of points
+         */
+        private int query( @NonNull SampleRing ring, @NonNull Query query ) {
+            long from = ring.search( query.from );
+            long to = query.to == Long.MAX_VALUE ? Long.MAX_VALUE : ring.search( query.to + 1 );
+            ring.read( snapshot, from, to );
+            if ( timestamps.length < snapshot.getSize() ) {
+                timestamps = new long[snapshot.getSize()];
+                values = new double[snapshot.getSize()];
+            }
+            int size = 0;
+            for ( int i = 0; i < snapshot.getSize(); i++ ) {
+                long timestamp = snapshot.getTimestamp( i );
+                // the window is checked again, as the search may be off while the writer overwrites the oldest samples
+                if ( SampleRing.isGood( snapshot.getStatusCode( i ) ) && timestamp >= query.from && timestamp <= query.to ) {
+                    timestamps[size] = timestamp;
+                    values[size++] = snapshot.getValue( i );
+                }
+            }
+            return query.downsampling.reduce( timestamps, values, size, query.step, query.points );
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MessageSecurityMode;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * one opc ua server to connect to and what to monitor there
+ *
+ * @author Tim Trense
+ */
+@Data
+public class ServerConfiguration {
+
+    /**
+     * the label name identifying the server of each metric, if more than one server is configured
+     */
+    public static final String SERVER_LABEL = "server";
+
+    /**
+     * The name of this server, unique among all servers. Added as label "server" to all its metrics
+     * and selectable via /metrics?target=name
+     */
+    private String name;
+
+    /**
+     * The URL for the opc ua endpoint discovery query
+     */
+    private String discoveryUrl;
+    /**
+     * The URL for the opc ua endpoint to connect to
+     */
+    private String endpointUrl;
+    /**
+     * Default URL for {@link #endpointUrl} and {@link #discoveryUrl}
+     */
+    private String url;
+
+    /**
+     * opc ua encryption mode: either None, Sign or SignAndEncrypt
+     */
+    private @NonNull MessageSecurityMode messageSecurityMode = MessageSecurityMode.None;
+
+    /**
+     * How many opc ua sessions to open and spread the subscriptions across
+     */
+    private int sessions = 1;
+
+    /**
+     * the subscriptions to open on that opc ua server
+     */
+    private @NonNull List<@NonNull SubscriptionConfiguration> subscriptions = new LinkedList<>();
+
+    public String getDiscoveryUrl() {
+        return Objects.requireNonNullElse( discoveryUrl, url );
+    }
+
+    public String getEndpointUrl() {
+        return Objects.requireNonNullElse( endpointUrl, url );
+    }
+
+    /**
+     * adds the label "server" with the name of this server to all its monitors, if it has a name
+     */
+    public void labelMonitors() {
+        if ( name == null ) {
+            return;
+        }
+        for ( SubscriptionConfiguration subscription : subscriptions ) {
+            for ( MonitorConfiguration monitor : subscription.getMonitors() ) {
+                if ( !name.equals( monitor.getLabel().get( SERVER_LABEL ) ) ) {
+                    Map<String, String> labels = new LinkedHashMap<>( monitor.getMetricLabels() );
+                    labels.putIfAbsent( SERVER_LABEL, name );
+                    monitor.setLabel( labels );
+                }
+            }
+        }
+    }
+}
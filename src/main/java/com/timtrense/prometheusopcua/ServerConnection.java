@@ -0,0 +1,249 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.UaClient;
+import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfig;
+import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfigBuilder;
+import org.eclipse.milo.opcua.stack.client.DiscoveryClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * everything running for one opc ua server: its sessions, their supervisors and the subscriptions.
+ * <p>
+ * each server is an isolated failure domain: it connects, retries and fails on its own, while all servers share
+ * the buffer and the executors of the milo stack.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class ServerConnection implements AutoCloseable {
+
+    private final @NonNull Configuration configuration;
+
+    /**
+     * the server as configured, with the subscriptions last applied
+     */
+    private final @Getter @NonNull ServerConfiguration server;
+
+    private final @NonNull Buffer buffer;
+    private final @NonNull ExporterMetrics metrics;
+
+    /**
+     * the share of the monitors this replica of the exporter takes
+     */
+    private final @NonNull ReplicaPartition partition;
+
+    private final @NonNull List<@NonNull OpcUaClient> clients = new ArrayList<>();
+    private final @NonNull List<@NonNull SessionSupervisor> supervisors = new ArrayList<>();
+
+    /**
+     * the running subscriptions, null until connected
+     */
+    private ServerSubscriptions subscriptions;
+
+    /**
+     * what adapts the sampling intervals, null if not configured or not yet connected
+     */
+    private SamplingController samplingController;
+
+    /**
+     * @param configuration the configuration of everything shared by all servers
+     * @param server        the server to connect to
+     * @param buffer        where to write the values of all monitors to
+     * @param metrics       where to report about ingesting
+     * @param partition     the share of the monitors to take
+     */
+    public ServerConnection( @NonNull Configuration configuration, @NonNull ServerConfiguration server,
+            @NonNull Buffer buffer, @NonNull ExporterMetrics metrics, @NonNull ReplicaPartition partition ) {
+        this.configuration = configuration;
+        this.server = server;
+        this.buffer = buffer;
+        this.metrics = metrics;
+        this.partition = partition;
+    }
+
+    /**
+     * @return the name of the server or else its endpoint url
+     */
+    public @NonNull String getName() {
+        return Objects.requireNonNullElse( server.getName(), String.valueOf( server.getEndpointUrl() ) );
+    }
+
+    /**
+     * connects to the server, retrying until it succeeds, and creates all subscriptions
+     */
+    @SneakyThrows
+    public void start() {
+        // 1. open connections
+        long phaseStart = System.nanoTime();
+        EndpointDescription endpointDescription = discoverTargetedEndpoint();
+        log.info( "endpoint discovery of {} took {}ms", getName(), SubscriptionCreator.elapsedMillis( phaseStart ) );
+        phaseStart = System.nanoTime();
+        List<OpcUaClient> connected = new ArrayList<>();
+        for ( int i = 0; i < Math.max( 1, server.getSessions() ); i++ ) {
+            connected.add( connect( endpointDescription ) );
+        }
+        log.info( "connecting {} sessions to {} took {}ms", connected.size(), getName(), SubscriptionCreator.elapsedMillis( phaseStart ) );
+
+        synchronized( this ) {
+            clients.addAll( connected );
+            // 2. add the monitors found by browsing the address space
+            phaseStart = System.nanoTime();
+            discover( server );
+            server.labelMonitors();
+            retainOwned( server );
+            log.info( "discovering monitors of {} took {}ms", getName(), SubscriptionCreator.elapsedMillis( phaseStart ) );
+            // 3. register subscriptions and monitors to receive incoming values, all concurrently,
+            //    writing each new incoming value to the internal buffer
+            phaseStart = System.nanoTime();
+            subscriptions = new ServerSubscriptions( configuration, server, clients, buffer, metrics );
+            subscriptions.apply( server.getSubscriptions() );
+            log.info( "creating {} subscriptions on {} sessions of {} took {}ms", subscriptions.getSubscriptionCount(),
+                    clients.size(), getName(), SubscriptionCreator.elapsedMillis( phaseStart ) );
+            for ( int i = 0; i < clients.size(); i++ ) {
+                String name = server.getName() == null ? String.valueOf( i ) : server.getName() + "/" + i;
+                supervisors.add( new SessionSupervisor( name, clients.get( i ), subscriptions, configuration, metrics ) );
+            }
+            if ( configuration.getAdaptiveSampling() != null ) {
+                samplingController = new SamplingController( getName(), configuration.getAdaptiveSampling(), subscriptions, buffer, metrics );
+                samplingController.start();
+            }
+        }
+    }
+
+    /**
+     * applies changed subscriptions, see {@link ServerSubscriptions#apply(List)}.
+     * if not yet connected, the changed subscriptions are created once connected instead.
+     *
+     * @param changed the server as configured now
+     */
+    public synchronized void apply( @NonNull ServerConfiguration changed ) {
+        if ( subscriptions == null ) {
+            server.setSubscriptions( changed.getSubscriptions() );
+            return;
+        }
+        discover( changed );
+        changed.labelMonitors();
+        retainOwned( changed );
+        subscriptions.apply( changed.getSubscriptions() );
+        server.setSubscriptions( changed.getSubscriptions() );
+    }
+
+    /**
+     * adds the monitors found by browsing, see {@link MonitorDiscovery}.
+     * without any browse configuration, not even the browse limits of the server are read.
+     */
+    private void discover( @NonNull ServerConfiguration configured ) {
+        if ( configured.getSubscriptions().stream().anyMatch( s -> !s.getBrowse().isEmpty() ) ) {
+            new MonitorDiscovery( configuration, configured, clients.get( 0 ) ).discover();
+        }
+    }
+
+    /**
+     * drops the monitors of other replicas, after all monitors have been discovered, as every replica discovers the same
+     */
+    private void retainOwned( @NonNull ServerConfiguration configured ) {
+        if ( partition.isPartitioned() ) {
+            int total = configured.getSubscriptions().stream().mapToInt( s -> s.getMonitors().size() ).sum();
+            int kept = partition.retainOwned( configured );
+            log.info( "replica {} of {} monitors {} of the {} monitors of {}", partition.getIndex(), partition.getCount(), kept, total, getName() );
+        }
+    }
+
+    /**
+     * discovers the endpoint, retrying with jittered exponential backoff while the server is not reachable
+     *
+     * @throws IllegalStateException if the server has no endpoint matching the configuration
+     */
+    @SneakyThrows
+    private EndpointDescription discoverTargetedEndpoint() {
+        log.info( "discovering endpoints on {}", server::getDiscoveryUrl );
+        List<EndpointDescription> endpointList = null;
+        for ( int attempt = 0; endpointList == null; attempt++ ) {
+            try {
+                endpointList = DiscoveryClient.getEndpoints( server.getDiscoveryUrl() ).get();
+            }
+            catch ( ExecutionException e ) {
+                long backoff = SessionSupervisor.backoff( configuration.getMinReconnectBackoff(), configuration.getMaxReconnectBackoff(), attempt );
+                log.warn( "could not discover endpoints on {}, retrying in {}ms: {}", server.getDiscoveryUrl(), backoff, e.getCause().toString() );
+                Thread.sleep( backoff );
+            }
+        }
+        endpointList.forEach( e -> log.debug( "endpoint found: {}", e::toString ) );
+        Optional<EndpointDescription> endpointDescriptionOptional = endpointList.stream()
+                .filter( e -> e.getEndpointUrl().equals( server.getEndpointUrl() ) )
+                .filter( e -> e.getSecurityMode() == server.getMessageSecurityMode() )
+                .findAny();
+        if ( endpointDescriptionOptional.isEmpty() ) {
+            throw new IllegalStateException( "could not find any endpoint of " + getName() + " matching the configuration" );
+        }
+        return endpointDescriptionOptional.get();
+    }
+
+    /**
+     * connects to the endpoint, retrying with jittered exponential backoff until it succeeds
+     */
+    @SneakyThrows
+    private OpcUaClient connect( @NonNull EndpointDescription endpointDescription ) {
+        log.info( "building opc ua client for endpoint: {}", endpointDescription );
+        OpcUaClientConfigBuilder opcUaClientConfigBuilder = new OpcUaClientConfigBuilder();
+        opcUaClientConfigBuilder.setApplicationName( LocalizedText.english( configuration.getApplicationName() ) );
+        opcUaClientConfigBuilder.setApplicationUri( configuration.getApplicationUri() );
+        opcUaClientConfigBuilder.setEndpoint( endpointDescription );
+        OpcUaClientConfig opcUaClientConfig = opcUaClientConfigBuilder.build();
+        OpcUaClient client = OpcUaClient.create( opcUaClientConfig );
+        for ( int attempt = 0; ; attempt++ ) {
+            try {
+                UaClient opcua = client.connect().get();
+                if ( opcua == null ) {
+                    throw new NullPointerException( "could not connect to endpoint" );
+                }
+                return client;
+            }
+            catch ( ExecutionException e ) {
+                long backoff = SessionSupervisor.backoff( configuration.getMinReconnectBackoff(), configuration.getMaxReconnectBackoff(), attempt );
+                log.warn( "could not connect to {}, retrying in {}ms: {}", endpointDescription.getEndpointUrl(), backoff, e.getCause().toString() );
+                client.disconnect().exceptionally( ex -> null ).get();
+                Thread.sleep( backoff );
+            }
+        }
+    }
+
+    /**
+     * stops ingesting and disconnects all sessions
+     *
+     * @throws ExecutionException if a session failed to disconnect
+     */
+    @Override
+    public synchronized void close() throws ExecutionException {
+        if ( samplingController != null ) {
+            samplingController.close();
+        }
+        supervisors.forEach( SessionSupervisor::close );
+        if ( subscriptions != null ) {
+            subscriptions.close();
+        }
+        List<CompletableFuture<?>> disconnects = new ArrayList<>();
+        for ( OpcUaClient client : clients ) {
+            disconnects.add( client.disconnect() );
+        }
+        try {
+            CompletableFuture.allOf( disconnects.toArray( new CompletableFuture<?>[0] ) ).get();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt(); // the sessions are closed anyway, just not awaited
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.serialization.SerializationContext;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.structured.CallMethodRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * the opc ua subscriptions and monitored items currently open on a server, kept in line with the configured subscriptions.
+ * <p>
+ * {@link #apply(List)} compares the configured subscriptions with the running ones by position and their monitors by equality.
+ * only the monitored items of removed or added monitors are deleted or created on the existing opc ua subscriptions,
+ * all others keep running without a gap. the buffer is never cleared, so the samples of unchanged metrics are retained.
+ * a changed monitor is deleted and created again in the same shard, so its metric keeps being written by a single thread.
+ * <p>
+ * a request failing for one shard does not affect the others. a shard whose opc ua subscription could not be created
+ * is left without one and created again by {@link #createFailed(OpcUaClient)} or the next {@link #apply(List)}.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class ServerSubscriptions implements AutoCloseable {
+
+    /**
+     * where all running monitors are registered with their client handles
+     */
+    private final @Getter @NonNull ClientHandleIndex clientHandles = new ClientHandleIndex();
+
+    private final @NonNull Buffer buffer;
+    private final @NonNull ExporterMetrics metrics;
+    private final @NonNull List<@NonNull SubscriptionCreator> subscriptionCreators;
+    private final @NonNull UaMonitoredItem.ValueConsumer valueConsumer;
+    private final int monitorsPerSubscription;
+    private final int ingestQueueSize;
+
+    /**
+     * how to decode the structures delivered by the server
+     */
+    private final @NonNull SerializationContext serializationContext;
+
+    /**
+     * what to prefix the names of the subscriptions with, to make them unique across servers
+     */
+    private final @NonNull String namePrefix;
+
+    /**
+     * the running subscriptions in the order of their configuration
+     */
+    private final @NonNull List<@NonNull RunningSubscription> running = new ArrayList<>();
+
+    /**
+     * the number of shards created so far, for spreading them across the sessions
+     */
+    private int shardCount;
+
+    /**
+     * held while applying changed subscriptions, which holds the lock of this only while not waiting for the server
+     */
+    private final Object applying = new Object();
+
+    /**
+     * @param configuration the configuration of the sharding, which is not changed by {@link #apply(List)}
+     * @param server        the server the subscriptions are opened on
+     * @param clients       the connected sessions to spread the subscriptions across
+     * @param buffer        where to write the values of all monitors to
+     * @param metrics       where to count the notifications of each subscription
+     */
+    public ServerSubscriptions( @NonNull Configuration configuration, @NonNull ServerConfiguration server,
+            @NonNull List<@NonNull OpcUaClient> clients, @NonNull Buffer buffer, @NonNull ExporterMetrics metrics ) {
+        this.namePrefix = server.getName() == null ? "" : server.getName() + "/";
+        this.buffer = buffer;
+        this.metrics = metrics;
+        this.monitorsPerSubscription = configuration.getMonitorsPerSubscription();
+        this.ingestQueueSize = configuration.getIngestQueueSize();
+        this.valueConsumer = Main.createValueConsumer( clientHandles, metrics );
+        this.serializationContext = clients.get( 0 ).getDynamicSerializationContext();
+        int maxMonitoredItemsPerCall = SubscriptionCreator.readMaxMonitoredItemsPerCall( clients.get( 0 ), configuration.getMaxMonitoredItemsPerCall() );
+        this.subscriptionCreators = clients.stream()
+                .map( c -> new SubscriptionCreator( c, clientHandles, maxMonitoredItemsPerCall, configuration.getCreateMonitorParallelism() ) )
+                .collect( Collectors.toList() );
+    }
+
+    /**
+     * brings the running subscriptions in line with the given ones.
+     * failures are logged per shard, shards that could not be created are retried, see {@link #createFailed(OpcUaClient)}.
+     * the requests to the server are awaited without holding the lock of this, so that a session lost meanwhile is still
+     * marked stale and resumed. concurrent calls are applied one after the other.
+     *
+     * @param subscriptions the subscriptions as configured now
+     */
+    public void apply( @NonNull List<@NonNull SubscriptionConfiguration> subscriptions ) {
+        synchronized( applying ) {
+            long start = System.nanoTime();
+            Map<RunningSubscription, List<MonitorConfiguration>> added = new LinkedHashMap<>();
+            Map<String, Shard> removedSeries = new HashMap<>();
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            int removedCount;
+            synchronized( this ) {
+                removedCount = diff( subscriptions, added, removedSeries, futures );
+            }
+            await( futures );
+            futures.clear();
+
+            int addedCount = 0;
+            synchronized( this ) {
+                // register all added monitors at once, so that configured client handles take precedence over auto assigned ones
+                clientHandles.registerAll( () -> added.values().stream().flatMap( List::stream ).iterator(), buffer, serializationContext );
+                for ( Map.Entry<RunningSubscription, List<MonitorConfiguration>> entry : added.entrySet() ) {
+                    addedCount += entry.getValue().size();
+                    futures.addAll( place( entry.getKey(), entry.getValue(), removedSeries ) );
+                }
+                // shards that failed before are tried again as well
+                for ( RunningSubscription subscription : running ) {
+                    for ( Shard shard : subscription.shards ) {
+                        if ( isFailed( shard ) ) {
+                            futures.add( create( subscription, shard ) );
+                        }
+                    }
+                }
+            }
+            await( futures );
+            futures.clear();
+
+            long failed;
+            synchronized( this ) {
+                // drop shards that lost all their monitors
+                for ( RunningSubscription subscription : running ) {
+                    subscription.shards.removeIf( shard -> {
+                        if ( shard.monitors.isEmpty() ) {
+                            futures.add( deleteShard( shard ) );
+                            return true;
+                        }
+                        return false;
+                    } );
+                }
+                failed = running.stream().flatMap( s -> s.shards.stream() ).filter( shard -> shard.subscription == null ).count();
+            }
+            await( futures );
+            log.info( "applied {} subscriptions with {} monitors added and {} removed in {}ms, {} opc ua subscriptions failed",
+                    subscriptions.size(), addedCount, removedCount, SubscriptionCreator.elapsedMillis( start ), failed );
+        }
+    }
+
+    /**
+     * removes the subscriptions and monitors no longer configured and modifies changed publishing intervals
+     *
+     * @param subscriptions the subscriptions as configured now
+     * @param added         to put the monitors to add per running subscription into
+     * @param removedSeries to put the shard each removed series was monitored in into, for placing it there again if it is added back
+     * @param futures       to add the requests to the server to
+     * @return the number of monitors removed
+     */
+    private int diff( @NonNull List<@NonNull SubscriptionConfiguration> subscriptions,
+            @NonNull Map<RunningSubscription, List<MonitorConfiguration>> added, @NonNull Map<String, Shard> removedSeries,
+            @NonNull List<CompletableFuture<?>> futures ) {
+        int removedCount = 0;
+        while ( running.size() > subscriptions.size() ) {
+            RunningSubscription subscription = running.remove( running.size() - 1 );
+            for ( Shard shard : subscription.shards ) {
+                removedCount += shard.monitors.size();
+                futures.add( deleteShard( shard ) );
+            }
+        }
+
+        // diff the monitors of the subscriptions kept and delete the removed ones
+        for ( int i = 0; i < subscriptions.size(); i++ ) {
+            SubscriptionConfiguration configuration = subscriptions.get( i );
+            if ( i == running.size() ) {
+                running.add( new RunningSubscription( i, configuration.getRequestedPublishingInterval() ) );
+                added.put( running.get( i ), new ArrayList<>( configuration.getMonitors() ) );
+                continue;
+            }
+            RunningSubscription subscription = running.get( i );
+            if ( subscription.publishingInterval != configuration.getRequestedPublishingInterval() ) {
+                subscription.publishingInterval = configuration.getRequestedPublishingInterval();
+                for ( Shard shard : subscription.shards ) {
+                    if ( shard.subscription == null ) {
+                        continue; // failed to be created
+                    }
+                    futures.add( shard.creator.getClient().getSubscriptionManager()
+                            .modifySubscription( shard.subscription.getSubscriptionId(), subscription.publishingInterval )
+                            .exceptionally( e -> {
+                                log.warn( "could not modify the publishing interval of subscription {}", shard.name, e );
+                                return null;
+                            } ) );
+                }
+            }
+
+            Map<MonitorConfiguration, Deque<MonitorConfiguration>> unmatched = new HashMap<>();
+            Map<MonitorConfiguration, Shard> owners = new IdentityHashMap<>();
+            for ( Shard shard : subscription.shards ) {
+                for ( MonitorConfiguration monitor : shard.monitors ) {
+                    unmatched.computeIfAbsent( monitor, m -> new ArrayDeque<>() ).add( monitor );
+                    owners.put( monitor, shard );
+                }
+            }
+            List<MonitorConfiguration> addedMonitors = new ArrayList<>();
+            for ( MonitorConfiguration monitor : configuration.getMonitors() ) {
+                Deque<MonitorConfiguration> equal = unmatched.get( monitor );
+                if ( equal == null || equal.poll() == null ) {
+                    addedMonitors.add( monitor );
+                }
+            }
+            added.put( subscription, addedMonitors );
+
+            Map<Shard, List<MonitorConfiguration>> removedByShard = new LinkedHashMap<>();
+            unmatched.values().forEach( monitors -> monitors.forEach( monitor ->
+                    removedByShard.computeIfAbsent( owners.get( monitor ), s -> new ArrayList<>() ).add( monitor ) ) );
+            for ( Map.Entry<Shard, List<MonitorConfiguration>> entry : removedByShard.entrySet() ) {
+                Shard shard = entry.getKey();
+                List<MonitorConfiguration> removed = entry.getValue();
+                removedCount += removed.size();
+                if ( shard.subscription != null ) {
+                    // once unregistered, values still arriving for these monitored items are ignored
+                    futures.add( shard.creator.deleteMonitoredItems( shard.subscription, removed ).exceptionally( e -> {
+                        log.warn( "could not delete {} monitored items of subscription {}", removed.size(), shard.name, e );
+                        return 0;
+                    } ) );
+                }
+                Set<MonitorConfiguration> removedSet = Collections.newSetFromMap( new IdentityHashMap<>() );
+                removedSet.addAll( removed );
+                shard.monitors.removeIf( removedSet::contains );
+                removed.forEach( monitor -> {
+                    clientHandles.unregister( monitor );
+                    removedSeries.put( monitor.getMetricFamily().formatSeries( monitor.getMetricLabels() ), shard );
+                } );
+            }
+        }
+        return removedCount;
+    }
+
+    /**
+     * waits for all futures, whose failures are handled by each
+     */
+    @SneakyThrows
+    private static void await( @NonNull List<CompletableFuture<?>> futures ) {
+        CompletableFuture.allOf( futures.toArray( new CompletableFuture<?>[0] ) ).get();
+    }
+
+    /**
+     * assigns the added monitors to the shards of their subscription, creating new shards where needed
+     *
+     * @return the futures of creating the monitored items
+     */
+    private List<CompletableFuture<?>> place( @NonNull RunningSubscription subscription, @NonNull List<MonitorConfiguration> monitors,
+            @NonNull Map<String, Shard> removedSeries ) {
+        Map<Shard, List<MonitorConfiguration>> existing = new LinkedHashMap<>();
+        List<MonitorConfiguration> unplaced = new ArrayList<>();
+        for ( MonitorConfiguration monitor : monitors ) {
+            Shard shard = removedSeries.get( monitor.getMetricFamily().formatSeries( monitor.getMetricLabels() ) );
+            if ( shard == null || !subscription.shards.contains( shard ) ) {
+                shard = subscription.shards.stream()
+                        .filter( s -> monitorsPerSubscription <= 0
+                                || ( s.samplingInterval == monitor.getSamplingInterval()
+                                && s.monitors.size() + existing.getOrDefault( s, List.of() ).size() < monitorsPerSubscription ) )
+                        .findFirst()
+                        .orElse( null );
+            }
+            if ( shard == null ) {
+                unplaced.add( monitor );
+            }
+            else {
+                existing.computeIfAbsent( shard, s -> new ArrayList<>() ).add( monitor );
+            }
+        }
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        existing.forEach( ( shard, shardMonitors ) -> {
+            shard.monitors.addAll( shardMonitors );
+            UaSubscription uaSubscription = shard.subscription;
+            if ( uaSubscription != null ) {
+                futures.add( shard.creator.createMonitoredItems( uaSubscription, shardMonitors, shard.valueConsumer ).exceptionally( e -> {
+                    // which of the monitored items exist is unknown, so the subscription is created again as a whole
+                    log.warn( "could not create {} monitored items on subscription {}, creating it again", shardMonitors.size(), shard.name, e );
+                    shard.subscription = null;
+                    shard.creator.getClient().getSubscriptionManager().deleteSubscription( uaSubscription.getSubscriptionId() );
+                    return 0;
+                } ) );
+            }
+        } );
+        if ( unplaced.isEmpty() ) {
+            return futures;
+        }
+
+        SubscriptionConfiguration unplacedConfiguration = new SubscriptionConfiguration();
+        unplacedConfiguration.setRequestedPublishingInterval( subscription.publishingInterval );
+        unplacedConfiguration.setMonitors( unplaced );
+        List<SubscriptionConfiguration> shards = monitorsPerSubscription > 0
+                ? unplacedConfiguration.shard( monitorsPerSubscription )
+                : List.of( unplacedConfiguration );
+        boolean single = subscription.shards.isEmpty() && shards.size() == 1;
+        for ( SubscriptionConfiguration configuration : shards ) {
+            String name = namePrefix + ( single ? String.valueOf( subscription.index ) : subscription.index + "." + subscription.nextShard++ );
+            Shard shard = createShard( name, configuration );
+            subscription.shards.add( shard );
+            futures.add( create( subscription, shard ) );
+        }
+        return futures;
+    }
+
+    /**
+     * @return whether the opc ua subscription of the shard failed to be created and is not being created currently
+     */
+    private static boolean isFailed( @NonNull Shard shard ) {
+        return shard.subscription == null && shard.lost == null && !shard.creating;
+    }
+
+    /**
+     * creates the opc ua subscription of a shard with all its monitored items, leaving the shard without one if that fails
+     *
+     * @param owner the configured subscription the shard belongs to
+     * @return the future of whether the subscription has been created, never failing
+     */
+    private @NonNull CompletableFuture<Boolean> create( @NonNull RunningSubscription owner, @NonNull Shard shard ) {
+        SubscriptionConfiguration configuration = new SubscriptionConfiguration();
+        configuration.setRequestedPublishingInterval( owner.publishingInterval );
+        configuration.setMonitors( new ArrayList<>( shard.monitors ) );
+        shard.creating = true;
+        return shard.creator.createSubscription( configuration, shard.valueConsumer ).handle( ( uaSubscription, e ) -> {
+            shard.creating = false;
+            if ( e != null ) {
+                log.warn( "could not create subscription {} with {} monitors, retrying later", shard.name, configuration.getMonitors().size(), e );
+                return false;
+            }
+            shard.subscription = uaSubscription;
+            if ( shard.deleted ) {
+                // deleted by applying a changed configuration meanwhile
+                shard.creator.getClient().getSubscriptionManager().deleteSubscription( uaSubscription.getSubscriptionId() );
+                return false;
+            }
+            return true;
+        } );
+    }
+
+    /**
+     * creates the opc ua subscriptions of all shards on the given session again, that failed to be created before
+     *
+     * @param client a session
+     * @return the future of the number of those subscriptions still failed afterwards
+     */
+    public synchronized @NonNull CompletableFuture<Integer> createFailed( @NonNull OpcUaClient client ) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for ( RunningSubscription subscription : running ) {
+            for ( Shard shard : subscription.shards ) {
+                if ( shard.creator.getClient() == client && isFailed( shard ) ) {
+                    futures.add( create( subscription, shard ) );
+                }
+            }
+        }
+        if ( !futures.isEmpty() ) {
+            log.info( "creating {} failed subscriptions again", futures.size() );
+        }
+        return CompletableFuture.allOf( futures.toArray( new CompletableFuture<?>[0] ) )
+                .thenApply( done -> (int)futures.stream().filter( created -> !created.join() ).count() );
+    }
+
+    private Shard createShard( @NonNull String name, @NonNull SubscriptionConfiguration configuration ) {
+        // ingest off milos delivery thread, so that its publish cycle never waits for the buffer
+        IngestLane lane = new IngestLane( name, ingestQueueSize, valueConsumer );
+        metrics.getIngestLanes().put( name, lane );
+        LongAdder notifications = metrics.getNotifications( name );
+        UaMonitoredItem.ValueConsumer laneValueConsumer = lane.getValueConsumer();
+        UaMonitoredItem.ValueConsumer countingValueConsumer = ( item, value ) -> {
+            notifications.increment();
+            laneValueConsumer.onValueArrived( item, value );
+        };
+        SubscriptionCreator creator = subscriptionCreators.get( shardCount++ % subscriptionCreators.size() );
+        return new Shard( name, creator, configuration.getMonitors().get( 0 ).getSamplingInterval(),
+                new ArrayList<>( configuration.getMonitors() ), lane, countingValueConsumer );
+    }
+
+    /**
+     * @return the future of deleting the opc ua subscription of the shard on the server, never failing
+     */
+    private @NonNull CompletableFuture<?> deleteShard( @NonNull Shard shard ) {
+        shard.deleted = true;
+        UaSubscription uaSubscription = shard.subscription;
+        CompletableFuture<?> deleted = uaSubscription == null ? CompletableFuture.completedFuture( null )
+                : shard.creator.getClient().getSubscriptionManager().deleteSubscription( uaSubscription.getSubscriptionId() )
+                .exceptionally( e -> {
+                    log.warn( "could not delete subscription {}, leaving it to expire on the server", shard.name, e );
+                    return null;
+                } );
+        shard.monitors.forEach( clientHandles::unregister );
+        shard.lane.close();
+        metrics.getIngestLanes().remove( shard.name );
+        log.info( "deleted subscription {}", shard.name );
+        return deleted;
+    }
+
+    /**
+     * marks the series of all monitors delivered by the given session stale
+     *
+     * @param client    the session that is lost
+     * @param timestamp milliseconds since epoch since when no fresh samples can arrive
+     * @return the number of monitors marked
+     */
+    public synchronized int markStale( @NonNull OpcUaClient client, long timestamp ) {
+        int count = 0;
+        for ( RunningSubscription subscription : running ) {
+            for ( Shard shard : subscription.shards ) {
+                if ( shard.creator.getClient() == client ) {
+                    for ( MonitorConfiguration monitor : shard.monitors ) {
+                        // a monitor being removed by a concurrent reload may be unregistered already
+                        SampleSink sink = clientHandles.getSink( monitor );
+                        if ( sink != null ) {
+                            sink.markStale( timestamp );
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * resumes the opc ua subscriptions of a session that is active again: asks the server to resend the current values
+     * of all monitored items (ResendData) and ends marking their series stale, unless the server does not know the subscription
+     * anymore. values that did not change meanwhile are thus exposed again, even if the server does not support resending.
+     * subscriptions that the server does not know anymore are left stale until they are created again.
+     *
+     * @param client the session that is active again
+     * @return the future of the number of monitors marked fresh
+     */
+    public synchronized @NonNull CompletableFuture<Integer> resume( @NonNull OpcUaClient client ) {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for ( RunningSubscription subscription : running ) {
+            for ( Shard shard : subscription.shards ) {
+                UaSubscription uaSubscription = shard.subscription;
+                if ( shard.creator.getClient() != client || uaSubscription == null ) {
+                    continue;
+                }
+                // taken now, so that the completion needs no lock
+                List<SampleSink> sinks = shard.monitors.stream()
+                        .map( clientHandles::getSink )
+                        .filter( Objects::nonNull )
+                        .collect( Collectors.toList() );
+                CallMethodRequest resend = new CallMethodRequest( Identifiers.Server, Identifiers.Server_ResendData,
+                        new Variant[]{new Variant( uaSubscription.getSubscriptionId() )} );
+                futures.add( client.call( resend ).handle( ( result, e ) -> {
+                    StatusCode status = e != null ? StatusCode.BAD : result.getStatusCode();
+                    if ( status.getValue() == StatusCodes.Bad_SubscriptionIdInvalid ) {
+                        return 0; // lost, created again by the supervisor
+                    }
+                    if ( !status.isGood() ) {
+                        log.debug( "the server did not resend the data of subscription {}: {}", shard.name, status );
+                    }
+                    sinks.forEach( SampleSink::markFresh );
+                    return sinks.size();
+                } ) );
+            }
+        }
+        return CompletableFuture.allOf( futures.toArray( new CompletableFuture<?>[0] ) )
+                .thenApply( done -> futures.stream().mapToInt( CompletableFuture::join ).sum() );
+    }
+
+    /**
+     * creates a lost opc ua subscription again with all its monitored items, on the same session
+     *
+     * @param lost the subscription that the server does not know anymore
+     * @return the future of whether the subscription has been created again, false if it is not running anymore
+     */
+    public synchronized @NonNull CompletableFuture<Boolean> recreate( @NonNull UaSubscription lost ) {
+        Shard shard = running.stream()
+                .flatMap( subscription -> subscription.shards.stream() )
+                .filter( s -> s.subscription == lost || s.lost == lost )
+                .findAny()
+                .orElse( null );
+        if ( shard == null ) {
+            return CompletableFuture.completedFuture( false );
+        }
+        RunningSubscription owner = running.stream().filter( s -> s.shards.contains( shard ) ).findAny().orElseThrow();
+        shard.lost = lost;
+        shard.subscription = null;
+        SubscriptionConfiguration configuration = new SubscriptionConfiguration();
+        configuration.setRequestedPublishingInterval( owner.publishingInterval );
+        configuration.setMonitors( new ArrayList<>( shard.monitors ) );
+        log.info( "creating subscription {} again with {} monitors", shard.name, shard.monitors.size() );
+        return shard.creator.createSubscription( configuration, shard.valueConsumer )
+                .thenApply( subscription -> {
+                    synchronized( this ) {
+                        if ( owner.shards.contains( shard ) ) {
+                            shard.subscription = subscription;
+                            shard.lost = null;
+                            return true;
+                        }
+                    }
+                    // deleted by applying a changed configuration meanwhile
+                    shard.creator.getClient().getSubscriptionManager().deleteSubscription( subscription.getSubscriptionId() );
+                    return false;
+                } );
+    }
+
+    /**
+     * @param action what to do with each opc ua subscription currently open and the creator of its monitored items
+     */
+    public synchronized void forEachSubscription( @NonNull BiConsumer<@NonNull SubscriptionCreator, @NonNull UaSubscription> action ) {
+        for ( RunningSubscription subscription : running ) {
+            for ( Shard shard : subscription.shards ) {
+                UaSubscription uaSubscription = shard.subscription;
+                if ( uaSubscription != null ) {
+                    action.accept( shard.creator, uaSubscription );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of opc ua subscriptions currently open
+     */
+    public synchronized int getSubscriptionCount() {
+        return running.stream().mapToInt( s -> s.shards.size() ).sum();
+    }
+
+    /**
+     * stops ingesting, leaving the subscriptions to be closed with their sessions
+     */
+    @Override
+    public synchronized void close() {
+        running.forEach( subscription -> subscription.shards.forEach( shard -> shard.lane.close() ) );
+    }
+
+    /**
+     * a configured subscription, split into one or more opc ua subscriptions
+     */
+    private static class RunningSubscription {
+
+        private final int index;
+        private double publishingInterval;
+        private final List<Shard> shards = new ArrayList<>();
+        private int nextShard;
+
+        private RunningSubscription( int index, double publishingInterval ) {
+            this.index = index;
+            this.publishingInterval = publishingInterval;
+        }
+    }
+
+    /**
+     * one opc ua subscription
+     */
+    private static class Shard {
+
+        private final String name;
+        private final SubscriptionCreator creator;
+        private final double samplingInterval;
+        private final List<MonitorConfiguration> monitors;
+        private final IngestLane lane;
+        private final UaMonitoredItem.ValueConsumer valueConsumer;
+        private volatile UaSubscription subscription;
+
+        /**
+         * the subscription lost on the server while it is being created again
+         */
+        private UaSubscription lost;
+
+        /**
+         * whether the opc ua subscription is currently being created, by {@link #apply(List)} or as a retry
+         */
+        private volatile boolean creating;
+
+        /**
+         * whether this shard has been deleted, so that a subscription created concurrently is deleted as well
+         */
+        private volatile boolean deleted;
+
+        private Shard( String name, SubscriptionCreator creator, double samplingInterval, List<MonitorConfiguration> monitors,
+                IngestLane lane, UaMonitoredItem.ValueConsumer valueConsumer ) {
+            this.name = name;
+            this.creator = creator;
+            this.samplingInterval = samplingInterval;
+            this.monitors = monitors;
+            this.lane = lane;
+            this.valueConsumer = valueConsumer;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.SessionActivityListener;
+import org.eclipse.milo.opcua.sdk.client.api.UaSession;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscriptionManager;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps the subscriptions of one opc ua session alive across connection losses.
+ * <p>
+ * milo reconnects a lost session by itself: it first tries to activate the existing session on a new channel,
+ * which keeps all subscriptions, and otherwise creates a new session and transfers the subscriptions to it
+ * via TransferSubscriptions. only subscriptions that fail to be transferred, or that expired on the server,
+ * are created again here with all their monitored items, retrying with jittered exponential backoff.
+ * the same is done for subscriptions that failed to be created at all, which are looked for every maxReconnectBackoff.
+ * while the session is lost, the series it delivers are marked stale, so that they are not exposed
+ * with outdated samples until fresh ones arrive. once the session is active again, the subscriptions it kept
+ * are resumed, see {@link ServerSubscriptions#resume(OpcUaClient)}, so that values that did not change show up again.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class SessionSupervisor implements SessionActivityListener, UaSubscriptionManager.SubscriptionListener, AutoCloseable {
+
+    private final @NonNull String name;
+    private final @NonNull OpcUaClient client;
+    private final @NonNull ServerSubscriptions subscriptions;
+    private final @NonNull ExporterMetrics metrics;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final @NonNull ScheduledExecutorService scheduler;
+
+    /**
+     * milliseconds since epoch since when the session is lost, 0 while it is active
+     */
+    private volatile long inactiveSince;
+
+    /**
+     * @param name          the name of the session for logging
+     * @param client        the connected session to supervise
+     * @param subscriptions the subscriptions to create again if lost
+     * @param configuration the configuration of the backoff
+     * @param metrics       where to count losses and recoveries
+     */
+    public SessionSupervisor( @NonNull String name, @NonNull OpcUaClient client, @NonNull ServerSubscriptions subscriptions,
+            @NonNull Configuration configuration, @NonNull ExporterMetrics metrics ) {
+        this.name = name;
+        this.client = client;
+        this.subscriptions = subscriptions;
+        this.metrics = metrics;
+        this.minBackoff = configuration.getMinReconnectBackoff();
+        this.maxBackoff = configuration.getMaxReconnectBackoff();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "session-" + name );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        client.addSessionActivityListener( this );
+        client.getSubscriptionManager().addSubscriptionListener( this );
+        scheduler.schedule( () -> createFailed( 0 ), backoff( minBackoff, maxBackoff, 0 ), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * @param minBackoff milliseconds to wait at least
+     * @param maxBackoff milliseconds to wait at most
+     * @param attempt    the number of attempts failed so far, starting at 0
+     * @return milliseconds to wait before the next attempt: exponential with jitter, so that retries do not run in lockstep
+     */
+    public static long backoff( long minBackoff, long maxBackoff, int attempt ) {
+        long backoff = Math.min( maxBackoff, minBackoff << Math.min( attempt, 30 ) );
+        return backoff / 2 + ThreadLocalRandom.current().nextLong( backoff / 2 + 1 );
+    }
+
+    @Override
+    public void onSessionInactive( UaSession session ) {
+        long now = System.currentTimeMillis();
+        inactiveSince = now;
+        metrics.getSessionLosses().increment();
+        int stale = subscriptions.markStale( client, now );
+        log.warn( "opc ua session {} lost, marked the series of {} monitors stale until fresh samples arrive", name, stale );
+    }
+
+    @Override
+    public void onSessionActive( UaSession session ) {
+        long since = inactiveSince;
+        if ( since != 0 ) {
+            inactiveSince = 0;
+            long duration = System.currentTimeMillis() - since;
+            metrics.getSessionRecoveryDurations().observe( duration / 1000.0 );
+            log.info( "opc ua session {} active again after {}ms", name, duration );
+            subscriptions.resume( client ).whenComplete( ( fresh, e ) -> {
+                if ( e != null ) {
+                    log.warn( "could not resume the subscriptions of session {}", name, e );
+                }
+                else {
+                    log.info( "resumed the subscriptions of session {}, marked the series of {} monitors fresh", name, fresh );
+                }
+            } );
+        }
+    }
+
+    @Override
+    public void onSubscriptionTransferFailed( UaSubscription subscription, StatusCode statusCode ) {
+        log.warn( "subscription {} could not be transferred to the new session {}: {}",
+                subscription.getSubscriptionId(), name, statusCode );
+        recreate( subscription, 0 );
+    }
+
+    @Override
+    public void onStatusChanged( UaSubscription subscription, StatusCode statusCode ) {
+        if ( statusCode.getValue() == StatusCodes.Bad_Timeout ) {
+            log.warn( "subscription {} of session {} expired on the server", subscription.getSubscriptionId(), name );
+            client.getSubscriptionManager().deleteSubscription( subscription.getSubscriptionId() );
+            recreate( subscription, 0 );
+        }
+    }
+
+    private void recreate( @NonNull UaSubscription lost, int attempt ) {
+        subscriptions.recreate( lost ).whenComplete( ( recreated, e ) -> {
+            if ( e == null ) {
+                if ( recreated ) {
+                    metrics.getSubscriptionRecreations().increment();
+                }
+                return;
+            }
+            long delay = backoff( minBackoff, maxBackoff, attempt );
+            log.warn( "could not create subscription {} again, retrying in {}ms", lost.getSubscriptionId(), delay, e );
+            if ( !scheduler.isShutdown() ) {
+                scheduler.schedule( () -> recreate( lost, attempt + 1 ), delay, TimeUnit.MILLISECONDS );
+            }
+        } );
+    }
+
+    /**
+     * creates the subscriptions of this session that failed to be created, then schedules the next check:
+     * with backoff while some keep failing, after the maximum backoff otherwise
+     */
+    private void createFailed( int attempt ) {
+        subscriptions.createFailed( client ).whenComplete( ( failed, e ) -> {
+            if ( e != null ) {
+                log.warn( "could not create the failed subscriptions of session {} again", name, e );
+            }
+            boolean failing = e != null || failed > 0;
+            long delay = failing ? backoff( minBackoff, maxBackoff, attempt ) : maxBackoff;
+            if ( !scheduler.isShutdown() ) {
+                scheduler.schedule( () -> createFailed( failing ? attempt + 1 : 0 ), delay, TimeUnit.MILLISECONDS );
+            }
+        } );
+    }
+
+    @Override
+    public void close() {
+        client.removeSessionActivityListener( this );
+        client.getSubscriptionManager().removeSubscriptionListener( this );
+        scheduler.shutdownNow();
+    }
+}
@@ -4,8 +4,11 @@ import lombok.Data;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 @Data
 @Log4j2
@@ -21,4 +24,39 @@ public class SubscriptionConfiguration {
      */
     private @NonNull List<@NonNull MonitorConfiguration> monitors = new LinkedList<>();
 
+    /**
+     * the parts of the address space to monitor all nodes of via this subscription, in addition to the {@link #monitors}
+     */
+    private @NonNull List<@NonNull BrowseConfiguration> browse = new LinkedList<>();
+
+    /**
+     * splits this subscription into shards of at most the given number of monitors each.
+     * monitors of different sampling intervals never share a shard, so each shard publishes at a uniform rate.
+     *
+     * @param monitorsPerSubscription the target number of monitors per shard
+     * @return the shards, each with the publishing interval of this subscription
+     */
+    public @NonNull List<@NonNull SubscriptionConfiguration> shard( int monitorsPerSubscription ) {
+        if ( monitorsPerSubscription < 1 ) {
+            throw new IllegalArgumentException( "monitorsPerSubscription must be positive but was " + monitorsPerSubscription );
+        }
+        Map<Double, List<MonitorConfiguration>> bySamplingInterval = new TreeMap<>();
+        monitors.forEach( m -> bySamplingInterval.computeIfAbsent( m.getSamplingInterval(), i -> new ArrayList<>() ).add( m ) );
+
+        List<SubscriptionConfiguration> shards = new ArrayList<>();
+        bySamplingInterval.forEach( ( samplingInterval, group ) -> {
+            // spread evenly instead of filling all but the last shard
+            int shardCount = ( group.size() + monitorsPerSubscription - 1 ) / monitorsPerSubscription;
+            for ( int i = 0; i < shardCount; i++ ) {
+                SubscriptionConfiguration shard = new SubscriptionConfiguration();
+                shard.setRequestedPublishingInterval( requestedPublishingInterval );
+                shard.setMonitors( new ArrayList<>( group.subList(
+                        (int)( (long)group.size() * i / shardCount ),
+                        (int)( (long)group.size() * ( i + 1 ) / shardCount ) ) ) );
+                shards.add( shard );
+            }
+        } );
+        log.debug( "sharded subscription with {} monitors into {} subscriptions", monitors.size(), shards.size() );
+        return shards;
+    }
 }
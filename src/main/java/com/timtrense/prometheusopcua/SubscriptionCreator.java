@@ -0,0 +1,282 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.UaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.DataChangeFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemModifyRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * creates opc ua subscriptions and their monitored items without blocking:
+ * the monitors of a subscription are split into chunks of at most {@link #maxMonitoredItemsPerCall} items
+ * and the chunks are sent over {@link #parallelism} concurrent request lanes.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+@Data
+public class SubscriptionCreator {
+
+    /**
+     * the connected client to create the subscriptions with
+     */
+    private final @NonNull OpcUaClient client;
+
+    /**
+     * where all monitors have been registered with their client handles
+     */
+    private final @NonNull ClientHandleIndex clientHandles;
+
+    /**
+     * how many monitored items to create per request at most
+     */
+    private final int maxMonitoredItemsPerCall;
+
+    /**
+     * how many create monitored items requests per subscription to have in flight at once
+     */
+    private final int parallelism;
+
+    /**
+     * reads the MaxMonitoredItemsPerCall operation limit of the server
+     *
+     * @param client       the connected client
+     * @param defaultLimit the limit to use if the server has none or does not tell
+     * @return the lesser of the server limit and the given default
+     */
+    public static int readMaxMonitoredItemsPerCall( @NonNull UaClient client, int defaultLimit ) {
+        return readOperationLimit( client, Identifiers.Server_ServerCapabilities_OperationLimits_MaxMonitoredItemsPerCall, defaultLimit );
+    }
+
+    /**
+     * reads an operation limit of the server
+     *
+     * @param client       the connected client
+     * @param limitNode    the node of the operation limit below Server_ServerCapabilities_OperationLimits
+     * @param defaultLimit the limit to use if the server has none or does not tell
+     * @return the lesser of the server limit and the given default
+     */
+    @SneakyThrows
+    static int readOperationLimit( @NonNull UaClient client, @NonNull NodeId limitNode, int defaultLimit ) {
+        String name = limitNode.getIdentifier().toString();
+        DataValue limit = client.readValue( 0, TimestampsToReturn.Neither, limitNode )
+                .exceptionally( e -> {
+                    log.warn( "could not read the operation limit {} of the server", name, e );
+                    return null;
+                } )
+                .get();
+        if ( limit == null || limit.getStatusCode() == null || !limit.getStatusCode().isGood()
+                || !( limit.getValue().getValue() instanceof UInteger ) ) {
+            log.info( "the server does not tell its operation limit {}, using {}", name, defaultLimit );
+            return defaultLimit;
+        }
+        long serverLimit = ( (UInteger)limit.getValue().getValue() ).longValue();
+        log.info( "the server has the operation limit {}={}", name, serverLimit );
+        return serverLimit == 0 ? defaultLimit : (int)Math.min( serverLimit, defaultLimit );
+    }
+
+    /**
+     * creates the subscription and registers all its monitors
+     *
+     * @param configuration the subscription to create
+     * @param valueConsumer what to do with the values of all successfully created monitors
+     * @return the future of the subscription, completed as soon as all its monitors are created.
+     * if any request for creating them fails, the subscription is deleted again and the future fails
+     */
+    public @NonNull CompletableFuture<UaSubscription> createSubscription( @NonNull SubscriptionConfiguration configuration,
+            @NonNull UaMonitoredItem.ValueConsumer valueConsumer ) {
+        log.info( "creating opc ua subscription" );
+        long start = System.nanoTime();
+        return client.getSubscriptionManager()
+                .createSubscription( configuration.getRequestedPublishingInterval() )
+                .thenCompose( subscription -> {
+                    if ( subscription == null ) {
+                        throw new NullPointerException( "could not create subscription" );
+                    }
+                    log.debug( "opc ua subscription {} created after {}ms, creating monitors",
+                            subscription::getSubscriptionId, () -> elapsedMillis( start ) );
+                    return createMonitoredItems( subscription, configuration.getMonitors(), valueConsumer )
+                            .whenComplete( ( created, e ) -> {
+                                if ( e != null ) {
+                                    // not left running with only some of its monitored items, it is created again as a whole
+                                    client.getSubscriptionManager().deleteSubscription( subscription.getSubscriptionId() );
+                                }
+                            } )
+                            .thenApply( created -> {
+                                log.info( "opc ua subscription {} ready after {}ms with {}/{} monitors",
+                                        subscription.getSubscriptionId(), elapsedMillis( start ),
+                                        created, configuration.getMonitors().size() );
+                                return subscription;
+                            } );
+                } );
+    }
+
+    /**
+     * creates monitored items for the given monitors on an existing subscription
+     *
+     * @param subscription  the subscription to add the monitored items to
+     * @param monitors      the monitors to create, all registered in {@link #clientHandles}
+     * @param valueConsumer what to do with the values of all successfully created monitors
+     * @return the future of the number of monitored items created successfully
+     */
+    public @NonNull CompletableFuture<Integer> createMonitoredItems( @NonNull UaSubscription subscription,
+            @NonNull List<@NonNull MonitorConfiguration> monitors,
+            @NonNull UaMonitoredItem.ValueConsumer valueConsumer ) {
+        List<List<MonitoredItemCreateRequest>> chunks = new ArrayList<>();
+        List<MonitoredItemCreateRequest> chunk = null;
+        for ( MonitorConfiguration monitor : monitors ) {
+            if ( chunk == null || chunk.size() >= maxMonitoredItemsPerCall ) {
+                chunk = new ArrayList<>( Math.min( maxMonitoredItemsPerCall, monitors.size() ) );
+                chunks.add( chunk );
+            }
+            chunk.add( getCreateMonitorRequest( monitor, UInteger.valueOf( clientHandles.getHandle( monitor ) ) ) );
+        }
+
+        UaMonitoredItem.EventConsumer eventConsumer = ( item, event ) ->
+                log.warn( "monitor event occurred on node={} event={}", item::getReadValueId, event::toString );
+
+        AtomicInteger created = new AtomicInteger();
+        UaSubscription.ItemCreationCallback itemCreationCallback = ( item, index ) -> {
+            if ( item.getStatusCode().isGood() ) {
+                log.debug( "monitor created: clientHandle={} node={}", item::getClientHandle, item.getReadValueId()::getNodeId );
+                item.setValueConsumer( valueConsumer ); // what to do with received value changes
+                item.setEventConsumer( eventConsumer ); // just log any other event
+                created.incrementAndGet();
+            }
+            else {
+                log.error( "monitor failed to be created: node={} because={}", item.getReadValueId().getNodeId(), item.getStatusCode() );
+            }
+        };
+
+        // each lane sends its share of the chunks one after another, all lanes run concurrently
+        int lanes = Math.max( 1, Math.min( parallelism, chunks.size() ) );
+        List<CompletableFuture<?>> laneFutures = new ArrayList<>( lanes );
+        for ( int lane = 0; lane < lanes; lane++ ) {
+            CompletableFuture<Void> laneFuture = CompletableFuture.completedFuture( null );
+            for ( int c = lane; c < chunks.size(); c += lanes ) {
+                List<MonitoredItemCreateRequest> requests = chunks.get( c );
+                int chunkIndex = c;
+                laneFuture = laneFuture.thenCompose( previous -> {
+                    long start = System.nanoTime();
+                    return subscription.createMonitoredItems( TimestampsToReturn.Both, requests, itemCreationCallback )
+                            .thenAccept( items -> log.debug( "monitor chunk {}/{} of subscription {} with {} items took {}ms",
+                                    chunkIndex + 1, chunks.size(), subscription.getSubscriptionId(), requests.size(),
+                                    elapsedMillis( start ) ) );
+                } );
+            }
+            laneFutures.add( laneFuture );
+        }
+        return CompletableFuture.allOf( laneFutures.toArray( new CompletableFuture<?>[0] ) ).thenApply( done -> created.get() );
+    }
+
+    /**
+     * deletes the monitored items of the given monitors from a subscription, in chunks of at most {@link #maxMonitoredItemsPerCall} items
+     *
+     * @param subscription the subscription to delete the monitored items from
+     * @param monitors     the monitors to delete, still registered in {@link #clientHandles}
+     * @return the future of the number of monitored items deleted
+     */
+    public @NonNull CompletableFuture<Integer> deleteMonitoredItems( @NonNull UaSubscription subscription,
+            @NonNull Collection<@NonNull MonitorConfiguration> monitors ) {
+        Set<UInteger> handles = monitors.stream()
+                .map( monitor -> UInteger.valueOf( clientHandles.getHandle( monitor ) ) )
+                .collect( Collectors.toSet() );
+        List<UaMonitoredItem> items = subscription.getMonitoredItems().stream()
+                .filter( item -> handles.contains( item.getClientHandle() ) )
+                .collect( Collectors.toList() );
+        CompletableFuture<Void> future = CompletableFuture.completedFuture( null );
+        for ( int i = 0; i < items.size(); i += maxMonitoredItemsPerCall ) {
+            List<UaMonitoredItem> chunk = items.subList( i, Math.min( items.size(), i + maxMonitoredItemsPerCall ) );
+            future = future.thenCompose( previous -> subscription.deleteMonitoredItems( chunk ) )
+                    .thenAccept( statusCodes -> statusCodes.stream().filter( statusCode -> !statusCode.isGood() ).findAny()
+                            .ifPresent( statusCode -> log.warn( "monitors failed to be deleted from subscription {}: {}",
+                                    subscription.getSubscriptionId(), statusCode ) ) );
+        }
+        return future.thenApply( done -> items.size() );
+    }
+
+    /**
+     * changes the sampling interval of monitored items, keeping all their other parameters,
+     * in chunks of at most {@link #maxMonitoredItemsPerCall} items
+     *
+     * @param subscription      the subscription of the monitored items
+     * @param samplingIntervals the monitored items to their new sampling intervals in milliseconds
+     * @return the future of the number of monitored items modified successfully
+     */
+    public @NonNull CompletableFuture<Integer> modifySamplingIntervals( @NonNull UaSubscription subscription,
+            @NonNull Map<@NonNull UaMonitoredItem, @NonNull Double> samplingIntervals ) {
+        List<MonitoredItemModifyRequest> requests = samplingIntervals.entrySet().stream()
+                .map( entry -> {
+                    UaMonitoredItem item = entry.getKey();
+                    return new MonitoredItemModifyRequest( item.getMonitoredItemId(), new MonitoringParameters(
+                            item.getClientHandle(), entry.getValue(), item.getMonitoringFilter(),
+                            item.getRequestedQueueSize(), item.getDiscardOldest() ) );
+                } )
+                .collect( Collectors.toList() );
+        AtomicInteger modified = new AtomicInteger();
+        CompletableFuture<Void> future = CompletableFuture.completedFuture( null );
+        for ( int i = 0; i < requests.size(); i += maxMonitoredItemsPerCall ) {
+            List<MonitoredItemModifyRequest> chunk = requests.subList( i, Math.min( requests.size(), i + maxMonitoredItemsPerCall ) );
+            future = future.thenCompose( previous -> subscription.modifyMonitoredItems( TimestampsToReturn.Both, chunk ) )
+                    .thenAccept( statusCodes -> statusCodes.forEach( statusCode -> {
+                        if ( statusCode.isGood() ) {
+                            modified.incrementAndGet();
+                        }
+                        else {
+                            log.warn( "monitors failed to be modified on subscription {}: {}", subscription.getSubscriptionId(), statusCode );
+                        }
+                    } ) );
+        }
+        return future.thenApply( done -> modified.get() );
+    }
+
+    @SneakyThrows
+    MonitoredItemCreateRequest getCreateMonitorRequest(
+            @NonNull MonitorConfiguration configuration,
+            @NonNull UInteger clientHandle ) {
+        log.debug( "creating monitor on nodeId={}", configuration.getIdentifier() );
+        NodeId nodeId = NodeId.parse( configuration.getIdentifier() );
+        UInteger attributeId = configuration.getAttribute().uid();
+        ReadValueId readValueId = new ReadValueId( nodeId, attributeId, configuration.getIndexRange(), QualifiedName.NULL_VALUE );
+
+        UInteger queueSize = UInteger.valueOf( configuration.getQueueSize() );
+        DataChangeFilter dataChangeFilter = configuration.getDataChangeFilter();
+        ExtensionObject filter = dataChangeFilter == null ? null : ExtensionObject.encode( client.getStaticSerializationContext(), dataChangeFilter );
+        MonitoringParameters monitoringParameters = new MonitoringParameters( clientHandle, configuration.getSamplingInterval(), filter, queueSize, configuration.isDiscardOldest() );
+
+        return new MonitoredItemCreateRequest( readValueId, configuration.getMonitoringMode(), monitoringParameters );
+    }
+
+    /**
+     * @param start a {@link System#nanoTime()}
+     * @return the milliseconds passed since then
+     */
+    static long elapsedMillis( long start ) {
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    }
+}
@@ -0,0 +1,113 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+/**
+ * swinging door compression: writes only those samples needed to reconstruct every other good sample
+ * by linear interpolation between the written ones, with an error of at most the given deviation.
+ * <p>
+ * starting at the last written sample, two doors bound the slopes of the straight lines from it that pass each sample since then
+ * within the deviation. each incoming sample narrows the doors to still cover it. once the line to an incoming sample leaves the doors,
+ * that sample cannot end a line covering all samples since the pivot anymore, so the previous one is written and becomes the new pivot.
+ * samples with a non-good status code are written unchanged and restart the compression.
+ * <p>
+ * the newest sample is held back until the next one shows whether it is needed. so that a value that stopped changing
+ * is written nevertheless, a sample held back is written and becomes the new pivot once {@link #flush(long) flushed},
+ * which only adds a point and never increases the error.
+ *
+ * @author Tim Trense
+ */
+public class SwingingDoorReducer implements SampleSink {
+
+    private final @NonNull SampleSink target;
+    private final double deviation;
+
+    private boolean started;
+    private long pivotTimestamp;
+    private double pivotValue;
+    private double upperSlope;
+    private double lowerSlope;
+
+    private boolean pending;
+    private long lastTimestamp;
+    private double lastValue;
+    private int lastStatusCode;
+
+    /**
+     * whether this reducer is registered as holding back a sample in the {@link HeldSamples} of its writing thread
+     */
+    private boolean held;
+
+    public SwingingDoorReducer( @NonNull SampleSink target, double deviation ) {
+        if ( deviation < 0 ) {
+            throw new IllegalArgumentException( "the reduction deviation must not be negative but was " + deviation );
+        }
+        this.target = target;
+        this.deviation = deviation;
+    }
+
+    @Override
+    public void write( long timestamp, double value, int statusCode ) {
+        if ( !SampleRing.isGood( statusCode ) ) {
+            writePending();
+            started = false;
+            target.write( timestamp, value, statusCode );
+            return;
+        }
+        if ( !started ) {
+            target.write( timestamp, value, statusCode );
+            pivot( timestamp, value );
+            started = true;
+            return;
+        }
+        if ( timestamp <= pivotTimestamp ) {
+            return; // not newer than what has already been written
+        }
+        double elapsed = timestamp - pivotTimestamp;
+        double slope = ( value - pivotValue ) / elapsed;
+        // the doors are those of the samples before, so this one is only kept pending if the line to it covers all of them
+        if ( ( slope > upperSlope || slope < lowerSlope ) && pending ) {
+            writePending();
+            pivot( lastTimestamp, lastValue );
+            elapsed = timestamp - pivotTimestamp;
+        }
+        upperSlope = Math.min( upperSlope, ( value + deviation - pivotValue ) / elapsed );
+        lowerSlope = Math.max( lowerSlope, ( value - deviation - pivotValue ) / elapsed );
+        pending = true;
+        if ( !held ) {
+            HeldSamples.current().hold( this );
+            held = true;
+        }
+        lastTimestamp = timestamp;
+        lastValue = value;
+        lastStatusCode = statusCode;
+    }
+
+    /**
+     * writes the sample held back if it is older than the given time, continuing the compression from it
+     */
+    @Override
+    public boolean flush( long before ) {
+        if ( pending && lastTimestamp < before ) {
+            writePending();
+            pivot( lastTimestamp, lastValue );
+        }
+        held = pending;
+        return held;
+    }
+
+    private void pivot( long timestamp, double value ) {
+        pivotTimestamp = timestamp;
+        pivotValue = value;
+        upperSlope = Double.POSITIVE_INFINITY;
+        lowerSlope = Double.NEGATIVE_INFINITY;
+        pending = false;
+    }
+
+    private void writePending() {
+        if ( pending ) {
+            target.write( lastTimestamp, lastValue, lastStatusCode );
+            pending = false;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * renders the prometheus text format, see https://github.com/prometheus/docs/blob/master/content/docs/instrumenting/exposition_formats.md
+ *
+ * @author Tim Trense
+ */
+public class TextExpositionEncoder extends ExpositionEncoder {
+
+    public TextExpositionEncoder( @NonNull ExpositionWriter writer ) {
+        super( writer, ExpositionFormat.Text );
+    }
+
+    @Override
+    protected byte @NonNull [] encodeSeries( @NonNull SampleRing ring ) {
+        return ( ring.getMetric() + " " ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    @Override
+    protected void beginFamily( @NonNull MetricFamily family ) throws IOException {
+        StringBuilder metadata = new StringBuilder();
+        if ( family.getHelp() != null ) {
+            metadata.append( "# HELP " ).append( family.getName() ).append( ' ' );
+            MetricFamily.escape( family.getHelp(), false, metadata );
+            metadata.append( '\n' );
+        }
+        if ( family.getType() != MetricType.Untyped ) {
+            metadata.append( "# TYPE " ).append( family.getName() ).append( ' ' ).append( family.getType().getTextName() ).append( '\n' );
+        }
+        if ( metadata.length() > 0 ) {
+            writer.write( metadata.toString().getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Override
+    protected void writeSample( byte @NonNull [] series, double value, long timestamp ) throws IOException {
+        writer.write( series );
+        writer.writeDouble( value );
+        writer.write( (byte)' ' );
+        writer.writeLong( timestamp );
+        writer.write( (byte)'\n' );
+    }
+
+    @Override
+    protected void endFamily( @NonNull MetricFamily family ) {
+        // the text format has no family delimiter
+    }
+}
@@ -0,0 +1,406 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.milo.opcua.stack.core.serialization.SerializationContext;
+import org.eclipse.milo.opcua.stack.core.serialization.UaStructure;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * decodes the raw values of one monitor into samples: scalars are written to the monitors own series,
+ * arrays are expanded into one series per element with the label {@link #INDEX_LABEL}
+ * and structures into one series per numeric field with the label {@link #FIELD_LABEL}, recursively.
+ * <p>
+ * the series of elements and fields are registered on their first value and kept, so expanding allocates nothing
+ * but what milo already allocated for decoding. the fields of a structure are read via method handles,
+ * which are looked up once per structure class.
+ * there must only ever be one thread writing to an expander at a time, as for any {@link SampleSink}.
+ *
+ * @author Tim Trense
+ */
+@Log4j2
+public class ValueExpander implements SampleSink {
+
+    /**
+     * the label of the series of an array element, holding its index. indices of nested arrays are separated by ","
+     */
+    public static final String INDEX_LABEL = "index";
+
+    /**
+     * the label of the series of a structure field, holding its name. names of nested fields are separated by "."
+     */
+    public static final String FIELD_LABEL = "field";
+
+    private static final ValueExpander[] NONE = new ValueExpander[0];
+
+    /**
+     * the numeric fields per structure class, sorted by name
+     */
+    static final ClassValue<Field[]> FIELDS = new ClassValue<>() {
+        @Override
+        protected Field[] computeValue( Class<?> type ) {
+            return Field.of( type );
+        }
+    };
+
+    private final @NonNull Buffer buffer;
+    private final @NonNull MonitorConfiguration monitor;
+
+    /**
+     * how to decode structures or null to not decode them
+     */
+    private final SerializationContext context;
+
+    /**
+     * the labels of the series written by this expander
+     */
+    private final @NonNull Map<@NonNull String, @NonNull String> labels;
+
+    /**
+     * the array dimension the elements of this expander would be in, starting at 0
+     */
+    private final int dimension;
+
+    /**
+     * per array dimension: the index of the first element delivered, as given by the index range of the monitor
+     */
+    private final int @NonNull [] indexOffsets;
+
+    /**
+     * the series of scalar values, null until the first one arrives
+     */
+    private volatile SampleRing ring;
+
+    /**
+     * where to write scalar values to, which is {@link #ring} or a reduction in front of it
+     */
+    private SampleSink sink;
+
+    /**
+     * the expanders per array index, grown on demand
+     */
+    private volatile ValueExpander[] elements = NONE;
+
+    /**
+     * the structure class {@link #fields} are for
+     */
+    private Class<?> structure;
+
+    /**
+     * the expanders per field of {@link #structure}
+     */
+    private volatile ValueExpander[] fields = NONE;
+
+    /**
+     * whether an undecodable structure has been logged already
+     */
+    private boolean undecodableLogged;
+
+    /**
+     * the number of values written to this expander. only modified by the writer.
+     */
+    private volatile @Getter long notifications;
+
+    /**
+     * @param buffer  where to register the series of elements and fields in
+     * @param monitor the monitor whose values to expand
+     * @param ring    the series of the monitor itself
+     * @param context how to decode structures or null to not decode them
+     */
+    public ValueExpander( @NonNull Buffer buffer, @NonNull MonitorConfiguration monitor, @NonNull SampleRing ring,
+            SerializationContext context ) {
+        this( buffer, monitor, context, monitor.getMetricLabels(), 0, parseIndexOffsets( monitor.getIndexRange() ) );
+        this.ring = ring;
+        this.sink = monitor.getReduction().wrap( ring, monitor );
+    }
+
+    private ValueExpander( @NonNull Buffer buffer, @NonNull MonitorConfiguration monitor, SerializationContext context,
+            @NonNull Map<@NonNull String, @NonNull String> labels, int dimension, int @NonNull [] indexOffsets ) {
+        this.buffer = buffer;
+        this.monitor = monitor;
+        this.context = context;
+        this.labels = labels;
+        this.dimension = dimension;
+        this.indexOffsets = indexOffsets;
+    }
+
+    /**
+     * @param indexRange an opc ua index range like "2:5" or "0:1,3" or null
+     * @return the first index per dimension of that range
+     */
+    static int @NonNull [] parseIndexOffsets( String indexRange ) {
+        if ( indexRange == null || indexRange.isBlank() ) {
+            return new int[0];
+        }
+        String[] dimensions = indexRange.split( "," );
+        int[] offsets = new int[dimensions.length];
+        for ( int i = 0; i < dimensions.length; i++ ) {
+            String dimension = dimensions[i].trim();
+            int colon = dimension.indexOf( ':' );
+            offsets[i] = Integer.parseInt( colon < 0 ? dimension : dimension.substring( 0, colon ) );
+        }
+        return offsets;
+    }
+
+    @Override
+    public void write( long timestamp, double value, int statusCode ) {
+        notifications++;
+        scalarSink().write( timestamp, value, statusCode );
+    }
+
+    @Override
+    public void writeValue( long timestamp, Object value, int statusCode ) {
+        notifications++;
+        expand( timestamp, value, statusCode );
+    }
+
+    private void expand( long timestamp, Object value, int statusCode ) {
+        if ( value instanceof Variant ) {
+            value = ( (Variant)value ).getValue();
+        }
+        if ( value == null || value instanceof Number || value instanceof Boolean || value instanceof DateTime ) {
+            scalarSink().write( timestamp, SampleRing.toDouble( value ), statusCode );
+        }
+        else if ( value instanceof Object[] ) {
+            Object[] array = (Object[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].writeValue( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value.getClass().isArray() ) {
+            expandPrimitives( timestamp, value, statusCode );
+        }
+        else if ( value instanceof ExtensionObject ) {
+            Object decoded = context == null ? null : ( (ExtensionObject)value ).decodeOrNull( context );
+            if ( decoded == null ) {
+                if ( !undecodableLogged ) {
+                    undecodableLogged = true;
+                    log.warn( "cannot decode the structure with encoding {} of {}", ( (ExtensionObject)value ).getEncodingId(), monitor.getIdentifier() );
+                }
+                scalarSink().write( timestamp, Double.NaN, statusCode );
+                return;
+            }
+            expand( timestamp, decoded, statusCode );
+        }
+        else if ( value instanceof UaStructure ) {
+            writeFields( timestamp, value, statusCode );
+        }
+        else {
+            scalarSink().write( timestamp, SampleRing.toDouble( value ), statusCode );
+        }
+    }
+
+    /**
+     * writes each element of an array of primitives to the series of its index, without boxing it
+     */
+    private void expandPrimitives( long timestamp, @NonNull Object value, int statusCode ) {
+        if ( value instanceof double[] ) {
+            double[] array = (double[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value instanceof float[] ) {
+            float[] array = (float[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value instanceof long[] ) {
+            long[] array = (long[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value instanceof int[] ) {
+            int[] array = (int[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value instanceof short[] ) {
+            short[] array = (short[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value instanceof byte[] ) {
+            byte[] array = (byte[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i], statusCode );
+            }
+        }
+        else if ( value instanceof boolean[] ) {
+            boolean[] array = (boolean[])value;
+            ValueExpander[] expanders = elements( array.length );
+            for ( int i = 0; i < array.length; i++ ) {
+                expanders[i].write( timestamp, array[i] ? 1 : 0, statusCode );
+            }
+        }
+        else {
+            scalarSink().write( timestamp, SampleRing.toDouble( value ), statusCode ); // char[], which opc ua has no type for
+        }
+    }
+
+    @SneakyThrows
+    private void writeFields( long timestamp, @NonNull Object value, int statusCode ) {
+        if ( value.getClass() != structure ) {
+            structure = value.getClass();
+            Field[] structureFields = FIELDS.get( structure );
+            ValueExpander[] expanders = new ValueExpander[structureFields.length];
+            for ( int i = 0; i < expanders.length; i++ ) {
+                expanders[i] = child( FIELD_LABEL, structureFields[i].name, "." );
+            }
+            fields = expanders;
+        }
+        Field[] structureFields = FIELDS.get( structure );
+        ValueExpander[] expanders = fields;
+        for ( int i = 0; i < structureFields.length; i++ ) {
+            expanders[i].writeValue( timestamp, (Object)structureFields[i].getter.invokeExact( value ), statusCode );
+        }
+    }
+
+    /**
+     * marks all series written by this expander stale, see {@link SampleRing#markStale(long)}
+     */
+    @Override
+    public void markStale( long timestamp ) {
+        if ( ring != null ) {
+            ring.markStale( timestamp );
+        }
+        for ( ValueExpander element : elements ) {
+            element.markStale( timestamp );
+        }
+        for ( ValueExpander field : fields ) {
+            field.markStale( timestamp );
+        }
+    }
+
+    /**
+     * ends marking all series written by this expander stale, see {@link SampleRing#markFresh()}
+     */
+    @Override
+    public void markFresh() {
+        forEachRing( SampleRing::markFresh );
+    }
+
+    /**
+     * @param action what to do with each series written by this expander so far
+     */
+    public void forEachRing( @NonNull Consumer<@NonNull SampleRing> action ) {
+        if ( ring != null ) {
+            action.accept( ring );
+        }
+        for ( ValueExpander element : elements ) {
+            element.forEachRing( action );
+        }
+        for ( ValueExpander field : fields ) {
+            field.forEachRing( action );
+        }
+    }
+
+    private @NonNull SampleSink scalarSink() {
+        if ( sink == null ) {
+            ring = buffer.getNodeBuffer( monitor.getMetricFamily(), labels );
+            sink = monitor.getReduction().wrap( ring, monitor );
+        }
+        return sink;
+    }
+
+    private ValueExpander @NonNull [] elements( int length ) {
+        if ( length > elements.length ) {
+            int offset = dimension < indexOffsets.length ? indexOffsets[dimension] : 0;
+            ValueExpander[] grown = Arrays.copyOf( elements, length );
+            for ( int i = elements.length; i < length; i++ ) {
+                grown[i] = child( INDEX_LABEL, String.valueOf( offset + i ), "," );
+            }
+            elements = grown;
+        }
+        return elements;
+    }
+
+    private @NonNull ValueExpander child( @NonNull String label, @NonNull String value, @NonNull String separator ) {
+        Map<String, String> childLabels = new LinkedHashMap<>( labels );
+        childLabels.merge( label, value, ( parent, own ) -> parent + separator + own );
+        int childDimension = label.equals( INDEX_LABEL ) ? dimension + 1 : dimension;
+        return new ValueExpander( buffer, monitor, context, childLabels, childDimension, indexOffsets );
+    }
+
+    /**
+     * a numeric field of a structure class, read via its public getter
+     */
+    static class Field {
+
+        final @NonNull String name;
+
+        /**
+         * the getter of type (Object)Object
+         */
+        private final @NonNull MethodHandle getter;
+
+        private Field( @NonNull String name, @NonNull MethodHandle getter ) {
+            this.name = name;
+            this.getter = getter;
+        }
+
+        @SneakyThrows
+        private static Field @NonNull [] of( @NonNull Class<?> type ) {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            return Arrays.stream( type.getMethods() )
+                    .filter( method -> method.getParameterCount() == 0 && !Modifier.isStatic( method.getModifiers() ) )
+                    .filter( method -> isExpandable( method.getReturnType() ) )
+                    .filter( method -> fieldName( method ) != null )
+                    .sorted( Comparator.comparing( ValueExpander.Field::fieldName ) )
+                    .map( method -> new Field( fieldName( method ), unreflect( lookup, method ) ) )
+                    .toArray( Field[]::new );
+        }
+
+        @SneakyThrows
+        private static @NonNull MethodHandle unreflect( MethodHandles.@NonNull Lookup lookup, @NonNull Method method ) {
+            return lookup.unreflect( method ).asType( MethodType.methodType( Object.class, Object.class ) );
+        }
+
+        /**
+         * @return the field name of a getter like getValue or isValid or null if the method is no getter
+         */
+        private static String fieldName( @NonNull Method method ) {
+            String name = method.getName();
+            int prefix = name.startsWith( "get" ) ? 3 : name.startsWith( "is" ) ? 2 : 0;
+            if ( prefix == 0 || name.length() == prefix || name.equals( "getClass" ) ) {
+                return null;
+            }
+            return Character.toLowerCase( name.charAt( prefix ) ) + name.substring( prefix + 1 );
+        }
+
+        private static boolean isExpandable( @NonNull Class<?> type ) {
+            if ( type.isPrimitive() ) {
+                return type != void.class && type != char.class;
+            }
+            return Number.class.isAssignableFrom( type ) || type == Boolean.class || type == DateTime.class
+                    || type.isArray() || type == Variant.class || type == ExtensionObject.class
+                    || UaStructure.class.isAssignableFrom( type );
+        }
+    }
+}
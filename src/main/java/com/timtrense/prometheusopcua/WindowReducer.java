@@ -0,0 +1,109 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+
+/**
+ * reduces the good samples of each window of fixed length, aligned to the epoch, to a single sample
+ * timestamped like the newest sample in that window.
+ * a window is written once the first sample of a later window arrives, or else once it is over and {@link #flush(long) flushed}.
+ * samples with a non-good status code are written unchanged, after the current window.
+ *
+ * @author Tim Trense
+ */
+public class WindowReducer implements SampleSink {
+
+    private final @NonNull SampleSink target;
+    private final @NonNull SampleReduction reduction;
+
+    /**
+     * milliseconds per window
+     */
+    private final long window;
+
+    private long current;
+    private int count;
+    private double min;
+    private double max;
+    private double sum;
+    private double last;
+    private long lastTimestamp;
+    private int lastStatusCode;
+
+    /**
+     * whether this reducer is registered as holding back a sample in the {@link HeldSamples} of its writing thread
+     */
+    private boolean held;
+
+    public WindowReducer( @NonNull SampleSink target, @NonNull SampleReduction reduction, long window ) {
+        if ( window < 1 ) {
+            throw new IllegalArgumentException( "the reduction window must be positive but was " + window );
+        }
+        this.target = target;
+        this.reduction = reduction;
+        this.window = window;
+    }
+
+    @Override
+    public void write( long timestamp, double value, int statusCode ) {
+        if ( !SampleRing.isGood( statusCode ) ) {
+            flush();
+            target.write( timestamp, value, statusCode );
+            return;
+        }
+        long index = Math.floorDiv( timestamp, window );
+        if ( count > 0 && index != current ) {
+            flush();
+        }
+        if ( count == 0 ) {
+            current = index;
+            min = value;
+            max = value;
+            sum = 0;
+            if ( !held ) {
+                HeldSamples.current().hold( this );
+                held = true;
+            }
+        }
+        count++;
+        min = Math.min( min, value );
+        max = Math.max( max, value );
+        sum += value;
+        last = value;
+        lastTimestamp = timestamp;
+        lastStatusCode = statusCode;
+    }
+
+    /**
+     * writes the current window if it ended before the given time
+     */
+    @Override
+    public boolean flush( long before ) {
+        if ( count > 0 && ( current + 1 ) * window <= before ) {
+            flush();
+        }
+        held = count > 0;
+        return held;
+    }
+
+    private void flush() {
+        if ( count == 0 ) {
+            return;
+        }
+        double value;
+        switch ( reduction ) {
+            case Min:
+                value = min;
+                break;
+            case Max:
+                value = max;
+                break;
+            case Avg:
+                value = sum / count;
+                break;
+            default:
+                value = last;
+        }
+        count = 0;
+        target.write( lastTimestamp, value, lastStatusCode );
+    }
+}
@@ -0,0 +1,39 @@
+package com.timtrense.prometheusopcua;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * reusing objects from a {@link BoundedPool}
+ *
+ * @author Tim Trense
+ */
+public class BoundedPoolTest {
+
+    @Test
+    public void keepsAtMostItsCapacityOfIdleObjects() {
+        AtomicInteger created = new AtomicInteger();
+        BoundedPool<int[]> pool = new BoundedPool<>( 2, () -> new int[]{ created.incrementAndGet() } );
+
+        int[] first = pool.take();
+        int[] second = pool.take();
+        int[] third = pool.take();
+        assertEquals( 3, created.get(), "objects created while none is idle" );
+        assertNotSame( first, second );
+
+        assertTrue( pool.release( first ), "first released" );
+        assertTrue( pool.release( second ), "second released" );
+        assertFalse( pool.release( third ), "released while full" );
+
+        assertSame( first, pool.take(), "first taken again" );
+        assertSame( second, pool.take(), "second taken again" );
+        assertEquals( 4, pool.take()[0], "created once the idle ones are taken" );
+    }
+}
@@ -0,0 +1,114 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * routing client handles to sinks via {@link ClientHandleIndex}, both dense and sparse ones
+ *
+ * @author Tim Trense
+ */
+public class ClientHandleIndexTest {
+
+    private static @NonNull MonitorConfiguration monitor( Integer clientHandle ) {
+        MonitorConfiguration monitor = new MonitorConfiguration();
+        monitor.setIdentifier( "ns=2;s=node" + clientHandle );
+        monitor.setClientHandle( clientHandle );
+        return monitor;
+    }
+
+    private static @NonNull SampleSink sink() {
+        return ( timestamp, value, statusCode ) -> {
+        };
+    }
+
+    @Test
+    public void assignsHandlesAroundConfiguredOnes() {
+        ClientHandleIndex index = new ClientHandleIndex();
+        MonitorConfiguration configured = monitor( 2 );
+        SampleSink configuredSink = sink();
+        assertEquals( 2, index.register( configured, configuredSink ) );
+        List<Integer> assigned = new ArrayList<>();
+        for ( int i = 0; i < 3; i++ ) {
+            assigned.add( index.register( monitor( null ), sink() ) );
+        }
+        assertEquals( List.of( 1, 3, 4 ), assigned );
+        assertSame( configuredSink, index.get( 2 ) );
+        assertEquals( 2, index.getHandle( configured ) );
+        // registering again keeps the handle
+        assertEquals( 2, index.register( configured, sink() ) );
+        assertSame( configuredSink, index.get( 2 ) );
+    }
+
+    @Test
+    public void rejectsTakenHandles() {
+        ClientHandleIndex index = new ClientHandleIndex();
+        index.register( monitor( 7 ), sink() );
+        assertThrows( IllegalArgumentException.class, () -> index.register( monitor( 7 ), sink() ) );
+        assertThrows( IllegalStateException.class, () -> index.getHandle( monitor( 8 ) ) );
+    }
+
+    @Test
+    public void neverReusesUnregisteredHandles() {
+        ClientHandleIndex index = new ClientHandleIndex();
+        MonitorConfiguration first = monitor( null );
+        SampleSink sink = sink();
+        int handle = index.register( first, sink );
+        assertSame( sink, index.getSink( first ) );
+        index.unregister( first );
+        assertNull( index.get( handle ) );
+        assertNull( index.getSink( first ), "sink of an unregistered monitor" );
+        assertNotEquals( handle, index.register( monitor( null ), sink() ) );
+    }
+
+    @Test
+    public void routesDenseAndSparseHandles() {
+        ClientHandleIndex index = new ClientHandleIndex();
+        // beyond the initial dense array, beyond the dense limit and negative as an unsigned int above 2^31
+        int[] handles = {5000, 1 << 20, ( 1 << 20 ) + 1, Integer.MAX_VALUE, -1, -5};
+        List<MonitorConfiguration> monitors = new ArrayList<>();
+        List<SampleSink> sinks = new ArrayList<>();
+        for ( int handle : handles ) {
+            MonitorConfiguration monitor = monitor( handle );
+            SampleSink sink = sink();
+            monitors.add( monitor );
+            sinks.add( sink );
+            assertEquals( handle, index.register( monitor, sink ) );
+        }
+        // enough sparse handles to grow the table several times
+        for ( int i = 0; i < 100; i++ ) {
+            index.register( monitor( ( 2 << 20 ) + i * 31 ), sink() );
+        }
+        for ( int i = 0; i < handles.length; i++ ) {
+            assertSame( sinks.get( i ), index.get( handles[i] ) );
+        }
+        assertNull( index.get( 4999 ) );
+        assertNull( index.get( ( 1 << 20 ) + 2 ) );
+
+        // removing one must not break the probing of the others
+        index.unregister( monitors.get( 1 ) );
+        assertNull( index.get( handles[1] ) );
+        for ( int i = 2; i < handles.length; i++ ) {
+            assertSame( sinks.get( i ), index.get( handles[i] ) );
+        }
+    }
+
+    @Test
+    public void registersConfiguredHandlesFirst() {
+        ClientHandleIndex index = new ClientHandleIndex();
+        MonitorConfiguration auto = monitor( null );
+        MonitorConfiguration configured = monitor( 1 );
+        index.registerAll( List.of( auto, configured ), new Buffer( 4 ) );
+        assertEquals( 1, index.getHandle( configured ) );
+        assertEquals( 2, index.getHandle( auto ) );
+    }
+}
@@ -0,0 +1,101 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * reloading the configuration file with a {@link ConfigurationWatcher} once a burst of changes settled
+ *
+ * @author Tim Trense
+ */
+public class ConfigurationWatcherTest {
+
+    /**
+     * how long to wait for a reload, well above the quiet period of the watcher
+     */
+    private static final long RELOAD_MILLIS = 10_000;
+
+    /**
+     * how long to wait to be sure there is no reload
+     */
+    private static final long NO_RELOAD_MILLIS = 2_000;
+
+    @TempDir Path directory;
+
+    private Path configFile;
+    private final BlockingQueue<Configuration> reloaded = new LinkedBlockingQueue<>();
+    private ConfigurationWatcher watcher;
+
+    @BeforeEach
+    public void startWatching() throws IOException {
+        configFile = directory.resolve( "config.yaml" );
+        write( "url: opc.tcp://localhost:4840/initial" );
+        watcher = new ConfigurationWatcher( configFile, reloaded::add );
+    }
+
+    @AfterEach
+    public void stopWatching() throws IOException {
+        watcher.close();
+    }
+
+    private void write( @NonNull String content ) throws IOException {
+        Files.write( configFile, ( content + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private @NonNull String nextUrl() throws InterruptedException {
+        Configuration configuration = reloaded.poll( RELOAD_MILLIS, TimeUnit.MILLISECONDS );
+        assertNotNull( configuration, "reloaded configuration" );
+        return configuration.getUrl();
+    }
+
+    private void assertNoReload() throws InterruptedException {
+        Configuration configuration = reloaded.poll( NO_RELOAD_MILLIS, TimeUnit.MILLISECONDS );
+        assertNull( configuration, "reloaded configuration" );
+    }
+
+    @Test
+    public void aBurstOfChangesIsReloadedOnce() throws Exception {
+        for ( int i = 0; i < 5; i++ ) {
+            write( "url: opc.tcp://localhost:4840/edit" + i );
+            Thread.sleep( 50 );
+        }
+        assertEquals( "opc.tcp://localhost:4840/edit4", nextUrl(), "url after the last change" );
+        assertNoReload();
+    }
+
+    @Test
+    public void unchangedContentIsNotReloaded() throws Exception {
+        write( "url: opc.tcp://localhost:4840/initial" );
+        assertNoReload();
+
+        // replaced by renaming, as editors and config maps do
+        Path replacement = directory.resolve( "config.yaml.tmp" );
+        Files.write( replacement, "url: opc.tcp://localhost:4840/replaced\n".getBytes( StandardCharsets.UTF_8 ) );
+        Files.move( replacement, configFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        assertEquals( "opc.tcp://localhost:4840/replaced", nextUrl(), "url after replacing the file" );
+    }
+
+    @Test
+    public void anInvalidConfigurationIsSkipped() throws Exception {
+        write( "url: [" );
+        assertNoReload();
+        write( "url: opc.tcp://localhost:4840/fixed" );
+        assertEquals( "opc.tcp://localhost:4840/fixed", nextUrl(), "url after fixing the file" );
+    }
+}
@@ -0,0 +1,93 @@
+package com.timtrense.prometheusopcua;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * reducing the samples of a query in place via {@link Downsampling}
+ *
+ * @author Tim Trense
+ */
+public class DownsamplingTest {
+
+    @Test
+    public void aggregatesPerStep() {
+        long[] timestamps = {1000, 1500, 1999, 2000, 4200, 4300};
+        double[] values = {3, 1, 5, 7, 2, 4};
+        int size = Downsampling.Avg.reduce( timestamps, values, 6, 1000, 0 );
+        assertEquals( 3, size );
+        assertArrayEquals( new long[]{1000, 2000, 4000}, Arrays.copyOf( timestamps, size ) );
+        assertArrayEquals( new double[]{3, 7, 3}, Arrays.copyOf( values, size ) );
+
+        timestamps = new long[]{1000, 1500, 1999, 2000};
+        values = new double[]{3, 1, 5, 7};
+        size = Downsampling.Min.reduce( timestamps, values, 4, 1000, 0 );
+        assertArrayEquals( new double[]{1, 7}, Arrays.copyOf( values, size ) );
+
+        timestamps = new long[]{1000, 1500, 1999, 2000};
+        values = new double[]{3, 1, 5, 7};
+        size = Downsampling.Max.reduce( timestamps, values, 4, 1000, 0 );
+        assertArrayEquals( new double[]{5, 7}, Arrays.copyOf( values, size ) );
+
+        assertEquals( 4, Downsampling.None.reduce( timestamps, values, 4, 0, 0 ) );
+        assertThrows( IllegalArgumentException.class, () -> Downsampling.Avg.reduce( new long[1], new double[1], 1, 0, 0 ) );
+    }
+
+    @Test
+    public void lttbKeepsFirstLastAndPeaks() {
+        int size = 1000;
+        long[] timestamps = new long[size];
+        double[] values = new double[size];
+        for ( int i = 0; i < size; i++ ) {
+            timestamps[i] = i * 10L;
+            values[i] = Math.sin( i / 50.0 );
+        }
+        // single outliers the shape must keep
+        values[333] = 10;
+        values[777] = -10;
+        int points = Downsampling.Lttb.reduce( timestamps, values, size, 0, 50 );
+        assertEquals( 50, points );
+        assertEquals( 0, timestamps[0] );
+        assertEquals( 9990, timestamps[points - 1] );
+        for ( int i = 1; i < points; i++ ) {
+            assertTrue( timestamps[i] > timestamps[i - 1], "ascending timestamps" );
+        }
+        long[] kept = Arrays.copyOf( timestamps, points );
+        assertTrue( Arrays.binarySearch( kept, 3330 ) >= 0, "kept the maximum" );
+        assertTrue( Arrays.binarySearch( kept, 7770 ) >= 0, "kept the minimum" );
+        for ( int i = 0; i < points; i++ ) {
+            int index = (int)( timestamps[i] / 10 );
+            double expected = index == 333 ? 10 : index == 777 ? -10 : Math.sin( index / 50.0 );
+            assertEquals( expected, values[i], "values stay with their timestamps" );
+        }
+    }
+
+    @Test
+    public void lttbPicksLargestTriangles() {
+        long[] timestamps = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        double[] values = {0, 5, 1, 1, 8, 2, 2, 2, 10, 3};
+        int points = Downsampling.Lttb.reduce( timestamps, values, 10, 0, 4 );
+        // the buckets are 1 to 4 and 5 to 8, each picking the sample forming the largest triangle
+        // with the point picked before and the average of the next bucket (or the last sample)
+        assertEquals( 4, points );
+        assertArrayEquals( new long[]{0, 4, 8, 9}, Arrays.copyOf( timestamps, points ) );
+        assertArrayEquals( new double[]{0, 8, 10, 3}, Arrays.copyOf( values, points ) );
+    }
+
+    @Test
+    public void lttbKeepsSmallSeries() {
+        long[] timestamps = {0, 1, 2};
+        double[] values = {1, 2, 3};
+        assertEquals( 3, Downsampling.Lttb.reduce( timestamps, values, 3, 0, 3 ) );
+        assertEquals( 3, Downsampling.Lttb.reduce( timestamps, values, 3, 0, 0 ) );
+        assertEquals( 2, Downsampling.Lttb.reduce( timestamps, values, 3, 0, 2 ) );
+        assertArrayEquals( new long[]{0, 2}, Arrays.copyOf( timestamps, 2 ) );
+        assertArrayEquals( new double[]{1, 3}, Arrays.copyOf( values, 2 ) );
+    }
+}
@@ -0,0 +1,219 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * the exposition formats rendered by the {@link ExpositionEncoder}s
+ *
+ * @author Tim Trense
+ */
+public class ExpositionEncoderTest {
+
+    private static final MetricFamily TEMPERATURE = new MetricFamily( "opcua_temperature_celsius", MetricType.Gauge,
+            "the \"temperature\"\nin C", "celsius" );
+    private static final MetricFamily PARTS = new MetricFamily( "opcua_parts", MetricType.Counter, null, null );
+    private static final MetricFamily STATE = new MetricFamily( "opcua_state", MetricType.Untyped, null, null );
+
+    private static @NonNull SampleRing ring( @NonNull MetricFamily family, String @NonNull ... labels ) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for ( int i = 0; i < labels.length; i += 2 ) {
+            map.put( labels[i], labels[i + 1] );
+        }
+        return new SampleRing( family, map, 0, new HeapSampleStore( 1 ), new LongAdder() );
+    }
+
+    private static @NonNull String render( @NonNull ExpositionFormat format, @NonNull SampleRing hall, @NonNull SampleRing yard,
+            @NonNull SampleRing parts ) throws IOException {
+        return new String( renderBytes( format, hall, yard, parts ), StandardCharsets.UTF_8 );
+    }
+
+    private static byte @NonNull [] renderBytes( @NonNull ExpositionFormat format, @NonNull SampleRing hall, @NonNull SampleRing yard,
+            @NonNull SampleRing parts ) throws IOException {
+        ExpositionWriter writer = new ExpositionWriter();
+        ExpositionEncoder encoder = format.createEncoder( writer );
+        encoder.writeSample( hall, 21.5, 1_600_000_000_123L );
+        encoder.writeSample( hall, 22, 1_600_000_001_000L );
+        encoder.writeSample( yard, -3.25, 1_600_000_000_005L );
+        encoder.writeSample( parts, 1234, 1_600_000_000_050L );
+        encoder.finish();
+        return writer.toByteArray();
+    }
+
+    @Test
+    public void rendersOpenMetrics() throws IOException {
+        String rendered = render( ExpositionFormat.OpenMetrics, ring( TEMPERATURE, "hall", "a\\b" ), ring( TEMPERATURE, "hall", "yard" ),
+                ring( PARTS ) );
+        assertEquals( "# TYPE opcua_temperature_celsius gauge\n"
+                + "# UNIT opcua_temperature_celsius celsius\n"
+                + "# HELP opcua_temperature_celsius the \\\"temperature\\\"\\nin C\n"
+                + "opcua_temperature_celsius{hall=\"a\\\\b\"} 21.5 1600000000.123\n"
+                + "opcua_temperature_celsius{hall=\"a\\\\b\"} 22 1600000001.000\n"
+                + "opcua_temperature_celsius{hall=\"yard\"} -3.25 1600000000.005\n"
+                + "# TYPE opcua_parts counter\n"
+                + "opcua_parts_total 1234 1600000000.050\n"
+                + "# EOF\n", rendered );
+    }
+
+    @Test
+    public void rendersText() throws IOException {
+        String rendered = render( ExpositionFormat.Text, ring( TEMPERATURE, "hall", "a" ), ring( STATE ), ring( PARTS ) );
+        assertEquals( "# HELP opcua_temperature_celsius the \"temperature\"\\nin C\n"
+                + "# TYPE opcua_temperature_celsius gauge\n"
+                + "opcua_temperature_celsius{hall=\"a\"} 21.5 1600000000123\n"
+                + "opcua_temperature_celsius{hall=\"a\"} 22 1600000001000\n"
+                + "opcua_state -3.25 1600000000005\n"
+                + "# TYPE opcua_parts counter\n"
+                + "opcua_parts 1234 1600000000050\n", rendered );
+    }
+
+    @Test
+    public void reusesEncodedSeries() throws IOException {
+        SampleRing ring = ring( PARTS, "line", "1" );
+        assertNull( ring.getEncodedSeries( ExpositionFormat.Text ) );
+        render( ExpositionFormat.Text, ring, ring, ring );
+        byte[] encoded = ring.getEncodedSeries( ExpositionFormat.Text );
+        assertEquals( "opcua_parts{line=\"1\"} ", new String( encoded, StandardCharsets.UTF_8 ) );
+        render( ExpositionFormat.Text, ring, ring, ring );
+        assertSame( encoded, ring.getEncodedSeries( ExpositionFormat.Text ) );
+        assertNull( ring.getEncodedSeries( ExpositionFormat.Protobuf ) );
+    }
+
+    @Test
+    public void rendersDelimitedProtobuf() throws IOException {
+        byte[] rendered = renderBytes( ExpositionFormat.Protobuf, ring( TEMPERATURE, "hall", "\u00e4", "line", "1" ), ring( TEMPERATURE ),
+                ring( PARTS, "line", "x".repeat( 200 ) ) );
+        ProtobufReader reader = new ProtobufReader( rendered );
+
+        ProtobufReader temperature = reader.readDelimited();
+        assertEquals( "opcua_temperature_celsius", temperature.readString( 1 ) );
+        assertEquals( TEMPERATURE.getHelp(), temperature.readString( 2 ) );
+        assertEquals( 1, temperature.readVarint( 3 ) );
+        List<ProtobufReader> metrics = temperature.readAll( 4 );
+        assertEquals( 3, metrics.size() );
+        assertMetric( metrics.get( 0 ), 2, 21.5, 1_600_000_000_123L, "hall", "\u00e4", "line", "1" );
+        assertMetric( metrics.get( 1 ), 2, 22, 1_600_000_001_000L, "hall", "\u00e4", "line", "1" );
+        assertMetric( metrics.get( 2 ), 2, -3.25, 1_600_000_000_005L );
+
+        ProtobufReader parts = reader.readDelimited();
+        assertEquals( "opcua_parts", parts.readString( 1 ) );
+        assertEquals( 0, parts.readVarint( 3 ) );
+        metrics = parts.readAll( 4 );
+        assertEquals( 1, metrics.size() );
+        assertMetric( metrics.get( 0 ), 3, 1234, 1_600_000_000_050L, "line", "x".repeat( 200 ) );
+        assertFalse( reader.hasMore() );
+    }
+
+    private static void assertMetric( @NonNull ProtobufReader metric, int valueField, double value, long timestamp,
+            String @NonNull ... labels ) {
+        List<ProtobufReader> pairs = metric.readAll( 1 );
+        assertEquals( labels.length / 2, pairs.size() );
+        for ( int i = 0; i < pairs.size(); i++ ) {
+            assertEquals( labels[2 * i], pairs.get( i ).readString( 1 ) );
+            assertEquals( labels[2 * i + 1], pairs.get( i ).readString( 2 ) );
+        }
+        ProtobufReader gauge = metric.readMessage( valueField );
+        assertEquals( value, gauge.readDouble( 1 ) );
+        assertFalse( gauge.hasMore(), "no fields after the value" );
+        assertEquals( timestamp, metric.readVarint( 6 ) );
+    }
+
+    /**
+     * a minimal protobuf decoder, reading the fields of one message in order and asserting the expected field numbers
+     */
+    static class ProtobufReader {
+
+        private final ByteBuffer bytes;
+
+        ProtobufReader( byte @NonNull [] bytes ) {
+            this.bytes = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+        }
+
+        boolean hasMore() {
+            return bytes.hasRemaining();
+        }
+
+        long readRawVarint() {
+            long value = 0;
+            for ( int shift = 0; ; shift += 7 ) {
+                byte b = bytes.get();
+                value |= (long)( b & 0x7F ) << shift;
+                if ( b >= 0 ) {
+                    return value;
+                }
+            }
+        }
+
+        private int peekField() {
+            int position = bytes.position();
+            int field = (int)( readRawVarint() >>> 3 );
+            bytes.position( position );
+            return field;
+        }
+
+        private void expectTag( int field, int wireType ) {
+            long tag = readRawVarint();
+            assertEquals( field, tag >>> 3, "field number" );
+            assertEquals( wireType, tag & 7, "wire type of field " + field );
+        }
+
+        private byte @NonNull [] readRawBytes() {
+            byte[] result = new byte[(int)readRawVarint()];
+            bytes.get( result );
+            return result;
+        }
+
+        /**
+         * @return the next length-delimited message of a stream of messages
+         */
+        @NonNull ProtobufReader readDelimited() {
+            return new ProtobufReader( readRawBytes() );
+        }
+
+        @NonNull ProtobufReader readMessage( int field ) {
+            expectTag( field, ProtobufExpositionEncoder.WIRE_LENGTH_DELIMITED );
+            return new ProtobufReader( readRawBytes() );
+        }
+
+        /**
+         * @return the consecutive occurrences of a repeated message field
+         */
+        @NonNull List<ProtobufReader> readAll( int field ) {
+            List<ProtobufReader> result = new ArrayList<>();
+            while ( hasMore() && peekField() == field ) {
+                result.add( readMessage( field ) );
+            }
+            return result;
+        }
+
+        @NonNull String readString( int field ) {
+            expectTag( field, ProtobufExpositionEncoder.WIRE_LENGTH_DELIMITED );
+            return new String( readRawBytes(), StandardCharsets.UTF_8 );
+        }
+
+        long readVarint( int field ) {
+            expectTag( field, ProtobufExpositionEncoder.WIRE_VARINT );
+            return readRawVarint();
+        }
+
+        double readDouble( int field ) {
+            expectTag( field, ProtobufExpositionEncoder.WIRE_FIXED64 );
+            return bytes.getDouble();
+        }
+    }
+}
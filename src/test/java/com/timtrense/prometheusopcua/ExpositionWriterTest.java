@@ -0,0 +1,108 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * the number formatting of {@link ExpositionWriter}
+ *
+ * @author Tim Trense
+ */
+public class ExpositionWriterTest {
+
+    private static @NonNull String formatDouble( double value ) throws IOException {
+        ExpositionWriter writer = new ExpositionWriter();
+        writer.writeDouble( value );
+        return new String( writer.toByteArray(), StandardCharsets.US_ASCII );
+    }
+
+    private static void assertRoundTrip( double value ) throws IOException {
+        String formatted = formatDouble( value );
+        assertEquals( Double.doubleToLongBits( value == 0 ? 0 : value ), Double.doubleToLongBits( Double.parseDouble( formatted ) ),
+                () -> value + " was formatted as " + formatted );
+    }
+
+    @Test
+    public void formatsDoublesShortest() throws IOException {
+        assertEquals( "0", formatDouble( 0 ) );
+        assertEquals( "100", formatDouble( 100 ) );
+        assertEquals( "-42", formatDouble( -42 ) );
+        assertEquals( "0.1", formatDouble( 0.1 ) );
+        assertEquals( "-2.5", formatDouble( -2.5 ) );
+        assertEquals( "0.3", formatDouble( 0.3 ) );
+        assertEquals( "0.30000000000000004", formatDouble( 0.1 + 0.2 ) );
+        assertEquals( "123456.789", formatDouble( 123456.789 ) );
+        assertEquals( "0.0001", formatDouble( 1e-4 ) );
+        assertEquals( "9007199254740991", formatDouble( 9007199254740991.0 ) );
+        assertEquals( "1.0E-5", formatDouble( 1e-5 ) );
+        assertEquals( "1.0E20", formatDouble( 1e20 ) );
+        assertEquals( "NaN", formatDouble( Double.NaN ) );
+        assertEquals( "+Inf", formatDouble( Double.POSITIVE_INFINITY ) );
+        assertEquals( "-Inf", formatDouble( Double.NEGATIVE_INFINITY ) );
+    }
+
+    @Test
+    public void roundTripsEveryDouble() throws IOException {
+        double[] edges = {Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_NORMAL,
+                Math.ulp( 1.0 ), 1 - Math.ulp( 1.0 ), 1e15 - 0.5, 1e15, 0.1 + 0.2, 9007199254740993.0, 4.35, 2.675, 1e-4 - Math.ulp( 1e-4 )};
+        for ( double value : edges ) {
+            assertRoundTrip( value );
+        }
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 200_000; i++ ) {
+            double value = Double.longBitsToDouble( random.nextLong() );
+            if ( !Double.isNaN( value ) && !Double.isInfinite( value ) ) {
+                assertRoundTrip( value );
+            }
+            // values as typically read from sensors: few decimal digits at all magnitudes
+            assertRoundTrip( random.nextInt( 2_000_000 ) / Math.pow( 10, random.nextInt( 12 ) ) - 1000 );
+            assertRoundTrip( random.nextGaussian() * 1e6 );
+        }
+    }
+
+    @Test
+    public void formatsLongs() throws IOException {
+        long[] values = {0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for ( long value : values ) {
+            ExpositionWriter writer = new ExpositionWriter();
+            writer.writeLong( value );
+            assertEquals( Long.toString( value ), new String( writer.toByteArray(), StandardCharsets.US_ASCII ) );
+        }
+    }
+
+    @Test
+    public void writesVarints() throws IOException {
+        ExpositionWriter writer = new ExpositionWriter();
+        writer.writeVarint( 1 );
+        writer.writeVarint( 300 );
+        writer.writeVarint( -1 );
+        assertArrayEquals( new byte[]{1, (byte)0xAC, 0x02, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1}, writer.toByteArray() );
+        assertEquals( 1, ExpositionWriter.varintSize( 0 ) );
+        assertEquals( 2, ExpositionWriter.varintSize( 300 ) );
+        assertEquals( 10, ExpositionWriter.varintSize( -1 ) );
+    }
+
+    @Test
+    public void growsAndFlushes() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        ExpositionWriter writer = new ExpositionWriter();
+        writer.reset( target );
+        byte[] chunk = new byte[100_000];
+        chunk[99_999] = 1;
+        writer.write( chunk );
+        writer.write( (byte)2 );
+        assertEquals( 100_001, writer.size() );
+        writer.flush();
+        assertEquals( 0, writer.size() );
+        assertEquals( 100_001, target.size() );
+        assertEquals( 2, target.toByteArray()[100_000] );
+    }
+}
@@ -0,0 +1,178 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * the samples of {@link MappedSampleStorage} surviving a restart, also after a crash, a changed capacity or a garbled index
+ *
+ * @author Tim Trense
+ */
+public class MappedSampleStorageTest {
+
+    private static final MetricFamily FAMILY = new MetricFamily( "test", MetricType.Gauge, null, null );
+
+    @TempDir Path directory;
+
+    /**
+     * writes and publishes the samples with the given sequence numbers, each valued and timestamped like its sequence number
+     */
+    private static void writeSequences( @NonNull SampleStore store, long from, long to ) {
+        for ( long sequence = from; sequence < to; sequence++ ) {
+            store.write( (int)( sequence % store.getCapacity() ), sequence, sequence, 0 );
+            store.setPublished( sequence + 1 );
+        }
+    }
+
+    /**
+     * asserts that a ring restored from the store holds exactly the samples written by {@link #writeSequences(SampleStore, long, long)}
+     * with the given sequence numbers, which are renumbered when the samples are moved
+     */
+    private static void assertRestored( long from, long to, @NonNull SampleStore store ) {
+        SampleRing ring = new SampleRing( FAMILY, Map.of(), 0, store, new LongAdder() );
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 1 );
+        ring.read( snapshot );
+        assertEquals( to - from, snapshot.getSize(), "size" );
+        for ( int i = 0; i < snapshot.getSize(); i++ ) {
+            assertEquals( from + i, snapshot.getTimestamp( i ) );
+            assertEquals( from + i, snapshot.getValue( i ) );
+        }
+    }
+
+    /**
+     * @return per series the offset of its region, as listed in the index file
+     */
+    private @NonNull Map<String, Long> offsets() throws IOException {
+        Map<String, Long> offsets = new HashMap<>();
+        for ( String line : Files.readAllLines( directory.resolve( MappedSampleStorage.INDEX_FILE ) ) ) {
+            String[] fields = line.split( "\t", 3 );
+            offsets.put( fields[2], Long.parseLong( fields[0] ) );
+        }
+        return offsets;
+    }
+
+    @Test
+    public void reopeningRestoresTheSamplesOfEachSeries() throws IOException {
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            writeSequences( storage.allocate( "a", 10 ), 0, 7 );
+            writeSequences( storage.allocate( "b", 4 ), 0, 9 );
+            storage.allocate( "c", 4 );
+        }
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            assertRestored( 0, 7, storage.allocate( "a", 10 ) );
+            // the oldest slot of a full store is dropped, as it may be torn
+            assertRestored( 6, 9, storage.allocate( "b", 4 ) );
+            assertRestored( 0, 0, storage.allocate( "c", 4 ) );
+            assertRestored( 0, 0, storage.allocate( "d", 4 ) );
+        }
+    }
+
+    @Test
+    public void samplesNotPublishedBeforeACrashAreNotRestored() throws IOException {
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            SampleStore partial = storage.allocate( "partial", 10 );
+            writeSequences( partial, 0, 5 );
+            partial.write( 5, 5, 5, 0 );
+            // the oldest slot is overwritten by the newest sample, but the crash happens before publishing it
+            SampleStore full = storage.allocate( "full", 4 );
+            writeSequences( full, 0, 6 );
+            full.write( 2, 6, 6, 0 );
+        }
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            assertRestored( 0, 5, storage.allocate( "partial", 10 ) );
+            assertRestored( 3, 6, storage.allocate( "full", 4 ) );
+        }
+    }
+
+    @Test
+    public void anotherCapacityKeepsTheNewestSamplesAndReusesTheOldRegion() throws IOException {
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            writeSequences( storage.allocate( "shrunk", 10 ), 0, 8 );
+            writeSequences( storage.allocate( "grown", 4 ), 0, 6 );
+        }
+        Map<String, Long> before = offsets();
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            // the new region is taken while the old one is still in use, so it cannot overlap the samples to move.
+            // the oldest of the four moved samples is dropped, as the new region is full
+            assertRestored( 5, 8, storage.allocate( "shrunk", 4 ) );
+            // the old region was freed once the samples were moved and fits a series of the same capacity again
+            assertRestored( 0, 0, storage.allocate( "new", 10 ) );
+            // the oldest slot of the old full region is left out, as it may be torn
+            assertRestored( 3, 6, storage.allocate( "grown", 8 ) );
+        }
+        Map<String, Long> after = offsets();
+        assertEquals( before.get( "shrunk" ), after.get( "new" ), "offset of the region freed by shrinking" );
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            assertRestored( 5, 8, storage.allocate( "shrunk", 4 ) );
+            assertRestored( 3, 6, storage.allocate( "grown", 8 ) );
+            assertRestored( 0, 0, storage.allocate( "new", 10 ) );
+        }
+    }
+
+    @Test
+    public void theLastLineOfASeriesInTheIndexWins() throws IOException {
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            writeSequences( storage.allocate( "a", 4 ), 0, 3 );
+            writeSequences( storage.allocate( "b", 4 ), 0, 2 );
+            // superseding the region of a series while running appends another line for it
+            writeSequences( storage.allocate( "a", 8 ), 0, 6 );
+        }
+        Files.write( directory.resolve( MappedSampleStorage.INDEX_FILE ),
+                "garbage\n64\t-1\tc\n64\t4\tpartially written".getBytes( StandardCharsets.UTF_8 ), StandardOpenOption.APPEND );
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            List<String> lines = Files.readAllLines( directory.resolve( MappedSampleStorage.INDEX_FILE ) );
+            assertEquals( 2, lines.size(), "index rewritten with one line per series: " + lines );
+            assertRestored( 0, 6, storage.allocate( "a", 8 ) );
+            assertRestored( 0, 2, storage.allocate( "b", 4 ) );
+            assertRestored( 0, 0, storage.allocate( "c", 4 ) );
+        }
+    }
+
+    @Test
+    public void regionsNotAllocatedAgainAreFreed() throws IOException {
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            writeSequences( storage.allocate( "kept", 4 ), 0, 3 );
+            writeSequences( storage.allocate( "removed", 4 ), 0, 3 );
+        }
+        long removedOffset = offsets().get( "removed" );
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            storage.allocate( "kept", 4 );
+            assertEquals( 1, storage.freeUnallocated(), "series freed" );
+            assertEquals( 0, storage.freeUnallocated(), "series freed again" );
+            assertEquals( List.of( "kept" ), List.copyOf( offsets().keySet() ), "series in the index" );
+            // the freed region is reused and holds no samples of the removed series
+            assertRestored( 0, 0, storage.allocate( "added", 4 ) );
+            assertEquals( removedOffset, offsets().get( "added" ), "offset of the freed region" );
+        }
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            assertRestored( 0, 3, storage.allocate( "kept", 4 ) );
+            assertRestored( 0, 0, storage.allocate( "removed", 4 ) );
+        }
+    }
+
+    @Test
+    public void aDirectoryCannotBeOpenedTwice() throws IOException {
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            writeSequences( storage.allocate( "a", 4 ), 0, 3 );
+            assertThrows( IllegalStateException.class, () -> MappedSampleStorage.open( directory ) );
+            assertRestored( 0, 3, storage.allocate( "a", 4 ) );
+        }
+        try ( MappedSampleStorage storage = MappedSampleStorage.open( directory ) ) {
+            assertRestored( 0, 3, storage.allocate( "a", 4 ) );
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * browsing the address space of a local {@link StandInServer} with a {@link MonitorDiscovery} and reloading the nodes found from the cache
+ *
+ * @author Tim Trense
+ */
+public class MonitorDiscoveryTest {
+
+    private static final String ROOT = "ns=2;s=stand-in";
+
+    @TempDir Path directory;
+
+    private StandInServer standIn;
+    private OpcUaClient client;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        standIn = new StandInServer( 3 );
+        standIn.start();
+        client = OpcUaClient.create( standIn.getUrl() );
+        client.connect().get();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        client.disconnect().get();
+        standIn.close();
+    }
+
+    private @NonNull Path cacheFile() {
+        return directory.resolve( "browse.cache" );
+    }
+
+    /**
+     * discovers the monitors of a configuration browsing below the root of the stand-in nodes
+     *
+     * @param include          the regular expression of the browse paths to include
+     * @param modelVersionNode the node to compare the cache by
+     * @return the monitors discovered
+     */
+    private @NonNull List<MonitorConfiguration> discover( @NonNull String include, @NonNull String modelVersionNode ) {
+        Configuration configuration = new Configuration();
+        configuration.setUrl( standIn.getUrl() );
+        configuration.setBrowseCacheFile( cacheFile().toString() );
+        configuration.setModelVersionNode( modelVersionNode );
+        BrowseConfiguration browse = new BrowseConfiguration();
+        browse.setRoot( ROOT );
+        browse.setInclude( List.of( include ) );
+        SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+        subscription.getBrowse().add( browse );
+        configuration.getSubscriptions().add( subscription );
+        ServerConfiguration server = configuration.getServerConfigurations().get( 0 );
+        new MonitorDiscovery( configuration, server, client ).discover();
+        return subscription.getMonitors();
+    }
+
+    private static @NonNull List<String> paths( @NonNull List<MonitorConfiguration> monitors ) {
+        return monitors.stream().map( m -> m.getLabel().get( "path" ) ).collect( Collectors.toList() );
+    }
+
+    /**
+     * renames the path of each cached node, to tell nodes loaded from the cache from nodes browsed again
+     */
+    private void markCached() throws Exception {
+        String content = new String( Files.readAllBytes( cacheFile() ), StandardCharsets.UTF_8 );
+        Files.write( cacheFile(), content.replace( "\tnode", "\tcached-node" ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void theNodesFoundAreReloadedFromTheCache() throws Exception {
+        List<MonitorConfiguration> browsed = discover( ".*", "i=2257" );
+        assertEquals( List.of( "node0", "node1", "node2" ), paths( browsed ), "paths browsed" );
+        assertEquals( List.of( standIn.identifier( 0 ), standIn.identifier( 1 ), standIn.identifier( 2 ) ),
+                browsed.stream().map( MonitorConfiguration::getIdentifier ).collect( Collectors.toList() ), "identifiers browsed" );
+
+        List<String> lines = Files.readAllLines( cacheFile() );
+        assertEquals( 3, lines.size(), "cached nodes: " + lines );
+        BrowseConfiguration browse = new BrowseConfiguration();
+        browse.setRoot( ROOT );
+        assertEquals( MonitorDiscovery.digest( browse.getCacheKey() ), lines.get( 0 ).split( "\t" )[0], "cache key" );
+
+        markCached();
+        List<MonitorConfiguration> cached = discover( ".*", "i=2257" );
+        assertEquals( List.of( "cached-node0", "cached-node1", "cached-node2" ), paths( cached ), "paths loaded from the cache" );
+        assertEquals( standIn.identifier( 1 ), cached.get( 1 ).getIdentifier(), "identifier loaded from the cache" );
+
+        // another browse configuration is browsed and cached on its own
+        assertEquals( List.of( "node1" ), paths( discover( "node1", "i=2257" ) ), "paths browsed for another configuration" );
+        assertEquals( 1, Files.readAllLines( cacheFile() ).size(), "nodes cached for the configurations used last" );
+    }
+
+    @Test
+    public void theCacheIsNotUsedIfTheModelVersionCannotBeRead() throws Exception {
+        String unreadable = "ns=2;s=missing";
+        discover( ".*", unreadable );
+        markCached();
+        assertEquals( List.of( "node0", "node1", "node2" ), paths( discover( ".*", unreadable ) ), "paths browsed again" );
+
+        // a model version that moved since browsing makes the cache stale as well
+        discover( ".*", "i=2257" );
+        standIn.stop();
+        standIn.start();
+        client.disconnect().get();
+        client = OpcUaClient.create( standIn.getUrl() );
+        client.connect().get();
+        markCached();
+        assertEquals( List.of( "node0", "node1", "node2" ), paths( discover( ".*", "i=2257" ) ), "paths browsed after a restart" );
+    }
+
+    @Test
+    public void cacheKeysDoNotCollide() {
+        // equal hash codes of the plain texts
+        assertEquals( "Aa".hashCode(), "BB".hashCode() );
+        assertNotEquals( MonitorDiscovery.digest( "Aa" ), MonitorDiscovery.digest( "BB" ) );
+        assertEquals( 64, MonitorDiscovery.digest( "" ).length(), "length of a digest" );
+    }
+}
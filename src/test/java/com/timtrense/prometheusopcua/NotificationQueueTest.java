@@ -0,0 +1,168 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * handing notifications from the milo delivery threads to one ingesting thread via {@link NotificationQueue}
+ *
+ * @author Tim Trense
+ */
+public class NotificationQueueTest {
+
+    /**
+     * @return a monitored item only knowing its client handle
+     */
+    static @NonNull UaMonitoredItem item( int clientHandle ) {
+        return (UaMonitoredItem)Proxy.newProxyInstance( UaMonitoredItem.class.getClassLoader(), new Class<?>[]{UaMonitoredItem.class},
+                ( proxy, method, args ) -> {
+                    switch ( method.getName() ) {
+                        case "getClientHandle":
+                            return UInteger.valueOf( clientHandle );
+                        case "hashCode":
+                            return clientHandle;
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "item" + clientHandle;
+                        default:
+                            throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+    }
+
+    static @NonNull DataValue value( double value ) {
+        return new DataValue( new Variant( value ) );
+    }
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals( 2, new NotificationQueue( 1 ).getCapacity() );
+        assertEquals( 8, new NotificationQueue( 5 ).getCapacity() );
+        assertEquals( 8, new NotificationQueue( 8 ).getCapacity() );
+        assertThrows( IllegalArgumentException.class, () -> new NotificationQueue( 0 ) );
+    }
+
+    @Test
+    public void drainsInOrderAndRejectsWhenFull() {
+        NotificationQueue queue = new NotificationQueue( 4 );
+        UaMonitoredItem item = item( 1 );
+        for ( int i = 0; i < 4; i++ ) {
+            assertTrue( queue.offer( item, value( i ) ) );
+        }
+        assertFalse( queue.offer( item, value( 4 ) ), "full" );
+        assertEquals( 4, queue.size() );
+
+        List<Double> drained = new ArrayList<>();
+        assertEquals( 3, queue.drain( ( i, v ) -> drained.add( (Double)v.getValue().getValue() ), 3 ) );
+        assertEquals( List.of( 0.0, 1.0, 2.0 ), drained );
+        // the freed slots are reused on the next lap
+        assertTrue( queue.offer( item, value( 4 ) ) );
+        assertTrue( queue.offer( item, value( 5 ) ) );
+        assertEquals( 3, queue.drain( ( i, v ) -> {
+            assertSame( item, i );
+            drained.add( (Double)v.getValue().getValue() );
+        }, 10 ) );
+        assertEquals( List.of( 0.0, 1.0, 2.0, 3.0, 4.0, 5.0 ), drained );
+        assertEquals( 0, queue.size() );
+    }
+
+    @Test
+    public void putStopsWaitingOnceClosed() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue( 2 );
+        UaMonitoredItem item = item( 1 );
+        assertTrue( queue.put( item, value( 0 ), () -> true ) );
+        assertTrue( queue.put( item, value( 1 ), () -> true ) );
+        AtomicBoolean open = new AtomicBoolean( true );
+        Thread closer = new Thread( () -> {
+            sleep( 50 );
+            open.set( false );
+        } );
+        closer.start();
+        assertFalse( queue.put( item, value( 2 ), open::get ) );
+        closer.join();
+        assertEquals( 2, queue.size() );
+    }
+
+    @Test
+    public void awaitReturnsOnPublishOrTimeout() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue( 4 );
+        long start = System.nanoTime();
+        queue.await( TimeUnit.MILLISECONDS.toNanos( 50 ) );
+        assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50 ), "waited for the timeout" );
+
+        Thread producer = new Thread( () -> {
+            sleep( 50 );
+            queue.offer( item( 1 ), value( 1 ) );
+        } );
+        producer.start();
+        queue.await( TimeUnit.SECONDS.toNanos( 30 ) );
+        assertEquals( 1, queue.size() );
+        producer.join();
+    }
+
+    @Test
+    public void concurrentProducersLoseNothing() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue( 64 );
+        int producers = 4;
+        int perProducer = 100_000;
+        List<Thread> threads = new ArrayList<>();
+        for ( int p = 0; p < producers; p++ ) {
+            UaMonitoredItem item = item( p );
+            Thread thread = new Thread( () -> {
+                try {
+                    for ( int i = 0; i < perProducer; i++ ) {
+                        queue.put( item, value( i ) );
+                    }
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            } );
+            threads.add( thread );
+            thread.start();
+        }
+        // per producer, values must arrive completely and in order
+        int[] next = new int[producers];
+        int total = 0;
+        while ( total < producers * perProducer ) {
+            queue.await( TimeUnit.SECONDS.toNanos( 30 ) );
+            total += queue.drain( ( item, value ) -> {
+                int producer = item.getClientHandle().intValue();
+                assertEquals( next[producer]++, (Double)value.getValue().getValue() );
+            }, 1000 );
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        for ( int p = 0; p < producers; p++ ) {
+            assertEquals( perProducer, next[p] );
+        }
+        assertEquals( 0, queue.size() );
+    }
+
+    private static void sleep( long millis ) {
+        try {
+            Thread.sleep( millis );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
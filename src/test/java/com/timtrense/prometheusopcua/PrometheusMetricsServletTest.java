@@ -0,0 +1,235 @@
+package com.timtrense.prometheusopcua;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.NonNull;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * scraping a {@link PrometheusMetricsServlet} served by a local http server
+ *
+ * @author Tim Trense
+ */
+public class PrometheusMetricsServletTest {
+
+    private static final MetricFamily TEMPERATURE = new MetricFamily( "opcua_temperature", MetricType.Gauge, null, null );
+
+    /**
+     * the status code of a sample whose value is bad
+     */
+    private static final int BAD = 0x80000000;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Buffer buffer;
+    private ExporterMetrics metrics;
+    private PrometheusMetricsServlet servlet;
+    private Server server;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        buffer = new Buffer( 4 );
+        metrics = new ExporterMetrics();
+        servlet = new PrometheusMetricsServlet( buffer, metrics );
+        ServletHandler handler = new ServletHandler();
+        handler.addServletWithMapping( new ServletHolder( servlet ), "/metrics" );
+        server = new Server( 0 );
+        server.setHandler( handler );
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    private @NonNull SampleRing ring( int line ) {
+        return buffer.getNodeBuffer( TEMPERATURE, Map.of( "line", String.valueOf( line ) ) );
+    }
+
+    /**
+     * @param query   the query string of the request, without the leading question mark
+     * @param headers pairs of request header names and values
+     */
+    private @NonNull HttpResponse<byte[]> scrape( @NonNull String query, @NonNull String... headers ) throws IOException, InterruptedException {
+        int port = ( (ServerConnector)server.getConnectors()[0] ).getLocalPort();
+        HttpRequest.Builder request = HttpRequest.newBuilder( URI.create( "http://localhost:" + port + "/metrics?" + query ) );
+        for ( int i = 0; i < headers.length; i += 2 ) {
+            request.header( headers[i], headers[i + 1] );
+        }
+        return client.send( request.build(), HttpResponse.BodyHandlers.ofByteArray() );
+    }
+
+    /**
+     * @return the body of a successful response as text, decompressed if gzip encoded
+     */
+    private static @NonNull String body( @NonNull HttpResponse<byte[]> response ) throws IOException {
+        assertEquals( 200, response.statusCode(), "status" );
+        byte[] body = response.body();
+        if ( response.headers().firstValue( "Content-Encoding" ).orElse( "" ).equals( "gzip" ) ) {
+            try ( GZIPInputStream gzip = new GZIPInputStream( new ByteArrayInputStream( body ) ) ) {
+                body = gzip.readAllBytes();
+            }
+        }
+        return new String( body, StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void unchangedSamplesAreServedAgainOrAsNotModified() throws Exception {
+        ring( 1 ).write( 1000, 21.5, 0 );
+        ring( 2 ).write( 1000, 22.5, 0 );
+
+        for ( String encoding : new String[]{ "identity", "gzip" } ) {
+            HttpResponse<byte[]> first = scrape( "", "Accept-Encoding", encoding );
+            String etag = first.headers().firstValue( "ETag" ).orElseThrow();
+            String rendered = body( first );
+            assertTrue( rendered.contains( "opcua_temperature{line=\"1\"} 21.5 1000" ), rendered );
+            assertTrue( rendered.contains( "opcua_temperature{line=\"2\"} 22.5 1000" ), rendered );
+            // rendered again to capture it, then served from the cache
+            for ( int i = 0; i < 3; i++ ) {
+                HttpResponse<byte[]> again = scrape( "", "Accept-Encoding", encoding );
+                assertEquals( etag, again.headers().firstValue( "ETag" ).orElseThrow(), "entity tag of scrape " + i );
+                assertEquals( rendered, body( again ), "body of scrape " + i );
+            }
+            assertEquals( 304, scrape( "", "Accept-Encoding", encoding, "If-None-Match", etag ).statusCode(), "status if not modified" );
+        }
+
+        HttpResponse<byte[]> cached = scrape( "" );
+        ring( 1 ).write( 2000, 23.5, 0 );
+        HttpResponse<byte[]> changed = scrape( "", "If-None-Match", cached.headers().firstValue( "ETag" ).orElseThrow() );
+        assertNotEquals( cached.headers().firstValue( "ETag" ), changed.headers().firstValue( "ETag" ), "entity tag after a change" );
+        assertTrue( body( changed ).contains( "opcua_temperature{line=\"1\"} 23.5 2000" ), body( changed ) );
+        assertEquals( body( changed ), body( scrape( "" ) ), "body after a change rendered again" );
+    }
+
+    @Test
+    public void newSamplesAreDeliveredExactlyOncePerConsumer() throws Exception {
+        ring( 1 ).write( 1000, 21.5, 0 );
+        ring( 1 ).write( 2000, 22.5, 0 );
+        ring( 2 ).write( 1000, 31.5, 0 );
+
+        for ( String encoding : new String[]{ "identity", "gzip" } ) {
+            String consumer = "consumer-" + encoding;
+            String first = body( scrape( "mode=new&consumer=" + consumer, "Accept-Encoding", encoding ) );
+            assertTrue( first.contains( "opcua_temperature{line=\"1\"} 21.5 1000" ), first );
+            assertTrue( first.contains( "opcua_temperature{line=\"1\"} 22.5 2000" ), first );
+            assertTrue( first.contains( "opcua_temperature{line=\"2\"} 31.5 1000" ), first );
+            String again = body( scrape( "mode=new&consumer=" + consumer, "Accept-Encoding", encoding ) );
+            assertFalse( again.contains( "opcua_temperature{" ), "samples delivered again: " + again );
+        }
+
+        ring( 2 ).write( 3000, 32.5, 0 );
+        String changed = body( scrape( "mode=new&consumer=consumer-identity" ) );
+        assertFalse( changed.contains( "line=\"1\"" ), changed );
+        assertFalse( changed.contains( "31.5" ), changed );
+        assertTrue( changed.contains( "opcua_temperature{line=\"2\"} 32.5 3000" ), changed );
+
+        // without an explicit consumer, the remote address is the consumer
+        assertTrue( body( scrape( "mode=new" ) ).contains( "21.5 1000" ), "first scrape of the remote address" );
+        assertFalse( body( scrape( "mode=new" ) ).contains( "opcua_temperature{" ), "second scrape of the remote address" );
+    }
+
+    @Test
+    public void theCursorDoesNotAdvanceIfTheResponseCannotBeWritten() throws Exception {
+        ring( 1 ).write( 1000, 21.5, 0 );
+        HttpServletRequest request = proxy( HttpServletRequest.class, ( method, args ) -> {
+            switch ( method ) {
+                case "getParameter":
+                    return Map.of( "mode", "new", "consumer", "failing" ).get( (String)args[0] );
+                case "getRemoteAddr":
+                    return "127.0.0.1";
+                default:
+                    return null;
+            }
+        } );
+        ServletOutputStream broken = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener( WriteListener writeListener ) {
+            }
+
+            @Override
+            public void write( int b ) throws IOException {
+                throw new IOException( "connection reset" );
+            }
+        };
+        HttpServletResponse response = proxy( HttpServletResponse.class,
+                ( method, args ) -> method.equals( "getOutputStream" ) ? broken : null );
+        assertThrows( IOException.class, () -> servlet.doGet( request, response ) );
+
+        String retried = body( scrape( "mode=new&consumer=failing" ) );
+        assertTrue( retried.contains( "opcua_temperature{line=\"1\"} 21.5 1000" ), "samples after the failed scrape: " + retried );
+    }
+
+    @Test
+    public void cursorsOfConsumersThatStoppedScrapingExpire() throws Exception {
+        buffer.setCursorTimeout( 200 );
+        ring( 1 ).write( 1000, 21.5, 0 );
+        assertTrue( body( scrape( "mode=new&consumer=gone" ) ).contains( "21.5 1000" ), "first scrape" );
+        assertFalse( body( scrape( "mode=new&consumer=gone" ) ).contains( "21.5 1000" ), "second scrape" );
+
+        Thread.sleep( 300 );
+        body( scrape( "mode=new&consumer=other" ) );
+        assertEquals( Set.of( "other" ), buffer.getCursors().keySet(), "cursors after the timeout" );
+        // a consumer coming back after its cursor expired gets everything buffered again
+        assertTrue( body( scrape( "mode=new&consumer=gone" ) ).contains( "21.5 1000" ), "scrape after the timeout" );
+    }
+
+    @Test
+    public void theLatestGoodSampleIsRenderedPerSeries() throws Exception {
+        ring( 1 ).write( 1000, 21.5, 0 );
+        ring( 1 ).write( 2000, 22.5, 0 );
+        ring( 1 ).write( 3000, 0, BAD );
+        ring( 2 ).write( 1000, 0, BAD );
+        ring( 3 ).write( 1000, 41.5, 0 );
+
+        String latest = body( scrape( "mode=latest" ) );
+        assertTrue( latest.contains( "opcua_temperature{line=\"1\"} 22.5 2000" ), latest );
+        assertFalse( latest.contains( "21.5" ), latest );
+        assertFalse( latest.contains( "line=\"2\"" ), "series without good samples: " + latest );
+        assertTrue( latest.contains( "opcua_temperature{line=\"3\"} 41.5 1000" ), latest );
+        assertEquals( 1, metrics.getBadStatusSamples().sum(), "bad samples skipped after the latest good one" );
+
+        assertEquals( 400, scrape( "mode=oldest" ).statusCode(), "status of an unknown mode" );
+    }
+
+    /**
+     * @param type    the interface to implement
+     * @param methods per method name and arguments the result
+     * @return an implementation of the given interface answering by the given function
+     */
+    private static <T> @NonNull T proxy( @NonNull Class<T> type, @NonNull BiFunction<String, Object[], Object> methods ) {
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[]{ type },
+                ( proxy, method, args ) -> methods.apply( method.getName(), args ) ) );
+    }
+}
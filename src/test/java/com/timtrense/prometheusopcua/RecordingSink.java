@@ -0,0 +1,48 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a sink keeping every sample written to it, for asserting what a reduction writes
+ *
+ * @author Tim Trense
+ */
+public class RecordingSink implements SampleSink {
+
+    private final List<Sample> samples = new ArrayList<>();
+
+    @Override
+    public void write( long timestamp, double value, int statusCode ) {
+        samples.add( new Sample( timestamp, value, statusCode ) );
+    }
+
+    /**
+     * @return the samples written so far, then forgets them
+     */
+    public List<Sample> take() {
+        List<Sample> result = new ArrayList<>( samples );
+        samples.clear();
+        return result;
+    }
+
+    @Data
+    public static class Sample {
+
+        private final long timestamp;
+        private final double value;
+        private final int statusCode;
+
+        public Sample( long timestamp, double value ) {
+            this( timestamp, value, 0 );
+        }
+
+        public Sample( long timestamp, double value, int statusCode ) {
+            this.timestamp = timestamp;
+            this.value = value;
+            this.statusCode = statusCode;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.timtrense.prometheusopcua;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.compression.Snappy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.NonNull;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * pushing samples via {@link RemoteWriter} to a local receiver decoding the snappy compressed WriteRequest messages
+ *
+ * @author Tim Trense
+ */
+public class RemoteWriterTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis( 30 );
+    private static final long STALE_NAN = 0x7ff0000000000002L;
+    private static final MetricFamily TEMPERATURE = new MetricFamily( "opcua_temperature", MetricType.Gauge, null, null );
+
+    private Server server;
+    private Receiver receiver;
+    private ExporterMetrics metrics;
+    private RemoteWriter writer;
+
+    @BeforeEach
+    public void startReceiver() throws Exception {
+        receiver = new Receiver();
+        server = new Server( 0 );
+        server.setHandler( receiver );
+        server.start();
+        metrics = new ExporterMetrics();
+    }
+
+    @AfterEach
+    public void stopReceiver() throws Exception {
+        if ( writer != null ) {
+            writer.close();
+        }
+        server.stop();
+    }
+
+    private @NonNull RemoteWriteConfiguration configuration() {
+        RemoteWriteConfiguration configuration = new RemoteWriteConfiguration();
+        configuration.setUrl( "http://localhost:" + ( (ServerConnector)server.getConnectors()[0] ).getLocalPort() + "/api/v1/write" );
+        configuration.setBatchAge( 50 );
+        configuration.setTimeout( 5000 );
+        return configuration;
+    }
+
+    private void start( @NonNull RemoteWriteConfiguration configuration, @NonNull Buffer buffer ) {
+        writer = new RemoteWriter( configuration, buffer, metrics );
+        writer.start();
+    }
+
+    private static @NonNull SampleRing ring( @NonNull Buffer buffer, int line ) {
+        return buffer.getNodeBuffer( TEMPERATURE, Map.of( "line", String.valueOf( line ) ) );
+    }
+
+    @Test
+    public void sendsSamplesInBatches() throws Exception {
+        Buffer buffer = new Buffer( 1000 );
+        for ( int line = 0; line < 3; line++ ) {
+            SampleRing ring = ring( buffer, line );
+            for ( int i = 0; i < 250; i++ ) {
+                ring.write( 1000 + i, line * 1000 + i, 0 );
+            }
+        }
+        RemoteWriteConfiguration configuration = configuration();
+        configuration.setBatchSize( 100 );
+        start( configuration, buffer );
+        await( "all samples", () -> metrics.getRemoteWriteSamples().sum() == 750 );
+
+        List<Received> requests = receiver.getRequests();
+        assertTrue( requests.size() >= 8, "at least 8 requests of at most 100 samples, but got " + requests.size() );
+        for ( Received request : requests ) {
+            assertTrue( request.samples() <= 100, "batch of " + request.samples() + " samples" );
+            assertEquals( "snappy", request.headers.get( "Content-Encoding" ) );
+            assertEquals( "application/x-protobuf", request.headers.get( "Content-Type" ) );
+            assertEquals( "0.1.0", request.headers.get( "X-Prometheus-Remote-Write-Version" ) );
+        }
+        Map<String, List<RecordingSink.Sample>> series = receiver.getAcknowledged();
+        assertEquals( 3, series.size() );
+        for ( int line = 0; line < 3; line++ ) {
+            List<RecordingSink.Sample> expected = new ArrayList<>();
+            for ( int i = 0; i < 250; i++ ) {
+                expected.add( new RecordingSink.Sample( 1000 + i, line * 1000 + i ) );
+            }
+            // the labels sorted by name, as remote write requires
+            assertEquals( expected, series.get( "{__name__=opcua_temperature, line=" + line + "}" ) );
+        }
+        assertEquals( 0, metrics.getRemoteWriteFailedSamples().sum() );
+    }
+
+    @Test
+    public void retriesWithBackoffOnServerErrors() throws Exception {
+        Buffer buffer = new Buffer( 100 );
+        SampleRing ring = ring( buffer, 0 );
+        for ( int i = 0; i < 10; i++ ) {
+            ring.write( 1000 + i, i, 0 );
+        }
+        receiver.statuses.add( 503 );
+        receiver.statuses.add( 500 );
+        RemoteWriteConfiguration configuration = configuration();
+        configuration.setMinBackoff( 200 );
+        configuration.setMaxBackoff( 200 );
+        start( configuration, buffer );
+        await( "all samples", () -> metrics.getRemoteWriteSamples().sum() == 10 );
+
+        List<Received> requests = receiver.getRequests();
+        assertEquals( List.of( 503, 500, 204 ), requests.stream().map( r -> r.status ).collect( Collectors.toList() ) );
+        for ( int i = 1; i < requests.size(); i++ ) {
+            assertArrayEquals( requests.get( 0 ).body, requests.get( i ).body, "the same batch sent again" );
+            // the backoff with jitter waits at least half of 200ms
+            long waited = TimeUnit.NANOSECONDS.toMillis( requests.get( i ).time - requests.get( i - 1 ).time );
+            assertTrue( waited >= 100, "waited " + waited + "ms before retrying" );
+        }
+        assertEquals( 2, metrics.getRemoteWriteRetries().sum() );
+        assertEquals( 0, metrics.getRemoteWriteFailedSamples().sum() );
+    }
+
+    @Test
+    public void advancesOnlyAfterAcknowledgement() throws Exception {
+        Buffer buffer = new Buffer( 10 );
+        SampleRing ring = ring( buffer, 0 );
+        for ( int i = 0; i < 10; i++ ) {
+            ring.write( 1000 + i, i, 0 );
+        }
+        receiver.failing = true;
+        RemoteWriteConfiguration configuration = configuration();
+        configuration.setMaxRetries( 0 );
+        start( configuration, buffer );
+        // each failed batch is given up at once and built again from the buffer
+        await( "batches sent again", () -> receiver.getRequests().size() >= 3 );
+
+        // the samples sent but not acknowledged are still undelivered, so overwriting them counts
+        for ( int i = 10; i < 15; i++ ) {
+            ring.write( 1000 + i, i, 0 );
+        }
+        assertEquals( 5, ring.getOverwrites() );
+
+        receiver.failing = false;
+        await( "acknowledged samples", () -> receiver.getAcknowledged().values().stream()
+                .anyMatch( samples -> samples.get( samples.size() - 1 ).getValue() == 14 ) );
+        List<RecordingSink.Sample> expected = new ArrayList<>();
+        for ( int i = 5; i < 15; i++ ) {
+            expected.add( new RecordingSink.Sample( 1000 + i, i ) );
+        }
+        assertEquals( expected, receiver.getAcknowledged().get( "{__name__=opcua_temperature, line=0}" ), "the buffered samples, each once" );
+        assertEquals( 0, metrics.getRemoteWriteFailedSamples().sum() );
+    }
+
+    @Test
+    public void marksStaleSeriesOnce() throws Exception {
+        Buffer buffer = new Buffer( 100 );
+        SampleRing ring = ring( buffer, 0 );
+        ring.write( 1000, 1, 0 );
+        ring.write( 1001, 2, 0 );
+        ring.markStale( 5000 );
+        start( configuration(), buffer );
+        await( "staleness marker", () -> receiver.getAcknowledged().values().stream().anyMatch( samples -> samples.size() == 3 ) );
+        // collected several more times meanwhile
+        Thread.sleep( 300 );
+
+        List<RecordingSink.Sample> samples = receiver.getAcknowledged().get( "{__name__=opcua_temperature, line=0}" );
+        assertEquals( 3, samples.size() );
+        assertEquals( List.of( new RecordingSink.Sample( 1000, 1 ), new RecordingSink.Sample( 1001, 2 ) ), samples.subList( 0, 2 ) );
+        assertEquals( 5000, samples.get( 2 ).getTimestamp() );
+        assertEquals( STALE_NAN, Double.doubleToRawLongBits( samples.get( 2 ).getValue() ) );
+
+        // a fresh sample ends being stale, so that losing the session again gets another marker
+        ring.write( 6000, 3, 0 );
+        ring.markStale( 8000 );
+        await( "second staleness marker", () -> receiver.getAcknowledged().get( "{__name__=opcua_temperature, line=0}" ).size() == 5 );
+        samples = receiver.getAcknowledged().get( "{__name__=opcua_temperature, line=0}" );
+        assertEquals( new RecordingSink.Sample( 6000, 3 ), samples.get( 3 ) );
+        assertEquals( 8000, samples.get( 4 ).getTimestamp() );
+        assertEquals( STALE_NAN, Double.doubleToRawLongBits( samples.get( 4 ).getValue() ) );
+    }
+
+    @Test
+    public void closingSendsTheSamplesWrittenSinceTheLastDrain() throws Exception {
+        Buffer buffer = new Buffer( 100 );
+        SampleRing ring = ring( buffer, 0 );
+        RemoteWriteConfiguration configuration = configuration();
+        configuration.setBatchAge( 60_000 );
+        configuration.setBatchSize( 10 );
+        start( configuration, buffer );
+        for ( int i = 0; i < 25; i++ ) {
+            ring.write( 1000 + i, i, 0 );
+        }
+        writer.close();
+        writer = null;
+
+        assertEquals( 25, metrics.getRemoteWriteSamples().sum(), "samples sent before closing returned" );
+        List<RecordingSink.Sample> expected = new ArrayList<>();
+        for ( int i = 0; i < 25; i++ ) {
+            expected.add( new RecordingSink.Sample( 1000 + i, i ) );
+        }
+        assertEquals( expected, receiver.getAcknowledged().get( "{__name__=opcua_temperature, line=0}" ) );
+    }
+
+    @Test
+    public void restoredSamplesAreNotSentAgain() throws Exception {
+        // a storage restoring the samples of a previous run, which pushed them already
+        Buffer buffer = new Buffer( 10, ( series, capacity ) -> {
+            HeapSampleStore store = new HeapSampleStore( capacity );
+            for ( int i = 0; i < 5; i++ ) {
+                store.write( i, 1000 + i, i, 0 );
+            }
+            store.setPublished( 5 );
+            return store;
+        } );
+        SampleRing ring = ring( buffer, 0 );
+        for ( int i = 5; i < 8; i++ ) {
+            ring.write( 1000 + i, i, 0 );
+        }
+        start( configuration(), buffer );
+        await( "new samples", () -> metrics.getRemoteWriteSamples().sum() == 3 );
+
+        assertEquals( List.of( new RecordingSink.Sample( 1005, 5 ), new RecordingSink.Sample( 1006, 6 ), new RecordingSink.Sample( 1007, 7 ) ),
+                receiver.getAcknowledged().get( "{__name__=opcua_temperature, line=0}" ) );
+    }
+
+    private static void await( @NonNull String what, @NonNull BooleanSupplier condition ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ( !condition.getAsBoolean() ) {
+            assertTrue( System.currentTimeMillis() < deadline, "timed out waiting for " + what );
+            Thread.sleep( 20 );
+        }
+    }
+
+    /**
+     * a request as received, with its WriteRequest decoded to the samples per series
+     */
+    private static class Received {
+
+        private final long time = System.nanoTime();
+        private final int status;
+        private final byte[] body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private final Map<String, List<RecordingSink.Sample>> series = new LinkedHashMap<>();
+
+        private Received( int status, byte @NonNull [] body ) {
+            this.status = status;
+            this.body = body;
+        }
+
+        private int samples() {
+            return series.values().stream().mapToInt( List::size ).sum();
+        }
+    }
+
+    /**
+     * a remote write receiver responding with the queued statuses first, then with 503 while failing or else 204
+     */
+    private static class Receiver extends AbstractHandler {
+
+        private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+        private final List<Received> requests = new ArrayList<>();
+        private volatile boolean failing;
+
+        @Override
+        public void handle( String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response ) throws IOException {
+            Integer queued = statuses.poll();
+            Received received = new Received( queued != null ? queued : failing ? 503 : 204, request.getInputStream().readAllBytes() );
+            for ( String name : List.of( "Content-Encoding", "Content-Type", "X-Prometheus-Remote-Write-Version" ) ) {
+                received.headers.put( name, request.getHeader( name ) );
+            }
+            decode( received );
+            synchronized( requests ) {
+                requests.add( received );
+            }
+            response.setStatus( received.status );
+            baseRequest.setHandled( true );
+        }
+
+        private static void decode( @NonNull Received received ) {
+            ByteBuf in = Unpooled.wrappedBuffer( received.body );
+            ByteBuf out = Unpooled.buffer();
+            try {
+                new Snappy().decode( in, out );
+                byte[] decompressed = new byte[out.readableBytes()];
+                out.readBytes( decompressed );
+                ExpositionEncoderTest.ProtobufReader writeRequest = new ExpositionEncoderTest.ProtobufReader( decompressed );
+                for ( ExpositionEncoderTest.ProtobufReader timeSeries : writeRequest.readAll( 1 ) ) {
+                    Map<String, String> labels = new LinkedHashMap<>();
+                    for ( ExpositionEncoderTest.ProtobufReader label : timeSeries.readAll( 1 ) ) {
+                        labels.put( label.readString( 1 ), label.readString( 2 ) );
+                    }
+                    List<RecordingSink.Sample> samples = received.series.computeIfAbsent( labels.toString(), l -> new ArrayList<>() );
+                    for ( ExpositionEncoderTest.ProtobufReader sample : timeSeries.readAll( 2 ) ) {
+                        double value = sample.readDouble( 1 );
+                        samples.add( new RecordingSink.Sample( sample.readVarint( 2 ), value ) );
+                    }
+                }
+                assertFalse( writeRequest.hasMore(), "only time series in the write request" );
+            }
+            finally {
+                in.release();
+                out.release();
+            }
+        }
+
+        private @NonNull List<Received> getRequests() {
+            synchronized( requests ) {
+                return new ArrayList<>( requests );
+            }
+        }
+
+        /**
+         * @return per series all samples of the acknowledged requests, in the order received
+         */
+        private @NonNull Map<String, List<RecordingSink.Sample>> getAcknowledged() {
+            Map<String, List<RecordingSink.Sample>> result = new LinkedHashMap<>();
+            for ( Received request : getRequests() ) {
+                if ( request.status / 100 == 2 ) {
+                    request.series.forEach( ( series, samples ) -> result.computeIfAbsent( series, s -> new ArrayList<>() ).addAll( samples ) );
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * spreading the monitors across replicas via {@link ReplicaPartition}
+ *
+ * @author Tim Trense
+ */
+public class ReplicaPartitionTest {
+
+    private static final int MONITORS = 10_000;
+
+    private static @NonNull List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for ( int i = 0; i < MONITORS; i++ ) {
+            keys.add( "plant/ns=2;s=line" + i / 100 + ".sensor" + i % 100 );
+        }
+        return keys;
+    }
+
+    @Test
+    public void spreadsEvenly() {
+        for ( int count = 2; count <= 8; count++ ) {
+            int[] owned = new int[count];
+            for ( String key : keys() ) {
+                owned[ReplicaPartition.owner( key, count )]++;
+            }
+            for ( int replica = 0; replica < count; replica++ ) {
+                assertEquals( MONITORS / (double)count, owned[replica], MONITORS * 0.2 / count,
+                        "monitors of replica " + replica + " of " + count );
+            }
+        }
+    }
+
+    @Test
+    public void addingReplicaMovesOnlyItsShare() {
+        for ( int count = 1; count < 8; count++ ) {
+            int moved = 0;
+            for ( String key : keys() ) {
+                int before = ReplicaPartition.owner( key, count );
+                int after = ReplicaPartition.owner( key, count + 1 );
+                if ( before != after ) {
+                    assertEquals( count, after, "monitors only move to the added replica" );
+                    moved++;
+                }
+            }
+            double expected = MONITORS / (double)( count + 1 );
+            assertEquals( expected, moved, expected * 0.2, "monitors moved when adding replica " + count );
+        }
+    }
+
+    @Test
+    public void ownersAreDisjointAndComplete() {
+        ServerConfiguration server = new ServerConfiguration();
+        server.setName( "plant" );
+        SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+        for ( int i = 0; i < 1000; i++ ) {
+            MonitorConfiguration monitor = new MonitorConfiguration();
+            monitor.setIdentifier( "ns=2;i=" + i );
+            subscription.getMonitors().add( monitor );
+        }
+        server.getSubscriptions().add( subscription );
+        int count = 3;
+        for ( MonitorConfiguration monitor : subscription.getMonitors() ) {
+            int owners = 0;
+            for ( int index = 0; index < count; index++ ) {
+                owners += new ReplicaPartition( index, count ).owns( server, monitor ) ? 1 : 0;
+            }
+            assertEquals( 1, owners, monitor.getIdentifier() );
+        }
+        // the key includes the server name
+        assertEquals( "plant/ns=2;i=0", ReplicaPartition.key( server, subscription.getMonitors().get( 0 ) ) );
+    }
+
+    @Test
+    public void derivesIndexFromEnvironment() {
+        Configuration configuration = new Configuration();
+        assertSame( ReplicaPartition.ALL, ReplicaPartition.of( configuration, Map.of() ) );
+        assertFalse( ReplicaPartition.ALL.isPartitioned() );
+
+        configuration.setReplicas( 3 );
+        assertThrows( IllegalArgumentException.class, () -> ReplicaPartition.of( configuration, Map.of() ) );
+        assertEquals( new ReplicaPartition( 2, 3 ), ReplicaPartition.of( configuration, Map.of( ReplicaPartition.HOSTNAME_VARIABLE, "exporter-2" ) ) );
+        configuration.setReplica( 1 );
+        assertEquals( new ReplicaPartition( 1, 3 ), ReplicaPartition.of( configuration, Map.of( ReplicaPartition.HOSTNAME_VARIABLE, "exporter-2" ) ) );
+        ReplicaPartition partition = ReplicaPartition.of( configuration,
+                Map.of( ReplicaPartition.REPLICAS_VARIABLE, "5", ReplicaPartition.REPLICA_VARIABLE, " 4 " ) );
+        assertEquals( new ReplicaPartition( 4, 5 ), partition );
+        assertTrue( partition.isPartitioned() );
+
+        assertThrows( IllegalArgumentException.class, () -> ReplicaPartition.of( configuration, Map.of( ReplicaPartition.REPLICA_VARIABLE, "x" ) ) );
+        assertThrows( IllegalArgumentException.class, () -> ReplicaPartition.of( configuration, Map.of( ReplicaPartition.REPLICA_VARIABLE, "3" ) ) );
+    }
+}
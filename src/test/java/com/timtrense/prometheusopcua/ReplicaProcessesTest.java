@@ -0,0 +1,177 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * several exporter processes sharing one configuration, each monitoring its {@link ReplicaPartition} of a local {@link StandInServer}
+ *
+ * @author Tim Trense
+ */
+public class ReplicaProcessesTest {
+
+    private static final int NODES = 200;
+    private static final int REPLICAS = 2;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis( 60 );
+    private static final Pattern NODE_LABEL = Pattern.compile( "node=\"(\\d+)\"" );
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final List<Process> processes = new ArrayList<>();
+    private StandInServer standIn;
+    private Path configFile;
+    private int httpPort;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        standIn = new StandInServer( NODES );
+        standIn.start();
+        // the replicas listen on consecutive ports from here on
+        httpPort = StandInServer.freePort();
+        configFile = Files.createTempFile( "replicas", ".yaml" );
+        try ( PrintWriter writer = new PrintWriter( Files.newBufferedWriter( configFile, StandardCharsets.UTF_8 ) ) ) {
+            writer.println( "url: " + standIn.getUrl() );
+            writer.println( "httpPort: " + httpPort );
+            writer.println( "replicaPortOffset: true" );
+            writer.println( "reloadConfiguration: false" );
+            writer.println( "subscriptions:" );
+            writer.println( "    -   requestedPublishingInterval: 100" );
+            writer.println( "        monitors:" );
+            for ( int i = 0; i < NODES; i++ ) {
+                writer.println( "            -   identifier: \"" + standIn.identifier( i ) + "\"" );
+                writer.println( "                label: {node: \"" + i + "\"}" );
+            }
+        }
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        stopReplicas();
+        standIn.close();
+        Files.deleteIfExists( configFile );
+    }
+
+    @Test
+    public void replicasCoverMonitorsDisjointlyAndAddingOneMovesItsShare() throws Exception {
+        Map<Integer, Integer> owners = startReplicas( REPLICAS );
+        stopReplicas();
+        Map<Integer, Integer> ownersAfterAdding = startReplicas( REPLICAS + 1 );
+
+        int moved = 0;
+        for ( int node = 0; node < NODES; node++ ) {
+            if ( !owners.get( node ).equals( ownersAfterAdding.get( node ) ) ) {
+                assertEquals( REPLICAS, ownersAfterAdding.get( node ), "node" + node + " moved to another than the added replica" );
+                moved++;
+            }
+        }
+        double expected = NODES / (double)( REPLICAS + 1 );
+        assertEquals( expected, moved, expected * 0.35, "monitors moved when adding a replica" );
+    }
+
+    /**
+     * starts the given number of exporter processes and waits until they expose every node together
+     *
+     * @return per node the replica exposing it, asserting that no other one does
+     */
+    private @NonNull Map<Integer, Integer> startReplicas( int count ) throws Exception {
+        Path java = Paths.get( System.getProperty( "java.home" ), "bin", "java" );
+        for ( int index = 0; index < count; index++ ) {
+            // short-lived processes start faster without the optimizing compiler
+            ProcessBuilder builder = new ProcessBuilder( java.toString(), "-XX:TieredStopAtLevel=1", "-cp", System.getProperty( "java.class.path" ),
+                    Main.class.getName(), configFile.toString() );
+            builder.environment().put( ReplicaPartition.REPLICAS_VARIABLE, String.valueOf( count ) );
+            builder.environment().put( ReplicaPartition.REPLICA_VARIABLE, String.valueOf( index ) );
+            builder.redirectErrorStream( true ).redirectOutput( ProcessBuilder.Redirect.DISCARD );
+            processes.add( builder.start() );
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ( true ) {
+            Map<Integer, Integer> owners = new HashMap<>();
+            int exposed = 0;
+            for ( int index = 0; index < count; index++ ) {
+                Set<Integer> nodes = exposedNodes( index );
+                exposed += nodes.size();
+                for ( int node : nodes ) {
+                    owners.put( node, index );
+                }
+            }
+            // exposed twice would be counted once in the owners only
+            assertEquals( owners.size(), exposed, "nodes exposed by more than one of " + count + " replicas" );
+            if ( owners.size() == NODES ) {
+                for ( int node = 0; node < NODES; node++ ) {
+                    assertEquals( ReplicaPartition.owner( standIn.identifier( node ), count ), owners.get( node ), "owner of node" + node );
+                }
+                for ( int index = 0; index < count; index++ ) {
+                    assertTrue( owners.containsValue( index ), "replica " + index + " of " + count + " monitors nothing" );
+                }
+                return owners;
+            }
+            for ( Process process : processes ) {
+                assertTrue( process.isAlive(), () -> "replica exited with " + process.exitValue() );
+            }
+            assertTrue( System.currentTimeMillis() < deadline, "timed out waiting for " + count + " replicas to expose all nodes, "
+                    + owners.size() + " of " + NODES + " exposed" );
+            Thread.sleep( 200 );
+        }
+    }
+
+    /**
+     * @return the nodes the replica exposes, none if it is not listening yet
+     */
+    private @NonNull Set<Integer> exposedNodes( int index ) throws InterruptedException {
+        URI uri = URI.create( "http://localhost:" + ( httpPort + index ) + "/metrics?mode=latest" );
+        Set<Integer> nodes = new HashSet<>();
+        try {
+            HttpResponse<InputStream> response = client.send( HttpRequest.newBuilder( uri ).build(), HttpResponse.BodyHandlers.ofInputStream() );
+            try ( InputStream body = response.body() ) {
+                String text = new String( body.readAllBytes(), StandardCharsets.UTF_8 );
+                Matcher matcher = NODE_LABEL.matcher( text );
+                while ( matcher.find() ) {
+                    assertTrue( nodes.add( Integer.parseInt( matcher.group( 1 ) ) ), "one sample per series" );
+                }
+            }
+        }
+        catch ( IOException e ) {
+            // not listening yet
+        }
+        return nodes;
+    }
+
+    private void stopReplicas() throws InterruptedException {
+        for ( Process process : processes ) {
+            process.destroy();
+        }
+        for ( Process process : processes ) {
+            if ( !process.waitFor( 10, TimeUnit.SECONDS ) ) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+        processes.clear();
+    }
+}
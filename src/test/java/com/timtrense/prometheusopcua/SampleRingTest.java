@@ -0,0 +1,214 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * the seqlock of {@link SampleRing}: readers never see torn samples, resizing keeps the newest ones
+ *
+ * @author Tim Trense
+ */
+public class SampleRingTest {
+
+    private static final MetricFamily FAMILY = new MetricFamily( "test", MetricType.Gauge, null, null );
+
+    private static @NonNull SampleRing ring( @NonNull SampleStore store ) {
+        return new SampleRing( FAMILY, Map.of(), 0, store, new LongAdder() );
+    }
+
+    /**
+     * writes the samples with the given sequence numbers, each valued and timestamped like its sequence number
+     */
+    private static void writeSequences( @NonNull SampleRing ring, long from, long to ) {
+        for ( long sequence = from; sequence < to; sequence++ ) {
+            ring.write( sequence, sequence, 0 );
+        }
+    }
+
+    /**
+     * asserts that the snapshot holds exactly the samples written by {@link #writeSequences(SampleRing, long, long)} with the given sequence numbers
+     */
+    private static void assertSamples( long from, long to, SampleRing.@NonNull Snapshot snapshot ) {
+        assertEquals( from, snapshot.getSequence(), "first sequence" );
+        assertEquals( to - from, snapshot.getSize(), "size" );
+        for ( int i = 0; i < snapshot.getSize(); i++ ) {
+            assertEquals( from + i, snapshot.getTimestamp( i ) );
+            assertEquals( from + i, snapshot.getValue( i ) );
+        }
+    }
+
+    @Test
+    public void readsNewestSamplesInOrder() {
+        SampleRing ring = ring( new HeapSampleStore( 4 ) );
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 1 );
+        ring.read( snapshot );
+        assertSamples( 0, 0, snapshot );
+
+        writeSequences( ring, 0, 3 );
+        ring.read( snapshot );
+        assertSamples( 0, 3, snapshot );
+
+        writeSequences( ring, 3, 10 );
+        ring.read( snapshot );
+        assertSamples( 6, 10, snapshot );
+        ring.read( snapshot, 8 );
+        assertSamples( 8, 10, snapshot );
+        ring.read( snapshot, 0, 8 );
+        assertSamples( 6, 8, snapshot );
+    }
+
+    @Test
+    public void skipsSamplesOverwrittenWhileCopying() {
+        AtomicReference<SampleRing> ring = new AtomicReference<>();
+        AtomicBoolean interfere = new AtomicBoolean();
+        // the writer overwrites the two oldest slots right after the reader copied them
+        HeapSampleStore store = new HeapSampleStore( 4 ) {
+            @Override
+            public void read( int index, long[] timestamps, double[] values, int[] statusCodes, int offset, int length ) {
+                super.read( index, timestamps, values, statusCodes, offset, length );
+                if ( interfere.getAndSet( false ) ) {
+                    writeSequences( ring.get(), 4, 6 );
+                }
+            }
+        };
+        ring.set( ring( store ) );
+        writeSequences( ring.get(), 0, 4 );
+
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 4 );
+        interfere.set( true );
+        ring.get().read( snapshot );
+        // 0 and 1 were overwritten by 4 and 5 after being copied, 4 and 5 were not published when reading began
+        assertSamples( 2, 4, snapshot );
+        ring.get().read( snapshot );
+        assertSamples( 2, 6, snapshot );
+    }
+
+    @Test
+    public void concurrentReadersNeverSeeTornSamples() throws InterruptedException {
+        SampleRing ring = ring( new HeapSampleStore( 16 ) );
+        long samples = 2_000_000;
+        Thread writer = new Thread( () -> writeSequences( ring, 0, samples ) );
+        writer.start();
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 16 );
+        long previousEnd = 0;
+        while ( previousEnd < samples ) {
+            ring.read( snapshot );
+            for ( int i = 0; i < snapshot.getSize(); i++ ) {
+                long sequence = snapshot.getSequence() + i;
+                assertEquals( sequence, snapshot.getTimestamp( i ), "torn timestamp" );
+                assertEquals( sequence, snapshot.getValue( i ), "torn value" );
+            }
+            if ( !writer.isAlive() && snapshot.getEnd() == previousEnd ) {
+                break;
+            }
+            previousEnd = Math.max( previousEnd, snapshot.getEnd() );
+        }
+        writer.join();
+        assertEquals( samples, ring.getPublished() );
+    }
+
+    @Test
+    public void dropsTornOldestSlotOfRestoredStore() {
+        // keeps the number of published samples like a mapped store across a restart
+        HeapSampleStore store = new HeapSampleStore( 4 ) {
+            private long published;
+
+            @Override
+            public long getPublished() {
+                return published;
+            }
+
+            @Override
+            public void setPublished( long published ) {
+                this.published = published;
+            }
+        };
+        SampleRing previous = ring( store );
+        writeSequences( previous, 0, 6 );
+        // a crash while overwriting the oldest slot, just before publishing sample 6
+        store.write( 2, -1, -1, 0 );
+
+        SampleRing restored = ring( store );
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 4 );
+        restored.read( snapshot );
+        assertSamples( 3, 6, snapshot );
+        writeSequences( restored, 6, 8 );
+        restored.read( snapshot );
+        assertSamples( 4, 8, snapshot );
+    }
+
+    @Test
+    public void shrinkingKeepsNewestSamples() {
+        SampleRing ring = ring( new HeapSampleStore( 8 ) );
+        writeSequences( ring, 0, 6 );
+        ring.resize( new HeapSampleStore( 3 ) );
+        assertEquals( 8, ring.getCapacity() );
+        assertEquals( 3, ring.getTargetCapacity() );
+
+        // applied by the writer on its next write
+        writeSequences( ring, 6, 7 );
+        assertEquals( 3, ring.getCapacity() );
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 1 );
+        ring.read( snapshot );
+        assertSamples( 4, 7, snapshot );
+        // 0 to 2 did not fit anymore and 3 was overwritten by 6, none of them delivered
+        assertEquals( 4, ring.getOverwrites() );
+    }
+
+    @Test
+    public void growingKeepsAllSamples() {
+        SampleRing ring = ring( new HeapSampleStore( 4 ) );
+        writeSequences( ring, 0, 6 );
+        ring.resize( new HeapSampleStore( 8 ) );
+        writeSequences( ring, 6, 7 );
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 1 );
+        ring.read( snapshot );
+        // 0 and 1 were overwritten before growing and do not come back
+        assertSamples( 2, 7, snapshot );
+        writeSequences( ring, 7, 12 );
+        ring.read( snapshot );
+        assertSamples( 4, 12, snapshot );
+    }
+
+    @Test
+    public void searchFindsOldestSampleNotOlder() {
+        SampleRing ring = ring( new HeapSampleStore( 4 ) );
+        writeSequences( ring, 0, 6 );
+        assertEquals( 2, ring.search( 0 ) );
+        assertEquals( 4, ring.search( 4 ) );
+        assertEquals( 6, ring.search( 100 ) );
+    }
+
+    @Test
+    public void staleUntilWrittenOrMarkedFresh() {
+        LongAdder changes = new LongAdder();
+        SampleRing ring = new SampleRing( FAMILY, Map.of(), 0, new HeapSampleStore( 4 ), changes );
+        ring.markStale( 42 );
+        ring.markStale( 43 );
+        assertEquals( 42, ring.getStaleSince() );
+        assertEquals( 1, changes.sum() );
+        ring.write( 44, 1, 0 );
+        assertEquals( 0, ring.getStaleSince() );
+        ring.markStale( 45 );
+        ring.markFresh();
+        assertEquals( 0, ring.getStaleSince() );
+        assertEquals( 4, changes.sum() );
+    }
+
+    @Test
+    public void rejectsEmptyStores() {
+        assertThrows( IllegalArgumentException.class, () -> ring( new HeapSampleStore( 0 ) ) );
+        SampleRing ring = ring( new HeapSampleStore( 1 ) );
+        assertThrows( IllegalArgumentException.class, () -> ring.resize( new HeapSampleStore( 0 ) ) );
+        assertNull( ring.getEncodedSeries( ExpositionFormat.Text ) );
+    }
+}
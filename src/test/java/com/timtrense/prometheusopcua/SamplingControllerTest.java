@@ -0,0 +1,197 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * adapting sampling intervals and buffer sizes with a {@link SamplingController}, against a local {@link StandInServer}
+ *
+ * @author Tim Trense
+ */
+public class SamplingControllerTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis( 60 );
+    private static final MetricFamily FAMILY = new MetricFamily( "test", MetricType.Gauge, null, null );
+
+    private StandInServer standIn;
+    private OpcUaClient client;
+    private Configuration configuration;
+    private Buffer buffer;
+    private ExporterMetrics metrics;
+    private ServerSubscriptions subscriptions;
+    private SamplingController controller;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        standIn = new StandInServer( 2 );
+        standIn.start();
+        configuration = new Configuration();
+        configuration.setUrl( standIn.getUrl() );
+        SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+        subscription.setRequestedPublishingInterval( 100 );
+        for ( int i = 0; i < 2; i++ ) {
+            MonitorConfiguration monitor = new MonitorConfiguration();
+            monitor.setIdentifier( standIn.identifier( i ) );
+            monitor.setName( "node" + i );
+            monitor.setSamplingInterval( 200 );
+            subscription.getMonitors().add( monitor );
+        }
+        configuration.getSubscriptions().add( subscription );
+        AdaptiveSamplingConfiguration adaptive = new AdaptiveSamplingConfiguration();
+        adaptive.setMinSamplingInterval( 100 );
+        adaptive.setMaxSamplingInterval( 800 );
+        adaptive.setLowChangeRatio( 0.1 );
+        adaptive.setHighChangeRatio( 0.5 );
+        adaptive.setMinBufferSize( 10 );
+        adaptive.setMaxBufferSize( 1000 );
+        buffer = new Buffer( 100 );
+        metrics = new ExporterMetrics();
+
+        client = OpcUaClient.create( standIn.getUrl() );
+        client.connect().get();
+        ServerConfiguration server = configuration.getServerConfigurations().get( 0 );
+        subscriptions = new ServerSubscriptions( configuration, server, List.of( client ), buffer, metrics );
+        controller = new SamplingController( "test", adaptive, subscriptions, buffer, metrics );
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        controller.close();
+        subscriptions.close();
+        client.disconnect().get();
+        standIn.close();
+    }
+
+    /**
+     * @return per node index the sampling interval requested for its monitored item
+     */
+    private @NonNull Map<Integer, Double> samplingIntervals() {
+        Map<Integer, Double> samplingIntervals = new HashMap<>();
+        subscriptions.forEachSubscription( ( creator, subscription ) -> {
+            for ( UaMonitoredItem item : subscription.getMonitoredItems() ) {
+                for ( int i = 0; i < standIn.getNodeCount(); i++ ) {
+                    if ( item.getReadValueId().getNodeId().getIdentifier().equals( "node" + i ) ) {
+                        samplingIntervals.put( i, item.getRequestedSamplingInterval() );
+                    }
+                }
+            }
+        } );
+        return samplingIntervals;
+    }
+
+    private @NonNull SampleRing ring( int node ) {
+        return buffer.getNodeValueBuffers().values().stream()
+                .filter( r -> r.getFamily().getName().equals( "opcua_node" + node ) )
+                .findFirst().orElseThrow();
+    }
+
+    @Test
+    public void adaptsToHowOftenTheValuesChangeAndAreScraped() throws Exception {
+        subscriptions.apply( configuration.getSubscriptions() );
+        await( "initial values", () -> buffer.getNodeValueBuffers().size() == 2 );
+        assertEquals( Map.of( 0, 200.0, 1, 200.0 ), samplingIntervals(), "configured sampling intervals" );
+
+        controller.adapt(); // the rates are known from the next period on
+        buffer.markScraped( "slow", null );
+        long periodEnd = System.currentTimeMillis() + 2000;
+        for ( int value = 0; System.currentTimeMillis() < periodEnd; value++ ) {
+            standIn.setValue( 0, value ); // changes on every sampling, while node1 never does
+            Thread.sleep( 50 );
+        }
+        // a second scraper of the same exporter scraping in between does not make the buffers shrink
+        buffer.markScraped( "fast", null );
+        buffer.markScraped( "slow", null );
+        buffer.markScraped( "fast", null );
+        controller.adapt();
+
+        assertEquals( Map.of( 0, 100.0, 1, 400.0 ), samplingIntervals(), "adapted sampling intervals" );
+        assertEquals( 2, metrics.getSamplingIntervalChanges().sum(), "sampling interval changes" );
+        // about 5 values per second arrived for node0, scraped every 2 seconds
+        int capacity = ring( 0 ).getTargetCapacity();
+        assertTrue( capacity >= 10 && capacity <= 30, "buffer size of node0: " + capacity );
+        assertEquals( 10, ring( 1 ).getTargetCapacity(), "buffer size of node1" );
+    }
+
+    @Test
+    public void samplingIntervalsStayWithinTheBounds() {
+        assertEquals( 400.0, controller.adaptSamplingInterval( item( 200, 200 ), 0 ), "rarely changing" );
+        assertEquals( 100.0, controller.adaptSamplingInterval( item( 200, 200 ), 1.0 / 200 ), "changing on every sampling" );
+        assertEquals( 800.0, controller.adaptSamplingInterval( item( 600, 600 ), 0 ), "doubled up to the maximum" );
+        assertNull( controller.adaptSamplingInterval( item( 800, 800 ), 0 ), "at the maximum already" );
+        assertNull( controller.adaptSamplingInterval( item( 100, 100 ), 1.0 / 100 ), "at the minimum already" );
+        assertNull( controller.adaptSamplingInterval( item( 200, 200 ), 0.3 / 200 ), "changing moderately" );
+        assertNull( controller.adaptSamplingInterval( item( 0, 0 ), 0 ), "sampled as fast as possible" );
+        // the server revised the requested 400 to 200 before, so it is not asked for 400 again
+        assertNull( controller.adaptSamplingInterval( item( 400, 200 ), 0 ), "revised by the server" );
+    }
+
+    @Test
+    public void buffersAreSizedForTheSlowestConsumer() throws Exception {
+        SampleRing ring = buffer.getNodeBuffer( FAMILY, Map.of() );
+        assertFalse( controller.adaptBufferSize( ring, 1, ring.getOverwrites() ), "resized before being scraped twice" );
+
+        buffer.markScraped( "slow", null );
+        Thread.sleep( 300 );
+        buffer.markScraped( "fast", null );
+        buffer.markScraped( "slow", null );
+        buffer.markScraped( "fast", null );
+        // another server of the same exporter scraped rarely does not count for this ring
+        buffer.markScraped( "other", "other" );
+        Thread.sleep( 1000 );
+        buffer.markScraped( "other", "other" );
+        assertTrue( controller.adaptBufferSize( ring, 1, ring.getOverwrites() ), "resized for the samples between two scrapes" );
+        assertTrue( ring.getTargetCapacity() >= 600 && ring.getTargetCapacity() <= 1000, "grown buffer size: " + ring.getTargetCapacity() );
+
+        assertTrue( controller.adaptBufferSize( ring, 0, ring.getOverwrites() ), "resized for no samples between two scrapes" );
+        assertEquals( 10, ring.getTargetCapacity(), "shrunk buffer size" );
+
+        // samples overwritten before being handed out double the buffer right away
+        long overwrites = ring.getOverwrites();
+        for ( int i = 0; i < 30; i++ ) {
+            ring.write( i, i, 0 );
+        }
+        assertTrue( controller.adaptBufferSize( ring, 0, overwrites ), "resized for overwrites" );
+        assertEquals( 20, ring.getTargetCapacity(), "buffer size after overwrites" );
+    }
+
+    /**
+     * @return a monitored item reporting the given sampling intervals
+     */
+    private static @NonNull UaMonitoredItem item( double requested, double revised ) {
+        return (UaMonitoredItem)Proxy.newProxyInstance( UaMonitoredItem.class.getClassLoader(), new Class<?>[]{ UaMonitoredItem.class },
+                ( proxy, method, args ) -> {
+                    switch ( method.getName() ) {
+                        case "getRequestedSamplingInterval":
+                            return requested;
+                        case "getRevisedSamplingInterval":
+                            return revised;
+                        default:
+                            throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+    }
+
+    private static void await( @NonNull String what, @NonNull BooleanSupplier condition ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ( !condition.getAsBoolean() ) {
+            assertTrue( System.currentTimeMillis() < deadline, "timed out waiting for " + what );
+            Thread.sleep( 50 );
+        }
+    }
+}
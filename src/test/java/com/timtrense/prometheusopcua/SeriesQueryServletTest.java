@@ -0,0 +1,204 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * querying buffered samples from a {@link SeriesQueryServlet} served by a local http server
+ *
+ * @author Tim Trense
+ */
+public class SeriesQueryServletTest {
+
+    private static final MetricFamily TEMPERATURE = new MetricFamily( "opcua_temperature", MetricType.Gauge, null, null );
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final ForkJoinPool pool = new ForkJoinPool( 2 );
+    private Buffer buffer;
+    private Server server;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        buffer = new Buffer( 8 );
+        ServletHandler handler = new ServletHandler();
+        handler.addServletWithMapping( new ServletHolder( new SeriesQueryServlet( buffer, pool ) ), "/api/series" );
+        server = new Server( 0 );
+        server.setHandler( handler );
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+        pool.shutdown();
+    }
+
+    private @NonNull SampleRing ring( @NonNull String line ) {
+        return buffer.getNodeBuffer( TEMPERATURE, Map.of( "line", line ) );
+    }
+
+    /**
+     * @param query the query string of the request, without the leading question mark
+     */
+    private @NonNull HttpResponse<byte[]> query( @NonNull String query ) throws IOException, InterruptedException {
+        int port = ( (ServerConnector)server.getConnectors()[0] ).getLocalPort();
+        return client.send( HttpRequest.newBuilder( URI.create( "http://localhost:" + port + "/api/series?" + query ) ).build(),
+                HttpResponse.BodyHandlers.ofByteArray() );
+    }
+
+    /**
+     * @return the body of a successful response as text
+     */
+    private @NonNull String json( @NonNull String query ) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = query( query );
+        assertEquals( 200, response.statusCode(), "status of " + query );
+        return new String( response.body(), StandardCharsets.UTF_8 );
+    }
+
+    private static @NonNull String encode( @NonNull String parameter ) {
+        return URLEncoder.encode( parameter, StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void invalidParametersAreRejected() throws Exception {
+        for ( String invalid : new String[]{ "match=" + encode( "[" ), "from=yesterday", "to=1.5", "reduce=median",
+                "reduce=avg", "reduce=min&step=0", "step=x", "points=-", "format=xml" } ) {
+            assertEquals( 400, query( invalid ).statusCode(), "status of " + invalid );
+        }
+        for ( String valid : new String[]{ "", "match=", "reduce=avg&step=10", "reduce=LTTB&points=2", "reduce=none", "format=binary" } ) {
+            assertEquals( 200, query( valid ).statusCode(), "status of " + valid );
+        }
+    }
+
+    @Test
+    public void seriesAreMatchedAndCutToTheWindow() throws Exception {
+        SampleRing ring = ring( "1" );
+        ring.write( 1000, 1.5, 0 );
+        ring.write( 2000, 2.5, 0x80000000 );
+        ring.write( 3000, Double.NaN, 0 );
+        ring.write( 4000, 4.5, 0 );
+        ring( "2" ).write( 1000, 9.5, 0 );
+
+        assertEquals( "{\"series\":[{\"metric\":\"opcua_temperature\",\"labels\":{\"line\":\"1\"},"
+                        + "\"timestamps\":[1000,3000,4000],\"values\":[1.5,null,4.5]}]}",
+                json( "match=" + encode( "line=\"1\"" ) ), "all good samples of the matched series" );
+        assertEquals( "{\"series\":[{\"metric\":\"opcua_temperature\",\"labels\":{\"line\":\"1\"},"
+                        + "\"timestamps\":[3000],\"values\":[null]},"
+                        + "{\"metric\":\"opcua_temperature\",\"labels\":{\"line\":\"2\"},\"timestamps\":[],\"values\":[]}]}",
+                json( "from=1500&to=3000" ), "samples within the window, bounds included" );
+    }
+
+    @Test
+    public void negativeTimesAreRelativeToNow() throws Exception {
+        long now = System.currentTimeMillis();
+        SampleRing ring = ring( "1" );
+        ring.write( now - 50_000, 1, 0 );
+        ring.write( now - 30_000, 2, 0 );
+        ring.write( now - 10_000, 3, 0 );
+
+        String json = json( "from=-40000&to=-20000" );
+        assertTrue( json.contains( "\"timestamps\":[" + ( now - 30_000 ) + "],\"values\":[2]" ), json );
+        json = json( "from=-20000" );
+        assertTrue( json.contains( "\"timestamps\":[" + ( now - 10_000 ) + "],\"values\":[3]" ), json );
+    }
+
+    @Test
+    public void samplesFoundOutOfOrderAreCheckedAgainstTheWindow() throws Exception {
+        // the binary search assumes ordered timestamps, so it takes in the sample at 2000 between the ones it found
+        SampleRing ring = ring( "1" );
+        for ( long timestamp : new long[]{ 1000, 4000, 5000, 2000, 6000 } ) {
+            ring.write( timestamp, timestamp / 1000.0, 0 );
+        }
+        assertEquals( 1, ring.search( 3000 ), "first sequence searched" );
+        assertEquals( 4, ring.search( 5501 ), "end sequence searched" );
+
+        String json = json( "from=3000&to=5500" );
+        assertTrue( json.contains( "\"timestamps\":[4000,5000],\"values\":[4,5]" ), json );
+    }
+
+    @Test
+    public void namesAndLabelsAreEscapedInJson() throws Exception {
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put( "path", "a\"b\\c" );
+        labels.put( "note", "line\nbreak\ttab \u00e4" );
+        buffer.getNodeBuffer( TEMPERATURE, labels ).write( 1000, 1, 0 );
+
+        String json = json( "" );
+        assertTrue( json.contains( "\"labels\":{\"path\":\"a\\\"b\\\\c\",\"note\":\"line\\u000abreak\\u0009tab \u00e4\"}" )
+                || json.contains( "\"labels\":{\"note\":\"line\\u000abreak\\u0009tab \u00e4\",\"path\":\"a\\\"b\\\\c\"}" ), json );
+    }
+
+    @Test
+    public void theBinaryFormatIsLaidOutAsDocumented() throws Exception {
+        SampleRing ring = ring( "1" );
+        ring.write( 1000, 1.5, 0 );
+        ring.write( 900, -2.5, 0 );
+        ring.write( 1300, Double.NaN, 0 );
+        ring( "2" ).write( 5, 7, 0 );
+
+        HttpResponse<byte[]> response = query( "format=binary" );
+        assertEquals( 200, response.statusCode(), "status" );
+        assertEquals( "application/octet-stream", response.headers().firstValue( "Content-Type" ).orElseThrow(), "content type" );
+        ByteBuffer bytes = ByteBuffer.wrap( response.body() ).order( ByteOrder.LITTLE_ENDIAN );
+
+        assertEquals( "opcua_temperature{line=\"1\"}", readString( bytes ), "series" );
+        assertEquals( 3, readVarint( bytes ), "number of points" );
+        assertEquals( 1000, readZigZag( bytes ), "first timestamp, relative to 0" );
+        assertEquals( -100, readZigZag( bytes ), "negative delta" );
+        assertEquals( 400, readZigZag( bytes ), "positive delta" );
+        assertEquals( 1.5, bytes.getDouble(), "first value" );
+        assertEquals( -2.5, bytes.getDouble(), "second value" );
+        assertTrue( Double.isNaN( bytes.getDouble() ), "not finite value" );
+
+        assertEquals( "opcua_temperature{line=\"2\"}", readString( bytes ), "series" );
+        assertEquals( 1, readVarint( bytes ), "number of points" );
+        assertEquals( 5, readZigZag( bytes ), "timestamp" );
+        assertEquals( 7, bytes.getDouble(), "value" );
+        assertFalse( bytes.hasRemaining(), "bytes after the last series" );
+    }
+
+    private static long readVarint( @NonNull ByteBuffer bytes ) {
+        long value = 0;
+        for ( int shift = 0; ; shift += 7 ) {
+            byte b = bytes.get();
+            value |= (long)( b & 0x7F ) << shift;
+            if ( b >= 0 ) {
+                return value;
+            }
+        }
+    }
+
+    private static long readZigZag( @NonNull ByteBuffer bytes ) {
+        long value = readVarint( bytes );
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+
+    private static @NonNull String readString( @NonNull ByteBuffer bytes ) {
+        byte[] string = new byte[(int)readVarint( bytes )];
+        bytes.get( string );
+        return new String( string, StandardCharsets.UTF_8 );
+    }
+}
@@ -0,0 +1,144 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * applying changed subscriptions with {@link ServerSubscriptions}, against a local {@link StandInServer}
+ *
+ * @author Tim Trense
+ */
+public class ServerSubscriptionsTest {
+
+    private static final int NODES = 5;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis( 60 );
+
+    private StandInServer standIn;
+    private OpcUaClient client;
+    private Buffer buffer;
+    private ServerSubscriptions subscriptions;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        standIn = new StandInServer( NODES );
+        for ( int i = 0; i < NODES; i++ ) {
+            standIn.setValue( i, i );
+        }
+        standIn.start();
+        Configuration configuration = new Configuration();
+        configuration.setUrl( standIn.getUrl() );
+        buffer = new Buffer( 100 );
+        client = OpcUaClient.create( standIn.getUrl() );
+        client.connect().get();
+        subscriptions = new ServerSubscriptions( configuration, configuration.getServerConfigurations().get( 0 ),
+                List.of( client ), buffer, new ExporterMetrics() );
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        subscriptions.close();
+        client.disconnect().get();
+        standIn.close();
+    }
+
+    private @NonNull MonitorConfiguration monitor( int node ) {
+        MonitorConfiguration monitor = new MonitorConfiguration();
+        monitor.setIdentifier( standIn.identifier( node ) );
+        monitor.setName( "node" + node );
+        return monitor;
+    }
+
+    private static @NonNull SubscriptionConfiguration subscription( @NonNull MonitorConfiguration... monitors ) {
+        SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+        subscription.setRequestedPublishingInterval( 100 );
+        subscription.getMonitors().addAll( List.of( monitors ) );
+        return subscription;
+    }
+
+    private @NonNull SampleRing ring( int node ) {
+        return buffer.getNodeValueBuffers().values().stream()
+                .filter( r -> r.getFamily().getName().equals( "opcua_node" + node ) )
+                .findFirst().orElseThrow();
+    }
+
+    private static double latest( @NonNull SampleRing ring ) {
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 100 );
+        ring.read( snapshot );
+        return snapshot.getSize() == 0 ? Double.NaN : snapshot.getValue( snapshot.getSize() - 1 );
+    }
+
+    private int monitoredItems() {
+        int[] count = new int[1];
+        subscriptions.forEachSubscription( ( creator, subscription ) -> count[0] += subscription.getMonitoredItems().size() );
+        return count[0];
+    }
+
+    @Test
+    public void keepsUnchangedMonitorsAndTheSamplesOfChangedOnes() throws Exception {
+        MonitorConfiguration kept = monitor( 0 );
+        MonitorConfiguration removed = monitor( 1 );
+        MonitorConfiguration changed = monitor( 2 );
+        MonitorConfiguration moved = monitor( 3 );
+        subscriptions.apply( List.of( subscription( kept, removed, changed ), subscription( moved ) ) );
+        await( "initial values", () -> buffer.getNodeValueBuffers().size() == 4
+                && buffer.getNodeValueBuffers().values().stream().allMatch( r -> r.getPublished() > 0 ) );
+        assertEquals( 2, subscriptions.getSubscriptionCount(), "opc ua subscriptions" );
+        SampleSink keptSink = subscriptions.getClientHandles().getSink( kept );
+        SampleRing changedRing = ring( 2 );
+        SampleRing movedRing = ring( 3 );
+
+        // configured anew, as when reading the changed configuration file
+        MonitorConfiguration changedAgain = monitor( 2 );
+        changedAgain.setQueueSize( 5 );
+        MonitorConfiguration added = monitor( 4 );
+        subscriptions.apply( List.of( subscription( monitor( 0 ), changedAgain, monitor( 3 ) ), subscription( added ) ) );
+
+        assertEquals( 2, subscriptions.getSubscriptionCount(), "opc ua subscriptions" );
+        assertEquals( 4, monitoredItems(), "monitored items" );
+        assertSame( keptSink, subscriptions.getClientHandles().getSink( kept ), "the unchanged monitor is left as it is" );
+        assertNull( subscriptions.getClientHandles().getSink( removed ), "sink of the removed monitor" );
+        assertNull( subscriptions.getClientHandles().getSink( changed ), "sink of the changed monitor before" );
+        assertNotNull( subscriptions.getClientHandles().getSink( changedAgain ), "sink of the changed monitor" );
+
+        for ( int i = 0; i < NODES; i++ ) {
+            standIn.setValue( i, 100 + i );
+        }
+        for ( int node : new int[]{ 0, 2, 3, 4 } ) {
+            await( "new value of node" + node, () -> latest( ring( node ) ) == 100 + node );
+        }
+        // the series of changed and moved monitors keep their samples
+        assertSame( changedRing, ring( 2 ), "ring of the changed monitor" );
+        assertSame( movedRing, ring( 3 ), "ring of the moved monitor" );
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 100 );
+        movedRing.read( snapshot );
+        assertEquals( 3, snapshot.getValue( 0 ), "sample of the moved monitor from before" );
+        assertEquals( 1, latest( ring( 1 ) ), "latest value of the removed monitor" );
+
+        // removing a whole subscription deletes it on the server
+        subscriptions.apply( List.of( subscription( monitor( 0 ), changedAgain, monitor( 3 ) ) ) );
+        assertEquals( 1, subscriptions.getSubscriptionCount(), "opc ua subscriptions" );
+        assertEquals( 3, monitoredItems(), "monitored items" );
+        assertNull( subscriptions.getClientHandles().getSink( added ), "sink of the monitor of the removed subscription" );
+    }
+
+    private static void await( @NonNull String what, @NonNull BooleanSupplier condition ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ( !condition.getAsBoolean() ) {
+            assertTrue( System.currentTimeMillis() < deadline, "timed out waiting for " + what );
+            Thread.sleep( 50 );
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * marking series stale while a session is lost, against a local {@link StandInServer}
+ *
+ * @author Tim Trense
+ */
+public class SessionSupervisorTest {
+
+    private static final int NODES = 5;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis( 60 );
+
+    private StandInServer standIn;
+    private Configuration configuration;
+    private Buffer buffer;
+    private ExporterMetrics metrics;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        standIn = new StandInServer( NODES );
+        for ( int i = 0; i < NODES; i++ ) {
+            standIn.setValue( i, i );
+        }
+        standIn.start();
+        configuration = new Configuration();
+        configuration.setUrl( standIn.getUrl() );
+        configuration.setMinReconnectBackoff( 100 );
+        configuration.setMaxReconnectBackoff( 1000 );
+        SubscriptionConfiguration subscription = new SubscriptionConfiguration();
+        subscription.setRequestedPublishingInterval( 100 );
+        for ( int i = 0; i < NODES; i++ ) {
+            MonitorConfiguration monitor = new MonitorConfiguration();
+            monitor.setIdentifier( standIn.identifier( i ) );
+            monitor.setName( "node" + i );
+            subscription.getMonitors().add( monitor );
+        }
+        configuration.getSubscriptions().add( subscription );
+        buffer = new Buffer( 100 );
+        metrics = new ExporterMetrics();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        standIn.close();
+    }
+
+    @Test
+    public void reactivatedSessionIsMarkedFresh() throws Exception {
+        ServerConfiguration server = configuration.getServerConfigurations().get( 0 );
+        OpcUaClient client = OpcUaClient.create( standIn.getUrl() );
+        client.connect().get();
+        ServerSubscriptions subscriptions = new ServerSubscriptions( configuration, server, List.of( client ), buffer, metrics );
+        SessionSupervisor supervisor = new SessionSupervisor( "test", client, subscriptions, configuration, metrics );
+        try {
+            subscriptions.apply( server.getSubscriptions() );
+            await( "initial values", () -> rings().size() == NODES && rings().stream().allMatch( r -> r.getPublished() > 0 ) );
+
+            supervisor.onSessionInactive( client.getSession().get() );
+            assertTrue( rings().stream().allMatch( r -> r.getStaleSince() != 0 ), "stale while the session is lost" );
+
+            // the session came back with its subscriptions, yet no value changed meanwhile
+            supervisor.onSessionActive( client.getSession().get() );
+            await( "fresh after reactivation", () -> rings().stream().allMatch( r -> r.getStaleSince() == 0 ) );
+        }
+        finally {
+            supervisor.close();
+            subscriptions.close();
+            client.disconnect().get();
+        }
+    }
+
+    @Test
+    public void restartedServerIsMarkedStaleThenFresh() throws Exception {
+        try ( ServerConnection connection = new ServerConnection( configuration, configuration.getServerConfigurations().get( 0 ),
+                buffer, metrics, ReplicaPartition.ALL ) ) {
+            connection.start();
+            await( "initial values", () -> rings().size() == NODES && rings().stream().allMatch( r -> r.getPublished() > 0 ) );
+
+            standIn.stop();
+            await( "stale after the server stopped", () -> rings().stream().allMatch( r -> r.getStaleSince() != 0 ) );
+
+            // unchanged values must come back as well as changed ones
+            standIn.start();
+            standIn.setValue( 0, 42 );
+            await( "fresh after the server restarted", () -> rings().stream().allMatch( r -> r.getStaleSince() == 0 ) );
+            SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 100 );
+            buffer.getNodeValueBuffers().values().stream()
+                    .filter( r -> r.getFamily().getName().equals( "opcua_node0" ) )
+                    .findFirst().orElseThrow().read( snapshot );
+            assertEquals( 42, snapshot.getValue( snapshot.getSize() - 1 ) );
+        }
+    }
+
+    private @NonNull Collection<SampleRing> rings() {
+        return buffer.getNodeValueBuffers().values();
+    }
+
+    private static void await( @NonNull String what, @NonNull BooleanSupplier condition ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ( !condition.getAsBoolean() ) {
+            assertTrue( System.currentTimeMillis() < deadline, "timed out waiting for " + what );
+            Thread.sleep( 50 );
+        }
+    }
+}
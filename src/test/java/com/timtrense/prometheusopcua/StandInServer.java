@@ -0,0 +1,236 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.DataItem;
+import org.eclipse.milo.opcua.sdk.server.api.ManagedNamespaceWithLifecycle;
+import org.eclipse.milo.opcua.sdk.server.api.MonitoredItem;
+import org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.sdk.server.util.SubscriptionModel;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MessageSecurityMode;
+import org.eclipse.milo.opcua.stack.server.EndpointConfiguration;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * a local opc ua server standing in for a real one in tests and the soak harness:
+ * one anonymous endpoint without security and a folder of variables "node0", "node1", ... below the objects folder,
+ * holding doubles unless set to other values.
+ * the values are kept across {@link #stop() stopping} and {@link #start() starting} again, which replaces the server instance
+ * on the same port, so that clients lose their sessions and subscriptions like with a restarted real server.
+ *
+ * @author Tim Trense
+ */
+public class StandInServer implements AutoCloseable {
+
+    public static final String APPLICATION_URI = "urn:timtrense:prometheus-opcua:stand-in";
+    public static final String NAMESPACE_URI = APPLICATION_URI + ":nodes";
+
+    private final int port;
+    private final Variant[] values;
+    private OpcUaServer server;
+    private StandInNamespace namespace;
+
+    /**
+     * @param nodes the number of variables
+     */
+    public StandInServer( int nodes ) throws IOException {
+        this( freePort(), nodes );
+    }
+
+    /**
+     * @param port  the port to listen on
+     * @param nodes the number of variables
+     */
+    public StandInServer( int port, int nodes ) {
+        this.port = port;
+        this.values = new Variant[nodes];
+        Arrays.fill( values, new Variant( 0.0 ) );
+    }
+
+    /**
+     * @return a port that nothing listens on at the moment
+     */
+    static int freePort() throws IOException {
+        try ( ServerSocket socket = new ServerSocket( 0 ) ) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return the url to discover and connect to this server by
+     */
+    public @NonNull String getUrl() {
+        return "opc.tcp://localhost:" + port + "/stand-in";
+    }
+
+    /**
+     * @return the number of variables
+     */
+    public int getNodeCount() {
+        return values.length;
+    }
+
+    /**
+     * @param node the index of a variable
+     * @return the node id of that variable as configured for a monitor
+     */
+    public @NonNull String identifier( int node ) {
+        // the namespace is always the first one after the standard one and the one of the server application
+        return "ns=2;s=node" + node;
+    }
+
+    /**
+     * starts a new server instance with the current values
+     */
+    public synchronized void start() throws ExecutionException, InterruptedException {
+        if ( server != null ) {
+            return;
+        }
+        EndpointConfiguration endpoint = EndpointConfiguration.newBuilder()
+                .setBindAddress( "localhost" )
+                .setHostname( "localhost" )
+                .setBindPort( port )
+                .setPath( "/stand-in" )
+                .setSecurityPolicy( SecurityPolicy.None )
+                .setSecurityMode( MessageSecurityMode.None )
+                .addTokenPolicy( OpcUaServerConfig.USER_TOKEN_POLICY_ANONYMOUS )
+                .build();
+        OpcUaServerConfig config = OpcUaServerConfig.builder()
+                .setApplicationUri( APPLICATION_URI )
+                .setProductUri( APPLICATION_URI )
+                .setApplicationName( LocalizedText.english( "stand-in" ) )
+                .setEndpoints( Set.of( endpoint ) )
+                .build();
+        server = new OpcUaServer( config );
+        namespace = new StandInNamespace( server );
+        namespace.startup();
+        server.startup().get();
+    }
+
+    /**
+     * shuts the server instance down, dropping all sessions and subscriptions
+     */
+    public synchronized void stop() throws ExecutionException, InterruptedException {
+        if ( server == null ) {
+            return;
+        }
+        namespace.shutdown();
+        server.shutdown().get();
+        server = null;
+        namespace = null;
+    }
+
+    /**
+     * sets the value of a variable, timestamped now
+     *
+     * @param node  the index of a variable
+     * @param value its new value
+     */
+    public void setValue( int node, double value ) {
+        setValue( node, new Variant( value ) );
+    }
+
+    /**
+     * sets the value of a variable, timestamped now
+     *
+     * @param node  the index of a variable
+     * @param value its new value of any type, scalar or array
+     */
+    public synchronized void setValue( int node, @NonNull Variant value ) {
+        values[node] = value;
+        if ( namespace != null ) {
+            namespace.variables[node].setValue( dataValue( value ) );
+        }
+    }
+
+    private static @NonNull DataValue dataValue( @NonNull Variant value ) {
+        return new DataValue( value, StatusCode.GOOD, DateTime.now() );
+    }
+
+    @Override
+    public void close() throws ExecutionException {
+        try {
+            stop();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * the folder of variables, sampled by the subscription model of milo
+     */
+    private class StandInNamespace extends ManagedNamespaceWithLifecycle {
+
+        private final SubscriptionModel subscriptionModel;
+        private final UaVariableNode[] variables = new UaVariableNode[values.length];
+
+        private StandInNamespace( @NonNull OpcUaServer server ) {
+            super( server, NAMESPACE_URI );
+            subscriptionModel = new SubscriptionModel( server, this );
+            getLifecycleManager().addLifecycle( subscriptionModel );
+            getLifecycleManager().addStartupTask( this::createNodes );
+        }
+
+        private void createNodes() {
+            UaFolderNode folder = new UaFolderNode( getNodeContext(), newNodeId( "stand-in" ),
+                    newQualifiedName( "stand-in" ), LocalizedText.english( "stand-in" ) );
+            getNodeManager().addNode( folder );
+            folder.addReference( new Reference( folder.getNodeId(), Identifiers.Organizes,
+                    Identifiers.ObjectsFolder.expanded(), false ) );
+            for ( int i = 0; i < values.length; i++ ) {
+                String name = "node" + i;
+                UaVariableNode variable = new UaVariableNode.UaVariableNodeBuilder( getNodeContext() )
+                        .setNodeId( newNodeId( name ) )
+                        .setBrowseName( newQualifiedName( name ) )
+                        .setDisplayName( LocalizedText.english( name ) )
+                        .setDataType( Identifiers.BaseDataType )
+                        .setTypeDefinition( Identifiers.BaseDataVariableType )
+                        .setAccessLevel( AccessLevel.READ_ONLY )
+                        .setUserAccessLevel( AccessLevel.READ_ONLY )
+                        .setValue( dataValue( values[i] ) )
+                        .build();
+                getNodeManager().addNode( variable );
+                folder.addOrganizes( variable );
+                variables[i] = variable;
+            }
+        }
+
+        @Override
+        public void onDataItemsCreated( List<DataItem> dataItems ) {
+            subscriptionModel.onDataItemsCreated( dataItems );
+        }
+
+        @Override
+        public void onDataItemsModified( List<DataItem> dataItems ) {
+            subscriptionModel.onDataItemsModified( dataItems );
+        }
+
+        @Override
+        public void onDataItemsDeleted( List<DataItem> dataItems ) {
+            subscriptionModel.onDataItemsDeleted( dataItems );
+        }
+
+        @Override
+        public void onMonitoringModeChanged( List<MonitoredItem> monitoredItems ) {
+            subscriptionModel.onMonitoringModeChanged( monitoredItems );
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.timtrense.prometheusopcua;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static com.timtrense.prometheusopcua.RecordingSink.Sample;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * swinging door compression via {@link SwingingDoorReducer}
+ *
+ * @author Tim Trense
+ */
+public class SwingingDoorReducerTest {
+
+    private static final int BAD = 0x80000000;
+
+    @Test
+    public void dropsSamplesOnStraightLine() {
+        RecordingSink target = new RecordingSink();
+        SwingingDoorReducer reducer = new SwingingDoorReducer( target, 0.1 );
+        for ( int i = 0; i <= 10; i++ ) {
+            reducer.write( i * 1000L, i * 2.0, 0 );
+        }
+        // the slope changes at 10
+        reducer.write( 11_000, 20, 0 );
+        reducer.write( 12_000, 20, 0 );
+        assertEquals( List.of( new Sample( 0, 0 ), new Sample( 10_000, 20 ) ), target.take() );
+        assertFalse( reducer.flush( 12_001 ) );
+        assertEquals( List.of( new Sample( 12_000, 20 ) ), target.take() );
+    }
+
+    @Test
+    public void reconstructsEverySampleWithinDeviation() {
+        double deviation = 0.5;
+        RecordingSink target = new RecordingSink();
+        SwingingDoorReducer reducer = new SwingingDoorReducer( target, deviation );
+        Random random = new Random( 42 );
+        int count = 10_000;
+        double[] values = new double[count];
+        double value = 0;
+        for ( int i = 0; i < count; i++ ) {
+            value += random.nextGaussian() * 0.3;
+            values[i] = value;
+            reducer.write( i, value, 0 );
+        }
+        reducer.flush( count );
+        List<Sample> written = target.take();
+        assertTrue( written.size() < count / 2, "compressed to " + written.size() );
+        assertEquals( 0, written.get( 0 ).getTimestamp() );
+        assertEquals( count - 1, written.get( written.size() - 1 ).getTimestamp() );
+        for ( int w = 1; w < written.size(); w++ ) {
+            Sample from = written.get( w - 1 );
+            Sample to = written.get( w );
+            for ( long t = from.getTimestamp(); t <= to.getTimestamp(); t++ ) {
+                double interpolated = from.getValue() + ( to.getValue() - from.getValue() )
+                        * ( t - from.getTimestamp() ) / ( to.getTimestamp() - from.getTimestamp() );
+                assertEquals( values[(int)t], interpolated, deviation + 1e-9, "at " + t );
+            }
+        }
+    }
+
+    @Test
+    public void flushesHeldSampleOnlyOnceOlder() {
+        RecordingSink target = new RecordingSink();
+        SwingingDoorReducer reducer = new SwingingDoorReducer( target, 1 );
+        reducer.write( 0, 5, 0 );
+        reducer.write( 1000, 5, 0 );
+        assertEquals( List.of( new Sample( 0, 5 ) ), target.take() );
+        assertTrue( reducer.flush( 1000 ) );
+        assertEquals( List.of(), target.take() );
+        assertFalse( reducer.flush( 1001 ) );
+        assertEquals( List.of( new Sample( 1000, 5 ) ), target.take() );
+        // continued from the flushed sample
+        reducer.write( 2000, 5.5, 0 );
+        reducer.write( 3000, 10, 0 );
+        assertEquals( List.of( new Sample( 2000, 5.5 ) ), target.take() );
+    }
+
+    @Test
+    public void passesBadSamplesAndRestarts() {
+        RecordingSink target = new RecordingSink();
+        SwingingDoorReducer reducer = new SwingingDoorReducer( target, 1 );
+        reducer.write( 0, 1, 0 );
+        reducer.write( 1000, 1, 0 );
+        reducer.write( 2000, 0, BAD );
+        reducer.write( 3000, 1, 0 );
+        assertEquals( List.of( new Sample( 0, 1 ), new Sample( 1000, 1 ), new Sample( 2000, 0, BAD ), new Sample( 3000, 1 ) ),
+                target.take() );
+        // not newer than the pivot
+        reducer.write( 3000, 2, 0 );
+        assertFalse( reducer.flush( Long.MAX_VALUE ) );
+        assertEquals( List.of(), target.take() );
+    }
+
+    @Test
+    public void rejectsNegativeDeviation() {
+        assertThrows( IllegalArgumentException.class, () -> new SwingingDoorReducer( new RecordingSink(), -1 ) );
+    }
+}
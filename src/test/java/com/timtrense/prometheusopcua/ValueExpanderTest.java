@@ -0,0 +1,140 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.AxisScaleEnumeration;
+import org.eclipse.milo.opcua.stack.core.types.structured.AxisInformation;
+import org.eclipse.milo.opcua.stack.core.types.structured.EUInformation;
+import org.eclipse.milo.opcua.stack.core.types.structured.Range;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * expanding arrays and structures into one series per element or field with a {@link ValueExpander}
+ *
+ * @author Tim Trense
+ */
+public class ValueExpanderTest {
+
+    private Buffer buffer;
+    private MonitorConfiguration monitor;
+
+    @BeforeEach
+    public void createMonitor() {
+        buffer = new Buffer( 10 );
+        monitor = new MonitorConfiguration();
+        monitor.setIdentifier( "ns=2;s=node0" );
+        monitor.setLabel( new HashMap<>( Map.of( "sensor", "a" ) ) );
+    }
+
+    private @NonNull ValueExpander expander() {
+        return new ValueExpander( buffer, monitor, buffer.getNodeBuffer( monitor ), null );
+    }
+
+    /**
+     * @param labels pairs of label names and values added to those of the monitor
+     * @return the newest value of the series with these labels
+     */
+    private double latest( @NonNull String... labels ) {
+        Map<String, String> series = new LinkedHashMap<>( monitor.getMetricLabels() );
+        for ( int i = 0; i < labels.length; i += 2 ) {
+            series.put( labels[i], labels[i + 1] );
+        }
+        SampleRing.Snapshot snapshot = new SampleRing.Snapshot( 10 );
+        buffer.getNodeBuffer( monitor.getMetricFamily(), series ).read( snapshot );
+        return snapshot.getSize() == 0 ? Double.NaN : snapshot.getValue( snapshot.getSize() - 1 );
+    }
+
+    /**
+     * @return the labels of all series of elements and fields registered, besides those of the monitor, as "name=value" joined by " "
+     */
+    private @NonNull String seriesLabels() {
+        return buffer.getNodeValueBuffers().values().stream()
+                .map( ring -> ring.getLabels().entrySet().stream().filter( e -> !e.getKey().equals( "sensor" ) )
+                        .map( e -> e.getKey() + "=" + e.getValue() ).collect( Collectors.joining( " " ) ) )
+                .filter( labels -> !labels.isEmpty() ).sorted().collect( Collectors.joining( ", " ) );
+    }
+
+    @Test
+    public void arraysOfPrimitivesAreExpandedPerElement() {
+        ValueExpander expander = expander();
+        Object[] arrays = {
+                new double[]{ 1.5, 2.5 }, new float[]{ 1.5f, 2.5f }, new long[]{ 1, 2 }, new int[]{ 1, 2 },
+                new short[]{ 1, 2 }, new byte[]{ 1, 2 }, new boolean[]{ true, false }, new Double[]{ 1.5, 2.5 } };
+        double[][] expected = { { 1.5, 2.5 }, { 1.5, 2.5 }, { 1, 2 }, { 1, 2 }, { 1, 2 }, { 1, 2 }, { 1, 0 }, { 1.5, 2.5 } };
+        for ( int i = 0; i < arrays.length; i++ ) {
+            expander.writeValue( i, new Variant( arrays[i] ), 0 );
+            String type = arrays[i].getClass().getSimpleName();
+            assertEquals( expected[i][0], latest( "index", "0" ), "element 0 of " + type );
+            assertEquals( expected[i][1], latest( "index", "1" ), "element 1 of " + type );
+        }
+        assertEquals( "index=0, index=1", seriesLabels(), "series" );
+        assertEquals( arrays.length, expander.getNotifications(), "notifications of the monitor" );
+
+        // a longer array adds series for the new elements only
+        expander.writeValue( 10, new int[]{ 7, 8, 9 }, 0 );
+        assertEquals( 9, latest( "index", "2" ), "element 2" );
+        assertEquals( 4, buffer.getNodeValueBuffers().size(), "series of the monitor and its elements" );
+    }
+
+    @Test
+    public void elementsAreLabelledByTheirIndexWithinTheRange() {
+        assertArrayEquals( new int[0], ValueExpander.parseIndexOffsets( null ), "no range" );
+        assertArrayEquals( new int[0], ValueExpander.parseIndexOffsets( " " ), "blank range" );
+        assertArrayEquals( new int[]{ 2 }, ValueExpander.parseIndexOffsets( "2:5" ), "range" );
+        assertArrayEquals( new int[]{ 3 }, ValueExpander.parseIndexOffsets( "3" ), "single index" );
+        assertArrayEquals( new int[]{ 0, 3 }, ValueExpander.parseIndexOffsets( "0:1, 3" ), "range of two dimensions" );
+
+        monitor.setIndexRange( "1:2,3:4" );
+        ValueExpander expander = expander();
+        expander.writeValue( 1, new Object[]{ new double[]{ 13, 14 }, new double[]{ 23, 24 } }, 0 );
+        assertEquals( 13, latest( "index", "1,3" ), "element 1,3" );
+        assertEquals( 14, latest( "index", "1,4" ), "element 1,4" );
+        assertEquals( 23, latest( "index", "2,3" ), "element 2,3" );
+        assertEquals( 24, latest( "index", "2,4" ), "element 2,4" );
+    }
+
+    @Test
+    public void structuresAreExpandedPerNumericFieldRecursively() {
+        ValueExpander expander = expander();
+        AxisInformation axis = new AxisInformation( new EUInformation( "http://www.opcfoundation.org/UA/units/un/cefact", 4408652,
+                LocalizedText.english( "\u00b0C" ), LocalizedText.english( "degree Celsius" ) ), new Range( -20.0, 80.0 ),
+                LocalizedText.english( "temperature" ), AxisScaleEnumeration.Linear, new Double[]{ 0.5, 1.0 } );
+        expander.writeValue( 1, axis, 0 );
+
+        assertEquals( "field=axisSteps index=0, field=axisSteps index=1, field=engineeringUnits.unitId, "
+                + "field=euRange.high, field=euRange.low", seriesLabels(), "series" );
+        assertEquals( 0.5, latest( "field", "axisSteps", "index", "0" ), "axis step 0" );
+        assertEquals( 1.0, latest( "field", "axisSteps", "index", "1" ), "axis step 1" );
+        assertEquals( 4408652, latest( "field", "engineeringUnits.unitId" ), "unit id" );
+        assertEquals( -20, latest( "field", "euRange.low" ), "low end of the range" );
+        assertEquals( 80, latest( "field", "euRange.high" ), "high end of the range" );
+
+        // another structure class written to the same monitor gets its own fields
+        expander.writeValue( 2, new Range( 1.0, 2.0 ), 0 );
+        assertEquals( 1, latest( "field", "low" ), "low end of another structure" );
+        expander.writeValue( 3, axis, 0 );
+        assertEquals( 80, latest( "field", "euRange.high" ), "high end of the range written again" );
+    }
+
+    @Test
+    public void theGettersOfAStructureClassAreLookedUpOnce() {
+        ValueExpander.Field[] fields = ValueExpander.FIELDS.get( Range.class );
+        assertSame( fields, ValueExpander.FIELDS.get( Range.class ), "fields looked up again" );
+        assertEquals( "[high, low]", Arrays.toString( Arrays.stream( fields ).map( f -> f.name ).toArray() ), "fields sorted by name" );
+        assertEquals( "[axisSteps, engineeringUnits, euRange]",
+                Arrays.toString( Arrays.stream( ValueExpander.FIELDS.get( AxisInformation.class ) ).map( f -> f.name ).toArray() ),
+                "fields that can be expanded" );
+    }
+}
@@ -0,0 +1,89 @@
+package com.timtrense.prometheusopcua;
+
+import lombok.NonNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.timtrense.prometheusopcua.RecordingSink.Sample;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * reducing the samples per window via {@link WindowReducer}
+ *
+ * @author Tim Trense
+ */
+public class WindowReducerTest {
+
+    private static final int BAD = 0x80000000;
+
+    private static @NonNull List<Sample> reduce( @NonNull SampleReduction reduction ) {
+        RecordingSink target = new RecordingSink();
+        WindowReducer reducer = new WindowReducer( target, reduction, 1000 );
+        reducer.write( 1000, 3, 0 );
+        reducer.write( 1500, 1, 0 );
+        reducer.write( 1999, 5, 0 );
+        reducer.write( 2000, 7, 0 );
+        reducer.write( 4200, 2, 0 );
+        return target.take();
+    }
+
+    @Test
+    public void reducesEachWindowOnceLaterOneBegins() {
+        assertEquals( List.of( new Sample( 1999, 1 ), new Sample( 2000, 7 ) ), reduce( SampleReduction.Min ) );
+        assertEquals( List.of( new Sample( 1999, 5 ), new Sample( 2000, 7 ) ), reduce( SampleReduction.Max ) );
+        assertEquals( List.of( new Sample( 1999, 3 ), new Sample( 2000, 7 ) ), reduce( SampleReduction.Avg ) );
+        assertEquals( List.of( new Sample( 1999, 5 ), new Sample( 2000, 7 ) ), reduce( SampleReduction.Last ) );
+    }
+
+    @Test
+    public void flushesWindowOnlyOnceOver() {
+        RecordingSink target = new RecordingSink();
+        WindowReducer reducer = new WindowReducer( target, SampleReduction.Max, 1000 );
+        reducer.write( 1200, 4, 0 );
+        reducer.write( 1300, 6, 0 );
+        assertTrue( reducer.flush( 1999 ), "the window is not over yet" );
+        assertEquals( List.of(), target.take() );
+        assertFalse( reducer.flush( 2000 ) );
+        assertEquals( List.of( new Sample( 1300, 6 ) ), target.take() );
+        assertFalse( reducer.flush( 5000 ), "nothing held anymore" );
+        assertEquals( List.of(), target.take() );
+
+        // the next sample starts a new window, even within the flushed one
+        reducer.write( 1400, 1, 0 );
+        reducer.write( 2100, 2, 0 );
+        assertEquals( List.of( new Sample( 1400, 1 ) ), target.take() );
+    }
+
+    @Test
+    public void passesBadSamplesAfterCurrentWindow() {
+        RecordingSink target = new RecordingSink();
+        WindowReducer reducer = new WindowReducer( target, SampleReduction.Avg, 1000 );
+        reducer.write( 1000, 2, 0 );
+        reducer.write( 1100, 4, 0 );
+        reducer.write( 1200, 100, BAD );
+        reducer.write( 1300, 8, 0 );
+        assertFalse( reducer.flush( 2000 ) );
+        assertEquals( List.of( new Sample( 1100, 3 ), new Sample( 1200, 100, BAD ), new Sample( 1300, 8 ) ), target.take() );
+    }
+
+    @Test
+    public void registersAsHoldingSample() {
+        RecordingSink target = new RecordingSink();
+        WindowReducer reducer = new WindowReducer( target, SampleReduction.Last, 1000 );
+        HeldSamples held = HeldSamples.current();
+        held.flush( Long.MAX_VALUE );
+        reducer.write( 1000, 1, 0 );
+        assertEquals( 1, held.flush( 1500 ) );
+        assertEquals( 0, held.flush( 2000 ) );
+        assertEquals( List.of( new Sample( 1000, 1 ) ), target.take() );
+    }
+
+    @Test
+    public void rejectsEmptyWindows() {
+        assertThrows( IllegalArgumentException.class, () -> new WindowReducer( new RecordingSink(), SampleReduction.Avg, 0 ) );
+    }
+}